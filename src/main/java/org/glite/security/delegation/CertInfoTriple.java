@@ -2,6 +2,7 @@ package org.glite.security.delegation;
 
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 import org.apache.log4j.Logger;
@@ -28,6 +29,8 @@ public class CertInfoTriple {
     public String dn = null;
     /** The voms attributes from the proxy. */
     public String vomsAttributes[] = null;
+    /** The earliest end of validity of the voms attribute certificates, null if there were none. */
+    public Date vomsNotAfter = null;
 
     /**
      * Digs up the information from the certificate chain.
@@ -41,6 +44,20 @@ public class CertInfoTriple {
      */
     public CertInfoTriple(X509Certificate certs[], VOMSACValidator validator, boolean requireVomsAttrs)
             throws DelegationException {
+        this(certs);
+        loadVomsAttributes(certs, validator, requireVomsAttrs);
+    }
+
+    /**
+     * Digs up the end entity certificate and DN from the certificate chain, but not the voms attributes. The voms
+     * attributes can be loaded later with {@link #loadVomsAttributes(X509Certificate[], VOMSACValidator, boolean)} if
+     * they turn out to be needed.
+     * 
+     * @param certs The certificate chain to process.
+     * @throws DelegationException Thrown in case no certificates are given, no end entity certificate is found or no
+     *             end entity DN is found.
+     */
+    public CertInfoTriple(X509Certificate certs[]) throws DelegationException {
         if (certs == null) {
             throw new DelegationException("No certificates given.");
         }
@@ -57,7 +74,20 @@ public class CertInfoTriple {
         if (dn == null) {
             throw new DelegationException("Failed to get client DN.");
         }
+    }
 
+    /**
+     * Validates and extracts the voms attributes from the certificate chain.
+     * 
+     * @param certs The certificate chain to process.
+     * @param validator The voms validator, if null no attributes are extracted.
+     * @param requireVomsAttrs Whether the voms attributes are required or not. If they are required, and none are
+     *            found, the DelegationException is thrown. Also if they are required and an empty attribute is found,
+     *            the DelegationException is thrown.
+     * @throws DelegationException Thrown in case the voms attributes are required, but not found or invalid.
+     */
+    public void loadVomsAttributes(X509Certificate certs[], VOMSACValidator validator, boolean requireVomsAttrs)
+            throws DelegationException {
         if (validator != null) {
             try {
                 vomsAttributes = getVomsAttributes(certs, validator);
@@ -87,7 +117,8 @@ public class CertInfoTriple {
     }
 
     /**
-     * Uses the given voms validator to validate and extract the voms attributes from the certificate chain.
+     * Uses the given voms validator to validate and extract the voms attributes from the certificate chain. Also sets
+     * the earliest end of validity of the attribute certificates.
      * 
      * @param certs the chain to treat.
      * @return The validates attributes.
@@ -103,6 +134,9 @@ public class CertInfoTriple {
 
             if (r.isValid()) {
                 VOMSAttribute attrs = r.getAttributes();
+                if (attrs.getNotAfter() != null && (vomsNotAfter == null || attrs.getNotAfter().before(vomsNotAfter))) {
+                    vomsNotAfter = attrs.getNotAfter();
+                }
                 for (String attribute : attrs.getFQANs()) {
                     attributeList.add(attribute);
                 }
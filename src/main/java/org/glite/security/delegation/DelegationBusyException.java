@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004. See
+ * http://www.eu-egee.org/partners/ for details on the copyright holders.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.glite.security.delegation;
+
+/**
+ * Exception to be thrown if the request was rejected because the delegation service is overloaded. The request can be
+ * retried later, the service front end can map this to a HTTP 503 response with the Retry-After header.
+ * 
+ */
+public class DelegationBusyException extends DelegationException {
+    /**
+     * Generated serial to be properly serializable.
+     */
+    private static final long serialVersionUID = 3071935416532286807L;
+
+    /**
+     * The suggested time to wait before retrying, in seconds.
+     */
+    private final int retryAfter;
+
+    /**
+     * Constructor with message and retry time.
+     * 
+     * @param msg The error message.
+     * @param retryAfter The suggested time to wait before retrying, in seconds.
+     */
+    public DelegationBusyException(String msg, int retryAfter) {
+        super(msg);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Gets the suggested time to wait before retrying the request.
+     * 
+     * @return The time to wait in seconds.
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+}
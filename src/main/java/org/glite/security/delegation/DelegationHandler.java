@@ -123,6 +123,15 @@ public class DelegationHandler {
                 pemReader.close();
             }
 
+            if (req == null) {
+                throw new DelegationException("No certificate request found in the given input.");
+            }
+            // the request has to be signed with the key it carries, whatever the key algorithm (RSA or EC)
+            if (!req.verify()) {
+                throw new DelegationException("The signature of the certificate request is not valid.");
+            }
+            LOGGER.debug("Certificate request key algorithm: " + req.getPublicKey().getAlgorithm());
+
             ProxyRequestOptions options = new ProxyRequestOptions(certs, req);
             
             ProxyCSRInfo reqInfo = new ProxyCSRInfo(req);
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004. See
+ * http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.glite.security.delegation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encodes the lists of VOMS attributes (FQANs) for the storages, the voms_attrs column of the database and the
+ * voms.attributes file of the filesystem storage.
+ *
+ * <p>
+ * Each FQAN is written as its length in characters, a colon and the FQAN itself, for example
+ * <code>12:/dteam/Role=x9:/atlas/cz</code>, so any characters are allowed in the FQANs and both encoding and decoding
+ * take linear time. The earlier format, the FQANs each prefixed with a tab, is still decoded. The decoded FQANs are
+ * interned in a dictionary shared by all the storage elements, as the same few FQANs repeat in most of the
+ * delegations. The dictionary is bounded, once full the new FQANs are not interned.
+ * </p>
+ */
+public final class FqanCodec {
+    /** The maximum number of FQANs in the dictionary. */
+    private static final int MAX_DICTIONARY_SIZE = 10000;
+
+    /** The separator of the length and the FQAN. */
+    private static final char LENGTH_SEPARATOR = ':';
+
+    /** The prefix of the FQANs in the earlier format. */
+    private static final char LEGACY_SEPARATOR = '\t';
+
+    /** The interned FQANs. */
+    private static final ConcurrentHashMap<String, String> s_dictionary = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Not to be instantiated.
+     */
+    private FqanCodec() {
+        // only static methods
+    }
+
+    /**
+     * Encodes the FQANs into a single string. The null elements are skipped.
+     *
+     * @param fqans The FQANs, can be null.
+     * @return The encoded FQANs, an empty string if there are none.
+     */
+    public static String encode(String fqans[]) {
+        if (fqans == null || fqans.length == 0) {
+            return "";
+        }
+        int length = 0;
+        for (String fqan : fqans) {
+            if (fqan != null) {
+                length += fqan.length() + 6;
+            }
+        }
+        StringBuilder encoded = new StringBuilder(length);
+        for (String fqan : fqans) {
+            if (fqan != null) {
+                encoded.append(fqan.length()).append(LENGTH_SEPARATOR).append(fqan);
+            }
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * Decodes the FQANs encoded with {@link #encode(String[])}, or in the earlier tab separated format. A value that
+     * is in neither format, for example written by another implementation, is taken as tab separated FQANs.
+     *
+     * @param encoded The encoded FQANs, can be null.
+     * @return The FQANs, an empty array if there are none.
+     */
+    public static String[] decode(String encoded) {
+        if (encoded == null || encoded.length() == 0) {
+            return new String[0];
+        }
+        if (encoded.charAt(0) != LEGACY_SEPARATOR) {
+            String fqans[] = decodeLengthPrefixed(encoded);
+            if (fqans != null) {
+                return fqans;
+            }
+        }
+        return decodeLegacy(encoded);
+    }
+
+    /**
+     * Returns the shared instance of the FQAN.
+     *
+     * @param fqan The FQAN.
+     * @return The shared instance, or the FQAN itself if the dictionary is full.
+     */
+    public static String intern(String fqan) {
+        String interned = s_dictionary.get(fqan);
+        if (interned != null) {
+            return interned;
+        }
+        if (s_dictionary.size() >= MAX_DICTIONARY_SIZE) {
+            return fqan;
+        }
+        interned = s_dictionary.putIfAbsent(fqan, fqan);
+        return (interned == null) ? fqan : interned;
+    }
+
+    /**
+     * Decodes the length prefixed FQANs.
+     *
+     * @param encoded The encoded FQANs.
+     * @return The FQANs, null if the encoding is malformed.
+     */
+    private static String[] decodeLengthPrefixed(String encoded) {
+        List<String> fqans = new ArrayList<String>();
+        int pos = 0;
+        while (pos < encoded.length()) {
+            int length = 0;
+            int separator = pos;
+            for (; separator < encoded.length() && encoded.charAt(separator) != LENGTH_SEPARATOR; separator++) {
+                char digit = encoded.charAt(separator);
+                if (digit < '0' || digit > '9' || length > (Integer.MAX_VALUE - 9) / 10) {
+                    return null;
+                }
+                length = length * 10 + (digit - '0');
+            }
+            int end = separator + 1 + length;
+            if (separator == pos || separator == encoded.length() || end > encoded.length()) {
+                return null;
+            }
+            fqans.add(intern(encoded.substring(separator + 1, end)));
+            pos = end;
+        }
+        return fqans.toArray(new String[fqans.size()]);
+    }
+
+    /**
+     * Decodes the FQANs in the earlier format, each FQAN prefixed with a tab. Empty FQANs are skipped.
+     *
+     * @param encoded The encoded FQANs.
+     * @return The FQANs.
+     */
+    private static String[] decodeLegacy(String encoded) {
+        List<String> fqans = new ArrayList<String>();
+        int pos = 0;
+        while (pos <= encoded.length()) {
+            int next = encoded.indexOf(LEGACY_SEPARATOR, pos);
+            if (next < 0) {
+                next = encoded.length();
+            }
+            if (next > pos) {
+                fqans.add(intern(encoded.substring(pos, next)));
+            }
+            pos = next + 1;
+        }
+        return fqans.toArray(new String[fqans.size()]);
+    }
+}
@@ -24,6 +24,11 @@ public abstract class GrDPConstants {
     public static final String NEWLINE = System.getProperty("line.separator");
     public static final String CNPROXY = "CN=proxy";
 
+    /** The RSA key algorithm for the delegated proxy keys. */
+    public static final String KEY_ALGORITHM_RSA = "RSA";
+    /** The elliptic curve key algorithm for the delegated proxy keys. */
+    public static final String KEY_ALGORITHM_EC = "EC";
+
     /** @deprecated will be removed soon, as it's not used in delegation lib anymore */
     public static final String DEFAULT_SIGNATURE_ALGORITHM = "SHA256WithRSAEncryption";
     /** @deprecated don't use */
@@ -17,21 +17,45 @@
 
 package org.glite.security.delegation;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.lang.reflect.InvocationTargetException;
+import java.math.BigInteger;
 import java.security.GeneralSecurityException;
 import java.security.KeyPair;
+import java.security.KeyPairGenerator;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
+import java.security.Signature;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.StringTokenizer;
 
 import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Object;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DERInteger;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.DERTaggedObject;
+import org.bouncycastle.asn1.pkcs.Attribute;
+import org.bouncycastle.asn1.pkcs.CertificationRequest;
+import org.bouncycastle.asn1.pkcs.CertificationRequestInfo;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
 import org.bouncycastle.jce.PKCS10CertificationRequest;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.jce.provider.JDKKeyPairGenerator;
 import org.bouncycastle.openssl.PEMWriter;
 import org.bouncycastle.util.encoders.Hex;
@@ -40,6 +64,18 @@ import org.italiangrid.voms.VOMSAttribute;
 import org.italiangrid.voms.VOMSValidators;
 import org.italiangrid.voms.ac.VOMSACValidator;
 
+import eu.emi.security.authn.x509.helpers.proxy.ProxyAddressRestrictionData;
+import eu.emi.security.authn.x509.helpers.proxy.ProxyCertInfoExtension;
+import eu.emi.security.authn.x509.impl.CertificateUtils;
+import eu.emi.security.authn.x509.impl.CertificateUtils.Encoding;
+import eu.emi.security.authn.x509.helpers.proxy.ProxyGeneratorHelper;
+import eu.emi.security.authn.x509.helpers.proxy.ProxySAMLExtension;
+import eu.emi.security.authn.x509.helpers.proxy.ProxyTracingExtension;
+import eu.emi.security.authn.x509.proxy.CertificateExtension;
+import eu.emi.security.authn.x509.proxy.ProxyCertificateOptions;
+import eu.emi.security.authn.x509.proxy.ProxyPolicy;
+import eu.emi.security.authn.x509.proxy.ProxyType;
+
 /**
  * Utility to manage X509 certificates
  * 
@@ -51,13 +87,23 @@ public class GrDPX509Util {
     private final static Logger LOGGER = Logger.getLogger(GrDPX509Util.class);
     public static final String CERT_CHAIN_CONTENT_TYPE = "application/x-x509-user-cert-chain";
     public static final String CERT_REQ_CONTENT_TYPE = "application/x-x509-cert-request";
-    private static MessageDigest s_digester = null;
+    /** The SHA-1 digesters of the threads, a MessageDigest must not be used by several threads at the same time. */
+    private static final ThreadLocal<MessageDigest> s_digesters = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("Message digester implementation not found: " + e.getMessage(), e);
+            }
+        }
+    };
     private static VOMSACValidator vomsValidator = null;
     public static boolean windows = System.getProperty("os.name").startsWith("Windows");
 
     static {
         try {
-            s_digester = MessageDigest.getInstance("SHA-1");
+            s_digesters.get();
         } catch (Exception e) {
             LOGGER.fatal("Message digester implementation not found: " + e.getMessage(), e);
             throw new RuntimeException("Delegation utilities code initialization failed: " + e.getMessage(), e);
@@ -66,14 +112,26 @@ public class GrDPX509Util {
     }
 
     /**
-     * A synchronizer wrapper for the static digester, only access it through this utility method.
+     * Digests the bytes with SHA-1 using the digester of the calling thread, so the threads don't contend for a shared
+     * digester.
      * 
      * @param input The bytes to digest.
      * @return the digested bytes.
      */
-    public static synchronized byte[] digest(byte[] input) {
-        // GrDPX509Util utils = new GrDPX509Util();
-        return s_digester.digest(input);
+    public static byte[] digest(byte[] input) {
+        return getDigester().digest(input);
+    }
+
+    /**
+     * Returns the reset SHA-1 digester of the calling thread for digesting input in parts. The digester must not be
+     * passed to other threads and must be completed with one of the digest methods before the next use.
+     * 
+     * @return the digester of the thread.
+     */
+    private static MessageDigest getDigester() {
+        MessageDigest digester = s_digesters.get();
+        digester.reset();
+        return digester;
     }
 
     /**
@@ -358,6 +416,208 @@ public class GrDPX509Util {
         return keyPairGen.generateKeyPair();
     }
 
+    /**
+     * Generate a new key pair of the given algorithm.
+     * 
+     * @param algorithm The key algorithm, either {@link GrDPConstants#KEY_ALGORITHM_RSA} or
+     *            {@link GrDPConstants#KEY_ALGORITHM_EC}.
+     * @param size The key size in bits. For EC keys this selects the named curve, 256 for P-256, 384 for P-384 and
+     *            521 for P-521.
+     * @return The generated KeyPair object.
+     * @throws GeneralSecurityException Failed to generate the key pair, for example because of unsupported algorithm
+     *             or size.
+     */
+    public static KeyPair generateKeyPair(String algorithm, int size) throws GeneralSecurityException {
+        return generateKeyPair(algorithm, size, new SecureRandom());
+    }
+
+    /**
+     * Generate a new key pair of the given algorithm using the given source of randomness.
+     * 
+     * @param algorithm The key algorithm, either {@link GrDPConstants#KEY_ALGORITHM_RSA} or
+     *            {@link GrDPConstants#KEY_ALGORITHM_EC}.
+     * @param size The key size in bits. For EC keys this selects the named curve, 256 for P-256, 384 for P-384 and
+     *            521 for P-521.
+     * @param random The source of randomness for the key generation.
+     * @return The generated KeyPair object.
+     * @throws GeneralSecurityException Failed to generate the key pair, for example because of unsupported algorithm
+     *             or size.
+     */
+    public static KeyPair generateKeyPair(String algorithm, int size, SecureRandom random)
+            throws GeneralSecurityException {
+        if (GrDPConstants.KEY_ALGORITHM_RSA.equals(algorithm)) {
+            // same generation as canl does for the proxy certificate requests.
+            JDKKeyPairGenerator.RSA keyPairGen = new JDKKeyPairGenerator.RSA();
+            keyPairGen.initialize(size, random);
+            return keyPairGen.generateKeyPair();
+        }
+        KeyPairGenerator keyPairGen = KeyPairGenerator.getInstance(algorithm, BouncyCastleProvider.PROVIDER_NAME);
+        keyPairGen.initialize(size, random);
+        return keyPairGen.generateKeyPair();
+    }
+
+    /**
+     * Returns the signature algorithm to use when signing with the given private key.
+     * 
+     * @param key The signing key.
+     * @return The name of the signature algorithm.
+     */
+    public static String getSignatureAlgorithm(PrivateKey key) {
+        if (GrDPConstants.KEY_ALGORITHM_EC.equals(key.getAlgorithm()) || "ECDSA".equals(key.getAlgorithm())) {
+            return "SHA256WITHECDSA";
+        }
+        return "SHA256WITHRSAENCRYPTION";
+    }
+
+    /**
+     * Creates a proxy certificate request for a key pair of any algorithm supported by the BouncyCastle provider. The
+     * request matches the one generated by canl ProxyCSRGenerator, which always signs the request with SHA1WITHRSA and
+     * thus only works with RSA keys. The same extensions are requested: the extensions of the options, the proxy
+     * certificate info, the tracing, SAML and address restriction extensions. Unlike canl, which puts the serial
+     * number of the parent certificate to the subject, a random serial number is used if the options have none.
+     * 
+     * @param options The options for the proxy to be requested.
+     * @param keyPair The key pair of the new proxy.
+     * @return The signed certificate request.
+     * @throws GeneralSecurityException Failed to sign the certificate request.
+     */
+    public static PKCS10CertificationRequest createProxyCertificateRequest(ProxyCertificateOptions options,
+            KeyPair keyPair) throws GeneralSecurityException {
+        return createProxyCertificateRequest(options, keyPair, new SecureRandom());
+    }
+
+    /**
+     * Creates a proxy certificate request like {@link #createProxyCertificateRequest(ProxyCertificateOptions, KeyPair)}
+     * using the given source of randomness for the signature.
+     * 
+     * @param options The options for the proxy to be requested.
+     * @param keyPair The key pair of the new proxy.
+     * @param random The source of randomness for the serial number and the ECDSA signatures.
+     * @return The signed certificate request.
+     * @throws GeneralSecurityException Failed to sign the certificate request.
+     */
+    public static PKCS10CertificationRequest createProxyCertificateRequest(ProxyCertificateOptions options,
+            KeyPair keyPair, SecureRandom random) throws GeneralSecurityException {
+        X509Certificate parent = options.getParentCertChain()[0];
+        BigInteger serial = options.getSerialNumber();
+        if (serial == null) {
+            serial = new BigInteger(63, random);
+        }
+        X500Name subject = ProxyGeneratorHelper.generateDN(parent.getSubjectX500Principal(), options.getType(),
+                options.isLimited(), serial);
+
+        ASN1EncodableVector attributes = getRequestAttributes(options);
+
+        // sign the request info directly, the PKCS10CertificationRequest constructors don't take a random source
+        try {
+            SubjectPublicKeyInfo keyInfo = SubjectPublicKeyInfo.getInstance(ASN1Object.fromByteArray(keyPair
+                    .getPublic().getEncoded()));
+            // the X500Name constructor of the request info doesn't encode the name properly in this BouncyCastle
+            // version, so the request info is built from its encoding
+            ASN1EncodableVector infoFields = new ASN1EncodableVector();
+            infoFields.add(new DERInteger(0));
+            infoFields.add(ASN1Object.fromByteArray(subject.getDEREncoded()));
+            infoFields.add(keyInfo);
+            infoFields.add(new DERTaggedObject(false, 0, new DERSet(attributes)));
+            CertificationRequestInfo info = new CertificationRequestInfo(new DERSequence(infoFields));
+
+            String signatureAlgorithm = getSignatureAlgorithm(keyPair.getPrivate());
+            Signature signature = Signature.getInstance(signatureAlgorithm, BouncyCastleProvider.PROVIDER_NAME);
+            signature.initSign(keyPair.getPrivate(), random);
+            signature.update(info.getEncoded(ASN1Encodable.DER));
+
+            AlgorithmIdentifier algorithmId;
+            if (signatureAlgorithm.endsWith("ECDSA")) {
+                algorithmId = new AlgorithmIdentifier(X9ObjectIdentifiers.ecdsa_with_SHA256);
+            } else {
+                algorithmId = new AlgorithmIdentifier(PKCSObjectIdentifiers.sha256WithRSAEncryption, DERNull.INSTANCE);
+            }
+            CertificationRequest request = new CertificationRequest(info, algorithmId, new DERBitString(signature
+                    .sign()));
+            return new PKCS10CertificationRequest(request.getEncoded(ASN1Encodable.DER));
+        } catch (IOException e) {
+            throw new GeneralSecurityException("Failed to encode the certificate request: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Builds the extension request attributes of a proxy certificate request in the way of canl ProxyCSRGenerator.
+     * 
+     * @param options The options for the proxy to be requested.
+     * @return The attributes, one for each requested extension.
+     */
+    private static ASN1EncodableVector getRequestAttributes(ProxyCertificateOptions options) {
+        List<CertificateExtension> extensions = new ArrayList<CertificateExtension>(options.getExtensions());
+
+        ProxyPolicy policy = options.getPolicy();
+        int pathLimit = options.getProxyPathLimit();
+        if (options.getType() != ProxyType.LEGACY && (policy != null || pathLimit != -1)) {
+            if (policy == null) {
+                policy = new ProxyPolicy(ProxyPolicy.INHERITALL_POLICY_OID);
+            }
+            String oid = ProxyCertInfoExtension.RFC_EXTENSION_OID;
+            if (options.getType() == ProxyType.DRAFT_RFC) {
+                oid = ProxyCertInfoExtension.DRAFT_EXTENSION_OID;
+            }
+            extensions.add(new CertificateExtension(oid, new ProxyCertInfoExtension(pathLimit, policy), true));
+        }
+        if (options.getProxyTracingIssuer() != null) {
+            extensions.add(new CertificateExtension(ProxyTracingExtension.PROXY_TRACING_ISSUER_EXTENSION_OID,
+                    new ProxyTracingExtension(options.getProxyTracingIssuer()), false));
+        }
+        if (options.getProxyTracingSubject() != null) {
+            extensions.add(new CertificateExtension(ProxyTracingExtension.PROXY_TRACING_SUBJECT_EXTENSION_OID,
+                    new ProxyTracingExtension(options.getProxyTracingSubject()), false));
+        }
+        if (options.getSAMLAssertion() != null) {
+            extensions.add(new CertificateExtension(ProxySAMLExtension.SAML_OID, new ProxySAMLExtension(options
+                    .getSAMLAssertion()), false));
+        }
+        ProxyAddressRestrictionData source = getAddressRestriction(options.getSourceRestrictionPermittedAddresses(),
+                options.getSourceRestrictionExcludedAddresses());
+        if (source != null) {
+            extensions.add(new CertificateExtension(ProxyAddressRestrictionData.SOURCE_RESTRICTION_OID, source,
+                    false));
+        }
+        ProxyAddressRestrictionData target = getAddressRestriction(options.getTargetRestrictionPermittedAddresses(),
+                options.getTargetRestrictionExcludedAddresses());
+        if (target != null) {
+            extensions.add(new CertificateExtension(ProxyAddressRestrictionData.TARGET_RESTRICTION_OID, target,
+                    false));
+        }
+
+        ASN1EncodableVector attributes = new ASN1EncodableVector();
+        for (CertificateExtension extension : extensions) {
+            attributes.add(new Attribute(PKCSObjectIdentifiers.pkcs_9_at_extensionRequest, new DERSet(extension)));
+        }
+        return attributes;
+    }
+
+    /**
+     * Builds an address restriction extension.
+     * 
+     * @param permitted The permitted addresses with netmasks, may be null.
+     * @param excluded The excluded addresses with netmasks, may be null.
+     * @return The extension or null if there are no addresses.
+     */
+    private static ProxyAddressRestrictionData getAddressRestriction(String permitted[], String excluded[]) {
+        if (permitted == null && excluded == null) {
+            return null;
+        }
+        ProxyAddressRestrictionData restriction = new ProxyAddressRestrictionData();
+        if (excluded != null) {
+            for (String address : excluded) {
+                restriction.addExcludedIPAddressWithNetmask(address);
+            }
+        }
+        if (permitted != null) {
+            for (String address : permitted) {
+                restriction.addPermittedIPAddressWithNetmask(address);
+            }
+        }
+        return restriction;
+    }
+
     /**
      * Generates a new session ID based on the public key.
      * 
@@ -365,10 +625,20 @@ public class GrDPX509Util {
      * @return The generated session ID
      */
     public static String generateSessionID(PublicKey pk) {
-        return new String(Hex.encode(getMostSignificant(digest(pk.getEncoded()), 20)));
+        return new String(Hex.encode(getPublicKeyFingerprint(pk)));
 
     }
 
+    /**
+     * Calculates the fingerprint of the public key, the session ID in binary.
+     * 
+     * @param pk public key of a certificate (request)
+     * @return The fingerprint of the key.
+     */
+    public static byte[] getPublicKeyFingerprint(PublicKey pk) {
+        return getMostSignificant(digest(pk.getEncoded()), 20);
+    }
+
     /**
      * Generates a new delegation ID starting from the given DN and list of VOMS attributes.
      * 
@@ -378,25 +648,25 @@ public class GrDPX509Util {
      */
     public static String genDlgID(String dn, String[] vomsAttributes) {
 
-        String originalString = dn;
+        // digest the DN and the attributes in parts, giving the same digest as the concatenated string
+        MessageDigest digester = getDigester();
+        digester.update(String.valueOf(dn).getBytes());
         if (vomsAttributes != null) {
             for (int i = 0; i < vomsAttributes.length; i++) {
-                originalString += vomsAttributes[i];
+                digester.update(String.valueOf(vomsAttributes[i]).getBytes());
             }
         } else {
             LOGGER.debug("No VOMS attributes in client certificate. Generating DLG ID using" + "only the client DN.");
         }
 
-        byte origStringB[] = originalString.getBytes();
-        byte digest[] = digest(origStringB);
+        byte digest[] = digester.digest();
         byte mostSigni[] = getMostSignificant(digest, 20);
         byte hexEnc[] = Hex.encode(mostSigni);
         String digestString = new String(hexEnc);
 
-        // String digestString = new
-        // String(Hex.encode(getMostSignificant(digest(originalString.getBytes()),
-        // 20)));
-        LOGGER.debug("Digest VOMS Attributes: " + digestString);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Digest VOMS Attributes: " + digestString);
+        }
 
         return digestString;
 
@@ -433,18 +703,10 @@ public class GrDPX509Util {
      * 
      * @param vomsAttributes The VOMS attributes array
      * @return A single string representation of the VOMS attributes list
+     * @see FqanCodec#encode(String[])
      */
     public static String toStringVOMSAttrs(String[] vomsAttributes) {
-        if (vomsAttributes == null) {
-            return "";
-        }
-
-        String vomsAttrsStr = "";
-        for (int i = 0; i < vomsAttributes.length; i++) {
-            vomsAttrsStr += "\t" + vomsAttributes[i];
-        }
-
-        return vomsAttrsStr;
+        return FqanCodec.encode(vomsAttributes);
     }
 
     /**
@@ -452,20 +714,72 @@ public class GrDPX509Util {
      * 
      * @param vomsAttributesStr A single string representation of a VOMS attributes list.
      * @return A string array containing the VOMS attributes
+     * @see FqanCodec#decode(String)
      */
     public static String[] fromStringVOMSAttrs(String vomsAttributesStr) {
-        if (vomsAttributesStr == null) {
-            return new String[0];
-        }
+        return FqanCodec.decode(vomsAttributesStr);
+    }
 
-        StringTokenizer st = new StringTokenizer("\t");
-        ArrayList<String> vomsAttributes = new ArrayList<String>();
+    /**
+     * Encodes the certificate chain in binary, the DER encodings of the certificates one after the other.
+     * 
+     * @param chain The certificate chain.
+     * @return The binary certificate chain.
+     * @throws IOException If a certificate could not be encoded.
+     */
+    public static byte[] encodeCertificateChain(X509Certificate chain[]) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        CertificateUtils.saveCertificateChain(stream, chain, Encoding.DER);
+        return stream.toByteArray();
+    }
 
-        while (st.hasMoreTokens()) {
-            vomsAttributes.add(st.nextToken());
-        }
+    /**
+     * Decodes the certificate chain encoded with {@link #encodeCertificateChain(X509Certificate[])}.
+     * 
+     * @param chain The binary certificate chain.
+     * @return The certificate chain.
+     * @throws IOException If the chain could not be decoded.
+     */
+    public static X509Certificate[] decodeCertificateChain(byte chain[]) throws IOException {
+        return CertificateUtils.loadCertificateChain(new ByteArrayInputStream(chain), Encoding.DER);
+    }
 
-        return vomsAttributes.toArray(new String[] {});
+    /**
+     * Decodes the DER encoded PKCS#8 private key.
+     * 
+     * @param key The binary private key.
+     * @return The private key.
+     * @throws IOException If the key could not be decoded.
+     */
+    public static PrivateKey decodePrivateKey(byte key[]) throws IOException {
+        return CertificateUtils.loadPrivateKey(new ByteArrayInputStream(key), Encoding.DER, null);
     }
 
+    /**
+     * Converts the DER encoded PKCS#8 private key to PEM, the way the keys of the certificate requests are stored.
+     * 
+     * @param key The binary private key.
+     * @return The private key in PEM.
+     * @throws IOException If the key could not be converted.
+     */
+    public static String toPEMPrivateKey(byte key[]) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        CertificateUtils.savePrivateKey(stream, decodePrivateKey(key), Encoding.PEM, null, null);
+        return stream.toString();
+    }
+
+    /**
+     * Converts the binary private key and certificate chain to a PEM credential, the private key followed by the
+     * certificates, the way the delegated proxies are stored. The legacy openssl key format is used for RSA keys, as
+     * it exists only for them.
+     * 
+     * @param key The binary private key.
+     * @param chain The binary certificate chain.
+     * @return The credential in PEM.
+     * @throws IOException If the key or the chain could not be converted.
+     * @see PEMCredentialWriter
+     */
+    public static String toPEMCredential(byte key[], byte chain[]) throws IOException {
+        return PEMCredentialWriter.write(key, PEMCredentialWriter.splitChain(chain));
+    }
 }
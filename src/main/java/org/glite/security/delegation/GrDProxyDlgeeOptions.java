@@ -42,6 +42,7 @@ public class GrDProxyDlgeeOptions {
     private String dlgeeStorageDbPool = null;
     private String proxyFile = null;
     private int dlgeeKeySize = -1;
+    private String dlgeeKeyAlgorithm = GrDPConstants.KEY_ALGORITHM_RSA;
     private boolean requireVomsAttributes = true;
     private String vomsDir = null;
     private String vomsCAs = null;
@@ -49,6 +50,37 @@ public class GrDProxyDlgeeOptions {
     private String namespace = null;
     private String updateInterval = null;
     private boolean limited = false;
+    private int keyPoolLowWatermark = 0;
+    private int keyPoolHighWatermark = 0;
+    private int keyPoolThreads = 1;
+    private int keyPoolCoverage = 0;
+    private double keyPoolCpuShare = 0.5;
+    private String keyPoolFile = null;
+    private String keyPoolSecret = null;
+    private int keyGenerationThreads = 0;
+    private int keyGenerationSlots = 0;
+    private int newRequestTimeout = 5000;
+    private int newRequestQueueLength = 100;
+    private int renewalRequestTimeout = 30000;
+    private int maxConcurrentOperations = 0;
+    private int admissionTimeout = 1000;
+    private int busyRetryAfter = 10;
+    private int clientRequestRate = 0;
+    private int clientRequestBurst = 10;
+    private int clientRateMaxClients = 100000;
+    private int identityCacheSize = 0;
+    private int identityCacheTtl = 300;
+    private int vomsCacheSize = 0;
+    private int vomsCacheTtl = 600;
+    private int sessionCacheSize = 0;
+    private int sessionCacheTtl = 3600;
+    private boolean reusePendingRequests = false;
+    private int pendingRequestMaxAge = 3600;
+    private int crlRefreshAhead = 0;
+    private int crlGracePeriod = 0;
+    private int maxChainLength = 0;
+    private boolean preScreenChains = false;
+    private boolean binaryStorage = false;
 
     /**
      * Returns whether the new proxy should be limited or not.
@@ -119,6 +151,10 @@ public class GrDProxyDlgeeOptions {
         this.dlgeeStorageFactory = props.getProperty("dlgeeStorageFactory");
         this.dlgeeStorageDbPool = props.getProperty("dlgeeStorageDbPool");
         this.dlgeeKeySize = Integer.parseInt(props.getProperty("dlgeeKeySize"));
+        String keyAlgorithm = props.getProperty("dlgeeKeyAlgorithm");
+        if (keyAlgorithm != null) {
+            this.dlgeeKeyAlgorithm = keyAlgorithm.trim();
+        }
         String reqString = props.getProperty("requireVomsAttributes");
         if (reqString != null) {
             requireVomsAttributes = Boolean.parseBoolean(reqString);
@@ -132,9 +168,68 @@ public class GrDProxyDlgeeOptions {
         if(limitedString != null){
             this.limited = Boolean.parseBoolean(limitedString);
         }
+        this.keyPoolLowWatermark = parseInt(props, "keyPoolLowWatermark", keyPoolLowWatermark);
+        this.keyPoolHighWatermark = parseInt(props, "keyPoolHighWatermark", keyPoolHighWatermark);
+        this.keyPoolThreads = parseInt(props, "keyPoolThreads", keyPoolThreads);
+        this.keyPoolCoverage = parseInt(props, "keyPoolCoverage", keyPoolCoverage);
+        this.keyPoolFile = props.getProperty("keyPoolFile");
+        this.keyPoolSecret = props.getProperty("keyPoolSecret");
+        String cpuShareString = props.getProperty("keyPoolCpuShare");
+        if (cpuShareString != null && cpuShareString.trim().length() != 0) {
+            this.keyPoolCpuShare = Double.parseDouble(cpuShareString.trim());
+        }
+        this.keyGenerationThreads = parseInt(props, "keyGenerationThreads", keyGenerationThreads);
+        this.keyGenerationSlots = parseInt(props, "keyGenerationSlots", keyGenerationSlots);
+        this.newRequestTimeout = parseInt(props, "newRequestTimeout", newRequestTimeout);
+        this.newRequestQueueLength = parseInt(props, "newRequestQueueLength", newRequestQueueLength);
+        this.renewalRequestTimeout = parseInt(props, "renewalRequestTimeout", renewalRequestTimeout);
+        this.maxConcurrentOperations = parseInt(props, "maxConcurrentOperations", maxConcurrentOperations);
+        this.admissionTimeout = parseInt(props, "admissionTimeout", admissionTimeout);
+        this.busyRetryAfter = parseInt(props, "busyRetryAfter", busyRetryAfter);
+        this.clientRequestRate = parseInt(props, "clientRequestRate", clientRequestRate);
+        this.clientRequestBurst = parseInt(props, "clientRequestBurst", clientRequestBurst);
+        this.clientRateMaxClients = parseInt(props, "clientRateMaxClients", clientRateMaxClients);
+        this.identityCacheSize = parseInt(props, "identityCacheSize", identityCacheSize);
+        this.identityCacheTtl = parseInt(props, "identityCacheTtl", identityCacheTtl);
+        this.vomsCacheSize = parseInt(props, "vomsCacheSize", vomsCacheSize);
+        this.vomsCacheTtl = parseInt(props, "vomsCacheTtl", vomsCacheTtl);
+        this.sessionCacheSize = parseInt(props, "sessionCacheSize", sessionCacheSize);
+        this.sessionCacheTtl = parseInt(props, "sessionCacheTtl", sessionCacheTtl);
+        String reuseString = props.getProperty("reusePendingRequests");
+        if (reuseString != null) {
+            this.reusePendingRequests = Boolean.parseBoolean(reuseString.trim());
+        }
+        this.pendingRequestMaxAge = parseInt(props, "pendingRequestMaxAge", pendingRequestMaxAge);
+        this.crlRefreshAhead = parseInt(props, "crlRefreshAhead", crlRefreshAhead);
+        this.crlGracePeriod = parseInt(props, "crlGracePeriod", crlGracePeriod);
+        this.maxChainLength = parseInt(props, "maxChainLength", maxChainLength);
+        String preScreenString = props.getProperty("preScreenChains");
+        if (preScreenString != null) {
+            this.preScreenChains = Boolean.parseBoolean(preScreenString.trim());
+        }
+        String binaryString = props.getProperty("binaryStorage");
+        if (binaryString != null) {
+            this.binaryStorage = Boolean.parseBoolean(binaryString.trim());
+        }
 
     }
 
+    /**
+     * Reads an integer property.
+     * 
+     * @param props The properties to read from.
+     * @param name The name of the property.
+     * @param defaultValue The value to return if the property is not set.
+     * @return the value of the property or the default value.
+     */
+    private static int parseInt(Properties props, String name, int defaultValue) {
+        String value = props.getProperty(name);
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+
     /**
      * Getting delegatee's DN
      * 
@@ -204,6 +299,15 @@ public class GrDProxyDlgeeOptions {
         return this.dlgeeKeySize;
     }
 
+    /**
+     * Get the algorithm of the generated proxy keys.
+     * 
+     * @return the key algorithm, "RSA" or "EC".
+     */
+    public String getDlgeeKeyAlgorithm() {
+        return this.dlgeeKeyAlgorithm;
+    }
+
     /**
      * check whether the voms attributes are required or not.
      * 
@@ -276,6 +380,16 @@ public class GrDProxyDlgeeOptions {
         this.dlgeeKeySize = keySize;
     }
 
+    /**
+     * Setting the algorithm of the generated proxy keys. With "EC" the key size selects the curve, 256 for P-256
+     * (default), 384 for P-384 and 521 for P-521. Default is "RSA".
+     * 
+     * @param keyAlgorithm the key algorithm, "RSA" or "EC".
+     */
+    public void setDlgeeKeyAlgorithm(String keyAlgorithm) {
+        this.dlgeeKeyAlgorithm = keyAlgorithm;
+    }
+
     /**
      * Set whether VOMS attribute presence is required in the certificate chain that initializes the delegation process.
      * 
@@ -363,4 +477,603 @@ public class GrDProxyDlgeeOptions {
     public void setUpdateInterval(String updateInterval) {
         this.updateInterval = updateInterval;
     }
+
+    /**
+     * Gets the number of pre-generated keys below which the key pool is refilled.
+     * 
+     * @return the low watermark of the key pool.
+     */
+    public int getKeyPoolLowWatermark() {
+        return keyPoolLowWatermark;
+    }
+
+    /**
+     * Sets the number of pre-generated keys below which the key pool is refilled. If not set, half of the high
+     * watermark is used.
+     * 
+     * @param keyPoolLowWatermark the low watermark to set.
+     */
+    public void setKeyPoolLowWatermark(int keyPoolLowWatermark) {
+        this.keyPoolLowWatermark = keyPoolLowWatermark;
+    }
+
+    /**
+     * Gets the maximum number of pre-generated keys kept in the key pool.
+     * 
+     * @return the high watermark of the key pool, 0 if the pool is disabled.
+     */
+    public int getKeyPoolHighWatermark() {
+        return keyPoolHighWatermark;
+    }
+
+    /**
+     * Sets the maximum number of pre-generated keys kept in the key pool. 0 disables the pool and the keys are
+     * generated when the certificate request is created, which is the default.
+     * 
+     * @param keyPoolHighWatermark the high watermark to set.
+     */
+    public void setKeyPoolHighWatermark(int keyPoolHighWatermark) {
+        this.keyPoolHighWatermark = keyPoolHighWatermark;
+    }
+
+    /**
+     * Gets the number of background threads filling the key pool.
+     * 
+     * @return the number of key pool threads.
+     */
+    public int getKeyPoolThreads() {
+        return keyPoolThreads;
+    }
+
+    /**
+     * Sets the number of background threads filling the key pool. Default is 1.
+     * 
+     * @param keyPoolThreads the number of key pool threads to set.
+     */
+    public void setKeyPoolThreads(int keyPoolThreads) {
+        this.keyPoolThreads = keyPoolThreads;
+    }
+
+    /**
+     * Gets the number of seconds of requests the adaptive key pool is sized for.
+     * 
+     * @return the coverage in seconds, 0 if the key pool has a fixed size.
+     */
+    public int getKeyPoolCoverage() {
+        return keyPoolCoverage;
+    }
+
+    /**
+     * Sets the number of seconds of requests the key pool is sized for. When set, the key pool follows the average
+     * request arrival rate and keeps enough keys for this many seconds of requests, up to the high watermark. Default
+     * is 0, which fills the pool always up to the high watermark.
+     * 
+     * @param keyPoolCoverage the coverage in seconds.
+     */
+    public void setKeyPoolCoverage(int keyPoolCoverage) {
+        this.keyPoolCoverage = keyPoolCoverage;
+    }
+
+    /**
+     * Gets the share of the processors the key pool threads may use together.
+     * 
+     * @return the processor share, 0 if not limited.
+     */
+    public double getKeyPoolCpuShare() {
+        return keyPoolCpuShare;
+    }
+
+    /**
+     * Sets the share of the processors the key pool threads may use together, for example 0.5 for half of the
+     * processors. Default is 0.5, 0 removes the limit.
+     * 
+     * @param keyPoolCpuShare the processor share.
+     */
+    public void setKeyPoolCpuShare(double keyPoolCpuShare) {
+        this.keyPoolCpuShare = keyPoolCpuShare;
+    }
+
+    /**
+     * Gets the file the unused keys of the key pool are saved to at shutdown.
+     * 
+     * @return the path of the key pool file, null if the keys are not saved.
+     */
+    public String getKeyPoolFile() {
+        return keyPoolFile;
+    }
+
+    /**
+     * Sets the file the unused keys of the key pool are saved to at shutdown and loaded from at startup. The file is
+     * encrypted with a key derived from the key pool secret, which must be set too.
+     * 
+     * @param keyPoolFile the path of the key pool file.
+     */
+    public void setKeyPoolFile(String keyPoolFile) {
+        this.keyPoolFile = keyPoolFile;
+    }
+
+    /**
+     * Gets the secret the encryption key of the key pool file is derived from.
+     * 
+     * @return the key pool secret.
+     */
+    public String getKeyPoolSecret() {
+        return keyPoolSecret;
+    }
+
+    /**
+     * Sets the secret the encryption key of the key pool file is derived from.
+     * 
+     * @param keyPoolSecret the key pool secret.
+     */
+    public void setKeyPoolSecret(String keyPoolSecret) {
+        this.keyPoolSecret = keyPoolSecret;
+    }
+
+    /**
+     * Gets the number of threads generating the keys of batch requests in parallel.
+     * 
+     * @return the number of key generation threads, 0 if the number of processors is used.
+     */
+    public int getKeyGenerationThreads() {
+        return keyGenerationThreads;
+    }
+
+    /**
+     * Sets the number of threads generating the keys of batch requests in parallel. Default is 0, which uses one
+     * thread per processor.
+     * 
+     * @param keyGenerationThreads the number of key generation threads to set.
+     */
+    public void setKeyGenerationThreads(int keyGenerationThreads) {
+        this.keyGenerationThreads = keyGenerationThreads;
+    }
+
+    /**
+     * Gets the number of key generations allowed to run at the same time for the certificate requests.
+     * 
+     * @return the number of key generation slots, 0 if not limited.
+     */
+    public int getKeyGenerationSlots() {
+        return keyGenerationSlots;
+    }
+
+    /**
+     * Sets the number of key generations allowed to run at the same time for the certificate requests, not counting
+     * the keys taken from the key pool. When all are in use, the renewals of the delegations closest to expiry are
+     * served first and the new delegations wait after them. Default is 0, no limit.
+     * 
+     * @param keyGenerationSlots the number of key generation slots.
+     */
+    public void setKeyGenerationSlots(int keyGenerationSlots) {
+        this.keyGenerationSlots = keyGenerationSlots;
+    }
+
+    /**
+     * Gets the maximum time a new delegation request waits for a key generation slot.
+     * 
+     * @return the timeout in milliseconds.
+     */
+    public int getNewRequestTimeout() {
+        return newRequestTimeout;
+    }
+
+    /**
+     * Sets the maximum time a new delegation request waits for a key generation slot before it is rejected. Default is
+     * 5000 milliseconds.
+     * 
+     * @param newRequestTimeout the timeout in milliseconds.
+     */
+    public void setNewRequestTimeout(int newRequestTimeout) {
+        this.newRequestTimeout = newRequestTimeout;
+    }
+
+    /**
+     * Gets the maximum number of new delegation requests waiting for a key generation slot.
+     * 
+     * @return the maximum number of waiting new delegation requests.
+     */
+    public int getNewRequestQueueLength() {
+        return newRequestQueueLength;
+    }
+
+    /**
+     * Sets the maximum number of new delegation requests waiting for a key generation slot, further new delegation
+     * requests are rejected right away. Default is 100.
+     * 
+     * @param newRequestQueueLength the maximum number of waiting new delegation requests.
+     */
+    public void setNewRequestQueueLength(int newRequestQueueLength) {
+        this.newRequestQueueLength = newRequestQueueLength;
+    }
+
+    /**
+     * Gets the maximum time a renewal request waits for a key generation slot.
+     * 
+     * @return the timeout in milliseconds.
+     */
+    public int getRenewalRequestTimeout() {
+        return renewalRequestTimeout;
+    }
+
+    /**
+     * Sets the maximum time a renewal request waits for a key generation slot before it is rejected. The renewals are
+     * served before the new delegation requests, so this is normally longer than the new request timeout. Default is
+     * 30000 milliseconds.
+     * 
+     * @param renewalRequestTimeout the timeout in milliseconds.
+     */
+    public void setRenewalRequestTimeout(int renewalRequestTimeout) {
+        this.renewalRequestTimeout = renewalRequestTimeout;
+    }
+
+    /**
+     * Gets the maximum number of certificate request and put proxy operations processed at the same time.
+     * 
+     * @return the maximum number of concurrent operations, 0 if not limited.
+     */
+    public int getMaxConcurrentOperations() {
+        return maxConcurrentOperations;
+    }
+
+    /**
+     * Sets the maximum number of certificate request and put proxy operations processed at the same time. The
+     * operations over the limit wait for the admission timeout and are then rejected with DelegationBusyException.
+     * The waiting renewal requests are admitted first, like in the key generation. Default is 0, no limit.
+     * 
+     * @param maxConcurrentOperations the maximum number of concurrent operations, 0 for no limit.
+     */
+    public void setMaxConcurrentOperations(int maxConcurrentOperations) {
+        this.maxConcurrentOperations = maxConcurrentOperations;
+    }
+
+    /**
+     * Gets the maximum time an operation waits to be processed when the concurrent operations are limited.
+     * 
+     * @return the admission timeout in milliseconds.
+     */
+    public int getAdmissionTimeout() {
+        return admissionTimeout;
+    }
+
+    /**
+     * Sets the maximum time an operation waits to be processed when the concurrent operations are limited. Default is
+     * 1000 milliseconds.
+     * 
+     * @param admissionTimeout the admission timeout in milliseconds.
+     */
+    public void setAdmissionTimeout(int admissionTimeout) {
+        this.admissionTimeout = admissionTimeout;
+    }
+
+    /**
+     * Gets the retry time suggested to the clients whose requests were rejected because the server was busy.
+     * 
+     * @return the retry time in seconds.
+     */
+    public int getBusyRetryAfter() {
+        return busyRetryAfter;
+    }
+
+    /**
+     * Sets the retry time suggested to the clients whose requests were rejected because the server was busy, for
+     * example for the Retry-After header of a HTTP 503 response. Default is 10 seconds.
+     * 
+     * @param busyRetryAfter the retry time in seconds.
+     */
+    public void setBusyRetryAfter(int busyRetryAfter) {
+        this.busyRetryAfter = busyRetryAfter;
+    }
+
+    /**
+     * Gets the number of certificate requests a client DN may ask for per minute.
+     * 
+     * @return the request rate per minute, 0 if not limited.
+     */
+    public int getClientRequestRate() {
+        return clientRequestRate;
+    }
+
+    /**
+     * Sets the number of certificate requests a client DN may ask for per minute in the long run. The requests over the
+     * rate are rejected with DelegationBusyException. Default is 0, no limit.
+     * 
+     * @param clientRequestRate the request rate per minute, 0 for no limit.
+     */
+    public void setClientRequestRate(int clientRequestRate) {
+        this.clientRequestRate = clientRequestRate;
+    }
+
+    /**
+     * Gets the number of certificate requests a client DN may ask for at once.
+     * 
+     * @return the burst size.
+     */
+    public int getClientRequestBurst() {
+        return clientRequestBurst;
+    }
+
+    /**
+     * Sets the number of certificate requests a client DN may ask for at once after being idle. Default is 10.
+     * 
+     * @param clientRequestBurst the burst size.
+     */
+    public void setClientRequestBurst(int clientRequestBurst) {
+        this.clientRequestBurst = clientRequestBurst;
+    }
+
+    /**
+     * Gets the maximum number of client DNs whose request rate is tracked.
+     * 
+     * @return the maximum number of tracked clients.
+     */
+    public int getClientRateMaxClients() {
+        return clientRateMaxClients;
+    }
+
+    /**
+     * Sets the maximum number of client DNs whose request rate is tracked, the least recently seen clients are
+     * forgotten when the number is reached. Default is 100000.
+     * 
+     * @param clientRateMaxClients the maximum number of tracked clients.
+     */
+    public void setClientRateMaxClients(int clientRateMaxClients) {
+        this.clientRateMaxClients = clientRateMaxClients;
+    }
+
+    /**
+     * Gets the maximum number of client certificate chains whose DN and VOMS attributes are cached.
+     * 
+     * @return the maximum number of cached chains, 0 if the cache is not used.
+     */
+    public int getIdentityCacheSize() {
+        return identityCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of client certificate chains whose DN and VOMS attributes are cached, so that the
+     * repeated calls of a client don't validate the VOMS attributes again. Default is 0, no caching.
+     * 
+     * @param identityCacheSize the maximum number of cached chains, 0 to disable the cache.
+     */
+    public void setIdentityCacheSize(int identityCacheSize) {
+        this.identityCacheSize = identityCacheSize;
+    }
+
+    /**
+     * Gets the maximum time the information of a client certificate chain is cached.
+     * 
+     * @return the time in seconds.
+     */
+    public int getIdentityCacheTtl() {
+        return identityCacheTtl;
+    }
+
+    /**
+     * Sets the maximum time the information of a client certificate chain is cached. The entries also expire when the
+     * first certificate or VOMS attribute certificate of the chain expires. Default is 300 seconds.
+     * 
+     * @param identityCacheTtl the time in seconds.
+     */
+    public void setIdentityCacheTtl(int identityCacheTtl) {
+        this.identityCacheTtl = identityCacheTtl;
+    }
+
+    /**
+     * Gets the maximum number of cached VOMS attribute certificate validation results.
+     * 
+     * @return the maximum number of cached results, 0 if the cache is not used.
+     */
+    public int getVomsCacheSize() {
+        return vomsCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of cached VOMS attribute certificate validation results, so that the same attribute
+     * certificates are not verified again for every request. Default is 0, no caching.
+     * 
+     * @param vomsCacheSize the maximum number of cached results, 0 to disable the cache.
+     */
+    public void setVomsCacheSize(int vomsCacheSize) {
+        this.vomsCacheSize = vomsCacheSize;
+    }
+
+    /**
+     * Gets the maximum time a VOMS attribute certificate validation result is cached.
+     * 
+     * @return the time in seconds.
+     */
+    public int getVomsCacheTtl() {
+        return vomsCacheTtl;
+    }
+
+    /**
+     * Sets the maximum time a VOMS attribute certificate validation result is cached. The results also expire when the
+     * validity of an attribute certificate starts or ends. Default is 600 seconds.
+     * 
+     * @param vomsCacheTtl the time in seconds.
+     */
+    public void setVomsCacheTtl(int vomsCacheTtl) {
+        this.vomsCacheTtl = vomsCacheTtl;
+    }
+
+    /**
+     * Gets the maximum number of client sessions whose client information is cached.
+     * 
+     * @return the maximum number of cached sessions, 0 if the cache is not used.
+     */
+    public int getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of client sessions whose client information is cached, used by the operations that get
+     * a session key such as the TLS session id. Default is 0, no caching.
+     * 
+     * @param sessionCacheSize the maximum number of cached sessions, 0 to disable the cache.
+     */
+    public void setSessionCacheSize(int sessionCacheSize) {
+        this.sessionCacheSize = sessionCacheSize;
+    }
+
+    /**
+     * Gets the maximum time the client information of a session is cached.
+     * 
+     * @return the time in seconds.
+     */
+    public int getSessionCacheTtl() {
+        return sessionCacheTtl;
+    }
+
+    /**
+     * Sets the maximum time the client information of a session is cached, typically about the lifetime of the
+     * sessions in the container. The entries also expire when the first certificate or VOMS attribute certificate of
+     * the chain expires. Default is 3600 seconds.
+     * 
+     * @param sessionCacheTtl the time in seconds.
+     */
+    public void setSessionCacheTtl(int sessionCacheTtl) {
+        this.sessionCacheTtl = sessionCacheTtl;
+    }
+
+    /**
+     * Gets whether a pending certificate request is returned again instead of generating a new one.
+     * 
+     * @return true if the pending requests are reused.
+     */
+    public boolean isReusePendingRequests() {
+        return reusePendingRequests;
+    }
+
+    /**
+     * Sets whether a pending certificate request of the same delegation is returned again, instead of generating a
+     * new key and request, when the client asks for a request again before completing the earlier one. Default is
+     * false.
+     * 
+     * @param reusePendingRequests true to reuse the pending requests.
+     */
+    public void setReusePendingRequests(boolean reusePendingRequests) {
+        this.reusePendingRequests = reusePendingRequests;
+    }
+
+    /**
+     * Gets the maximum age of a pending certificate request that can be reused.
+     * 
+     * @return the maximum age in seconds, 0 for no limit.
+     */
+    public int getPendingRequestMaxAge() {
+        return pendingRequestMaxAge;
+    }
+
+    /**
+     * Sets the maximum age of a pending certificate request that can be reused. With a limit the requests are reused
+     * only with the storages that record the creation time of the requests, the database storage needs the
+     * creation_time column for it. Default is 3600 seconds, 0 for no limit.
+     * 
+     * @param pendingRequestMaxAge the maximum age in seconds.
+     */
+    public void setPendingRequestMaxAge(int pendingRequestMaxAge) {
+        this.pendingRequestMaxAge = pendingRequestMaxAge;
+    }
+
+    /**
+     * Gets how long before the next update of a CRL the CA directory is checked for a newer CRL.
+     * 
+     * @return the time in seconds, 0 if the CRLs are only reloaded with the trust anchors.
+     */
+    public int getCrlRefreshAhead() {
+        return crlRefreshAhead;
+    }
+
+    /**
+     * Sets how long before the next update time of a CRL the CA directory starts to be checked for a newer CRL, for
+     * example one downloaded by fetch-crl, so that the CRLs are reloaded before they expire instead of at the next
+     * trust store update. Default is 0, the CRLs are only reloaded at the trust store updates.
+     * 
+     * @param crlRefreshAhead the time in seconds.
+     */
+    public void setCrlRefreshAhead(int crlRefreshAhead) {
+        this.crlRefreshAhead = crlRefreshAhead;
+    }
+
+    /**
+     * Gets how long an expired CRL is tolerated when no newer CRL is available.
+     * 
+     * @return the time in seconds, 0 for no grace period.
+     */
+    public int getCrlGracePeriod() {
+        return crlGracePeriod;
+    }
+
+    /**
+     * Sets how long after the next update time of a CRL the certificates of the CA are still checked against it when
+     * no newer CRL is available, instead of failing all the validations as required by the default revocation
+     * checking. The certificates revoked by the expired CRL stay rejected. Only applies when crlRefreshAhead is set.
+     * Default is 0, no grace period.
+     * 
+     * @param crlGracePeriod the time in seconds.
+     */
+    public void setCrlGracePeriod(int crlGracePeriod) {
+        this.crlGracePeriod = crlGracePeriod;
+    }
+
+    /**
+     * Gets the maximum number of certificates in a client certificate chain.
+     * 
+     * @return the maximum length, 0 for no limit.
+     */
+    public int getMaxChainLength() {
+        return maxChainLength;
+    }
+
+    /**
+     * Sets the maximum number of certificates in a client certificate chain, longer chains are rejected before any
+     * other processing. Default is 0, no limit.
+     * 
+     * @param maxChainLength the maximum length.
+     */
+    public void setMaxChainLength(int maxChainLength) {
+        this.maxChainLength = maxChainLength;
+    }
+
+    /**
+     * Gets whether the client certificate chains are pre-screened before processing them.
+     * 
+     * @return true if the chains are pre-screened.
+     */
+    public boolean isPreScreenChains() {
+        return preScreenChains;
+    }
+
+    /**
+     * Sets whether the client certificate chains are pre-screened before processing them: the chains that are not
+     * linked from issuer to subject, have certificates outside their validity period or are not issued by a CA of the
+     * CA directory are rejected before any cryptographic work. Default is false.
+     * 
+     * @param preScreenChains true to pre-screen the chains.
+     */
+    public void setPreScreenChains(boolean preScreenChains) {
+        this.preScreenChains = preScreenChains;
+    }
+
+    /**
+     * Gets whether the private keys and delegated proxies are stored in binary.
+     * 
+     * @return true if stored in binary.
+     */
+    public boolean isBinaryStorage() {
+        return binaryStorage;
+    }
+
+    /**
+     * Sets whether the private keys and delegated proxies are stored in binary, the keys as DER encoded PKCS#8 and the
+     * certificate chains as DER encoded certificates, instead of PEM. The binary form is smaller and doesn't need to be
+     * parsed and re-encoded when storing the proxy, the PEM form is produced only when asked for. The database storage
+     * needs the additional BLOB columns for this, see GrDPStorageDatabase. Default is false.
+     * 
+     * @param binaryStorage true to store in binary.
+     */
+    public void setBinaryStorage(boolean binaryStorage) {
+        this.binaryStorage = binaryStorage;
+    }
 }
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004. See
+ * http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.glite.security.delegation;
+
+import java.io.IOException;
+import java.security.PrivateKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+
+/**
+ * Writes the delegated credentials in PEM, the private key followed by the certificate chain, the format the
+ * delegated proxies are stored in.
+ *
+ * <p>
+ * The PEM is written directly from the DER encodings of the key and the certificates into a single buffer of the
+ * exact size, without going through a key store. The output is the same as the one of
+ * <code>CertificateUtils.savePEMKeystore</code>: the RSA keys are written in the legacy openssl format, the others in
+ * PKCS#8, and the base64 lines are 64 characters long.
+ * </p>
+ */
+public final class PEMCredentialWriter {
+    /** The PEM type of the legacy openssl RSA keys. */
+    private static final String RSA_KEY_TYPE = "RSA PRIVATE KEY";
+
+    /** The PEM type of the PKCS#8 keys. */
+    private static final String PKCS8_KEY_TYPE = "PRIVATE KEY";
+
+    /** The PEM type of the certificates. */
+    private static final String CERTIFICATE_TYPE = "CERTIFICATE";
+
+    /** The number of base64 characters on a line. */
+    private static final int LINE_LENGTH = 64;
+
+    /** The base64 alphabet. */
+    private static final char BASE64[] = ("ABCDEFGHIJKLMNOPQRSTUVWXYZ" + "abcdefghijklmnopqrstuvwxyz" + "0123456789+/")
+            .toCharArray();
+
+    /**
+     * Not to be instantiated.
+     */
+    private PEMCredentialWriter() {
+        // only static methods
+    }
+
+    /**
+     * Writes the private key and the certificate chain in PEM.
+     *
+     * @param key The private key.
+     * @param chain The certificate chain.
+     * @return The credential in PEM.
+     * @throws IOException If the key or a certificate could not be encoded.
+     */
+    public static String write(PrivateKey key, X509Certificate chain[]) throws IOException {
+        byte certificates[][] = new byte[chain.length][];
+        try {
+            for (int i = 0; i < chain.length; i++) {
+                certificates[i] = chain[i].getEncoded();
+            }
+        } catch (CertificateEncodingException e) {
+            throw new IOException("Could not encode the certificate: " + e.getMessage());
+        }
+        return write(key.getEncoded(), certificates);
+    }
+
+    /**
+     * Writes the private key and the certificate chain in PEM.
+     *
+     * @param key The DER encoded PKCS#8 private key.
+     * @param certificates The DER encoded certificates of the chain.
+     * @return The credential in PEM.
+     * @throws IOException If the private key could not be parsed.
+     */
+    public static String write(byte key[], byte certificates[][]) throws IOException {
+        String keyType = PKCS8_KEY_TYPE;
+        byte keyBytes[] = key;
+        ASN1Sequence keyInfo = ASN1Sequence.getInstance(new ASN1InputStream(key).readObject());
+        AlgorithmIdentifier algorithm = AlgorithmIdentifier.getInstance(keyInfo.getObjectAt(1));
+        if (PKCSObjectIdentifiers.rsaEncryption.equals(algorithm.getAlgorithm())) {
+            keyType = RSA_KEY_TYPE;
+            keyBytes = ASN1OctetString.getInstance(keyInfo.getObjectAt(2)).getOctets();
+        }
+
+        int length = blockLength(keyType, keyBytes.length);
+        for (byte certificate[] : certificates) {
+            length += blockLength(CERTIFICATE_TYPE, certificate.length);
+        }
+        char buffer[] = new char[length];
+        int pos = writeBlock(buffer, 0, keyType, keyBytes);
+        for (byte certificate[] : certificates) {
+            pos = writeBlock(buffer, pos, CERTIFICATE_TYPE, certificate);
+        }
+        return new String(buffer);
+    }
+
+    /**
+     * Splits the binary certificate chain, the DER encodings of the certificates one after the other, into the
+     * encodings of the certificates. The certificates are not parsed.
+     *
+     * @param chain The binary certificate chain.
+     * @return The DER encodings of the certificates.
+     * @throws IOException If the chain is malformed.
+     */
+    public static byte[][] splitChain(byte chain[]) throws IOException {
+        int count = 0;
+        for (int pos = 0; pos < chain.length; pos = nextElement(chain, pos)) {
+            count++;
+        }
+        byte certificates[][] = new byte[count][];
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            int next = nextElement(chain, pos);
+            certificates[i] = new byte[next - pos];
+            System.arraycopy(chain, pos, certificates[i], 0, next - pos);
+            pos = next;
+        }
+        return certificates;
+    }
+
+    /**
+     * Returns the position following the DER encoded sequence starting at the given position.
+     *
+     * @param der The DER encoded data.
+     * @param pos The position of the sequence.
+     * @return The position after the sequence.
+     * @throws IOException If there is no complete sequence at the position.
+     */
+    private static int nextElement(byte der[], int pos) throws IOException {
+        if (pos + 2 > der.length || der[pos] != 0x30) {
+            throw new IOException("Malformed certificate chain at position " + pos + ".");
+        }
+        int lengthBytes = der[pos + 1] & 0xff;
+        int start = pos + 2;
+        long length = lengthBytes;
+        if (lengthBytes > 0x80 && lengthBytes <= 0x84 && start + lengthBytes - 0x80 <= der.length) {
+            length = 0;
+            for (int i = 0; i < lengthBytes - 0x80; i++) {
+                length = (length << 8) | (der[start++] & 0xff);
+            }
+        } else if (lengthBytes >= 0x80) {
+            throw new IOException("Malformed certificate chain at position " + pos + ".");
+        }
+        if (start + length > der.length) {
+            throw new IOException("Truncated certificate chain at position " + pos + ".");
+        }
+        return (int) (start + length);
+    }
+
+    /**
+     * Returns the number of characters of a PEM block.
+     *
+     * @param type The PEM type.
+     * @param dataLength The number of bytes encoded in the block.
+     * @return The number of characters.
+     */
+    private static int blockLength(String type, int dataLength) {
+        int encoded = (dataLength + 2) / 3 * 4;
+        int lines = (encoded + LINE_LENGTH - 1) / LINE_LENGTH;
+        return "-----BEGIN -----\n".length() + "-----END -----\n".length() + 2 * type.length() + encoded + lines;
+    }
+
+    /**
+     * Writes a PEM block into the buffer.
+     *
+     * @param buffer The buffer.
+     * @param start The position to start writing at.
+     * @param type The PEM type.
+     * @param data The bytes to encode.
+     * @return The position after the block.
+     */
+    private static int writeBlock(char buffer[], int start, String type, byte data[]) {
+        int pos = writeLine(buffer, start, "-----BEGIN " + type + "-----");
+        int lineChars = 0;
+        for (int i = 0; i < data.length; i += 3) {
+            int remaining = data.length - i;
+            int bits = (data[i] & 0xff) << 16;
+            if (remaining > 1) {
+                bits |= (data[i + 1] & 0xff) << 8;
+            }
+            if (remaining > 2) {
+                bits |= data[i + 2] & 0xff;
+            }
+            buffer[pos++] = BASE64[(bits >>> 18) & 0x3f];
+            buffer[pos++] = BASE64[(bits >>> 12) & 0x3f];
+            buffer[pos++] = remaining > 1 ? BASE64[(bits >>> 6) & 0x3f] : '=';
+            buffer[pos++] = remaining > 2 ? BASE64[bits & 0x3f] : '=';
+            lineChars += 4;
+            if (lineChars == LINE_LENGTH) {
+                buffer[pos++] = '\n';
+                lineChars = 0;
+            }
+        }
+        if (lineChars > 0) {
+            buffer[pos++] = '\n';
+        }
+        return writeLine(buffer, pos, "-----END " + type + "-----");
+    }
+
+    /**
+     * Writes a line into the buffer.
+     *
+     * @param buffer The buffer.
+     * @param start The position to start writing at.
+     * @param line The line without the line feed.
+     * @return The position after the line feed.
+     */
+    private static int writeLine(char buffer[], int start, String line) {
+        line.getChars(0, line.length(), buffer, start);
+        buffer[start + line.length()] = '\n';
+        return start + line.length() + 1;
+    }
+}
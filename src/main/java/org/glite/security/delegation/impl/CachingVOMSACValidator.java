@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004. See
+ * http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.glite.security.delegation.impl;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.x509.AttributeCertificate;
+import org.bouncycastle.util.encoders.Hex;
+import org.italiangrid.voms.VOMSAttribute;
+import org.italiangrid.voms.ac.ACParsingContext;
+import org.italiangrid.voms.ac.VOMSACLookupStrategy;
+import org.italiangrid.voms.ac.VOMSACValidator;
+import org.italiangrid.voms.ac.VOMSValidationResult;
+import org.italiangrid.voms.ac.ValidationResultListener;
+import org.italiangrid.voms.ac.impl.LeafACLookupStrategy;
+
+import eu.emi.security.authn.x509.proxy.ProxyUtils;
+
+/**
+ * VOMS attribute certificate validator that caches the validation results of the wrapped validator.
+ *
+ * <p>
+ * The results, successful or not, are keyed by the encoded attribute certificates of the chain together with the end
+ * entity certificate the attribute certificates are issued to, so an attribute certificate copied to another user's
+ * chain does not hit the cache. An entry expires after the configured time to live, but at the latest when any of the
+ * attribute certificates becomes valid or expires, as the result would change then. The failed validations are kept
+ * for a short time only, so that a failure caused by a transient problem doesn't last. The validation result listener
+ * is told about the cached results too. The number of entries is
+ * bounded, the least recently used entry is dropped when the bound is reached. The cache must be cleared when the
+ * VOMS trust information is reloaded.
+ * </p>
+ */
+public class CachingVOMSACValidator implements VOMSACValidator {
+    /** Local logger object. */
+    private static final Logger LOGGER = Logger.getLogger(CachingVOMSACValidator.class);
+
+    /** The key digest algorithm. */
+    private static final String KEY_ALGORITHM = "SHA-256";
+
+    /** The maximum time a failed validation result is kept, in milliseconds. */
+    static final long FAILURE_TTL = 10000;
+
+    /** The validator doing the actual validation. */
+    private final VOMSACValidator m_validator;
+
+    /** Finds the attribute certificates in the chain, the same way the default validator does. */
+    private final VOMSACLookupStrategy m_lookup = new LeafACLookupStrategy();
+
+    /** The validation results by key, least recently used first. Guarded by itself. */
+    private final LinkedHashMap<String, Entry> m_entries;
+
+    /** The maximum time an entry is kept, in milliseconds. */
+    private final long m_ttl;
+
+    /** The listener told about the validation results, null if none. */
+    private volatile ValidationResultListener m_listener = null;
+
+    /**
+     * Creates the caching validator.
+     *
+     * @param validator The validator doing the actual validation.
+     * @param maxEntries The maximum number of cached validation results.
+     * @param ttl The maximum time a validation result is kept, in milliseconds.
+     */
+    public CachingVOMSACValidator(VOMSACValidator validator, final int maxEntries, long ttl) {
+        m_validator = validator;
+        m_ttl = ttl;
+        m_entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Validates the attribute certificates of the chain, using the cached result if the same attribute certificates
+     * of the same end entity were validated recently.
+     *
+     * @param certChain The certificate chain holding the attribute certificates.
+     * @return The validation results.
+     * @see org.italiangrid.voms.ac.VOMSACValidator#validateWithResult(java.security.cert.X509Certificate[])
+     */
+    public List<VOMSValidationResult> validateWithResult(X509Certificate[] certChain) {
+        String key = getKey(certChain);
+        if (key == null) {
+            return m_validator.validateWithResult(certChain);
+        }
+        long now = System.currentTimeMillis();
+        List<VOMSValidationResult> cached = null;
+        synchronized (m_entries) {
+            Entry entry = m_entries.get(key);
+            if (entry != null) {
+                if (entry.m_expires > now) {
+                    cached = entry.m_results;
+                } else {
+                    m_entries.remove(key);
+                }
+            }
+        }
+        if (cached != null) {
+            ValidationResultListener listener = m_listener;
+            if (listener != null) {
+                for (VOMSValidationResult result : cached) {
+                    listener.notifyValidationResult(result);
+                }
+            }
+            return cached;
+        }
+
+        List<VOMSValidationResult> results = Collections.unmodifiableList(m_validator.validateWithResult(certChain));
+        long expires = getExpiration(results, now);
+        if (expires > now) {
+            synchronized (m_entries) {
+                m_entries.put(key, new Entry(results, expires));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Validates the attribute certificates of the chain using the cache, see
+     * {@link #validateWithResult(X509Certificate[])}.
+     *
+     * @param certChain The certificate chain holding the attribute certificates.
+     * @return The valid attributes.
+     * @see org.italiangrid.voms.ac.VOMSACValidator#validate(java.security.cert.X509Certificate[])
+     */
+    public List<VOMSAttribute> validate(X509Certificate[] certChain) {
+        List<VOMSAttribute> attributes = new ArrayList<VOMSAttribute>();
+        for (VOMSValidationResult result : validateWithResult(certChain)) {
+            if (result.isValid()) {
+                attributes.add(result.getAttributes());
+            }
+        }
+        return attributes;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.italiangrid.voms.ac.VOMSACValidator#validateACs(java.util.List)
+     */
+    public List<AttributeCertificate> validateACs(List<AttributeCertificate> acs) {
+        return m_validator.validateACs(acs);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.italiangrid.voms.ac.VOMSACParser#parse(java.security.cert.X509Certificate[])
+     */
+    public List<VOMSAttribute> parse(X509Certificate[] certChain) {
+        return m_validator.parse(certChain);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.italiangrid.voms.ac.VOMSACValidator#setValidationResultListener(org.italiangrid.voms.ac.
+     * ValidationResultListener)
+     */
+    public void setValidationResultListener(ValidationResultListener listener) {
+        m_listener = listener;
+        m_validator.setValidationResultListener(listener);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.italiangrid.voms.ac.VOMSACValidator#shutdown()
+     */
+    public void shutdown() {
+        clear();
+        m_validator.shutdown();
+    }
+
+    /**
+     * Drops all the cached results, called when the VOMS trust information changes.
+     */
+    public void clear() {
+        synchronized (m_entries) {
+            m_entries.clear();
+        }
+        LOGGER.debug("Cleared the VOMS validation cache.");
+    }
+
+    /**
+     * Returns the number of cached results, including the expired ones not yet dropped.
+     *
+     * @return the number of entries.
+     */
+    public int size() {
+        synchronized (m_entries) {
+            return m_entries.size();
+        }
+    }
+
+    /**
+     * Calculates the cache key from the attribute certificates of the chain and the end entity certificate.
+     *
+     * @param certChain The certificate chain.
+     * @return The key, null if the chain has no attribute certificates or could not be processed.
+     */
+    private String getKey(X509Certificate[] certChain) {
+        if (certChain == null || certChain.length == 0) {
+            return null;
+        }
+        try {
+            List<ACParsingContext> contexts = m_lookup.lookupVOMSAttributeCertificates(certChain);
+            if (contexts == null || contexts.isEmpty()) {
+                return null;
+            }
+            X509Certificate endEntity = ProxyUtils.getEndUserCertificate(certChain);
+            if (endEntity == null) {
+                return null;
+            }
+            MessageDigest digester = MessageDigest.getInstance(KEY_ALGORITHM);
+            digester.update(endEntity.getEncoded());
+            for (ACParsingContext context : contexts) {
+                for (AttributeCertificate ac : context.getACs()) {
+                    digester.update(ac.getEncoded());
+                }
+            }
+            return new String(Hex.encode(digester.digest()));
+        } catch (CertificateEncodingException e) {
+            LOGGER.debug("Could not encode the end entity certificate, not caching: " + e.getMessage());
+        } catch (IOException e) {
+            LOGGER.debug("Could not encode the attribute certificates, not caching: " + e.getMessage());
+        } catch (NoSuchAlgorithmException e) {
+            LOGGER.warn("Message digester implementation not found, not caching: " + e.getMessage());
+        } catch (RuntimeException e) {
+            LOGGER.debug("Could not look up the attribute certificates, not caching: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Calculates the expiration time of the validation results: the time to live, or the next time any of the
+     * attribute certificates becomes valid or expires if that is earlier. The results with a failed validation are
+     * kept for the failure time to live at most.
+     *
+     * @param results The validation results.
+     * @param now The current time.
+     * @return The expiration time.
+     */
+    long getExpiration(List<VOMSValidationResult> results, long now) {
+        long expires = now + m_ttl;
+        for (VOMSValidationResult result : results) {
+            if (!result.isValid()) {
+                expires = Math.min(expires, now + FAILURE_TTL);
+            }
+            VOMSAttribute attributes = result.getAttributes();
+            if (attributes == null) {
+                continue;
+            }
+            if (attributes.getNotBefore() != null && attributes.getNotBefore().getTime() > now) {
+                expires = Math.min(expires, attributes.getNotBefore().getTime());
+            }
+            if (attributes.getNotAfter() != null) {
+                expires = Math.min(expires, attributes.getNotAfter().getTime());
+            }
+        }
+        return expires;
+    }
+
+    /**
+     * A cached validation result.
+     */
+    private static final class Entry {
+        /** The validation results. */
+        private final List<VOMSValidationResult> m_results;
+
+        /** The expiration time of the entry. */
+        private final long m_expires;
+
+        /**
+         * Creates the entry.
+         *
+         * @param results The validation results.
+         * @param expires The expiration time of the entry.
+         */
+        private Entry(List<VOMSValidationResult> results, long expires) {
+            m_results = results;
+            m_expires = expires;
+        }
+    }
+}
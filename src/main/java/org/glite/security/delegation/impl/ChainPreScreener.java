@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004. See
+ * http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.glite.security.delegation.impl;
+
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.log4j.Logger;
+import org.glite.security.delegation.DelegationException;
+
+/**
+ * Cheap checks of the client certificate chains, done before the chain is processed further, so that malformed or
+ * hostile chains are rejected before any parsing of the VOMS attributes, signature checking or key generation.
+ *
+ * <p>
+ * The length of the chain is limited, and optionally the chain must be linked from issuer to subject, all the
+ * certificates must be within their validity period and the last certificate must be a CA of the CA directory or be
+ * issued by one. The CA lookup uses the subject index of the shared validator, so no certificate is parsed or
+ * verified here. The chain can still fail the full validation later.
+ * </p>
+ */
+public class ChainPreScreener {
+    /** Local logger object. */
+    private static final Logger LOGGER = Logger.getLogger(ChainPreScreener.class);
+
+    /** The maximum number of certificates in the chain, 0 for no limit. */
+    private final int m_maxChainLength;
+
+    /** Whether the linking, validity periods and issuer of the chain are checked. */
+    private final boolean m_checkChain;
+
+    /** The trust anchors for the issuer check, null if the issuer is not checked. */
+    private final SharedVomsValidator m_trust;
+
+    /**
+     * Creates the pre-screener.
+     *
+     * @param maxChainLength The maximum number of certificates in the chain, 0 for no limit.
+     * @param checkChain Whether the linking, validity periods and issuer of the chain are checked.
+     * @param trust The trust anchors for the issuer check, null if the issuer is not checked.
+     */
+    public ChainPreScreener(int maxChainLength, boolean checkChain, SharedVomsValidator trust) {
+        m_maxChainLength = maxChainLength;
+        m_checkChain = checkChain;
+        m_trust = trust;
+    }
+
+    /**
+     * Checks the certificate chain.
+     *
+     * @param certs The certificate chain of the client, the end entity or proxy certificate first.
+     * @throws DelegationException If the chain is rejected.
+     */
+    public void screen(X509Certificate certs[]) throws DelegationException {
+        if (certs == null || certs.length == 0) {
+            reject("Did not get any certificates.");
+        }
+        if (m_maxChainLength > 0 && certs.length > m_maxChainLength) {
+            reject("Certificate chain too long: " + certs.length + " certificates, the maximum is "
+                    + m_maxChainLength + ".");
+        }
+        if (!m_checkChain) {
+            return;
+        }
+
+        Date now = new Date();
+        for (int i = 0; i < certs.length; i++) {
+            if (certs[i] == null) {
+                reject("Certificate chain has an empty certificate at position " + i + ".");
+            }
+            if (now.after(certs[i].getNotAfter())) {
+                reject("Certificate '" + certs[i].getSubjectX500Principal().getName() + "' has expired at "
+                        + certs[i].getNotAfter() + ".");
+            }
+            if (now.before(certs[i].getNotBefore())) {
+                reject("Certificate '" + certs[i].getSubjectX500Principal().getName() + "' is not valid before "
+                        + certs[i].getNotBefore() + ".");
+            }
+            if (i > 0 && !certs[i - 1].getIssuerX500Principal().equals(certs[i].getSubjectX500Principal())) {
+                reject("Certificate chain is broken, certificate '"
+                        + certs[i - 1].getSubjectX500Principal().getName() + "' is not issued by '"
+                        + certs[i].getSubjectX500Principal().getName() + "'.");
+            }
+        }
+
+        if (m_trust != null) {
+            X509Certificate last = certs[certs.length - 1];
+            X500Principal issuer = last.getIssuerX500Principal();
+            if (!m_trust.isTrustedSubject(issuer) && !m_trust.isTrustedSubject(last.getSubjectX500Principal())) {
+                reject("Certificate chain is issued by an unknown CA '" + issuer.getName() + "'.");
+            }
+        }
+    }
+
+    /**
+     * Logs and throws the rejection.
+     *
+     * @param message The reason of the rejection.
+     * @throws DelegationException Always.
+     */
+    private void reject(String message) throws DelegationException {
+        LOGGER.info("Rejecting certificate chain: " + message);
+        throw new DelegationException(message);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004. See
+ * http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.glite.security.delegation.impl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Limits the rate of the requests of each client DN with a token bucket.
+ *
+ * <p>
+ * Each DN has a bucket holding at most the burst size of tokens, refilled at the configured rate. A request takes one
+ * token per delegation and is refused if the bucket does not have enough tokens. The buckets are split in stripes by
+ * the hash of the DN, each stripe having its own lock, so the clients rarely contend for the same lock. The buckets
+ * of a stripe are kept in the order of last use. A bucket that has been idle long enough to be full again behaves
+ * exactly like a new one, so such buckets are dropped from the idle end of the stripe on each use. The number of
+ * buckets of a stripe is also capped, dropping the least recently used bucket when the cap is reached.
+ * </p>
+ */
+public class ClientRateLimiter {
+    /** Local logger object. */
+    private static final Logger LOGGER = Logger.getLogger(ClientRateLimiter.class);
+
+    /** The number of lock stripes, a power of two. */
+    private static final int STRIPES = 64;
+
+    /** The buckets split in stripes, each stripe guarded by its own lock. */
+    private final Stripe[] m_stripes = new Stripe[STRIPES];
+
+    /** The token refill rate per millisecond. */
+    private final double m_tokensPerMilli;
+
+    /** The maximum number of tokens in a bucket. */
+    private final int m_burst;
+
+    /**
+     * Creates the rate limiter.
+     *
+     * @param ratePerMinute The number of requests a client may make per minute in the long run.
+     * @param burst The number of requests a client may make at once after being idle.
+     * @param maxClients The maximum number of clients tracked, the least recently seen clients are forgotten when the
+     *            number is reached.
+     */
+    public ClientRateLimiter(int ratePerMinute, int burst, int maxClients) {
+        if (ratePerMinute <= 0) {
+            throw new IllegalArgumentException("The request rate must be positive, was: " + ratePerMinute);
+        }
+        m_tokensPerMilli = ratePerMinute / 60000.0;
+        m_burst = burst > 0 ? burst : 1;
+        int maxPerStripe = Math.max(1, maxClients / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            m_stripes[i] = new Stripe(maxPerStripe);
+        }
+        LOGGER.debug("Created client rate limiter with rate " + ratePerMinute + " per minute and burst " + m_burst
+                + ".");
+    }
+
+    /**
+     * Takes the tokens for the requests of the client if the bucket of the client has enough of them.
+     *
+     * @param dn The DN of the client.
+     * @param requests The number of requests, the delegations of a batch count separately.
+     * @return 0 if the requests are allowed, otherwise the number of milliseconds after which the bucket has enough
+     *         tokens again.
+     */
+    public long tryAcquire(String dn, int requests) {
+        long now = System.currentTimeMillis();
+        Stripe stripe = m_stripes[spread(dn.hashCode()) & (STRIPES - 1)];
+        synchronized (stripe) {
+            stripe.evictIdle(now, m_tokensPerMilli, m_burst);
+            Bucket bucket = stripe.m_buckets.get(dn);
+            if (bucket == null) {
+                bucket = new Bucket(m_burst, now);
+                stripe.m_buckets.put(dn, bucket);
+            } else {
+                bucket.m_tokens = Math.min(m_burst, bucket.m_tokens + (now - bucket.m_lastRefill) * m_tokensPerMilli);
+                bucket.m_lastRefill = now;
+            }
+            // a batch larger than the burst passes with a full bucket and leaves the bucket in debt
+            int needed = Math.min(requests, m_burst);
+            if (bucket.m_tokens >= needed) {
+                bucket.m_tokens -= requests;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((needed - bucket.m_tokens) / m_tokensPerMilli));
+        }
+    }
+
+    /**
+     * Returns the number of clients tracked.
+     *
+     * @return the number of buckets.
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : m_stripes) {
+            synchronized (stripe) {
+                size += stripe.m_buckets.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Spreads the bits of the hash code so that the DNs differing only in the high bits go to different stripes.
+     *
+     * @param hash The hash code.
+     * @return The spread hash code.
+     */
+    private static int spread(int hash) {
+        int h = hash ^ (hash >>> 16);
+        return h ^ (h >>> 8);
+    }
+
+    /**
+     * The token bucket of a client. Guarded by the lock of the stripe.
+     */
+    private static final class Bucket {
+        /** The number of tokens in the bucket. */
+        private double m_tokens;
+
+        /** The time of the last refill, also the time of the last use. */
+        private long m_lastRefill;
+
+        /**
+         * Creates the bucket.
+         *
+         * @param tokens The initial number of tokens.
+         * @param now The current time.
+         */
+        private Bucket(double tokens, long now) {
+            m_tokens = tokens;
+            m_lastRefill = now;
+        }
+    }
+
+    /**
+     * A stripe of buckets in the order of last use. The stripe object is the lock guarding its buckets.
+     */
+    private static final class Stripe {
+        /** The buckets by DN, least recently used first. */
+        private final LinkedHashMap<String, Bucket> m_buckets;
+
+        /**
+         * Creates the stripe.
+         *
+         * @param maxBuckets The maximum number of buckets in the stripe.
+         */
+        private Stripe(final int maxBuckets) {
+            m_buckets = new LinkedHashMap<String, Bucket>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Bucket> eldest) {
+                    return size() > maxBuckets;
+                }
+            };
+        }
+
+        /**
+         * Drops the buckets that are full again from the least recently used end.
+         *
+         * @param now The current time.
+         * @param tokensPerMilli The token refill rate per millisecond.
+         * @param burst The maximum number of tokens in a bucket.
+         */
+        private void evictIdle(long now, double tokensPerMilli, int burst) {
+            Iterator<Bucket> iter = m_buckets.values().iterator();
+            while (iter.hasNext()) {
+                Bucket bucket = iter.next();
+                if (bucket.m_tokens + (now - bucket.m_lastRefill) * tokensPerMilli < burst) {
+                    return;
+                }
+                iter.remove();
+            }
+        }
+    }
+}
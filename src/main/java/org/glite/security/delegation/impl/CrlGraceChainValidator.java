@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004. See
+ * http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.glite.security.delegation.impl;
+
+import java.security.GeneralSecurityException;
+import java.security.cert.CertPath;
+import java.security.cert.Certificate;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.log4j.Logger;
+
+import eu.emi.security.authn.x509.ProxySupport;
+import eu.emi.security.authn.x509.RevocationParameters;
+import eu.emi.security.authn.x509.StoreUpdateListener;
+import eu.emi.security.authn.x509.ValidationError;
+import eu.emi.security.authn.x509.ValidationErrorCode;
+import eu.emi.security.authn.x509.ValidationErrorListener;
+import eu.emi.security.authn.x509.ValidationResult;
+import eu.emi.security.authn.x509.X509CertChainValidatorExt;
+
+/**
+ * A certificate chain validator that requires a CRL for every CA of the chain but accepts a CRL past its next update
+ * during the grace period.
+ *
+ * <p>
+ * canl either requires a valid CRL or ignores the expired ones, so the chains are first validated by a canl validator
+ * checking only the valid CRLs, and then every certificate issued by a trusted CA is checked against the last loaded
+ * CRLs of the CA. A CRL is used until its next update plus the grace period. A certificate is rejected if it is
+ * revoked by one of them, or if the CA has no usable CRL at all, like with the required revocation checking. The CRLs
+ * are the ones whose signature was verified with the certificate of the CA when the validator was created.
+ * </p>
+ */
+class CrlGraceChainValidator implements X509CertChainValidatorExt {
+    /** Local logger object. */
+    private static final Logger LOGGER = Logger.getLogger(CrlGraceChainValidator.class);
+
+    /** The canl validator checking the chain and the valid CRLs. */
+    private final X509CertChainValidatorExt m_validator;
+
+    /** The subjects of the trusted CAs. */
+    private final Set<X500Principal> m_caSubjects = new HashSet<X500Principal>();
+
+    /** The verified CRLs by issuer. */
+    private final Map<X500Principal, List<X509CRL>> m_crls;
+
+    /** How long a CRL is used after its next update, in milliseconds. */
+    private final long m_gracePeriod;
+
+    /** The listeners of the validation errors found by this validator. */
+    private final List<ValidationErrorListener> m_listeners = new CopyOnWriteArrayList<ValidationErrorListener>();
+
+    /**
+     * Creates the validator.
+     *
+     * @param validator The canl validator checking the chain and the valid CRLs.
+     * @param crls The CRLs of the CA directory, the ones not signed by a trusted CA are dropped.
+     * @param gracePeriod How long a CRL is used after its next update, in milliseconds.
+     */
+    CrlGraceChainValidator(X509CertChainValidatorExt validator, Collection<X509CRL> crls, long gracePeriod) {
+        m_validator = validator;
+        m_gracePeriod = gracePeriod;
+        X509Certificate trustedIssuers[] = validator.getTrustedIssuers();
+        for (X509Certificate ca : trustedIssuers) {
+            m_caSubjects.add(ca.getSubjectX500Principal());
+        }
+        m_crls = verifyCrls(trustedIssuers, crls);
+    }
+
+    /**
+     * Validates the chain with the canl validator and checks the certificates issued by the trusted CAs against the
+     * CRLs of the CAs.
+     *
+     * @param certChain The certificate chain.
+     * @return The validation result.
+     */
+    public ValidationResult validate(X509Certificate[] certChain) {
+        ValidationResult result = m_validator.validate(certChain);
+        if (!result.isValid()) {
+            return result;
+        }
+        List<ValidationError> errors = checkRevocation(certChain, System.currentTimeMillis());
+        if (errors.isEmpty()) {
+            return result;
+        }
+        return new ValidationResult(false, errors);
+    }
+
+    /**
+     * Validates the certificate path, see {@link #validate(X509Certificate[])}.
+     *
+     * @param certPath The certificate path.
+     * @return The validation result.
+     */
+    public ValidationResult validate(CertPath certPath) {
+        List<? extends Certificate> certificates = certPath.getCertificates();
+        X509Certificate chain[] = new X509Certificate[certificates.size()];
+        for (int i = 0; i < chain.length; i++) {
+            chain[i] = (X509Certificate) certificates.get(i);
+        }
+        return validate(chain);
+    }
+
+    /**
+     * Checks the certificates issued by the trusted CAs against the CRLs of the CAs.
+     *
+     * @param certChain The certificate chain.
+     * @param now The current time.
+     * @return The errors found, empty if none.
+     */
+    List<ValidationError> checkRevocation(X509Certificate[] certChain, long now) {
+        List<ValidationError> errors = new ArrayList<ValidationError>();
+        for (int i = 0; i < certChain.length; i++) {
+            X500Principal issuer = certChain[i].getIssuerX500Principal();
+            if (!m_caSubjects.contains(issuer) || issuer.equals(certChain[i].getSubjectX500Principal())) {
+                // proxies, the trust anchors themselves and the CAs outside the trust store are not checked here
+                continue;
+            }
+            List<X509CRL> crls = m_crls.get(issuer);
+            boolean checked = false;
+            if (crls != null) {
+                for (X509CRL crl : crls) {
+                    if (!isUsable(crl, now)) {
+                        continue;
+                    }
+                    checked = true;
+                    X509CRLEntry entry = crl.getRevokedCertificate(certChain[i]);
+                    if (entry != null) {
+                        addError(errors, new ValidationError(certChain, i, ValidationErrorCode.certRevoked, entry
+                                .getRevocationDate(), "unknown"));
+                    }
+                }
+            }
+            if (!checked) {
+                addError(errors, new ValidationError(certChain, i, ValidationErrorCode.noValidCrlFound));
+            }
+        }
+        return errors;
+    }
+
+    /**
+     * Tells whether the CRL may be used at the given time, from its this update until its next update plus the grace
+     * period.
+     *
+     * @param crl The CRL.
+     * @param now The time.
+     * @return true if the CRL may be used.
+     */
+    private boolean isUsable(X509CRL crl, long now) {
+        if (crl.getThisUpdate().getTime() > now) {
+            return false;
+        }
+        Date nextUpdate = crl.getNextUpdate();
+        return nextUpdate == null || nextUpdate.getTime() + m_gracePeriod > now;
+    }
+
+    /**
+     * Adds the error to the list unless a listener tells to ignore it.
+     *
+     * @param errors The errors.
+     * @param error The error.
+     */
+    private void addError(List<ValidationError> errors, ValidationError error) {
+        for (ValidationErrorListener listener : m_listeners) {
+            if (listener.onValidationError(error)) {
+                return;
+            }
+        }
+        errors.add(error);
+    }
+
+    /**
+     * Verifies the signatures of the CRLs with the certificates of the trusted CAs.
+     *
+     * @param trustedIssuers The certificates of the trusted CAs.
+     * @param crls The CRLs.
+     * @return The CRLs signed by a trusted CA, by issuer.
+     */
+    private static Map<X500Principal, List<X509CRL>> verifyCrls(X509Certificate[] trustedIssuers,
+            Collection<X509CRL> crls) {
+        Map<X500Principal, List<X509CRL>> verified = new HashMap<X500Principal, List<X509CRL>>();
+        for (X509CRL crl : crls) {
+            X500Principal issuer = crl.getIssuerX500Principal();
+            boolean valid = false;
+            for (X509Certificate ca : trustedIssuers) {
+                if (!ca.getSubjectX500Principal().equals(issuer)) {
+                    continue;
+                }
+                try {
+                    crl.verify(ca.getPublicKey());
+                    valid = true;
+                    break;
+                } catch (GeneralSecurityException e) {
+                    // try the other certificates of the CA, for example after a key rollover
+                }
+            }
+            if (!valid) {
+                LOGGER.warn("Ignoring the CRL of " + issuer.getName() + ", it is not signed by a trusted CA.");
+                continue;
+            }
+            List<X509CRL> list = verified.get(issuer);
+            if (list == null) {
+                list = new ArrayList<X509CRL>();
+                verified.put(issuer, list);
+            }
+            list.add(crl);
+        }
+        return verified;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see eu.emi.security.authn.x509.X509CertChainValidator#getTrustedIssuers()
+     */
+    public X509Certificate[] getTrustedIssuers() {
+        return m_validator.getTrustedIssuers();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see eu.emi.security.authn.x509.X509CertChainValidator#addValidationListener(ValidationErrorListener)
+     */
+    public void addValidationListener(ValidationErrorListener listener) {
+        m_listeners.add(listener);
+        m_validator.addValidationListener(listener);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see eu.emi.security.authn.x509.X509CertChainValidator#removeValidationListener(ValidationErrorListener)
+     */
+    public void removeValidationListener(ValidationErrorListener listener) {
+        m_listeners.remove(listener);
+        m_validator.removeValidationListener(listener);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see eu.emi.security.authn.x509.X509CertChainValidator#addUpdateListener(StoreUpdateListener)
+     */
+    public void addUpdateListener(StoreUpdateListener listener) {
+        m_validator.addUpdateListener(listener);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see eu.emi.security.authn.x509.X509CertChainValidator#removeUpdateListener(StoreUpdateListener)
+     */
+    public void removeUpdateListener(StoreUpdateListener listener) {
+        m_validator.removeUpdateListener(listener);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see eu.emi.security.authn.x509.X509CertChainValidatorExt#getProxySupport()
+     */
+    public ProxySupport getProxySupport() {
+        return m_validator.getProxySupport();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see eu.emi.security.authn.x509.X509CertChainValidatorExt#getRevocationCheckingMode()
+     */
+    public RevocationParameters getRevocationCheckingMode() {
+        return m_validator.getRevocationCheckingMode();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see eu.emi.security.authn.x509.X509CertChainValidatorExt#dispose()
+     */
+    public void dispose() {
+        m_validator.dispose();
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004. See
+ * http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.glite.security.delegation.impl;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.cert.CRLException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps track of the CRLs in the CA directory, so that they can be reloaded before they expire.
+ *
+ * <p>
+ * The CRL files, named by the openssl hash of the issuer with the suffix .r0, .r1 and so on, are scanned for changes
+ * and the changed ones are parsed to find their next update times. The manager tells when the directory should be
+ * checked next: when the earliest CRL enters the refresh window before its next update, and from then on
+ * periodically until a newer CRL appears. A CRL past its next update is in the grace period for the configured time,
+ * during which the users can keep checking the certificates of the CA against it instead of failing all the
+ * validations. The time this manager took to read and parse the CRLs of each CA is recorded.
+ * </p>
+ *
+ * <p>
+ * The manager only follows the files, the CRLs are downloaded into the CA directory by an external tool like
+ * fetch-crl.
+ * </p>
+ */
+public class CrlManager {
+    /** Local logger object. */
+    private static final Logger LOGGER = Logger.getLogger(CrlManager.class);
+
+    /** The names of the CRL files. */
+    private static final Pattern CRL_FILE = Pattern.compile("[0-9a-fA-F]{8}\\.r[0-9]+");
+
+    /** The CA directory. */
+    private final File m_caDir;
+
+    /** How long before the next update of a CRL the directory is checked for a newer one, in milliseconds. */
+    private final long m_refreshAhead;
+
+    /** How long an expired CRL is in the grace period, in milliseconds. */
+    private final long m_gracePeriod;
+
+    /** The interval of the checks once a CRL is in the refresh window, in milliseconds. */
+    private final long m_retryInterval;
+
+    /** The loaded CRL files by file name. Guarded by this. */
+    private Map<String, CrlFile> m_files = new HashMap<String, CrlFile>();
+
+    /** The time the last read and parse of the CRLs of each CA took, by issuer. Guarded by this. */
+    private final Map<String, Long> m_latencies = new HashMap<String, Long>();
+
+    /**
+     * Creates the manager. The directory is scanned with {@link #scan()}.
+     *
+     * @param caDir The CA directory.
+     * @param refreshAhead How long before the next update of a CRL the directory is checked for a newer one, in
+     *            milliseconds.
+     * @param gracePeriod How long an expired CRL is in the grace period, in milliseconds.
+     * @param retryInterval The interval of the checks once a CRL is in the refresh window, in milliseconds.
+     */
+    public CrlManager(String caDir, long refreshAhead, long gracePeriod, long retryInterval) {
+        m_caDir = new File(caDir);
+        m_refreshAhead = refreshAhead;
+        m_gracePeriod = gracePeriod;
+        m_retryInterval = retryInterval;
+    }
+
+    /**
+     * Scans the CA directory and parses the new and changed CRL files.
+     *
+     * @return true if CRL files were added, changed or removed since the last scan.
+     */
+    public synchronized boolean scan() {
+        File files[] = m_caDir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return CRL_FILE.matcher(name).matches();
+            }
+        });
+        if (files == null) {
+            LOGGER.warn("Could not list the CA directory " + m_caDir + " for CRLs.");
+            return false;
+        }
+
+        boolean changed = false;
+        Map<String, CrlFile> scanned = new HashMap<String, CrlFile>();
+        Map<String, Long> latencies = new HashMap<String, Long>();
+        for (File file : files) {
+            CrlFile old = m_files.get(file.getName());
+            if (old != null && old.m_lastModified == file.lastModified() && old.m_length == file.length()) {
+                scanned.put(file.getName(), old);
+                continue;
+            }
+            changed = true;
+            long start = System.currentTimeMillis();
+            CrlFile loaded = load(file);
+            if (loaded == null) {
+                continue;
+            }
+            scanned.put(file.getName(), loaded);
+            Long latency = latencies.get(loaded.m_issuer);
+            latencies.put(loaded.m_issuer, System.currentTimeMillis() - start + (latency == null ? 0 : latency));
+        }
+        if (!scanned.keySet().equals(m_files.keySet())) {
+            changed = true;
+        }
+        m_files = scanned;
+        m_latencies.putAll(latencies);
+        return changed;
+    }
+
+    /**
+     * Tells when the CA directory should be checked next for newer CRLs, or for the start or the end of a grace
+     * period.
+     *
+     * @param now The current time.
+     * @return The time of the next check, 0 if there are no CRLs to check.
+     */
+    public synchronized long getNextCheckTime(long now) {
+        long next = Long.MAX_VALUE;
+        for (CrlFile file : m_files.values()) {
+            if (file.m_nextUpdate == null) {
+                continue;
+            }
+            long nextUpdate = file.m_nextUpdate.getTime();
+            long refresh = nextUpdate - m_refreshAhead;
+            if (refresh > now) {
+                next = Math.min(next, refresh);
+                continue;
+            }
+            next = Math.min(next, now + m_retryInterval);
+            if (nextUpdate > now) {
+                next = Math.min(next, nextUpdate);
+            } else if (nextUpdate + m_gracePeriod > now) {
+                next = Math.min(next, nextUpdate + m_gracePeriod);
+            }
+        }
+        return next == Long.MAX_VALUE ? 0 : next;
+    }
+
+    /**
+     * Tells whether any CRL is past its next update but still in the grace period.
+     *
+     * @param now The current time.
+     * @return true if a CRL is in the grace period.
+     */
+    public synchronized boolean isInGracePeriod(long now) {
+        for (CrlFile file : m_files.values()) {
+            if (file.m_nextUpdate != null && file.m_nextUpdate.getTime() <= now
+                    && file.m_nextUpdate.getTime() + m_gracePeriod > now) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the loaded CRLs.
+     *
+     * @return the CRLs as they were when the files were last scanned.
+     */
+    public synchronized List<X509CRL> getCrls() {
+        List<X509CRL> crls = new ArrayList<X509CRL>(m_files.size());
+        for (CrlFile file : m_files.values()) {
+            crls.add(file.m_crl);
+        }
+        return crls;
+    }
+
+    /**
+     * Returns how long an expired CRL is in the grace period.
+     *
+     * @return the grace period in milliseconds.
+     */
+    public long getGracePeriod() {
+        return m_gracePeriod;
+    }
+
+    /**
+     * Returns the number of the loaded CRL files.
+     *
+     * @return the number of CRLs.
+     */
+    public synchronized int size() {
+        return m_files.size();
+    }
+
+    /**
+     * Returns the earliest next update time of the loaded CRLs.
+     *
+     * @return the time, null if there are no CRLs with a next update time.
+     */
+    public synchronized Date getEarliestNextUpdate() {
+        Date earliest = null;
+        for (CrlFile file : m_files.values()) {
+            if (file.m_nextUpdate != null && (earliest == null || file.m_nextUpdate.before(earliest))) {
+                earliest = file.m_nextUpdate;
+            }
+        }
+        return earliest;
+    }
+
+    /**
+     * Returns the time the last read and parse of the CRLs of each CA by this manager took. The time the chain
+     * validator takes to load the CRLs is not included.
+     *
+     * @return the times in milliseconds by the issuer DN of the CRLs.
+     */
+    public synchronized Map<String, Long> getRefreshLatencies() {
+        return new HashMap<String, Long>(m_latencies);
+    }
+
+    /**
+     * Loads and parses the CRL file.
+     *
+     * @param file The CRL file.
+     * @return The loaded CRL file, null if it could not be read or parsed.
+     */
+    private CrlFile load(File file) {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            X509CRL crl = (X509CRL) CertificateFactory.getInstance("X.509").generateCRL(in);
+            LOGGER.debug("Loaded CRL " + file + " of " + crl.getIssuerX500Principal().getName() + ", next update "
+                    + crl.getNextUpdate());
+            return new CrlFile(crl, lastModified, length);
+        } catch (IOException e) {
+            LOGGER.warn("Could not read CRL " + file + ": " + e.getMessage());
+        } catch (CRLException e) {
+            LOGGER.warn("Could not parse CRL " + file + ": " + e.getMessage());
+        } catch (CertificateException e) {
+            LOGGER.warn("Could not parse CRL " + file + ": " + e.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A loaded CRL file.
+     */
+    private static final class CrlFile {
+        /** The CRL. */
+        private final X509CRL m_crl;
+
+        /** The issuer DN of the CRL. */
+        private final String m_issuer;
+
+        /** The next update time of the CRL, null if not given. */
+        private final Date m_nextUpdate;
+
+        /** The modification time of the file when loaded. */
+        private final long m_lastModified;
+
+        /** The length of the file when loaded. */
+        private final long m_length;
+
+        /**
+         * Creates the loaded CRL file.
+         *
+         * @param crl The CRL.
+         * @param lastModified The modification time of the file when loaded.
+         * @param length The length of the file when loaded.
+         */
+        private CrlFile(X509CRL crl, long lastModified, long length) {
+            m_crl = crl;
+            m_issuer = crl.getIssuerX500Principal().getName();
+            m_nextUpdate = crl.getNextUpdate();
+            m_lastModified = lastModified;
+            m_length = length;
+        }
+    }
+}
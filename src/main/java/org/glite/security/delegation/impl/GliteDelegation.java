@@ -23,51 +23,60 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.math.BigInteger;
 import java.security.GeneralSecurityException;
-import java.security.KeyStoreException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
 import java.security.cert.CertificateExpiredException;
 import java.security.cert.CertificateNotYetValidException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.x500.RDN;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.style.BCStyle;
 import org.bouncycastle.jce.PKCS10CertificationRequest;
 import org.bouncycastle.openssl.PEMReader;
 import org.bouncycastle.openssl.PEMWriter;
+import org.bouncycastle.util.encoders.Hex;
 import org.glite.security.delegation.CertInfoTriple;
+import org.glite.security.delegation.GrDPConstants;
 import org.glite.security.delegation.GrDPX509Util;
 import org.glite.security.delegation.GrDProxyDlgeeOptions;
+import org.glite.security.delegation.DelegationBusyException;
 import org.glite.security.delegation.DelegationException;
 import org.glite.security.delegation.NewProxyReq;
-import org.glite.security.delegation.storage.GrDPStorage;
+import org.glite.security.delegation.PEMCredentialWriter;
+import org.glite.security.delegation.storage.GrDPStorageAdapter;
 import org.glite.security.delegation.storage.GrDPStorageCacheElement;
 import org.glite.security.delegation.storage.GrDPStorageElement;
 import org.glite.security.delegation.storage.GrDPStorageException;
 import org.glite.security.delegation.storage.GrDPStorageFactory;
-import org.italiangrid.voms.VOMSValidators;
+import org.glite.security.delegation.storage.GrDPStorageSession;
 import org.italiangrid.voms.ac.VOMSACValidator;
-import org.italiangrid.voms.store.VOMSTrustStore;
-import org.italiangrid.voms.store.VOMSTrustStores;
-
-import eu.emi.security.authn.x509.CrlCheckingMode;
-import eu.emi.security.authn.x509.NamespaceCheckingMode;
-import eu.emi.security.authn.x509.OCSPParametes;
-import eu.emi.security.authn.x509.ProxySupport;
-import eu.emi.security.authn.x509.RevocationParameters;
+
 import eu.emi.security.authn.x509.StoreUpdateListener;
-import eu.emi.security.authn.x509.ValidationError;
-import eu.emi.security.authn.x509.ValidationErrorListener;
-import eu.emi.security.authn.x509.RevocationParameters.RevocationCheckingOrder;
+import eu.emi.security.authn.x509.helpers.proxy.ProxyGeneratorHelper;
 import eu.emi.security.authn.x509.impl.CertificateUtils;
 import eu.emi.security.authn.x509.impl.CertificateUtils.Encoding;
-import eu.emi.security.authn.x509.impl.KeyAndCertCredential;
-import eu.emi.security.authn.x509.impl.OpensslCertChainValidator;
-import eu.emi.security.authn.x509.impl.ValidatorParams;
 import eu.emi.security.authn.x509.impl.X500NameUtils;
-import eu.emi.security.authn.x509.proxy.ProxyCSR;
 import eu.emi.security.authn.x509.proxy.ProxyCSRGenerator;
 import eu.emi.security.authn.x509.proxy.ProxyCertificateOptions;
 import eu.emi.security.authn.x509.proxy.ProxyChainInfo;
@@ -82,6 +91,32 @@ import eu.emi.security.authn.x509.proxy.ProxyType;
  * 
  */
 public class GliteDelegation {
+    /**
+     * The delegation operations with the information whether they need the VOMS attributes of the client.
+     */
+    private enum Operation {
+        // the attributes are stored with the certificate request and the delegation
+        GET_PROXY_REQ(VomsValidationPolicy.ALWAYS),
+        GET_NEW_PROXY_REQ(VomsValidationPolicy.ALWAYS),
+        GET_PROXY_REQS(VomsValidationPolicy.ALWAYS),
+        RENEW_PROXY_REQ(VomsValidationPolicy.ALWAYS),
+        PUT_PROXY(VomsValidationPolicy.ALWAYS),
+        // lookups by the delegation id, the attributes only matter when the id is generated from them
+        DESTROY(VomsValidationPolicy.WHEN_GENERATING_ID),
+        GET_TERMINATION_TIME(VomsValidationPolicy.WHEN_GENERATING_ID);
+
+        /** When the operation needs the VOMS attributes. */
+        private final VomsValidationPolicy m_vomsPolicy;
+
+        /**
+         * Declares the operation.
+         * 
+         * @param vomsPolicy When the operation needs the VOMS attributes.
+         */
+        private Operation(VomsValidationPolicy vomsPolicy) {
+            m_vomsPolicy = vomsPolicy;
+        }
+    }
 
     /** Local logger object. */
     public static Logger logger = Logger.getLogger(GliteDelegation.class);
@@ -92,25 +127,99 @@ public class GliteDelegation {
      */
     private int DEFAULT_KEY_SIZE = 1024;
 
+    /**
+     * The default key size for EC keys, selecting the P-256 curve. Used if the dlgeeKeySize is not defined or smaller.
+     */
+    private int DEFAULT_EC_KEY_SIZE = 256;
+
     /**
      * Set at instantiation time. Remains false if a bad configuration set was found.
      */
     private boolean m_bad_config = true;
 
     /** Local object interfacing the storage area. */
-    private GrDPStorage m_storage = null;
+    private GrDPStorageAdapter m_storage = null;
 
     /** Key size being used. */
     private int m_keySize;
 
+    /** Key algorithm being used. */
+    private String m_keyAlgorithm = GrDPConstants.KEY_ALGORITHM_RSA;
+
     /** whether the presence of voms attributes will be required in the incoming certificate chains. */
-    private static boolean requireVomsAttrs = true;
+    private final boolean m_requireVomsAttrs;
 
     /** The voms validator instance used to validate the voms attribute certificates. */
-    private static VOMSACValidator vomsValidator = null;
+    private VOMSACValidator m_vomsValidator = null;
+
+    /** The validator shared with the other instances with the same trust settings, null if not created. */
+    private SharedVomsValidator m_sharedValidator = null;
+
+    /** Clears the caches of the validation results when the trust anchors or CRLs are reloaded. */
+    private final StoreUpdateListener m_trustListener = new StoreUpdateListener() {
+        public void loadingNotification(String location, String type, Severity level, Exception cause) {
+            if (level == Severity.NOTIFICATION) {
+                // the trust anchors or CRLs were (re)loaded, the cached validation results may be stale
+                if (m_identityCache != null) {
+                    m_identityCache.clear();
+                }
+                if (m_sessionCache != null) {
+                    m_sessionCache.clear();
+                }
+                if (m_vomsCache != null) {
+                    m_vomsCache.clear();
+                }
+            }
+        }
+    };
     
     /** Whether the new proxies should be limited or not. */
     private boolean limited = false;
+
+    /** The pool of pre-generated key pairs, null if the pool is disabled. */
+    private KeyPairPool m_keyPool = null;
+
+    /** The file the unused keys of the pool are kept in over a restart, null if not used. */
+    private KeyPairPoolFile m_keyPoolFile = null;
+
+    /**
+     * Limits the number of concurrent certificate request and put proxy operations, null if not limited. The
+     * operations are admitted in the priority order of the key generation.
+     */
+    private KeyAllocationScheduler m_admissionGate = null;
+
+    /** The retry time suggested to the rejected clients, in seconds. */
+    private int m_busyRetryAfter = 0;
+
+    /** Limits the certificate request rate of each client DN, null if not limited. */
+    private ClientRateLimiter m_rateLimiter = null;
+
+    /** The cache of the VOMS attribute certificate validation results, null if not used. */
+    private CachingVOMSACValidator m_vomsCache = null;
+
+    /** The cache of the client information by client session, null if not used. */
+    private IdentityCache m_sessionCache = null;
+
+    /** The cache of the client information of the certificate chains, null if not used. */
+    private IdentityCache m_identityCache = null;
+
+    /** The scheduler of the key generation slots, null if the key generations are not limited. */
+    private KeyAllocationScheduler m_keyScheduler = null;
+
+    /** The engine generating the keys and running the parallel certificate request generation. */
+    private KeyGenerationEngine m_keyEngine = null;
+
+    /** Rejects the malformed client certificate chains early, null if the chains are not pre-screened. */
+    private ChainPreScreener m_preScreener = null;
+
+    /** Whether a pending certificate request is returned again instead of generating a new one. */
+    private boolean m_reusePendingRequests = false;
+
+    /** The maximum age of a reusable pending certificate request in milliseconds, 0 for no limit. */
+    private long m_pendingRequestMaxAge = 0;
+
+    /** Whether the keys and proxies are given to the storage in binary instead of PEM. */
+    private boolean m_binaryStorage = false;
     
 
     /**
@@ -136,6 +245,11 @@ public class GliteDelegation {
      */
     public GliteDelegation(GrDProxyDlgeeOptions dlgeeOpt) throws Exception {
 
+        m_requireVomsAttrs = dlgeeOpt.isRequireVomsAttributes();
+
+        // the key generation, request signing and key pool file use the BouncyCastle provider by name
+        CertificateUtils.configureSecProvider();
+
         // this.m_dlgeeOpt = dlgeeOpt;
         if (logger.isDebugEnabled()) {
             logger.debug("Using DLGEE properties: " + "DN: " + dlgeeOpt.getDlgeeDN() + ". Pass: <hidden>. proxyFile: "
@@ -146,111 +260,113 @@ public class GliteDelegation {
         try {
             GrDPStorageFactory stgFactory = GrDPX509Util.getGrDPStorageFactory(dlgeeOpt.getDlgeeStorageFactory());
 
-            m_storage = stgFactory.createGrDPStorage(dlgeeOpt);
+            m_storage = GrDPStorageAdapter.adapt(stgFactory.createGrDPStorage(dlgeeOpt));
         } catch (Exception e) {
             logger.error("Failed to get a GrDPStorage instance. Delegation is not active.", e);
             m_bad_config = true;
             return;
         }
 
-        requireVomsAttrs = dlgeeOpt.isRequireVomsAttributes();
-        
         limited = dlgeeOpt.isLimited();
 
-        // Set the size of the key, if not defined or smaller than the default,
+        // Set the algorithm and size of the key, if size is not defined or smaller than the default,
         // use default.
+        String keyAlgorithm = dlgeeOpt.getDlgeeKeyAlgorithm();
+        int defaultKeySize = DEFAULT_KEY_SIZE;
+        if (keyAlgorithm == null || keyAlgorithm.equalsIgnoreCase(GrDPConstants.KEY_ALGORITHM_RSA)) {
+            m_keyAlgorithm = GrDPConstants.KEY_ALGORITHM_RSA;
+        } else if (keyAlgorithm.equalsIgnoreCase(GrDPConstants.KEY_ALGORITHM_EC)
+                || keyAlgorithm.equalsIgnoreCase("ECDSA")) {
+            m_keyAlgorithm = GrDPConstants.KEY_ALGORITHM_EC;
+            defaultKeySize = DEFAULT_EC_KEY_SIZE;
+        } else {
+            logger.error("Unsupported key algorithm '" + keyAlgorithm + "'. Delegation is not active.");
+            m_bad_config = true;
+            return;
+        }
         m_keySize = dlgeeOpt.getDlgeeKeySize();
-        if (m_keySize == -1 || m_keySize < DEFAULT_KEY_SIZE) {
-            m_keySize = DEFAULT_KEY_SIZE;
+        if (m_keySize == -1 || m_keySize < defaultKeySize) {
+            m_keySize = defaultKeySize;
         }
         try {
-            VOMSTrustStore vomsTrustStore = null;
-            String vomsDirString = dlgeeOpt.getVomsDir();
-            if (vomsDirString != null) {
-                List<String> trustDirStrings = new ArrayList<String>();
-                trustDirStrings.add(vomsDirString);
-                vomsTrustStore = VOMSTrustStores.newTrustStore(trustDirStrings);
-            } else {
-                vomsTrustStore = VOMSTrustStores.newTrustStore();
-            }
-
-            StoreUpdateListener listener = new StoreUpdateListener() {
-                public void loadingNotification(String location, String type, Severity level, Exception cause) {
-                    if (level != Severity.NOTIFICATION) {
-                        logger.error("Error when creating or using SSL socket. Type " + type + " level: " + level
-                                + ((cause == null) ? "" : (" cause: " + cause.getClass() + ":" + cause.getMessage())));
-                    } else {
-                        // log successful (re)loading
-                    }
-                }
-            };
-
-            ArrayList<StoreUpdateListener> listenerList = new ArrayList<StoreUpdateListener>();
-            listenerList.add(listener);
-
-            RevocationParameters revParam = new RevocationParameters(CrlCheckingMode.REQUIRE, new OCSPParametes(),
-                    false, RevocationCheckingOrder.CRL_OCSP);
-            String crlCheckingMode = dlgeeOpt.getRevocationChecking();
-            if (crlCheckingMode != null) {
-                if (crlCheckingMode.equalsIgnoreCase("ifvalid")) {
-                    revParam = new RevocationParameters(CrlCheckingMode.IF_VALID, new OCSPParametes(), false,
-                            RevocationCheckingOrder.CRL_OCSP);
-                }
-                if (crlCheckingMode.equalsIgnoreCase("ignore")) {
-                    revParam = new RevocationParameters(CrlCheckingMode.IGNORE, new OCSPParametes(), false,
-                            RevocationCheckingOrder.CRL_OCSP);
-                }
-            }
+            initResources(dlgeeOpt);
+        } catch (Exception e) {
+            // stop the threads started and release the shared validator before failing
+            shutdown();
+            throw e;
+        }
 
-            ValidatorParams validatorParams = new ValidatorParams(revParam, ProxySupport.ALLOW, listenerList);
+        // set the config ok flag
+        m_bad_config = false;
+    }
 
-            String trustStoreLocation = dlgeeOpt.getVomsCAs();
-            if (trustStoreLocation == null) {
-                trustStoreLocation = "/etc/grid-security/certificates";
+    /**
+     * Creates the key generation, the admission control, the caches and the VOMS validator as configured. If this
+     * fails, the resources created so far are released with {@link #shutdown()} by the caller.
+     * 
+     * @param dlgeeOpt the options object for configuring the delegation receiver.
+     * @throws Exception if the configuration is invalid, or if the VOMS validator could not be created and the VOMS
+     *             attributes are required.
+     */
+    private void initResources(GrDProxyDlgeeOptions dlgeeOpt) throws Exception {
+        m_keyEngine = new KeyGenerationEngine(dlgeeOpt.getKeyGenerationThreads());
+        m_busyRetryAfter = dlgeeOpt.getBusyRetryAfter();
+        if (dlgeeOpt.getKeyGenerationSlots() > 0) {
+            m_keyScheduler = new KeyAllocationScheduler(dlgeeOpt.getKeyGenerationSlots(),
+                    dlgeeOpt.getNewRequestTimeout(), dlgeeOpt.getRenewalRequestTimeout(),
+                    dlgeeOpt.getNewRequestQueueLength(), m_busyRetryAfter);
+        }
+        if (dlgeeOpt.getClientRequestRate() > 0) {
+            m_rateLimiter = new ClientRateLimiter(dlgeeOpt.getClientRequestRate(), dlgeeOpt.getClientRequestBurst(),
+                    dlgeeOpt.getClientRateMaxClients());
+        }
+        if (dlgeeOpt.getMaxConcurrentOperations() > 0) {
+            m_admissionGate = new KeyAllocationScheduler(dlgeeOpt.getMaxConcurrentOperations(), dlgeeOpt
+                    .getAdmissionTimeout(), dlgeeOpt.getAdmissionTimeout(), Integer.MAX_VALUE, m_busyRetryAfter);
+        }
+        if (dlgeeOpt.getKeyPoolHighWatermark() > 0) {
+            // the key pool file checks its configuration, so it is created before the pool starts its threads
+            if (dlgeeOpt.getKeyPoolFile() != null) {
+                m_keyPoolFile = new KeyPairPoolFile(dlgeeOpt.getKeyPoolFile(), dlgeeOpt.getKeyPoolSecret());
             }
-
-            String namespaceModeString = dlgeeOpt.getNamespace();
-            NamespaceCheckingMode namespaceMode = NamespaceCheckingMode.EUGRIDPMA_AND_GLOBUS;
-            if (namespaceModeString != null) {
-                if (namespaceModeString.equalsIgnoreCase("no") || namespaceModeString.equalsIgnoreCase("false")
-                        || namespaceModeString.equalsIgnoreCase("off")) {
-                    namespaceMode = NamespaceCheckingMode.IGNORE;
-                } else {
-                    if (namespaceModeString.equalsIgnoreCase("require")) {
-                        namespaceMode = NamespaceCheckingMode.EUGRIDPMA_AND_GLOBUS_REQUIRE;
-                    }
+            m_keyPool = new KeyPairPool(m_keyEngine, m_keyAlgorithm, m_keySize, dlgeeOpt.getKeyPoolLowWatermark(),
+                    dlgeeOpt.getKeyPoolHighWatermark(), dlgeeOpt.getKeyPoolThreads(), dlgeeOpt.getKeyPoolCoverage(),
+                    dlgeeOpt.getKeyPoolCpuShare());
+            if (m_keyPoolFile != null) {
+                try {
+                    int loaded = m_keyPool.preload(m_keyPoolFile.load(m_keyAlgorithm, m_keySize));
+                    logger.info("Loaded " + loaded + " pre-generated keys from " + dlgeeOpt.getKeyPoolFile());
+                } catch (Exception e) {
+                    logger.warn("Could not load the pre-generated keys from " + dlgeeOpt.getKeyPoolFile() + ": "
+                            + e.getMessage());
                 }
-
             }
-
-            String intervalString = dlgeeOpt.getUpdateInterval();
-            long intervalMS = 3600000; // update every hour
-            if (intervalString != null) {
-                intervalMS = Long.parseLong(intervalString);
+        }
+        if (dlgeeOpt.getIdentityCacheSize() > 0) {
+            m_identityCache = new IdentityCache(dlgeeOpt.getIdentityCacheSize(),
+                    dlgeeOpt.getIdentityCacheTtl() * 1000L);
+        }
+        if (dlgeeOpt.getSessionCacheSize() > 0) {
+            m_sessionCache = new IdentityCache(dlgeeOpt.getSessionCacheSize(), dlgeeOpt.getSessionCacheTtl() * 1000L);
+        }
+        m_reusePendingRequests = dlgeeOpt.isReusePendingRequests();
+        if (m_reusePendingRequests && !m_storage.isPendingRequestLookupSupported()) {
+            logger.warn("The storage cannot list the pending certificate requests, they are not reused.");
+            m_reusePendingRequests = false;
+        }
+        m_pendingRequestMaxAge = dlgeeOpt.getPendingRequestMaxAge() * 1000L;
+        m_binaryStorage = dlgeeOpt.isBinaryStorage();
+        try {
+            m_sharedValidator = SharedVomsValidator.acquire(dlgeeOpt);
+            m_sharedValidator.addUpdateListener(m_trustListener);
+            m_vomsValidator = m_sharedValidator.getValidator();
+            if (dlgeeOpt.getVomsCacheSize() > 0) {
+                m_vomsCache = new CachingVOMSACValidator(m_vomsValidator, dlgeeOpt.getVomsCacheSize(), dlgeeOpt
+                        .getVomsCacheTtl() * 1000L);
+                m_vomsValidator = m_vomsCache;
             }
-
-            OpensslCertChainValidator validator = new OpensslCertChainValidator(trustStoreLocation, namespaceMode,
-                    intervalMS, validatorParams);
-
-            ValidationErrorListener validationListener = new ValidationErrorListener() {
-                @Override
-                public boolean onValidationError(ValidationError error) {
-                    logger.info("Error when validating incoming certificate: " + error.getMessage() + " position: "
-                            + error.getPosition() + " " + error.getParameters());
-                    X509Certificate chain[] = error.getChain();
-                    for (X509Certificate cert : chain) {
-                        logger.info(cert.toString());
-                    }
-                    return false;
-                }
-
-            };
-
-            validator.addValidationListener(validationListener);
-
-            vomsValidator = VOMSValidators.newValidator(vomsTrustStore, validator);
         } catch (Exception e) {
-            if (requireVomsAttrs) {
+            if (m_requireVomsAttrs) {
                 logger.error("Error while creating VOMS validator: " + e.getMessage(), e);
                 throw e;
             } else {
@@ -258,8 +374,59 @@ public class GliteDelegation {
             }
         }
 
-        // set the config ok flag
-        m_bad_config = false;
+        if (dlgeeOpt.isPreScreenChains() && m_sharedValidator == null) {
+            logger.warn("No trust anchors available, the certificate chains are pre-screened without the issuer "
+                    + "check.");
+        }
+        if (dlgeeOpt.getMaxChainLength() > 0 || dlgeeOpt.isPreScreenChains()) {
+            m_preScreener = new ChainPreScreener(dlgeeOpt.getMaxChainLength(), dlgeeOpt.isPreScreenChains(),
+                    dlgeeOpt.isPreScreenChains() ? m_sharedValidator : null);
+        }
+    }
+
+    /**
+     * Releases the resources held by this instance, like the background threads of the key pool. The instance should
+     * not be used after this.
+     */
+    public void shutdown() {
+        if (m_keyPool != null) {
+            if (m_keyPoolFile != null) {
+                try {
+                    m_keyPoolFile.save(m_keyPool.drain(), m_keyAlgorithm, m_keySize);
+                } catch (Exception e) {
+                    logger.warn("Could not save the pre-generated keys: " + e.getMessage());
+                }
+            }
+            m_keyPool.shutdown();
+        }
+        if (m_keyEngine != null) {
+            m_keyEngine.shutdown();
+        }
+        if (m_sharedValidator != null) {
+            m_sharedValidator.removeUpdateListener(m_trustListener);
+            m_sharedValidator.release();
+            m_sharedValidator = null;
+        }
+    }
+
+    /**
+     * Returns the pool of pre-generated key pairs, which provides the metrics of the pool: the current and target
+     * depth, the arrival rate and the hit and miss counts and rates.
+     * 
+     * @return The key pair pool, null if the pool is disabled.
+     */
+    public KeyPairPool getKeyPairPool() {
+        return m_keyPool;
+    }
+
+    /**
+     * Returns the shared VOMS validator, which provides the metrics of the trust store reloads: the reload duration
+     * and counts and the numbers of loaded trust anchors and CRLs.
+     * 
+     * @return The shared validator, null if it could not be created or the instance is shut down.
+     */
+    public SharedVomsValidator getSharedValidator() {
+        return m_sharedValidator;
     }
 
     /**
@@ -274,6 +441,24 @@ public class GliteDelegation {
      * @throws DelegationException Thrown in case of failures.
      */
     public String getProxyReq(String inDelegationID, X509Certificate certs[]) throws DelegationException {
+        return getProxyReq(inDelegationID, certs, null);
+    }
+
+    /**
+     * Generates a new proxy request based on the certificates and the possibly given delegation id. Also checks if a
+     * delegation with given (or generated if not given) id for the user already exists. If a delegation with given id
+     * and user already exists, it throws a delegation exception. To renew existing delegation, use renewProxyReq.
+     * 
+     * @param inDelegationID The delegation id to use (generated if not present, based on dn and possible VOMS
+     *            attributes).
+     * @param certs The certificates the user used to authenticate himself.
+     * @param sessionKey The key of the client session, for example the TLS session id, the client information is
+     *            cached for the session. If null the information is not cached by session.
+     * @return The generated Proxy request in PEM encoding.
+     * @throws DelegationException Thrown in case of failures.
+     */
+    public String getProxyReq(String inDelegationID, X509Certificate certs[], String sessionKey)
+            throws DelegationException {
         logger.debug("Processing getProxyReq.");
 
         if (certs == null || certs.length == 0) {
@@ -292,9 +477,10 @@ public class GliteDelegation {
             logger.error("Service is misconfigured. Stopping execution.");
             throw new DelegationException("Service is misconfigured.");
         }
+        preScreen(certs);
         CertInfoTriple info = null;
         try {
-            info = new CertInfoTriple(certs, vomsValidator, requireVomsAttrs);
+            info = getCertInfo(certs, sessionKey, Operation.GET_PROXY_REQ, delegationID);
         } catch (Exception e) {
             logger.error("Getting info from the certificate chain failed: " + e.getClass() + " " + e.getMessage(), e);
             throw new DelegationException("Getting info from the certificate chain failed: " + e.getClass() + " "
@@ -308,6 +494,7 @@ public class GliteDelegation {
                 logger.debug("Voms attrib : " + attrib);
             }
         }
+        checkRequestRate(info.dn, 1);
 
         // Generate a delegation id from the client DN and VOMS attributes
         if (delegationID == null || delegationID.length() == 0) {
@@ -316,26 +503,38 @@ public class GliteDelegation {
 
         logger.debug("Delegation id is: " + delegationID);
 
-        // Search for an existing entry in storage for this delegation ID (null
-        // if non existing)
+        // Look up the delegation and a reusable pending request, the session is closed before generating a key
+        String pendingRequest;
+        GrDPStorageSession session = openStorageSession();
         try {
-            elem = m_storage.findGrDPStorageElement(delegationID, info.dn);
-        } catch (GrDPStorageException e) {
-            logger.error("Failure on storage interaction.", e);
-            throw new DelegationException("Internal failure.");
-        }
+            // Search for an existing entry in storage for this delegation ID (null
+            // if non existing)
+            try {
+                elem = session.findGrDPStorageElement(delegationID, info.dn);
+            } catch (GrDPStorageException e) {
+                logger.error("Failure on storage interaction.", e);
+                throw new DelegationException("Internal failure.");
+            }
 
-        // Throw error in case there was already a credential with the given id
-        if (elem != null) {
-            String vomsAttrsStr = GrDPX509Util.toStringVOMSAttrs(info.vomsAttributes);
-            logger.debug("Delegation ID '" + delegationID + "' already exists" + " for client (DN='" + info.dn
-                    + "; VOMS ATTRS='" + vomsAttrsStr + "'). Call renewProxyReq.");
-            throw new DelegationException("Delegation ID '" + delegationID + "' already exists" + " for client (DN='"
-                    + info.dn + "; VOMS ATTRS='" + vomsAttrsStr + "'). Call renewProxyReq.");
+            // Throw error in case there was already a credential with the given id
+            if (elem != null) {
+                String vomsAttrsStr = joinVomsAttributes(info.vomsAttributes);
+                logger.debug("Delegation ID '" + delegationID + "' already exists" + " for client (DN='" + info.dn
+                        + "; VOMS ATTRS='" + vomsAttrsStr + "'). Call renewProxyReq.");
+                throw new DelegationException("Delegation ID '" + delegationID + "' already exists"
+                        + " for client (DN='" + info.dn + "; VOMS ATTRS='" + vomsAttrsStr + "'). Call renewProxyReq.");
+            }
+            pendingRequest = findPendingCertificateRequest(session, certs, delegationID, info.dn);
+            commitStorageSession(session);
+        } finally {
+            session.close();
+        }
+        if (pendingRequest != null) {
+            return pendingRequest;
         }
 
         // Create and store the new certificate request
-        return createAndStoreCertificateRequest(certs, delegationID, info.dn, info.vomsAttributes);
+        return createAndStoreCertificateRequest(certs, delegationID, info.dn, info.vomsAttributes, null);
     }
 
     /**
@@ -352,6 +551,26 @@ public class GliteDelegation {
      * @throws DelegationException thrown in case of failure.
      */
     public NewProxyReq getNewProxyReq(String inDelegationID, X509Certificate certs[]) throws DelegationException {
+        return getNewProxyReq(inDelegationID, certs, null);
+    }
+
+    /**
+     * Generates a new proxy request based on the certificates and the possibly given delegation id. Also checks if a
+     * delegation with given (or generated if not given) id for the user already exists. If a delegation with given id
+     * and user already exists, it throws a delegation exception. To renew existing delegation, use renewProxyReq.
+     * 
+     * This method also returns the given or generated delegation ID.
+     * 
+     * @param inDelegationID the delegation id to use, will be generated (based on dn and VOMS attributes if present) if
+     *            not given.
+     * @param certs The certificates the user used to authenticate himself.
+     * @param sessionKey The key of the client session, for example the TLS session id, the client information is
+     *            cached for the session. If null the information is not cached by session.
+     * @return The newProxyReq object.
+     * @throws DelegationException thrown in case of failure.
+     */
+    public NewProxyReq getNewProxyReq(String inDelegationID, X509Certificate certs[], String sessionKey)
+            throws DelegationException {
         logger.debug("Processing getNewProxyReq.");
 
         String delegationID = inDelegationID;
@@ -364,37 +583,50 @@ public class GliteDelegation {
             logger.error("Service is misconfigured. Stopping execution.");
             throw new DelegationException("Service is misconfigured.");
         }
+        preScreen(certs);
 
-        CertInfoTriple info = new CertInfoTriple(certs, vomsValidator, requireVomsAttrs);
+        CertInfoTriple info = getCertInfo(certs, sessionKey, Operation.GET_NEW_PROXY_REQ, delegationID);
 
         logger.debug("Got get new proxy req request from client '" + info.dn + "'");
+        checkRequestRate(info.dn, 1);
 
         // Generate a delegation id from the client DN and VOMS attributes
         if (delegationID == null || delegationID.length() == 0) {
             delegationID = GrDPX509Util.genDlgID(info.dn, info.vomsAttributes);
         }
 
-        // Search for an existing entry in storage for this delegation ID (null
-        // if non existing)
+        // Look up the delegation and a reusable pending request, the session is closed before generating a key
+        String certRequest;
+        GrDPStorageSession session = openStorageSession();
         try {
-            elem = m_storage.findGrDPStorageElement(delegationID, info.dn);
-        } catch (GrDPStorageException e) {
-            logger.error("Failure on storage interaction.", e);
-            throw new DelegationException("Internal failure.");
-        }
+            // Search for an existing entry in storage for this delegation ID (null
+            // if non existing)
+            try {
+                elem = session.findGrDPStorageElement(delegationID, info.dn);
+            } catch (GrDPStorageException e) {
+                logger.error("Failure on storage interaction.", e);
+                throw new DelegationException("Internal failure.");
+            }
 
-        // Throw error in case there was already a credential with the given id
-        if (elem != null) {
-            String vomsAttrsStr = GrDPX509Util.toStringVOMSAttrs(info.vomsAttributes);
-            String errorMsg = "Delegation ID '" + delegationID + "' already exists" + " for client (DN='" + info.dn
-                    + "; VOMS ATTRS='" + vomsAttrsStr + "'). Call renewProxyReq.";
+            // Throw error in case there was already a credential with the given id
+            if (elem != null) {
+                String vomsAttrsStr = joinVomsAttributes(info.vomsAttributes);
+                String errorMsg = "Delegation ID '" + delegationID + "' already exists" + " for client (DN='" + info.dn
+                        + "; VOMS ATTRS='" + vomsAttrsStr + "'). Call renewProxyReq.";
 
-            logger.debug(errorMsg);
-            throw new DelegationException(errorMsg);
+                logger.debug(errorMsg);
+                throw new DelegationException(errorMsg);
+            }
+            certRequest = findPendingCertificateRequest(session, certs, delegationID, info.dn);
+            commitStorageSession(session);
+        } finally {
+            session.close();
         }
 
         // Create and store the new certificate request
-        String certRequest = createAndStoreCertificateRequest(certs, delegationID, info.dn, info.vomsAttributes);
+        if (certRequest == null) {
+            certRequest = createAndStoreCertificateRequest(certs, delegationID, info.dn, info.vomsAttributes, null);
+        }
 
         // Create and return the proxy request object
         NewProxyReq newProxyReq = new NewProxyReq();
@@ -404,6 +636,170 @@ public class GliteDelegation {
         return newProxyReq;
     }
 
+    /**
+     * Generates new proxy requests for several delegations of the same client at once. Works like getProxyReq for each
+     * of the ids, but the certificate chain is processed only once, the keys are generated in parallel and the
+     * requests are stored in one batch. If a delegation with any of the ids already exists, no requests are generated
+     * and a delegation exception is thrown.
+     * 
+     * @param inDelegationIDs The delegation ids to use, must not contain null or empty ids. An id given several times
+     *            gets one request.
+     * @param certs The certificates the user used to authenticate himself.
+     * @return The generated proxy requests in PEM encoding, mapped by delegation id in the order of the given ids.
+     * @throws DelegationException Thrown in case of failures.
+     */
+    public Map<String, String> getProxyReqs(List<String> inDelegationIDs, X509Certificate certs[])
+            throws DelegationException {
+        return getProxyReqs(inDelegationIDs, certs, null);
+    }
+
+    /**
+     * Generates new proxy requests for several delegations of the same client at once. Works like getProxyReq for each
+     * of the ids, but the certificate chain is processed only once, the keys are generated in parallel and the
+     * requests are stored in one batch. If a delegation with any of the ids already exists, no requests are generated
+     * and a delegation exception is thrown.
+     * 
+     * @param inDelegationIDs The delegation ids to use, must not contain null or empty ids. An id given several times
+     *            gets one request.
+     * @param certs The certificates the user used to authenticate himself.
+     * @param sessionKey The key of the client session, for example the TLS session id, the client information is
+     *            cached for the session. If null the information is not cached by session.
+     * @return The generated proxy requests in PEM encoding, mapped by delegation id in the order of the given ids.
+     * @throws DelegationException Thrown in case of failures.
+     */
+    public Map<String, String> getProxyReqs(List<String> inDelegationIDs, X509Certificate certs[], String sessionKey)
+            throws DelegationException {
+        logger.debug("Processing getProxyReqs.");
+
+        if (certs == null || certs.length == 0) {
+            logger.error("Did not get any certificates.");
+            throw new DelegationException("Did not get any certificates.");
+        }
+
+        if (inDelegationIDs == null || inDelegationIDs.isEmpty()) {
+            logger.error("Did not get any delegation ids.");
+            throw new DelegationException("Did not get any delegation ids.");
+        }
+
+        // Check if a bad configuration was detected on launch (and fail if
+        // true)
+        if (m_bad_config) {
+            logger.error("Service is misconfigured. Stopping execution.");
+            throw new DelegationException("Service is misconfigured.");
+        }
+        preScreen(certs);
+        final CertInfoTriple info;
+        try {
+            info = getCertInfo(certs, sessionKey, Operation.GET_PROXY_REQS, null);
+        } catch (Exception e) {
+            logger.error("Getting info from the certificate chain failed: " + e.getClass() + " " + e.getMessage(), e);
+            throw new DelegationException("Getting info from the certificate chain failed: " + e.getClass() + " "
+                    + e.getMessage(), e);
+        }
+
+        logger.debug("Got get proxy reqs request for " + inDelegationIDs.size() + " delegations from client '"
+                + info.dn + "'");
+
+        // The ids cannot be generated, all the generated ids of a client would be the same
+        Set<String> delegationIDs = new LinkedHashSet<String>();
+        for (String delegationID : inDelegationIDs) {
+            if (delegationID == null || delegationID.length() == 0) {
+                logger.debug("Empty delegation id in the batch from client '" + info.dn + "'.");
+                throw new DelegationException("The delegation ids of a batch must be given.");
+            }
+            delegationIDs.add(delegationID);
+        }
+        checkRequestRate(info.dn, delegationIDs.size());
+
+        // Check that none of the delegations exist yet
+        // Look up the delegations and the reusable pending requests, the session is closed before generating keys
+        Map<String, String> certRequests = new LinkedHashMap<String, String>();
+        GrDPStorageSession session = openStorageSession();
+        try {
+            try {
+                for (String delegationID : delegationIDs) {
+                    if (session.findGrDPStorageElement(delegationID, info.dn) != null) {
+                        String vomsAttrsStr = joinVomsAttributes(info.vomsAttributes);
+                        String errorMsg = "Delegation ID '" + delegationID + "' already exists" + " for client (DN='"
+                                + info.dn + "; VOMS ATTRS='" + vomsAttrsStr + "'). Call renewProxyReq.";
+
+                        logger.debug(errorMsg);
+                        throw new DelegationException(errorMsg);
+                    }
+                }
+            } catch (GrDPStorageException e) {
+                logger.error("Failure on storage interaction.", e);
+                throw new DelegationException("Internal failure.");
+            }
+            for (String delegationID : delegationIDs) {
+                certRequests.put(delegationID, findPendingCertificateRequest(session, certs, delegationID, info.dn));
+            }
+            commitStorageSession(session);
+        } finally {
+            session.close();
+        }
+
+        createAndStoreCertificateRequests(certs, certRequests, info);
+        return certRequests;
+    }
+
+    /**
+     * Generates the certificate requests of a batch in parallel and stores them in one batch. The requests are
+     * generated for the delegation ids mapped to null, the others have a reused pending request already. Each key
+     * generation enters the admission gate on its own.
+     * 
+     * @param certs The certificates the user used to authenticate himself.
+     * @param certRequests The certificate requests in PEM encoding by delegation id, the generated ones are put here.
+     * @param info The information of the client certificate chain.
+     * @throws DelegationException Failed to generate or store the certificate requests.
+     */
+    private void createAndStoreCertificateRequests(X509Certificate certs[], Map<String, String> certRequests,
+            final CertInfoTriple info) throws DelegationException {
+        // Generate the missing certificate requests in parallel
+        Map<String, Future<GrDPStorageCacheElement>> futures =
+                new LinkedHashMap<String, Future<GrDPStorageCacheElement>>();
+        final X509Certificate[] chain = certs;
+        for (Map.Entry<String, String> request : certRequests.entrySet()) {
+            if (request.getValue() != null) {
+                continue;
+            }
+            final String delegationID = request.getKey();
+            futures.put(delegationID, m_keyEngine.submit(new Callable<GrDPStorageCacheElement>() {
+                public GrDPStorageCacheElement call() throws DelegationException {
+                    enterAdmissionGate("batch certificate request", null);
+                    try {
+                        return createCertificateRequest(chain, delegationID, info.dn, info.vomsAttributes, null);
+                    } finally {
+                        leaveAdmissionGate();
+                    }
+                }
+            }));
+        }
+
+        List<GrDPStorageCacheElement> cacheElems = new ArrayList<GrDPStorageCacheElement>();
+        try {
+            for (Map.Entry<String, Future<GrDPStorageCacheElement>> entry : futures.entrySet()) {
+                GrDPStorageCacheElement cacheElem = entry.getValue().get();
+                cacheElems.add(cacheElem);
+                certRequests.put(entry.getKey(), cacheElem.getCertificateRequest());
+            }
+        } catch (ExecutionException e) {
+            cancelAll(futures.values());
+            if (e.getCause() instanceof DelegationException) {
+                throw (DelegationException) e.getCause();
+            }
+            logger.error("Error while generating the certificate requests." + e.getCause());
+            throw new DelegationException("Failed to generate a certificate request. " + e.getCause());
+        } catch (InterruptedException e) {
+            cancelAll(futures.values());
+            Thread.currentThread().interrupt();
+            throw new DelegationException("Interrupted while generating the certificate requests.");
+        }
+
+        storeCertificateRequests(cacheElems);
+        logger.debug(cacheElems.size() + " new certificate requests successfully stored in cache.");
+    }
+
     /**
      * Generates a new delegation request for the existing delegation with the given (or generated) delegation.
      * 
@@ -414,6 +810,22 @@ public class GliteDelegation {
      * @throws DelegationException Thrown in case of failure.
      */
     public String renewProxyReq(String inDelegationID, X509Certificate certs[]) throws DelegationException {
+        return renewProxyReq(inDelegationID, certs, null);
+    }
+
+    /**
+     * Generates a new delegation request for the existing delegation with the given (or generated) delegation.
+     * 
+     * @param inDelegationID The delegation id to use, will be generated (based on dn and VOMS attributes if present) if
+     *            not given.
+     * @param certs The certificates the user used to authenticate himself.
+     * @param sessionKey The key of the client session, for example the TLS session id, the client information is
+     *            cached for the session. If null the information is not cached by session.
+     * @return The delegation request in PEM format.
+     * @throws DelegationException Thrown in case of failure.
+     */
+    public String renewProxyReq(String inDelegationID, X509Certificate certs[], String sessionKey)
+            throws DelegationException {
         logger.debug("Processing renewProxyReq.");
 
         String delegationID = inDelegationID;
@@ -426,33 +838,48 @@ public class GliteDelegation {
             logger.error("Service is misconfigured. Stopping execution.");
             throw new DelegationException("Service is misconfigured.");
         }
+        preScreen(certs);
 
-        CertInfoTriple info = new CertInfoTriple(certs, vomsValidator, requireVomsAttrs);
+        CertInfoTriple info = getCertInfo(certs, sessionKey, Operation.RENEW_PROXY_REQ, delegationID);
 
         logger.debug("Got renew proxy request from client '" + info.dn + "'");
+        checkRequestRate(info.dn, 1);
 
         // Generate a delegation id from the client DN and VOMS attributes
         if (delegationID == null || delegationID.length() == 0) {
             delegationID = GrDPX509Util.genDlgID(info.dn, info.vomsAttributes);
         }
 
-        // Search for an existing entry in storage for this delegation ID (null
-        // if non existing)
+        // Look up the delegation and a reusable pending request, the session is closed before generating a key
+        String pendingRequest;
+        GrDPStorageSession session = openStorageSession();
         try {
-            elem = m_storage.findGrDPStorageElement(delegationID, info.dn);
-        } catch (GrDPStorageException e) {
-            logger.error("Failure on storage interaction.", e);
-            throw new DelegationException("Internal failure.");
-        }
+            // Search for an existing entry in storage for this delegation ID (null
+            // if non existing)
+            try {
+                elem = session.findGrDPStorageElement(delegationID, info.dn);
+            } catch (GrDPStorageException e) {
+                logger.error("Failure on storage interaction.", e);
+                throw new DelegationException("Internal failure.");
+            }
 
-        // Check that the DLG ID had a corresponding delegated credential
-        if (elem == null) {
-            logger.debug("Failed to renew credential as there was no delegation with ID '" + delegationID
-                    + "' for client '" + info.dn + "'");
+            // Check that the DLG ID had a corresponding delegated credential
+            if (elem == null) {
+                logger.debug("Failed to renew credential as there was no delegation with ID '" + delegationID
+                        + "' for client '" + info.dn + "'");
+            }
+            pendingRequest = findPendingCertificateRequest(session, certs, delegationID, info.dn);
+            commitStorageSession(session);
+        } finally {
+            session.close();
+        }
+        if (pendingRequest != null) {
+            return pendingRequest;
         }
 
-        // Create and store the new certificate request
-        return createAndStoreCertificateRequest(certs, delegationID, info.dn, info.vomsAttributes);
+        // Create and store the new certificate request, the renewals closest to expiry get the keys first
+        Date terminationTime = elem == null ? null : elem.getTerminationTime();
+        return createAndStoreCertificateRequest(certs, delegationID, info.dn, info.vomsAttributes, terminationTime);
     }
 
     /**
@@ -464,12 +891,24 @@ public class GliteDelegation {
      * @param certs The certificates the user used to authenticate himself.
      * @throws DelegationException
      */
-    public void putProxy(String inDelegationID, String proxy, X509Certificate certs[]) throws Exception {// throws
-                                                                                                         // DelegationException
-                                                                                                         // {
-        logger.info("Processing putProxy.");
+    public void putProxy(String inDelegationID, String proxy, X509Certificate certs[]) throws Exception {
+        putProxy(inDelegationID, proxy, certs, null);
+    }
 
-        String delegationID = inDelegationID;
+    /**
+     * Puts the new proxy that was signed by the client to the delegation storage. Also fetches the private key from the
+     * cache so that the proxy credentials are complete.
+     * 
+     * @param inDelegationID The delegation ID used for the delegation.
+     * @param proxy The new proxy received from the client.
+     * @param certs The certificates the user used to authenticate himself.
+     * @param sessionKey The key of the client session, for example the TLS session id, the client information is
+     *            cached for the session. If null the information is not cached by session.
+     * @throws DelegationException
+     */
+    public void putProxy(String inDelegationID, String proxy, X509Certificate certs[], String sessionKey)
+            throws Exception {
+        logger.info("Processing putProxy.");
 
         // Check if a bad configuration was detected on launch (and fail if
         // true)
@@ -477,6 +916,7 @@ public class GliteDelegation {
             logger.error("Service is misconfigured. Stopping execution.");
             throw new DelegationException("Service is misconfigured.");
         }
+        preScreen(certs);
 
         // Check for a null proxy
         if (proxy == null) {
@@ -484,7 +924,29 @@ public class GliteDelegation {
             throw new DelegationException("No proxy was given.");
         }
 
-        CertInfoTriple info = new CertInfoTriple(certs, vomsValidator, requireVomsAttrs);
+        enterAdmissionGate("putProxy", null);
+        try {
+            storeProxy(inDelegationID, proxy, certs, sessionKey);
+        } finally {
+            leaveAdmissionGate();
+        }
+    }
+
+    /**
+     * Checks the new proxy against the pending certificate request and stores it together with the private key in the
+     * delegation storage.
+     * 
+     * @param inDelegationID The delegation ID used for the delegation.
+     * @param proxy The new proxy received from the client.
+     * @param certs The certificates the user used to authenticate himself.
+     * @param sessionKey The key of the client session, null if not known.
+     * @throws Exception Failed to check or store the proxy.
+     */
+    private void storeProxy(String inDelegationID, String proxy, X509Certificate certs[], String sessionKey)
+            throws Exception {
+        String delegationID = inDelegationID;
+
+        CertInfoTriple info = getCertInfo(certs, sessionKey, Operation.PUT_PROXY, delegationID);
 
         logger.debug("Got put proxy request from client '" + info.dn + "'");
 
@@ -556,124 +1018,157 @@ public class GliteDelegation {
             throw new DelegationException(message);
         }
 
-        String cacheID = delegationID;
-        cacheID = delegationID + '+' + GrDPX509Util.generateSessionID(proxyCertChain[0].getPublicKey());
+        byte proxyKeyFingerprint[] = GrDPX509Util.getPublicKeyFingerprint(proxyCertChain[0].getPublicKey());
+        String cacheID = delegationID + '+' + new String(Hex.encode(proxyKeyFingerprint));
         logger.debug("public key is: " + proxyCertChain[0].getPublicKey());
         logger.debug("Cache ID (delegation ID + session ID): " + cacheID);
 
-        // Get the cache entry for this delegation ID
-        GrDPStorageCacheElement cacheElem = null;
+        GrDPStorageSession session = openStorageSession();
         try {
-            cacheElem = m_storage.findGrDPStorageCacheElement(cacheID, info.dn);
-        } catch (GrDPStorageException e) {
-            logger.error("Failed to get certificate request information from storage.", e);
-            throw new DelegationException("Internal failure.");
-        }
-
-        // Check if the delegation request existed
-        if (cacheElem == null) {
-            logger.info("Could not find cache ID '" + cacheID + "' for DN '" + info.dn + "' in cache.");
-            throw new DelegationException("Could not find a proper delegation request");
-        }
-        logger.debug("Got from cache element for cache ID '" + cacheID + "' and DN '" + info.dn + "'");
+            // Get the cache entry for this delegation ID
+            GrDPStorageCacheElement cacheElem = null;
+            try {
+                cacheElem = session.findGrDPStorageCacheElement(cacheID, info.dn);
+            } catch (GrDPStorageException e) {
+                logger.error("Failed to get certificate request information from storage.", e);
+                throw new DelegationException("Internal failure.");
+            }
 
-        // the public key of the cached certificate request has to
-        // match the public key of the proxy certificate, otherwise
-        // this is an answer to a different request
-        PEMReader pemReader = new PEMReader(new StringReader(cacheElem.getCertificateRequest()));
-        PKCS10CertificationRequest req;
-        try {
-            req = (PKCS10CertificationRequest) pemReader.readObject();
-            pemReader.close();
-        } catch (IOException e1) {
-            logger.error("Could not load the original certificate request from cache.");
-            throw new DelegationException("Could not load the original certificate request from cache: "
-                    + e1.getMessage());
-        }
-        if (req == null) {
-            logger.error("Could not load the original certificate request from cache.");
-            throw new DelegationException("Could not load the original certificate request from cache.");
-        }
-        try {
-            if (!req.getPublicKey().equals(proxyCertChain[0].getPublicKey())) {
+            // Check if the delegation request existed
+            if (cacheElem == null) {
+                logger.info("Could not find cache ID '" + cacheID + "' for DN '" + info.dn + "' in cache.");
+                throw new DelegationException("Could not find a proper delegation request");
+            }
+            logger.debug("Got from cache element for cache ID '" + cacheID + "' and DN '" + info.dn + "'");
+
+            // the public key of the cached certificate request has to
+            // match the public key of the proxy certificate, otherwise
+            // this is an answer to a different request. The fingerprint of the
+            // request key is stored with the request, so the request is not parsed,
+            // only the requests stored without it are.
+            byte requestKeyFingerprint[] = cacheElem.getPublicKeyFingerprint();
+            if (requestKeyFingerprint == null) {
+                logger.error("Could not get the public key fingerprint of the original certificate request from "
+                        + "cache.");
+                throw new DelegationException("Could not load the original certificate request from cache.");
+            }
+            if (!MessageDigest.isEqual(requestKeyFingerprint, proxyKeyFingerprint)) {
                 logger.error("The proxy and the original request's public key do not match.");
                 logger.error("Proxy public key: " + proxyCertChain[0].getPublicKey());
-                logger.error("Request public key: " + req.getPublicKey());
                 throw new DelegationException("The proxy and the original request's public key do not match.");
             }
-        } catch (GeneralSecurityException ge) {
-            logger.error("Error while decoding the certificate request: " + ge);
-            throw new DelegationException("Error while decoding the certificate request.");
-        }
 
-        // Add the private key to the proxy certificate chain and check it was ok
-        ByteArrayInputStream keyStream = new ByteArrayInputStream(cacheElem.getPrivateKey().getBytes());
-        PrivateKey privateKey;
-        try {
-            privateKey = CertificateUtils.loadPrivateKey(keyStream, Encoding.PEM, null);
-        } catch (IOException e) {
-            throw new DelegationException("Failed to read private key from storage, error: " + e.getClass() + ": "
-                    + e.getMessage());
-        }
-        KeyAndCertCredential credential;
-        try {
-            credential = new KeyAndCertCredential(privateKey, proxyCertChain);
-        } catch (KeyStoreException e) {
-            throw new DelegationException("Failed to handle credentials, error: " + e.getClass() + ": "
-                    + e.getMessage());
-        }
+            // Load the private key of the request, to be stored with the proxy certificate chain
+            PrivateKey privateKey;
+            try {
+                if (cacheElem.getPrivateKeyBytes() != null) {
+                    privateKey = GrDPX509Util.decodePrivateKey(cacheElem.getPrivateKeyBytes());
+                } else {
+                    ByteArrayInputStream keyStream = new ByteArrayInputStream(cacheElem.getPrivateKey().getBytes());
+                    privateKey = CertificateUtils.loadPrivateKey(keyStream, Encoding.PEM, null);
+                }
+            } catch (IOException e) {
+                throw new DelegationException("Failed to read private key from storage, error: " + e.getClass() + ": "
+                        + e.getMessage());
+            }
 
-        ByteArrayOutputStream proxyStream = new ByteArrayOutputStream();
-        try {
-            CertificateUtils.savePEMKeystore(proxyStream, credential.getKeyStore(), credential.getKeyAlias(), null,
-                    credential.getKeyPassword(), null, true);
-        } catch (Exception e) {
-            logger.error("Error while converting the proxy to string for storage: " + e.getClass() + ": "
-                    + e.getMessage());
-            e.printStackTrace();
-            throw new DelegationException("Error while converting the proxy to string for storage: " + e.getClass()
-                    + ": " + e.getMessage());
+            // Save the proxy in proxy storage and remove the request from the storage cache in one go
+            GrDPStorageElement elem = new GrDPStorageElement();
+            elem.setDelegationID(delegationID);
+            elem.setDN(info.dn);
+            elem.setVomsAttributes(info.vomsAttributes);
+            setProxy(elem, privateKey, proxyCertChain);
+            elem.setTerminationTime(proxyCertChain[0].getNotAfter());
+            try {
+                session.commitDelegation(elem, cacheID);
+            } catch (GrDPStorageException e) {
+                logger.error("Failed to put certificate request in storage.", e);
+                throw new DelegationException("Internal failure: " + e.getMessage());
+            }
+            commitStorageSession(session);
+            logger.debug("Delegation finished successfully.");
+        } finally {
+            session.close();
         }
 
-        String completeProxy = proxyStream.toString();
-
-        if (completeProxy == null) {
-            logger.error("Failed to add private key to the proxy certificate chain.");
-            throw new DelegationException("Could not properly process given proxy.");
-        }
+    }
 
-        // Save the proxy in proxy storage (copying the rest from the info taken from the cache)
+    /**
+     * Opens a storage session for the storage interactions of one operation.
+     * 
+     * @return The storage session, to be closed by the caller.
+     * @throws DelegationException Failed to open the session.
+     */
+    private GrDPStorageSession openStorageSession() throws DelegationException {
         try {
-            GrDPStorageElement elem = m_storage.findGrDPStorageElement(delegationID, info.dn);
-            if (elem != null) {
-                elem.setCertificate(completeProxy);
-                elem.setTerminationTime(proxyCertChain[0].getNotAfter());
-                m_storage.updateGrDPStorageElement(elem);
-            } else {
-                elem = new GrDPStorageElement();
-                elem.setDelegationID(delegationID);
-                elem.setDN(info.dn);
-                elem.setVomsAttributes(info.vomsAttributes);
-                elem.setCertificate(completeProxy);
-                elem.setTerminationTime(proxyCertChain[0].getNotAfter());
-                m_storage.insertGrDPStorageElement(elem);
-            }
+            return m_storage.openSession();
         } catch (GrDPStorageException e) {
-            logger.error("Failed to put certificate request in storage.", e);
-            throw new DelegationException("Internal failure: " + e.getMessage());
+            logger.error("Failure on storage interaction.", e);
+            throw new DelegationException("Internal failure.");
         }
-        logger.debug("Delegation finished successfully.");
+    }
 
-        // Remove the credential from storage cache
+    /**
+     * Makes the changes done in the storage session permanent.
+     * 
+     * @param session The storage session.
+     * @throws DelegationException Failed to commit the changes.
+     */
+    private void commitStorageSession(GrDPStorageSession session) throws DelegationException {
         try {
-            m_storage.deleteGrDPStorageCacheElement(cacheID, info.dn);
+            session.commit();
         } catch (GrDPStorageException e) {
-            logger.warn("Failed to remove credential from storage cache.");
+            logger.error("Failed to commit the changes to storage.", e);
+            throw new DelegationException("Internal failure.");
         }
+    }
 
+    /**
+     * Sets the proxy certificate chain and its private key to the storage element, in binary if the binary storage is
+     * enabled, otherwise in PEM.
+     * 
+     * @param elem The storage element.
+     * @param privateKey The private key of the proxy.
+     * @param proxyCertChain The proxy certificate chain.
+     * @throws DelegationException Thrown if the proxy could not be encoded.
+     */
+    private void setProxy(GrDPStorageElement elem, PrivateKey privateKey, X509Certificate proxyCertChain[])
+            throws DelegationException {
+        if (m_binaryStorage) {
+            try {
+                elem.setCertificateBytes(GrDPX509Util.encodeCertificateChain(proxyCertChain), privateKey.getEncoded());
+            } catch (IOException e) {
+                logger.error("Error while converting the proxy for storage: " + e.getMessage());
+                throw new DelegationException("Error while converting the proxy for storage: " + e.getClass() + ": "
+                        + e.getMessage());
+            }
+            return;
+        }
+
+        try {
+            elem.setCertificate(PEMCredentialWriter.write(privateKey, proxyCertChain));
+        } catch (IOException e) {
+            logger.error("Error while converting the proxy to string for storage: " + e.getMessage());
+            throw new DelegationException("Error while converting the proxy to string for storage: " + e.getClass()
+                    + ": " + e.getMessage());
+        }
     }
 
     public void destroy(String inDelegationID, X509Certificate certs[]) throws DelegationException {
+        destroy(inDelegationID, certs, null);
+    }
+
+    /**
+     * Destroys the delegated credential with the given (or generated) delegation id.
+     * 
+     * @param inDelegationID The delegation id, will be generated (based on dn and VOMS attributes if present) if not
+     *            given.
+     * @param certs The certificates the user used to authenticate himself.
+     * @param sessionKey The key of the client session, for example the TLS session id, the client information is
+     *            cached for the session. If null the information is not cached by session.
+     * @throws DelegationException Thrown in case of failure.
+     */
+    public void destroy(String inDelegationID, X509Certificate certs[], String sessionKey) throws DelegationException {
         logger.debug("Processing destroy.");
 
         String delegationID = inDelegationID;
@@ -686,8 +1181,9 @@ public class GliteDelegation {
             logger.error("Service is misconfigured. Stopping execution.");
             throw new DelegationException("Service is misconfigured.");
         }
+        preScreen(certs);
 
-        CertInfoTriple info = new CertInfoTriple(certs, vomsValidator, requireVomsAttrs);
+        CertInfoTriple info = getCertInfo(certs, sessionKey, Operation.DESTROY, delegationID);
 
         // Generate a delegation id from the client DN and VOMS attributes
         if (delegationID == null || delegationID.length() == 0) {
@@ -696,34 +1192,57 @@ public class GliteDelegation {
 
         logger.debug("Got destroy request for delegation id '" + delegationID + "' from client '" + info.dn + "'");
 
-        // Search for an existing entry in storage for this delegation ID (null
-        // if non existing)
+        GrDPStorageSession session = openStorageSession();
         try {
-            elem = m_storage.findGrDPStorageElement(delegationID, info.dn);
-        } catch (GrDPStorageException e) {
-            logger.error("Failure on storage interaction. Exception: ", e);
-            throw new DelegationException("Internal failure.");
-        }
+            // Search for an existing entry in storage for this delegation ID (null
+            // if non existing)
+            try {
+                elem = session.findGrDPStorageElement(delegationID, info.dn);
+            } catch (GrDPStorageException e) {
+                logger.error("Failure on storage interaction. Exception: ", e);
+                throw new DelegationException("Internal failure.");
+            }
 
-        // Throw exception if non-existing
-        if (elem == null) {
-            logger.debug("Failed to find delegation ID '" + delegationID + "' for client '" + info.dn + "' in storage.");
-            throw new DelegationException("Failed to find delegation ID '" + delegationID + "' in storage.");
-        }
+            // Throw exception if non-existing
+            if (elem == null) {
+                logger.debug("Failed to find delegation ID '" + delegationID + "' for client '" + info.dn
+                        + "' in storage.");
+                throw new DelegationException("Failed to find delegation ID '" + delegationID + "' in storage.");
+            }
 
-        // Remove the credential from storage
-        try {
-            m_storage.deleteGrDPStorageElement(delegationID, info.dn);
-        } catch (GrDPStorageException e) {
-            logger.error("Inconsistency needs manual intervention. Delegation ID '" + delegationID + " of client '"
-                    + info.dn + "' was found, " + "but could not be removed from storage.");
-            throw new DelegationException("Failed to destroy delegated credential.");
-        }
+            // Remove the credential from storage
+            try {
+                session.deleteGrDPStorageElement(delegationID, info.dn);
+            } catch (GrDPStorageException e) {
+                logger.error("Inconsistency needs manual intervention. Delegation ID '" + delegationID + " of client '"
+                        + info.dn + "' was found, " + "but could not be removed from storage.");
+                throw new DelegationException("Failed to destroy delegated credential.");
+            }
 
-        logger.debug("Delegated credential destroyed.");
+            commitStorageSession(session);
+            logger.debug("Delegated credential destroyed.");
+        } finally {
+            session.close();
+        }
     }
 
     public Calendar getTerminationTime(String inDelegationID, X509Certificate certs[]) throws DelegationException {
+        return getTerminationTime(inDelegationID, certs, null);
+    }
+
+    /**
+     * Returns the termination time of the delegated credential with the given (or generated) delegation id.
+     * 
+     * @param inDelegationID The delegation id, will be generated (based on dn and VOMS attributes if present) if not
+     *            given.
+     * @param certs The certificates the user used to authenticate himself.
+     * @param sessionKey The key of the client session, for example the TLS session id, the client information is
+     *            cached for the session. If null the information is not cached by session.
+     * @return The termination time of the delegated credential.
+     * @throws DelegationException Thrown in case of failure.
+     */
+    public Calendar getTerminationTime(String inDelegationID, X509Certificate certs[], String sessionKey)
+            throws DelegationException {
         logger.debug("Processing getTerminationTime.");
 
         String delegationID = inDelegationID;
@@ -736,8 +1255,9 @@ public class GliteDelegation {
             logger.error("Service is misconfigured. Stopping execution.");
             throw new DelegationException("Service is misconfigured.");
         }
+        preScreen(certs);
 
-        CertInfoTriple info = new CertInfoTriple(certs, vomsValidator, requireVomsAttrs);
+        CertInfoTriple info = getCertInfo(certs, sessionKey, Operation.GET_TERMINATION_TIME, delegationID);
 
         // Generate a delegation id from the client DN and VOMS attributes
         if (delegationID == null || delegationID.length() == 0) {
@@ -747,12 +1267,17 @@ public class GliteDelegation {
         logger.debug("Got getTerminationTime request for delegation id '" + delegationID + "' from client '" + info.dn
                 + "'");
 
-        // Search for an existing entry in storage for this delegation ID (null if non existing)
+        GrDPStorageSession session = openStorageSession();
         try {
-            elem = m_storage.findGrDPStorageElement(delegationID, info.dn);
-        } catch (GrDPStorageException e) {
-            logger.error("Failure on storage interaction. Exception: ", e);
-            throw new DelegationException("Internal failure.");
+            // Search for an existing entry in storage for this delegation ID (null if non existing)
+            try {
+                elem = session.findGrDPStorageElement(delegationID, info.dn);
+            } catch (GrDPStorageException e) {
+                logger.error("Failure on storage interaction. Exception: ", e);
+                throw new DelegationException("Internal failure.");
+            }
+        } finally {
+            session.close();
         }
 
         // Throw exception if non-existing
@@ -769,50 +1294,103 @@ public class GliteDelegation {
     }
 
     /**
-     * Creates a new certificate request and stores it in the storage cache area.
+     * Creates a new certificate request and stores it in the storage cache area. No storage session is open while the
+     * key is allocated, the request is stored in a session of its own.
      * 
      * @param certs The certificates the user used to authenticate himself.
      * @param dlgID The delegation ID of the new delegation
      * @param clientDN The DN of the owner of the delegated credential
      * @param vomsAttributes The list of VOMS attributes in the delegated credential
+     * @param renewalTerminationTime The termination time of the renewed credential, null for a new delegation.
      * @return The certificate request for the new delegated credential
      * @throws DelegationException Failed to create or store the new credential request
      */
     private String createAndStoreCertificateRequest(X509Certificate certs[], String dlgID, String clientDN,
-            String[] vomsAttributes) throws DelegationException {
+            String[] vomsAttributes, Date renewalTerminationTime) throws DelegationException {
+
+        GrDPStorageCacheElement cacheElem;
+        enterAdmissionGate("certificate request", renewalTerminationTime);
+        try {
+            cacheElem = createCertificateRequest(certs, dlgID, clientDN, vomsAttributes, renewalTerminationTime);
+        } finally {
+            leaveAdmissionGate();
+        }
+
+        storeCertificateRequests(Collections.singletonList(cacheElem));
+        logger.debug("New certificate request successfully stored in cache.");
+
+        return cacheElem.getCertificateRequest();
+    }
+
+    /**
+     * Stores the certificate requests in the storage cache area in a short storage session of their own.
+     * 
+     * @param cacheElems The storage cache elements of the requests.
+     * @throws DelegationException Failed to store the requests.
+     */
+    private void storeCertificateRequests(List<GrDPStorageCacheElement> cacheElems) throws DelegationException {
+        GrDPStorageSession session = openStorageSession();
+        try {
+            try {
+                session.insertGrDPStorageCacheElements(cacheElems);
+            } catch (GrDPStorageException e) {
+                logger.error("Failed to put certificate requests in storage.", e);
+                throw new DelegationException("Internal failure.", e);
+            }
+            commitStorageSession(session);
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Creates a new certificate request and the storage cache element for it, without storing it.
+     * 
+     * @param certs The certificates the user used to authenticate himself.
+     * @param dlgID The delegation ID of the new delegation
+     * @param clientDN The DN of the owner of the delegated credential
+     * @param vomsAttributes The list of VOMS attributes in the delegated credential
+     * @param renewalTerminationTime The termination time of the renewed credential, null for a new delegation.
+     * @return The storage cache element holding the certificate request and the private key.
+     * @throws DelegationException Failed to create the new credential request
+     */
+    private GrDPStorageCacheElement createCertificateRequest(X509Certificate certs[], String dlgID, String clientDN,
+            String[] vomsAttributes, Date renewalTerminationTime) throws DelegationException {
+
+        KeyPair keyPair = allocateKeyPair(renewalTerminationTime);
 
         // Generate the certificate request
         String certRequest = null;
         PrivateKey privKey = null;
-        ProxyCSR proxyCsr = null;
+        PKCS10CertificationRequest req = null;
         String privateKeyString = null;
+        byte privateKeyBytes[] = null;
         try {
-            ProxyCertificateOptions options = new ProxyCertificateOptions(certs);
-            ProxyChainInfo info = new ProxyChainInfo(certs);
-            ProxyType type = info.getProxyType().toProxyType();
-            options.setType(type);
-            options.setKeyLength(m_keySize);
-            if(limited || info.isLimited()){
-//                if(type != ProxyType.LEGACY){
-//                    options.setPolicy(new ProxyPolicy(ProxyPolicy.LIMITED_PROXY_OID));
-//                }
-                options.setLimited(limited);
-            }
-            proxyCsr = ProxyCSRGenerator.generate(options);
-            PKCS10CertificationRequest req = proxyCsr.getCSR();
-            privKey = proxyCsr.getPrivateKey();
+            ProxyCertificateOptions options = createProxyOptions(certs);
+            privKey = keyPair.getPrivate();
+            if (GrDPConstants.KEY_ALGORITHM_RSA.equals(m_keyAlgorithm)) {
+                options.setPublicKey(keyPair.getPublic());
+                req = ProxyCSRGenerator.generate(options, privKey).getCSR();
+            } else {
+                // canl signs the certificate requests always with RSA
+                req = GrDPX509Util.createProxyCertificateRequest(options, keyPair, m_keyEngine.getRandom());
+            }
             // System.out.println(req.getCertificationRequestInfo().getSubject());
-            ByteArrayOutputStream stream = new ByteArrayOutputStream();
-            try {
-                CertificateUtils.savePrivateKey(stream, privKey, Encoding.PEM, null, null);
-            } catch (IllegalArgumentException e) {
-                logger.error("Failed to generate certificate request.", e);
-                throw new DelegationException("Internal failure, failed to generate certificate request.", e);
-            } catch (IOException e) {
-                logger.error("Failed to generate certificate request.", e);
-                throw new DelegationException("Internal failure, failed to generate certificate request.", e);
+            if (m_binaryStorage) {
+                privateKeyBytes = privKey.getEncoded();
+            } else {
+                ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                try {
+                    CertificateUtils.savePrivateKey(stream, privKey, Encoding.PEM, null, null);
+                } catch (IllegalArgumentException e) {
+                    logger.error("Failed to generate certificate request.", e);
+                    throw new DelegationException("Internal failure, failed to generate certificate request.", e);
+                } catch (IOException e) {
+                    logger.error("Failed to generate certificate request.", e);
+                    throw new DelegationException("Internal failure, failed to generate certificate request.", e);
+                }
+                privateKeyString = stream.toString();
             }
-            privateKeyString = stream.toString();
 
             StringWriter stringWriter = new StringWriter();
             PEMWriter pemWriter = new PEMWriter(stringWriter);
@@ -833,30 +1411,368 @@ public class GliteDelegation {
         logger.debug("Certificate request generation was successfull.");
 
         String cacheID = null;
+        byte keyFingerprint[] = null;
         try {
-            cacheID = dlgID + '+' + GrDPX509Util.generateSessionID(proxyCsr.getCSR().getPublicKey());
-            logger.debug("public key is: " + proxyCsr.getCSR().getPublicKey());
+            keyFingerprint = GrDPX509Util.getPublicKeyFingerprint(req.getPublicKey());
+            cacheID = dlgID + '+' + new String(Hex.encode(keyFingerprint));
+            logger.debug("public key is: " + req.getPublicKey());
             logger.debug("Cache ID (delegation ID + session ID): " + cacheID);
         } catch (Exception e) {
             logger.error("Failed to generate certificate request.", e);
             throw new DelegationException("Internal failure, failed to generate certificate request.", e);
         }
 
-        try {
-            GrDPStorageCacheElement cacheElem = new GrDPStorageCacheElement();
-            cacheElem.setDelegationID(cacheID);
-            cacheElem.setDN(clientDN);
-            cacheElem.setVomsAttributes(vomsAttributes);
-            cacheElem.setCertificateRequest(certRequest);
+        GrDPStorageCacheElement cacheElem = new GrDPStorageCacheElement();
+        cacheElem.setDelegationID(cacheID);
+        cacheElem.setDN(clientDN);
+        cacheElem.setVomsAttributes(vomsAttributes);
+        cacheElem.setCertificateRequest(certRequest);
+        if (privateKeyBytes != null) {
+            cacheElem.setPrivateKeyBytes(privateKeyBytes);
+        } else {
             cacheElem.setPrivateKey(privateKeyString);
-            m_storage.insertGrDPStorageCacheElement(cacheElem);
+        }
+        cacheElem.setPublicKeyFingerprint(keyFingerprint);
+
+        return cacheElem;
+    }
+
+    /**
+     * Digs up the client information from the certificate chain, or takes it from the session or identity cache if
+     * the same chain was seen recently. The VOMS attributes are only validated if the operation needs them.
+     * 
+     * @param certs The certificate chain of the client.
+     * @param sessionKey The key of the client session, null if not known.
+     * @param operation The operation the information is needed for.
+     * @param delegationID The delegation id given by the client, null or empty if it is generated.
+     * @return The client information.
+     * @throws DelegationException If the chain could not be processed or the required VOMS attributes are missing.
+     */
+    private CertInfoTriple getCertInfo(X509Certificate certs[], String sessionKey, Operation operation,
+            String delegationID) throws DelegationException {
+        boolean needVoms = operation.m_vomsPolicy.needsVomsAttributes(delegationID, m_requireVomsAttrs);
+        if (m_sessionCache != null && sessionKey != null && certs != null && certs.length != 0) {
+            CertInfoTriple info = m_sessionCache.get(sessionKey, certs);
+            if (info == null && needVoms) {
+                info = getCertInfo(certs, needVoms);
+                m_sessionCache.put(sessionKey, certs, info);
+            }
+            if (info != null) {
+                return info;
+            }
+        }
+        return getCertInfo(certs, needVoms);
+    }
+
+    /**
+     * Digs up the client information from the certificate chain, or takes it from the identity cache if the same
+     * chain was seen recently.
+     * 
+     * @param certs The certificate chain of the client.
+     * @param needVoms Whether the VOMS attributes need to be validated.
+     * @return The client information.
+     * @throws DelegationException If the chain could not be processed or the required VOMS attributes are missing.
+     */
+    private CertInfoTriple getCertInfo(X509Certificate certs[], boolean needVoms) throws DelegationException {
+        if (m_identityCache == null || certs == null || certs.length == 0) {
+            if (!needVoms) {
+                return new CertInfoTriple(certs);
+            }
+            return new CertInfoTriple(certs, m_vomsValidator, m_requireVomsAttrs);
+        }
+        String fingerprint;
+        try {
+            fingerprint = IdentityCache.fingerprint(certs);
+        } catch (CertificateEncodingException e) {
+            logger.debug("Could not fingerprint the certificate chain, not caching: " + e.getMessage());
+            return new CertInfoTriple(certs, m_vomsValidator, m_requireVomsAttrs);
+        }
+        CertInfoTriple info = m_identityCache.get(fingerprint);
+        if (info == null && !needVoms) {
+            // the cache only holds fully validated information, so the light one is not stored
+            return new CertInfoTriple(certs);
+        }
+        if (info == null) {
+            info = new CertInfoTriple(certs, m_vomsValidator, m_requireVomsAttrs);
+            m_identityCache.put(fingerprint, certs, info);
+        }
+        return info;
+    }
+
+    /**
+     * Rejects the malformed client certificate chains before any further processing, if the pre-screening is enabled.
+     * 
+     * @param certs The certificate chain of the client.
+     * @throws DelegationException If the chain was rejected.
+     */
+    private void preScreen(X509Certificate certs[]) throws DelegationException {
+        if (m_preScreener != null) {
+            m_preScreener.screen(certs);
+        }
+    }
+
+    /**
+     * Checks that the client has not exceeded its certificate request rate.
+     * 
+     * @param clientDN The DN of the client.
+     * @param requests The number of certificate requests asked for.
+     * @throws DelegationBusyException If the client has asked for too many requests.
+     */
+    private void checkRequestRate(String clientDN, int requests) throws DelegationBusyException {
+        if (m_rateLimiter == null) {
+            return;
+        }
+        long wait = m_rateLimiter.tryAcquire(clientDN, requests);
+        if (wait > 0) {
+            logger.info("Rejecting certificate request from client '" + clientDN + "', request rate exceeded.");
+            throw new DelegationBusyException("Request rate exceeded, try again later.", (int) ((wait + 999) / 1000));
+        }
+    }
+
+    /**
+     * Waits for the admission of a CPU heavy operation when the number of concurrent operations is limited. The
+     * renewals are admitted first, the ones closest to expiry first, like in the key generation.
+     * 
+     * @param operation The name of the operation for the messages.
+     * @param renewalTerminationTime The termination time of the renewed credential, null for other operations.
+     * @throws DelegationBusyException If the operation was not admitted within the admission timeout.
+     * @throws DelegationException If the thread was interrupted while waiting.
+     */
+    private void enterAdmissionGate(String operation, Date renewalTerminationTime) throws DelegationException {
+        if (m_admissionGate == null) {
+            return;
+        }
+        try {
+            m_admissionGate.acquire(renewalTerminationTime);
+        } catch (DelegationBusyException e) {
+            logger.info("Rejecting " + operation + ", too many concurrent operations.");
+            throw e;
+        }
+    }
+
+    /**
+     * Ends an operation admitted with {@link #enterAdmissionGate(String, Date)}.
+     */
+    private void leaveAdmissionGate() {
+        if (m_admissionGate != null) {
+            m_admissionGate.release();
+        }
+    }
+
+    /**
+     * Gets the key pair for a new certificate request. A pre-generated key is used if available, otherwise the key is
+     * generated now. When the key generation slots are limited, the generation waits for a slot by priority.
+     * 
+     * @param renewalTerminationTime The termination time of the renewed credential, null for a new delegation.
+     * @return The key pair.
+     * @throws DelegationException If the key generation failed or the request was not given a slot.
+     */
+    private KeyPair allocateKeyPair(Date renewalTerminationTime) throws DelegationException {
+        if (m_keyPool != null) {
+            KeyPair keyPair = m_keyPool.poll();
+            if (keyPair != null) {
+                return keyPair;
+            }
+        }
+        if (m_keyScheduler != null) {
+            m_keyScheduler.acquire(renewalTerminationTime);
+        }
+        try {
+            return m_keyEngine.generateKeyPair(m_keyAlgorithm, m_keySize);
+        } catch (GeneralSecurityException e) {
+            logger.error("Error while generating the key pair." + e);
+            throw new DelegationException("Failed to generate a certificate request. " + e.getMessage());
+        } finally {
+            if (m_keyScheduler != null) {
+                m_keyScheduler.release();
+            }
+        }
+    }
+
+    /**
+     * Creates the options for the certificate request based on the client certificate chain and the configuration.
+     * 
+     * @param certs The certificate chain of the client.
+     * @return The options for generating the certificate request.
+     * @throws CertificateException If the certificate chain could not be parsed.
+     * @throws IOException If the proxy information of the certificate chain could not be parsed.
+     */
+    private ProxyCertificateOptions createProxyOptions(X509Certificate certs[]) throws CertificateException,
+            IOException {
+        ProxyCertificateOptions options = new ProxyCertificateOptions(certs);
+        ProxyChainInfo info = new ProxyChainInfo(certs);
+        ProxyType type = info.getProxyType().toProxyType();
+        options.setType(type);
+        options.setKeyLength(m_keySize);
+        if(limited || info.isLimited()){
+//            if(type != ProxyType.LEGACY){
+//                options.setPolicy(new ProxyPolicy(ProxyPolicy.LIMITED_PROXY_OID));
+//            }
+            options.setLimited(limited);
+        }
+        return options;
+    }
+
+    /**
+     * Looks for a pending certificate request of the delegation that can be given to the client again. The request is
+     * reused only if it was created for the same client certificate with the same proxy type, it has a key of the
+     * configured algorithm and it is not older than the maximum age. The requests of unknown age are not reused when
+     * there is a maximum age. If there are several, the newest one is used. Nothing is reused if the reuse is not
+     * enabled.
+     * 
+     * @param session The storage session to look for the request in.
+     * @param certs The certificates the user used to authenticate himself.
+     * @param dlgID The delegation ID, without the session ID part.
+     * @param clientDN The DN of the client.
+     * @return The pending certificate request in PEM format, null if none can be reused.
+     * @throws DelegationException If the storage access fails.
+     */
+    private String findPendingCertificateRequest(GrDPStorageSession session, X509Certificate certs[], String dlgID,
+            String clientDN) throws DelegationException {
+        if (!m_reusePendingRequests) {
+            return null;
+        }
+        List<GrDPStorageCacheElement> pending;
+        try {
+            pending = session.findGrDPStorageCacheElements(dlgID, clientDN);
         } catch (GrDPStorageException e) {
-            logger.error("Failed to put certificate request in storage.", e);
-            throw new DelegationException("Internal failure.", e);
+            logger.error("Failure on storage interaction.", e);
+            throw new DelegationException("Internal failure.");
         }
-        logger.debug("New certificate request successfully stored in cache.");
+        if (pending.isEmpty()) {
+            return null;
+        }
+
+        // the subject of the request is derived from the client certificate, so it tells whether the request was
+        // generated for the same certificate
+        X500Name expectedSubject;
+        ProxyType type;
+        try {
+            ProxyCertificateOptions options = createProxyOptions(certs);
+            type = options.getType();
+            expectedSubject = ProxyGeneratorHelper.generateDN(certs[0].getSubjectX500Principal(), type, options
+                    .isLimited(), BigInteger.ONE);
+        } catch (Exception e) {
+            logger.warn("Failed to determine the proxy subject, not reusing pending requests: " + e.getMessage());
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        GrDPStorageCacheElement newest = null;
+        for (GrDPStorageCacheElement elem : pending) {
+            Date created = elem.getCreationTime();
+            if (m_pendingRequestMaxAge > 0 && (created == null || now - created.getTime() > m_pendingRequestMaxAge)) {
+                logger.debug("Pending request '" + elem.getDelegationID()
+                        + "' is too old or of unknown age, not reused.");
+                continue;
+            }
+            if (newest != null && !isNewer(created, newest.getCreationTime())) {
+                continue;
+            }
+            try {
+                PEMReader pemReader = new PEMReader(new StringReader(elem.getCertificateRequest()));
+                PKCS10CertificationRequest req = (PKCS10CertificationRequest) pemReader.readObject();
+                pemReader.close();
+                if (req == null
+                        || !isProxySubject(expectedSubject, X500Name.getInstance(req.getCertificationRequestInfo()
+                                .getSubject().getDERObject()), type)
+                        || !isConfiguredKeyAlgorithm(req.getPublicKey().getAlgorithm())) {
+                    logger.debug("Pending request '" + elem.getDelegationID() + "' does not match, not reused.");
+                    continue;
+                }
+            } catch (Exception e) {
+                logger.debug("Could not parse pending request '" + elem.getDelegationID() + "': " + e.getMessage());
+                continue;
+            }
+            newest = elem;
+        }
+
+        if (newest == null) {
+            return null;
+        }
+        logger.debug("Reusing pending certificate request '" + newest.getDelegationID() + "'.");
+        return newest.getCertificateRequest();
+    }
 
-        return certRequest;
+    /**
+     * Joins the VOMS attributes for the messages to the client, the storage encoding is not meant to be read.
+     * 
+     * @param vomsAttributes The VOMS attributes, can be null.
+     * @return The attributes separated by commas.
+     */
+    private static String joinVomsAttributes(String vomsAttributes[]) {
+        if (vomsAttributes == null) {
+            return "";
+        }
+        StringBuilder joined = new StringBuilder();
+        for (String attribute : vomsAttributes) {
+            if (joined.length() > 0) {
+                joined.append(", ");
+            }
+            joined.append(attribute);
+        }
+        return joined.toString();
+    }
+
+    /**
+     * Checks whether the subject of a certificate request is the proxy subject expected for the client. The serial
+     * number in the last CN of the RFC and draft proxies is random, so only the other name components and the type of
+     * the last one are compared for them.
+     * 
+     * @param expected The proxy subject generated for the client, with any serial number.
+     * @param subject The subject of the certificate request.
+     * @param type The type of the proxy.
+     * @return true if the subject matches.
+     */
+    private static boolean isProxySubject(X500Name expected, X500Name subject, ProxyType type) {
+        RDN expectedRDNs[] = expected.getRDNs();
+        RDN rdns[] = subject.getRDNs();
+        if (rdns.length != expectedRDNs.length || rdns.length == 0) {
+            return false;
+        }
+        int compared = type == ProxyType.LEGACY ? rdns.length : rdns.length - 1;
+        for (int i = 0; i < compared; i++) {
+            if (!Arrays.equals(expectedRDNs[i].getDEREncoded(), rdns[i].getDEREncoded())) {
+                return false;
+            }
+        }
+        RDN last = rdns[rdns.length - 1];
+        return type == ProxyType.LEGACY || (!last.isMultiValued() && BCStyle.CN.equals(last.getFirst().getType()));
+    }
+
+    /**
+     * Checks whether the given key algorithm name is the configured key algorithm.
+     * 
+     * @param algorithm The algorithm name of the key.
+     * @return true if the algorithm is the configured one.
+     */
+    private boolean isConfiguredKeyAlgorithm(String algorithm) {
+        if (GrDPConstants.KEY_ALGORITHM_EC.equals(m_keyAlgorithm)) {
+            return GrDPConstants.KEY_ALGORITHM_EC.equals(algorithm) || "ECDSA".equals(algorithm);
+        }
+        return m_keyAlgorithm.equals(algorithm);
+    }
+
+    /**
+     * Checks whether a creation time is newer than another, unknown creation time is older than any known one.
+     * 
+     * @param created The creation time to check.
+     * @param other The creation time to compare to.
+     * @return true if created is newer than other.
+     */
+    private static boolean isNewer(Date created, Date other) {
+        return created != null && (other == null || created.after(other));
+    }
+
+    /**
+     * Cancels the given tasks, used to stop the rest of a batch after one of them failed.
+     * 
+     * @param futures The tasks to cancel.
+     */
+    private static void cancelAll(Collection<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
     }
 
 }
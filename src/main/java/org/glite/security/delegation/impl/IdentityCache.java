@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004. See
+ * http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.glite.security.delegation.impl;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.util.encoders.Hex;
+import org.glite.security.delegation.CertInfoTriple;
+
+/**
+ * Cache of the client information dug up from the certificate chains, so that the repeated calls of the same client
+ * don't process the chain and validate the VOMS attributes again.
+ *
+ * <p>
+ * The entries are keyed by the SHA-256 fingerprint of the whole chain, or by a key of the client session, for
+ * example the TLS session id, in which case the chain is also compared on lookup. An entry expires after the
+ * configured time to live, but at the latest when the first certificate of the chain or the first VOMS attribute
+ * certificate expires. The number of entries is bounded, the least recently used entry is dropped when the bound is
+ * reached. The cache must be cleared when the trust anchors or the revocation lists are reloaded.
+ * </p>
+ */
+public class IdentityCache {
+    /** Local logger object. */
+    private static final Logger LOGGER = Logger.getLogger(IdentityCache.class);
+
+    /** The fingerprint algorithm. */
+    private static final String FINGERPRINT_ALGORITHM = "SHA-256";
+
+    /** The entries by chain fingerprint or session key, least recently used first. Guarded by itself. */
+    private final LinkedHashMap<String, Entry> m_entries;
+
+    /** The maximum time an entry is kept, in milliseconds. */
+    private final long m_ttl;
+
+    /**
+     * Creates the cache.
+     *
+     * @param maxEntries The maximum number of entries.
+     * @param ttl The maximum time an entry is kept, in milliseconds.
+     */
+    public IdentityCache(final int maxEntries, long ttl) {
+        m_ttl = ttl;
+        m_entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached information of the certificate chain.
+     *
+     * @param fingerprint The fingerprint of the chain from {@link #fingerprint(X509Certificate[])}.
+     * @return The information, null if not cached or expired.
+     */
+    public CertInfoTriple get(String fingerprint) {
+        return get(fingerprint, null);
+    }
+
+    /**
+     * Returns the cached information of the certificate chain stored under the session key, if the chain is still the
+     * same.
+     *
+     * @param key The key of the session.
+     * @param certs The certificate chain presented in the session, if null the chain is not compared.
+     * @return The information, null if not cached, expired or cached for another chain.
+     */
+    public CertInfoTriple get(String key, X509Certificate certs[]) {
+        long now = System.currentTimeMillis();
+        synchronized (m_entries) {
+            Entry entry = m_entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.m_expires <= now) {
+                m_entries.remove(key);
+                return null;
+            }
+            if (certs != null && !Arrays.equals(certs, entry.m_certs)) {
+                return null;
+            }
+            return entry.m_info;
+        }
+    }
+
+    /**
+     * Stores the information of the certificate chain.
+     *
+     * @param key The fingerprint of the chain from {@link #fingerprint(X509Certificate[])}, or the key of the
+     *            session.
+     * @param certs The certificate chain.
+     * @param info The information dug up from the chain.
+     */
+    public void put(String key, X509Certificate certs[], CertInfoTriple info) {
+        long now = System.currentTimeMillis();
+        long expires = now + m_ttl;
+        for (X509Certificate cert : certs) {
+            expires = Math.min(expires, cert.getNotAfter().getTime());
+        }
+        if (info.vomsNotAfter != null) {
+            expires = Math.min(expires, info.vomsNotAfter.getTime());
+        }
+        if (expires <= now) {
+            return;
+        }
+        synchronized (m_entries) {
+            m_entries.put(key, new Entry(certs.clone(), info, expires));
+        }
+    }
+
+    /**
+     * Drops all the entries, called when the trust anchors or the revocation lists change.
+     */
+    public void clear() {
+        synchronized (m_entries) {
+            m_entries.clear();
+        }
+        LOGGER.debug("Cleared the identity cache.");
+    }
+
+    /**
+     * Returns the number of entries, including the expired ones not yet dropped.
+     *
+     * @return the number of entries.
+     */
+    public int size() {
+        synchronized (m_entries) {
+            return m_entries.size();
+        }
+    }
+
+    /**
+     * Calculates the fingerprint of the whole certificate chain.
+     *
+     * @param certs The certificate chain.
+     * @return The fingerprint in hex.
+     * @throws CertificateEncodingException If a certificate could not be encoded.
+     */
+    public static String fingerprint(X509Certificate certs[]) throws CertificateEncodingException {
+        MessageDigest digester;
+        try {
+            digester = MessageDigest.getInstance(FINGERPRINT_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Message digester implementation not found: " + e.getMessage(), e);
+        }
+        for (X509Certificate cert : certs) {
+            digester.update(cert.getEncoded());
+        }
+        return new String(Hex.encode(digester.digest()));
+    }
+
+    /**
+     * A cached entry.
+     */
+    private static final class Entry {
+        /** The certificate chain. */
+        private final X509Certificate m_certs[];
+
+        /** The information dug up from the chain. */
+        private final CertInfoTriple m_info;
+
+        /** The expiration time of the entry. */
+        private final long m_expires;
+
+        /**
+         * Creates the entry.
+         *
+         * @param certs The certificate chain.
+         * @param info The information dug up from the chain.
+         * @param expires The expiration time of the entry.
+         */
+        private Entry(X509Certificate certs[], CertInfoTriple info, long expires) {
+            m_certs = certs;
+            m_info = info;
+            m_expires = expires;
+        }
+    }
+}
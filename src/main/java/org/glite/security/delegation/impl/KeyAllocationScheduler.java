@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004. See
+ * http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.glite.security.delegation.impl;
+
+import java.util.Comparator;
+import java.util.Date;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+import org.glite.security.delegation.DelegationBusyException;
+import org.glite.security.delegation.DelegationException;
+
+/**
+ * Allocates the key generation slots to the certificate requests by priority.
+ *
+ * <p>
+ * A fixed number of key generations may run at the same time. When all the slots are taken, the requests wait in a
+ * priority queue. Renewals of existing delegations come first, ordered by the termination time of the delegated
+ * credential so that the credential closest to expiry is served first. New delegations come after the renewals in
+ * arrival order and are rejected right away if too many of them are already waiting. Both wait at most their
+ * configured timeout.
+ * </p>
+ *
+ * <p>
+ * The same ordering is used for admitting the operations when the number of concurrent operations is limited, so
+ * that the renewals are not queued behind the new delegations before they reach the key generation.
+ * </p>
+ */
+public class KeyAllocationScheduler {
+    /** Local logger object. */
+    private static final Logger LOGGER = Logger.getLogger(KeyAllocationScheduler.class);
+
+    /** Orders the waiters: renewals first by termination time, then the new delegations, both in arrival order. */
+    private static final Comparator<Waiter> PRIORITY_ORDER = new Comparator<Waiter>() {
+        public int compare(Waiter w1, Waiter w2) {
+            if (w1.m_renewal != w2.m_renewal) {
+                return w1.m_renewal ? -1 : 1;
+            }
+            if (w1.m_terminationTime != w2.m_terminationTime) {
+                return w1.m_terminationTime < w2.m_terminationTime ? -1 : 1;
+            }
+            return w1.m_sequence < w2.m_sequence ? -1 : (w1.m_sequence == w2.m_sequence ? 0 : 1);
+        }
+    };
+
+    /** The lock guarding the state of the scheduler. */
+    private final ReentrantLock m_lock = new ReentrantLock();
+
+    /** The waiting requests. Guarded by m_lock. */
+    private final PriorityQueue<Waiter> m_waiters = new PriorityQueue<Waiter>(16, PRIORITY_ORDER);
+
+    /** The number of free slots. Guarded by m_lock. */
+    private int m_freeSlots;
+
+    /** The number of new delegation requests waiting. Guarded by m_lock. */
+    private int m_waitingNew = 0;
+
+    /** The arrival counter for ordering the waiters. Guarded by m_lock. */
+    private long m_sequence = 0;
+
+    /** The maximum time a new delegation request waits for a slot, in milliseconds. */
+    private final long m_newRequestTimeout;
+
+    /** The maximum time a renewal request waits for a slot, in milliseconds. */
+    private final long m_renewalTimeout;
+
+    /** The maximum number of new delegation requests waiting for a slot. */
+    private final int m_maxWaitingNew;
+
+    /** The retry time suggested to the rejected requests, in seconds. */
+    private final int m_retryAfter;
+
+    /**
+     * Creates the scheduler.
+     *
+     * @param slots The number of key generations that may run at the same time.
+     * @param newRequestTimeout The maximum time a new delegation request waits for a slot, in milliseconds.
+     * @param renewalTimeout The maximum time a renewal request waits for a slot, in milliseconds.
+     * @param maxWaitingNew The maximum number of new delegation requests waiting for a slot, the requests arriving
+     *            when this many are waiting are rejected.
+     * @param retryAfter The retry time suggested to the rejected requests, in seconds.
+     */
+    public KeyAllocationScheduler(int slots, long newRequestTimeout, long renewalTimeout, int maxWaitingNew,
+            int retryAfter) {
+        if (slots <= 0) {
+            throw new IllegalArgumentException("The number of key generation slots must be positive, was: " + slots);
+        }
+        m_freeSlots = slots;
+        m_newRequestTimeout = newRequestTimeout;
+        m_renewalTimeout = renewalTimeout;
+        m_maxWaitingNew = maxWaitingNew;
+        m_retryAfter = retryAfter;
+    }
+
+    /**
+     * Takes a key generation slot, waiting if none are free. The slot must be given back with {@link #release()}.
+     *
+     * @param terminationTime The termination time of the delegated credential being renewed, null for a new
+     *            delegation.
+     * @throws DelegationBusyException If the request was rejected or timed out.
+     * @throws DelegationException If the thread was interrupted while waiting.
+     */
+    public void acquire(Date terminationTime) throws DelegationException {
+        boolean renewal = terminationTime != null;
+        m_lock.lock();
+        try {
+            if (m_freeSlots > 0 && m_waiters.isEmpty()) {
+                m_freeSlots--;
+                return;
+            }
+            if (!renewal && m_waitingNew >= m_maxWaitingNew) {
+                LOGGER.info("Rejecting new delegation request, " + m_waitingNew + " already waiting for a slot.");
+                throw new DelegationBusyException("Server busy, too many requests waiting for processing.",
+                        m_retryAfter);
+            }
+
+            Waiter waiter = new Waiter(renewal, renewal ? terminationTime.getTime() : 0, m_sequence++, m_lock
+                    .newCondition());
+            m_waiters.add(waiter);
+            if (!renewal) {
+                m_waitingNew++;
+            }
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(renewal ? m_renewalTimeout : m_newRequestTimeout);
+                while (!waiter.m_granted) {
+                    if (remaining <= 0) {
+                        LOGGER.info((renewal ? "Renewal" : "New delegation")
+                                + " request timed out waiting for a slot.");
+                        throw new DelegationBusyException("Server busy, timed out waiting for processing.",
+                                m_retryAfter);
+                    }
+                    remaining = waiter.m_condition.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (!waiter.m_granted) {
+                    throw new DelegationException("Interrupted while waiting for key generation.");
+                }
+            } finally {
+                if (!renewal) {
+                    m_waitingNew--;
+                }
+                if (!waiter.m_granted) {
+                    m_waiters.remove(waiter);
+                }
+            }
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Gives back a key generation slot, passing it to the waiting request with the highest priority if any.
+     */
+    public void release() {
+        m_lock.lock();
+        try {
+            Waiter waiter = m_waiters.poll();
+            if (waiter != null) {
+                waiter.m_granted = true;
+                waiter.m_condition.signal();
+            } else {
+                m_freeSlots++;
+            }
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of requests waiting for a slot.
+     *
+     * @return the number of waiting requests.
+     */
+    public int getWaiting() {
+        m_lock.lock();
+        try {
+            return m_waiters.size();
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * A request waiting for a slot.
+     */
+    private static final class Waiter {
+        /** Whether the request renews an existing delegation. */
+        private final boolean m_renewal;
+
+        /** The termination time of the renewed credential in milliseconds, 0 for new delegations. */
+        private final long m_terminationTime;
+
+        /** The arrival order of the request. */
+        private final long m_sequence;
+
+        /** The condition the request waits on. */
+        private final Condition m_condition;
+
+        /** Set when a slot is passed to the request. Guarded by the scheduler lock. */
+        private boolean m_granted = false;
+
+        /**
+         * Creates the waiter.
+         *
+         * @param renewal Whether the request renews an existing delegation.
+         * @param terminationTime The termination time of the renewed credential in milliseconds.
+         * @param sequence The arrival order of the request.
+         * @param condition The condition the request waits on.
+         */
+        private Waiter(boolean renewal, long terminationTime, long sequence, Condition condition) {
+            m_renewal = renewal;
+            m_terminationTime = terminationTime;
+            m_sequence = sequence;
+            m_condition = condition;
+        }
+    }
+}
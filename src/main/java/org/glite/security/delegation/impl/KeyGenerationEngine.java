@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004. See
+ * http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.glite.security.delegation.impl;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.glite.security.delegation.GrDPX509Util;
+
+/**
+ * Generates the key pairs and other randomness needing operations of the certificate requests.
+ *
+ * <p>
+ * Each thread using the engine gets its own SecureRandom instance, so the key generations running in parallel don't
+ * contend for a shared source of randomness. The instances are seeded from the default SecureRandom when created and
+ * reseeded after every {@link #RESEED_INTERVAL} uses. The engine also has a fixed pool of threads, one per processor
+ * by default, for running batches of key generations in parallel.
+ * </p>
+ */
+public class KeyGenerationEngine {
+    /** Local logger object. */
+    private static final Logger LOGGER = Logger.getLogger(KeyGenerationEngine.class);
+
+    /** The number of uses after which the random of a thread is reseeded. */
+    public static final int RESEED_INTERVAL = 1000;
+
+    /** The number of seed bytes taken from the seed source when seeding. */
+    private static final int SEED_LENGTH = 32;
+
+    /** The PRNG algorithm of the thread random instances, it has no shared state between instances. */
+    private static final String PRNG_ALGORITHM = "SHA1PRNG";
+
+    /** The source of the seeds, only used when seeding the thread random instances. */
+    private final SecureRandom m_seedSource = new SecureRandom();
+
+    /** The random instances of the threads. */
+    private final ThreadLocal<ThreadRandom> m_randoms = new ThreadLocal<ThreadRandom>() {
+        @Override
+        protected ThreadRandom initialValue() {
+            return new ThreadRandom(createRandom());
+        }
+    };
+
+    /** The threads running the submitted tasks. */
+    private final ExecutorService m_executor;
+
+    /** The number of threads running the submitted tasks. */
+    private final int m_threads;
+
+    /**
+     * Creates the engine. The threads are started when the first tasks are submitted.
+     *
+     * @param threads The number of threads running the submitted tasks, if zero or negative the number of processors
+     *            is used.
+     */
+    public KeyGenerationEngine(int threads) {
+        m_threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        m_executor = Executors.newFixedThreadPool(m_threads, new ThreadFactory() {
+            private final AtomicInteger m_count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "delegation-keygen-" + m_count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        LOGGER.debug("Created key generation engine with " + m_threads + " threads.");
+    }
+
+    /**
+     * Generates a key pair in the calling thread using the random of the thread.
+     *
+     * @param algorithm The key algorithm.
+     * @param size The key size in bits.
+     * @return The generated key pair.
+     * @throws GeneralSecurityException Failed to generate the key pair.
+     */
+    public KeyPair generateKeyPair(String algorithm, int size) throws GeneralSecurityException {
+        return GrDPX509Util.generateKeyPair(algorithm, size, getRandom());
+    }
+
+    /**
+     * Returns the random of the calling thread. The instance must not be passed to other threads.
+     *
+     * @return The random of the thread.
+     */
+    public SecureRandom getRandom() {
+        ThreadRandom threadRandom = m_randoms.get();
+        if (++threadRandom.m_uses >= RESEED_INTERVAL) {
+            threadRandom.m_random.setSeed(nextSeed());
+            threadRandom.m_uses = 0;
+        }
+        return threadRandom.m_random;
+    }
+
+    /**
+     * Runs the task in the threads of the engine.
+     *
+     * @param <T> The type of the result of the task.
+     * @param task The task to run.
+     * @return The future for the result of the task.
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        return m_executor.submit(task);
+    }
+
+    /**
+     * Returns the number of threads running the submitted tasks.
+     *
+     * @return the number of threads.
+     */
+    public int getThreads() {
+        return m_threads;
+    }
+
+    /**
+     * Stops the threads of the engine, the running tasks are interrupted.
+     */
+    public void shutdown() {
+        m_executor.shutdownNow();
+    }
+
+    /**
+     * Creates and seeds a new random instance. The instance is seeded explicitly so that it does not seed itself from
+     * the possibly blocking system seed generator.
+     *
+     * @return The new random instance.
+     */
+    private SecureRandom createRandom() {
+        SecureRandom random;
+        try {
+            random = SecureRandom.getInstance(PRNG_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            LOGGER.warn("PRNG " + PRNG_ALGORITHM + " not available, using the default: " + e.getMessage());
+            return new SecureRandom();
+        }
+        random.setSeed(nextSeed());
+        return random;
+    }
+
+    /**
+     * Takes new seed bytes from the shared seed source.
+     *
+     * @return The seed bytes.
+     */
+    private byte[] nextSeed() {
+        byte[] seed = new byte[SEED_LENGTH];
+        m_seedSource.nextBytes(seed);
+        return seed;
+    }
+
+    /**
+     * The random instance of a thread with the count of uses since the last seeding.
+     */
+    private static final class ThreadRandom {
+        /** The random instance. */
+        private final SecureRandom m_random;
+
+        /** The number of uses since the last seeding. */
+        private int m_uses = 0;
+
+        /**
+         * Creates the holder for the random instance.
+         *
+         * @param random The random instance.
+         */
+        private ThreadRandom(SecureRandom random) {
+            m_random = random;
+        }
+    }
+}
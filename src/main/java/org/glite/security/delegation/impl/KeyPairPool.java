@@ -0,0 +1,442 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004. See
+ * http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.glite.security.delegation.impl;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Bounded pool of pre-generated key pairs for the delegation certificate requests.
+ *
+ * <p>
+ * Background threads generate key pairs of the configured algorithm and size. When the number of available key pairs
+ * drops below the low watermark, the threads start filling the pool and keep on until the target depth is reached.
+ * The request threads take key pairs from the pool and fall back to generating the key pair inline when the pool is
+ * empty.
+ * </p>
+ *
+ * <p>
+ * With a fixed size the target depth is the high watermark. With adaptive sizing the pool keeps an exponentially
+ * weighted moving average of the request arrival rate and sets the target depth to the number of keys needed to serve
+ * the requests of the configured coverage time, capped by the high watermark. The low watermark keeps its configured
+ * ratio to the target depth. The fill threads are throttled so that together they use at most the configured share
+ * of the processors.
+ * </p>
+ */
+public class KeyPairPool {
+    /** Local logger object. */
+    private static final Logger LOGGER = Logger.getLogger(KeyPairPool.class);
+
+    /** The minimum interval between the updates of the arrival rate average, in milliseconds. */
+    private static final long SAMPLE_INTERVAL = 1000;
+
+    /** The time constant of the arrival rate average, in milliseconds. */
+    private static final long RATE_WINDOW = 60000;
+
+    /** The engine generating the keys. */
+    private final KeyGenerationEngine m_engine;
+
+    /** The algorithm of the keys in the pool. */
+    private final String m_keyAlgorithm;
+
+    /** The size of the keys in the pool. */
+    private final int m_keySize;
+
+    /** The pool is refilled when the number of keys drops below this, when the pool is at its maximum size. */
+    private final int m_lowWatermark;
+
+    /** The maximum number of keys in the pool. */
+    private final int m_highWatermark;
+
+    /** The number of seconds of requests the adaptive pool should cover, 0 for a fixed size pool. */
+    private final int m_coverage;
+
+    /** The fraction of time each fill thread may spend generating keys. */
+    private final double m_dutyCycle;
+
+    /** The pre-generated key pairs. */
+    private final BlockingQueue<KeyPair> m_pool;
+
+    /** The background threads filling the pool. */
+    private final Thread[] m_fillers;
+
+    /** Lock for the filling state. */
+    private final Object m_fillLock = new Object();
+
+    /** Whether the fill threads should be generating keys. Guarded by m_fillLock. */
+    private boolean m_filling = true;
+
+    /** Set to false when the pool is shut down. */
+    private volatile boolean m_running = true;
+
+    /** The number of keys the pool is filled up to. */
+    private volatile int m_targetDepth;
+
+    /** Lock for the arrival rate average. */
+    private final Object m_rateLock = new Object();
+
+    /** The average arrival rate of the requests per second. Guarded by m_rateLock. */
+    private double m_arrivalRate = 0;
+
+    /** The time of the last arrival rate update. Guarded by m_rateLock. */
+    private long m_lastSample = System.currentTimeMillis();
+
+    /** The number of requests since the last arrival rate update. */
+    private final AtomicLong m_arrivals = new AtomicLong();
+
+    /** The number of requests served from the pool. */
+    private final AtomicLong m_hits = new AtomicLong();
+
+    /** The number of requests that found the pool empty. */
+    private final AtomicLong m_misses = new AtomicLong();
+
+    /**
+     * Creates a fixed size pool and starts the fill threads. The fill threads are not throttled.
+     *
+     * @param engine The engine generating the keys, each fill thread uses its own random of the engine.
+     * @param keyAlgorithm The algorithm of the keys to generate.
+     * @param keySize The size of the keys to generate, in bits.
+     * @param lowWatermark The pool is refilled when the number of keys drops below this. If zero, negative or larger
+     *            than the high watermark, half of the high watermark is used.
+     * @param highWatermark The maximum number of keys in the pool.
+     * @param fillThreads The number of background threads generating the keys, at least one is used.
+     */
+    public KeyPairPool(KeyGenerationEngine engine, String keyAlgorithm, int keySize, int lowWatermark,
+            int highWatermark, int fillThreads) {
+        this(engine, keyAlgorithm, keySize, lowWatermark, highWatermark, fillThreads, 0, 0);
+    }
+
+    /**
+     * Creates the pool and starts the fill threads.
+     *
+     * @param engine The engine generating the keys, each fill thread uses its own random of the engine.
+     * @param keyAlgorithm The algorithm of the keys to generate.
+     * @param keySize The size of the keys to generate, in bits.
+     * @param lowWatermark The pool is refilled when the number of keys drops below this. If zero, negative or larger
+     *            than the high watermark, half of the high watermark is used.
+     * @param highWatermark The maximum number of keys in the pool.
+     * @param fillThreads The number of background threads generating the keys, at least one is used.
+     * @param coverage The number of seconds of requests the pool should cover, the pool size adapts to the arrival
+     *            rate. If zero or negative, the pool has a fixed size.
+     * @param cpuShare The share of the processors the fill threads may use together, for example 0.5 for half of the
+     *            processors. If zero or negative, the fill threads are not throttled.
+     */
+    public KeyPairPool(KeyGenerationEngine engine, String keyAlgorithm, int keySize, int lowWatermark,
+            int highWatermark, int fillThreads, int coverage, double cpuShare) {
+        if (highWatermark <= 0) {
+            throw new IllegalArgumentException("Key pool high watermark must be positive, was: " + highWatermark);
+        }
+        m_engine = engine;
+        m_keyAlgorithm = keyAlgorithm;
+        m_keySize = keySize;
+        m_highWatermark = highWatermark;
+        if (lowWatermark <= 0 || lowWatermark > highWatermark) {
+            m_lowWatermark = Math.max(1, highWatermark / 2);
+        } else {
+            m_lowWatermark = lowWatermark;
+        }
+        m_coverage = Math.max(0, coverage);
+        // with adaptive sizing start small and grow with the observed load
+        m_targetDepth = m_coverage > 0 ? 1 : highWatermark;
+        m_pool = new ArrayBlockingQueue<KeyPair>(highWatermark);
+
+        m_fillers = new Thread[Math.max(1, fillThreads)];
+        if (cpuShare > 0) {
+            int processors = Runtime.getRuntime().availableProcessors();
+            m_dutyCycle = Math.min(1.0, cpuShare * processors / m_fillers.length);
+        } else {
+            m_dutyCycle = 1.0;
+        }
+        for (int i = 0; i < m_fillers.length; i++) {
+            m_fillers[i] = new Thread(new Runnable() {
+                public void run() {
+                    fill();
+                }
+            }, "delegation-keypool-" + i);
+            m_fillers[i].setDaemon(true);
+            m_fillers[i].setPriority(Thread.MIN_PRIORITY);
+            m_fillers[i].start();
+        }
+        LOGGER.debug("Started key pool for " + keySize + " bit " + keyAlgorithm + " keys, watermarks "
+                + m_lowWatermark + "/" + m_highWatermark + ", " + m_fillers.length + " fill threads"
+                + (m_coverage > 0 ? ", adaptive for " + m_coverage + " s of requests" : "") + ", duty cycle "
+                + m_dutyCycle + ".");
+    }
+
+    /**
+     * Takes a pre-generated key pair from the pool. Each call counts as a request arrival for the adaptive sizing.
+     *
+     * @return The key pair, or null if the pool is empty or shut down.
+     */
+    public KeyPair poll() {
+        m_arrivals.incrementAndGet();
+        KeyPair keyPair = m_pool.poll();
+        if (keyPair != null) {
+            m_hits.incrementAndGet();
+        } else {
+            m_misses.incrementAndGet();
+        }
+        updateArrivalRate();
+        if (m_pool.size() < getRefillDepth()) {
+            synchronized (m_fillLock) {
+                if (!m_filling) {
+                    m_filling = true;
+                    m_fillLock.notifyAll();
+                }
+            }
+        }
+        return keyPair;
+    }
+
+    /**
+     * Adds previously generated key pairs to the pool, for example the ones saved at the last shutdown. The key pairs
+     * must be of the algorithm and size of the pool. The key pairs that don't fit in the pool are dropped.
+     *
+     * @param keyPairs The key pairs to add.
+     * @return The number of key pairs added.
+     */
+    public int preload(Collection<KeyPair> keyPairs) {
+        int added = 0;
+        for (KeyPair keyPair : keyPairs) {
+            if (!m_pool.offer(keyPair)) {
+                break;
+            }
+            added++;
+        }
+        return added;
+    }
+
+    /**
+     * Removes all the key pairs from the pool.
+     *
+     * @return The key pairs that were in the pool.
+     */
+    public List<KeyPair> drain() {
+        List<KeyPair> keyPairs = new ArrayList<KeyPair>();
+        m_pool.drainTo(keyPairs);
+        return keyPairs;
+    }
+
+    /**
+     * Returns the algorithm of the keys in the pool.
+     *
+     * @return the key algorithm.
+     */
+    public String getKeyAlgorithm() {
+        return m_keyAlgorithm;
+    }
+
+    /**
+     * Returns the size of the keys in the pool.
+     *
+     * @return the key size in bits.
+     */
+    public int getKeySize() {
+        return m_keySize;
+    }
+
+    /**
+     * Returns the number of key pairs currently available in the pool.
+     *
+     * @return the number of available key pairs.
+     */
+    public int size() {
+        return m_pool.size();
+    }
+
+    /**
+     * Returns the number of key pairs the pool is currently filled up to.
+     *
+     * @return the target depth of the pool.
+     */
+    public int getTargetDepth() {
+        return m_targetDepth;
+    }
+
+    /**
+     * Returns the average request arrival rate.
+     *
+     * @return the arrival rate in requests per second.
+     */
+    public double getArrivalRate() {
+        synchronized (m_rateLock) {
+            return m_arrivalRate;
+        }
+    }
+
+    /**
+     * Returns the number of requests served with a pre-generated key pair.
+     *
+     * @return the number of hits.
+     */
+    public long getHits() {
+        return m_hits.get();
+    }
+
+    /**
+     * Returns the number of requests that found the pool empty.
+     *
+     * @return the number of misses.
+     */
+    public long getMisses() {
+        return m_misses.get();
+    }
+
+    /**
+     * Returns the fraction of requests served with a pre-generated key pair.
+     *
+     * @return the hit rate between 0 and 1, 0 if there have been no requests.
+     */
+    public double getHitRate() {
+        long hits = m_hits.get();
+        long total = hits + m_misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Returns the fraction of requests that found the pool empty.
+     *
+     * @return the miss rate between 0 and 1, 0 if there have been no requests.
+     */
+    public double getMissRate() {
+        long misses = m_misses.get();
+        long total = misses + m_hits.get();
+        return total == 0 ? 0 : (double) misses / total;
+    }
+
+    /**
+     * Stops the fill threads and drops the remaining key pairs.
+     */
+    public void shutdown() {
+        m_running = false;
+        synchronized (m_fillLock) {
+            m_fillLock.notifyAll();
+        }
+        for (Thread filler : m_fillers) {
+            filler.interrupt();
+        }
+        m_pool.clear();
+    }
+
+    /**
+     * Returns the depth below which the pool is refilled, keeping the ratio of the watermarks for the current target.
+     *
+     * @return the refill depth.
+     */
+    private int getRefillDepth() {
+        if (m_coverage == 0) {
+            return m_lowWatermark;
+        }
+        return Math.max(1, (int) ((long) m_targetDepth * m_lowWatermark / m_highWatermark));
+    }
+
+    /**
+     * Updates the arrival rate average and the adaptive target depth if the sample interval has passed.
+     */
+    private void updateArrivalRate() {
+        long now = System.currentTimeMillis();
+        synchronized (m_rateLock) {
+            long elapsed = now - m_lastSample;
+            if (elapsed < SAMPLE_INTERVAL) {
+                return;
+            }
+            double rate = m_arrivals.getAndSet(0) * 1000.0 / elapsed;
+            double alpha = 1 - Math.exp(-(double) elapsed / RATE_WINDOW);
+            m_arrivalRate += alpha * (rate - m_arrivalRate);
+            m_lastSample = now;
+            if (m_coverage > 0) {
+                int target = (int) Math.ceil(m_arrivalRate * m_coverage);
+                m_targetDepth = Math.max(1, Math.min(m_highWatermark, target));
+            }
+        }
+    }
+
+    /**
+     * The loop of the fill threads, generates keys while the pool is being filled and waits otherwise.
+     */
+    private void fill() {
+        while (m_running) {
+            synchronized (m_fillLock) {
+                while (m_running && !m_filling) {
+                    try {
+                        // wake up periodically so that the average decays and the target follows it without requests
+                        m_fillLock.wait(SAMPLE_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (m_coverage > 0) {
+                        updateArrivalRate();
+                        if (m_pool.size() < getRefillDepth()) {
+                            m_filling = true;
+                        }
+                    }
+                }
+            }
+            if (!m_running) {
+                return;
+            }
+
+            KeyPair keyPair;
+            long start = System.nanoTime();
+            try {
+                keyPair = m_engine.generateKeyPair(m_keyAlgorithm, m_keySize);
+            } catch (GeneralSecurityException e) {
+                pauseFilling(e);
+                continue;
+            } catch (RuntimeException e) {
+                pauseFilling(e);
+                continue;
+            }
+
+            if (!m_pool.offer(keyPair) || m_pool.size() >= m_targetDepth) {
+                synchronized (m_fillLock) {
+                    m_filling = false;
+                }
+            }
+
+            if (m_dutyCycle < 1.0) {
+                long idle = (long) ((System.nanoTime() - start) * (1 - m_dutyCycle) / m_dutyCycle);
+                try {
+                    Thread.sleep(idle / 1000000, (int) (idle % 1000000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the filling after a failed key generation, the next poll below the low watermark restarts it.
+     *
+     * @param e The cause of the failure.
+     */
+    private void pauseFilling(Exception e) {
+        LOGGER.error("Key pair generation for the key pool failed, pausing the filling: " + e.getMessage(), e);
+        synchronized (m_fillLock) {
+            m_filling = false;
+        }
+    }
+}
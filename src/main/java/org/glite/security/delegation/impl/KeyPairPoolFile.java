@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004. See
+ * http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.glite.security.delegation.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.glite.security.delegation.GrDPX509Util;
+
+/**
+ * Encrypted file for keeping the unused pre-generated key pairs of the key pool over a restart.
+ *
+ * <p>
+ * The key pairs are encrypted with AES-GCM using a key derived from the configured secret with PBKDF2 and a random
+ * salt. The file is readable and writable by the owner only. The entries are single use: the file is deleted when it
+ * is loaded, before the key pairs are used, and if the deletion fails the key pairs are discarded. Thus a key pair is
+ * never handed out twice even if the service stops without saving the pool again.
+ * </p>
+ */
+public class KeyPairPoolFile {
+    /** Local logger object. */
+    private static final Logger LOGGER = Logger.getLogger(KeyPairPoolFile.class);
+
+    /** The identifier at the start of the file, "DKP1". */
+    private static final int MAGIC = 0x444b5031;
+
+    /** The key derivation algorithm. */
+    private static final String KDF_ALGORITHM = "PBKDF2WithHmacSHA1";
+
+    /** The key derivation iteration count. */
+    private static final int KDF_ITERATIONS = 20000;
+
+    /** The AES key size in bits, 128 works without the unlimited strength policy files. */
+    private static final int AES_KEY_SIZE = 128;
+
+    /** The encryption algorithm. */
+    private static final String CIPHER_ALGORITHM = "AES/GCM/NoPadding";
+
+    /** The length of the key derivation salt in bytes. */
+    private static final int SALT_LENGTH = 16;
+
+    /** The length of the GCM nonce in bytes. */
+    private static final int NONCE_LENGTH = 12;
+
+    /** The file holding the key pairs. */
+    private final File m_file;
+
+    /** The secret the encryption key is derived from. */
+    private final char[] m_secret;
+
+    /**
+     * Creates the handler for the key pair file.
+     *
+     * @param path The path of the file.
+     * @param secret The secret the encryption key is derived from.
+     */
+    public KeyPairPoolFile(String path, String secret) {
+        if (secret == null || secret.length() == 0) {
+            throw new IllegalArgumentException("The secret for the key pool file is not set.");
+        }
+        m_file = new File(path);
+        m_secret = secret.toCharArray();
+    }
+
+    /**
+     * Loads the key pairs from the file and deletes the file. The key pairs of other algorithm or size than the given
+     * ones are dropped.
+     *
+     * @param keyAlgorithm The algorithm of the key pairs to load.
+     * @param keySize The size of the key pairs to load.
+     * @return The loaded key pairs, empty if the file does not exist or could not be deleted.
+     * @throws IOException If reading the file failed or the file is malformed.
+     * @throws GeneralSecurityException If the decryption failed, for example because of wrong secret or modified
+     *             file.
+     */
+    public List<KeyPair> load(String keyAlgorithm, int keySize) throws IOException, GeneralSecurityException {
+        List<KeyPair> keyPairs = new ArrayList<KeyPair>();
+        if (!m_file.exists()) {
+            LOGGER.debug("No key pool file " + m_file + " to load.");
+            return keyPairs;
+        }
+
+        byte[] content = new byte[(int) m_file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(m_file));
+        try {
+            in.readFully(content);
+        } finally {
+            in.close();
+        }
+
+        // the entries are single use, so make sure the file is gone before using them
+        if (!m_file.delete()) {
+            LOGGER.error("Could not delete the key pool file " + m_file + ", discarding the stored keys.");
+            return keyPairs;
+        }
+
+        DataInputStream header = new DataInputStream(new ByteArrayInputStream(content));
+        if (header.readInt() != MAGIC) {
+            throw new IOException("The file " + m_file + " is not a key pool file.");
+        }
+        byte[] salt = new byte[SALT_LENGTH];
+        header.readFully(salt);
+        byte[] nonce = new byte[NONCE_LENGTH];
+        header.readFully(nonce);
+        int headerLength = 4 + SALT_LENGTH + NONCE_LENGTH;
+
+        Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM, BouncyCastleProvider.PROVIDER_NAME);
+        cipher.init(Cipher.DECRYPT_MODE, deriveKey(salt), new IvParameterSpec(nonce));
+        byte[] plain = cipher.doFinal(content, headerLength, content.length - headerLength);
+
+        try {
+            DataInputStream entries = new DataInputStream(new ByteArrayInputStream(plain));
+            String algorithm = entries.readUTF();
+            int size = entries.readInt();
+            int count = entries.readInt();
+            if (!algorithm.equals(keyAlgorithm) || size != keySize) {
+                LOGGER.info("The key pool file holds " + size + " bit " + algorithm + " keys, but " + keySize
+                        + " bit " + keyAlgorithm + " keys are used, discarding the stored keys.");
+                return keyPairs;
+            }
+            KeyFactory keyFactory = KeyFactory.getInstance(algorithm, BouncyCastleProvider.PROVIDER_NAME);
+            for (int i = 0; i < count; i++) {
+                byte[] publicKey = readBytes(entries);
+                byte[] privateKey = readBytes(entries);
+                keyPairs.add(new KeyPair(keyFactory.generatePublic(new X509EncodedKeySpec(publicKey)), keyFactory
+                        .generatePrivate(new PKCS8EncodedKeySpec(privateKey))));
+                Arrays.fill(privateKey, (byte) 0);
+            }
+        } finally {
+            Arrays.fill(plain, (byte) 0);
+        }
+        LOGGER.debug("Loaded " + keyPairs.size() + " keys from the key pool file " + m_file + ".");
+        return keyPairs;
+    }
+
+    /**
+     * Stores the key pairs in the file, replacing a possible earlier file.
+     *
+     * @param keyPairs The key pairs to store.
+     * @param keyAlgorithm The algorithm of the key pairs.
+     * @param keySize The size of the key pairs.
+     * @throws IOException If writing the file failed.
+     * @throws GeneralSecurityException If the encryption failed.
+     */
+    public void save(List<KeyPair> keyPairs, String keyAlgorithm, int keySize) throws IOException,
+            GeneralSecurityException {
+        ByteArrayOutputStream plainStream = new ByteArrayOutputStream();
+        DataOutputStream entries = new DataOutputStream(plainStream);
+        entries.writeUTF(keyAlgorithm);
+        entries.writeInt(keySize);
+        entries.writeInt(keyPairs.size());
+        for (KeyPair keyPair : keyPairs) {
+            writeBytes(entries, keyPair.getPublic().getEncoded());
+            writeBytes(entries, keyPair.getPrivate().getEncoded());
+        }
+        entries.flush();
+        byte[] plain = plainStream.toByteArray();
+
+        SecureRandom random = new SecureRandom();
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+
+        Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM, BouncyCastleProvider.PROVIDER_NAME);
+        cipher.init(Cipher.ENCRYPT_MODE, deriveKey(salt), new IvParameterSpec(nonce));
+        byte[] encrypted;
+        try {
+            encrypted = cipher.doFinal(plain);
+        } finally {
+            Arrays.fill(plain, (byte) 0);
+        }
+
+        // write to a temporary file that only the owner can read and then move it in place
+        File tmpFile = new File(m_file.getPath() + ".tmp");
+        tmpFile.delete();
+        if (!tmpFile.createNewFile() || !GrDPX509Util.changeFileMode(tmpFile.getPath(), 600)) {
+            tmpFile.delete();
+            throw new IOException("Failed to create the key pool file " + tmpFile
+                    + " with read/write for owner only.");
+        }
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(tmpFile));
+        try {
+            out.writeInt(MAGIC);
+            out.write(salt);
+            out.write(nonce);
+            out.write(encrypted);
+        } finally {
+            out.close();
+        }
+        m_file.delete();
+        if (!tmpFile.renameTo(m_file)) {
+            tmpFile.delete();
+            throw new IOException("Failed to move the key pool file in place: " + m_file);
+        }
+        LOGGER.debug("Saved " + keyPairs.size() + " keys to the key pool file " + m_file + ".");
+    }
+
+    /**
+     * Derives the encryption key from the secret.
+     *
+     * @param salt The salt for the derivation.
+     * @return The AES key.
+     * @throws GeneralSecurityException If the derivation failed.
+     */
+    private SecretKeySpec deriveKey(byte[] salt) throws GeneralSecurityException {
+        SecretKeyFactory factory = SecretKeyFactory.getInstance(KDF_ALGORITHM);
+        byte[] key = factory.generateSecret(new PBEKeySpec(m_secret, salt, KDF_ITERATIONS, AES_KEY_SIZE))
+                .getEncoded();
+        return new SecretKeySpec(key, "AES");
+    }
+
+    /**
+     * Reads a length prefixed byte array.
+     *
+     * @param in The stream to read from.
+     * @return The bytes.
+     * @throws IOException If the stream ended or the length is invalid.
+     */
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid entry length in the key pool file: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes a length prefixed byte array.
+     *
+     * @param out The stream to write to.
+     * @param bytes The bytes to write.
+     * @throws IOException If writing failed.
+     */
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
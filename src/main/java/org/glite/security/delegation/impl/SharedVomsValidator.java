@@ -0,0 +1,814 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004. See
+ * http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.glite.security.delegation.impl;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.x509.AttributeCertificate;
+import org.glite.security.delegation.GrDProxyDlgeeOptions;
+import org.italiangrid.voms.VOMSAttribute;
+import org.italiangrid.voms.VOMSValidators;
+import org.italiangrid.voms.ac.VOMSACValidator;
+import org.italiangrid.voms.ac.VOMSValidationResult;
+import org.italiangrid.voms.ac.ValidationResultListener;
+import org.italiangrid.voms.store.VOMSTrustStore;
+import org.italiangrid.voms.store.impl.DefaultVOMSTrustStore;
+
+import eu.emi.security.authn.x509.CrlCheckingMode;
+import eu.emi.security.authn.x509.NamespaceCheckingMode;
+import eu.emi.security.authn.x509.OCSPParametes;
+import eu.emi.security.authn.x509.ProxySupport;
+import eu.emi.security.authn.x509.RevocationParameters;
+import eu.emi.security.authn.x509.RevocationParameters.RevocationCheckingOrder;
+import eu.emi.security.authn.x509.StoreUpdateListener;
+import eu.emi.security.authn.x509.StoreUpdateListener.Severity;
+import eu.emi.security.authn.x509.ValidationError;
+import eu.emi.security.authn.x509.ValidationErrorListener;
+import eu.emi.security.authn.x509.X509CertChainValidatorExt;
+import eu.emi.security.authn.x509.impl.OpensslCertChainValidator;
+import eu.emi.security.authn.x509.impl.ValidatorParams;
+
+/**
+ * A VOMS validator shared by the delegation instances with the same trust configuration.
+ *
+ * <p>
+ * The validators are kept in a registry keyed by the trust settings of the options: the VOMS directory, the CA
+ * directory, the namespace and revocation checking modes, the update interval and the CRL refresh settings. The
+ * instances with equal settings get the same validator and thus share one loaded and periodically updated trust
+ * store. The validator is reference counted, each {@link #acquire(GrDProxyDlgeeOptions)} must be matched by a
+ * {@link #release()} and the validator is shut down when the last user releases it. The users can register
+ * listeners to be told when the trust anchors or CRLs are reloaded.
+ * </p>
+ *
+ * <p>
+ * The trust anchors, CRLs and VOMS LSC files are loaded into an immutable snapshot. Every update interval a new
+ * snapshot is built in a background thread and published with a single atomic reference swap, so the validations
+ * never wait for a reload and the ones in flight finish with the snapshot they started with. The snapshots are
+ * reference counted, a replaced snapshot is disposed of when the last validation using it has finished. If the build
+ * fails, the old snapshot stays in use. The duration of the last reload, the numbers of loaded trust anchors and
+ * CRLs and the reload counts are available as metrics.
+ * </p>
+ *
+ * <p>
+ * If the CRL refresh is enabled, a {@link CrlManager} follows the next update times of the CRLs and the snapshot is
+ * rebuilt as soon as a newer CRL appears in the CA directory, starting the checks ahead of the next update. The CRLs
+ * are downloaded into the directory by an external tool like fetch-crl. When a CRL has expired and no newer one is
+ * available yet, the required revocation checking keeps using the last loaded CRL of that CA for the configured grace
+ * period, instead of failing all the validations of the CA, see {@link CrlGraceChainValidator}. The CAs without a
+ * usable CRL are still rejected.
+ * </p>
+ */
+public final class SharedVomsValidator {
+    /** Local logger object. */
+    private static final Logger LOGGER = Logger.getLogger(SharedVomsValidator.class);
+
+    /** The default CA directory. */
+    private static final String DEFAULT_CA_DIR = "/etc/grid-security/certificates";
+
+    /** The default trust store update interval in milliseconds. */
+    private static final long DEFAULT_UPDATE_INTERVAL = 3600000;
+
+    /** The number of checks for a newer CRL during the refresh window. */
+    private static final long CRL_RETRIES = 10;
+
+    /** The minimum interval of the checks for a newer CRL in milliseconds. */
+    private static final long MIN_CRL_RETRY_INTERVAL = 1000;
+
+    /** The shared validators by the trust settings. Guarded by the class lock. */
+    private static final Map<String, SharedVomsValidator> s_validators = new HashMap<String, SharedVomsValidator>();
+
+    /** The key of the validator in the registry. */
+    private final String m_key;
+
+    /** The VOMS trust directories, null for the default. */
+    private final List<String> m_vomsDirs;
+
+    /** The CA directory. */
+    private final String m_trustStoreLocation;
+
+    /** The namespace checking mode. */
+    private final NamespaceCheckingMode m_namespaceMode;
+
+    /** The revocation checking parameters. */
+    private final RevocationParameters m_revocationParameters;
+
+    /** The interval of the trust store reloads in milliseconds, not positive for no reloads. */
+    private final long m_updateInterval;
+
+    /** The currently used trust snapshot. */
+    private final AtomicReference<Snapshot> m_snapshot = new AtomicReference<Snapshot>();
+
+    /** The validator handed to the users, always using the current snapshot. */
+    private final VOMSACValidator m_validator = new SnapshotValidator();
+
+    /** The manager of the CRL refresh, null if the CRL refresh is disabled. */
+    private final CrlManager m_crlManager;
+
+    /** The thread reloading the trust snapshot, null if the reloads are disabled. */
+    private final ScheduledExecutorService m_reloader;
+
+    /** The listeners told about the trust store reloads. */
+    private final List<StoreUpdateListener> m_listeners = new CopyOnWriteArrayList<StoreUpdateListener>();
+
+    /** The listener of the validation results, set on every new snapshot. */
+    private volatile ValidationResultListener m_resultListener = null;
+
+    /** The number of successful reloads, not counting the initial load. */
+    private final AtomicLong m_reloads = new AtomicLong();
+
+    /** The number of failed reloads. */
+    private final AtomicLong m_reloadFailures = new AtomicLong();
+
+    /** The number of users of the validator. Guarded by the class lock. */
+    private int m_references = 0;
+
+    /**
+     * Creates the validator and loads the first trust snapshot, only called by the registry.
+     *
+     * @param key The key of the validator in the registry.
+     * @param dlgeeOpt The options defining the trust settings.
+     */
+    private SharedVomsValidator(String key, GrDProxyDlgeeOptions dlgeeOpt) {
+        m_key = key;
+        String vomsDirString = dlgeeOpt.getVomsDir();
+        if (vomsDirString != null) {
+            m_vomsDirs = new ArrayList<String>();
+            m_vomsDirs.add(vomsDirString);
+        } else {
+            m_vomsDirs = null;
+        }
+        m_trustStoreLocation = getTrustStoreLocation(dlgeeOpt);
+        m_namespaceMode = getNamespaceMode(dlgeeOpt);
+        m_revocationParameters = getRevocationParameters(dlgeeOpt);
+        m_updateInterval = getUpdateInterval(dlgeeOpt);
+
+        if (dlgeeOpt.getCrlRefreshAhead() > 0) {
+            long refreshAhead = dlgeeOpt.getCrlRefreshAhead() * 1000L;
+            m_crlManager = new CrlManager(m_trustStoreLocation, refreshAhead, dlgeeOpt.getCrlGracePeriod() * 1000L,
+                    Math.max(refreshAhead / CRL_RETRIES, MIN_CRL_RETRY_INTERVAL));
+            m_crlManager.scan();
+        } else {
+            m_crlManager = null;
+        }
+
+        m_snapshot.set(buildSnapshot());
+
+        if (m_updateInterval > 0 || m_crlManager != null) {
+            m_reloader = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "delegation-trust-reload");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            if (m_updateInterval > 0) {
+                m_reloader.scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        reload();
+                    }
+                }, m_updateInterval, m_updateInterval, TimeUnit.MILLISECONDS);
+            }
+            if (m_crlManager != null) {
+                scheduleCrlRefresh();
+            }
+        } else {
+            m_reloader = null;
+        }
+    }
+
+    /**
+     * Gets the shared validator for the trust settings of the options, creating it if no instance uses the same
+     * settings yet. The validator must be released with {@link #release()} when no longer used.
+     *
+     * @param dlgeeOpt The options defining the trust settings.
+     * @return The shared validator.
+     */
+    public static synchronized SharedVomsValidator acquire(GrDProxyDlgeeOptions dlgeeOpt) {
+        String key = getKey(dlgeeOpt);
+        SharedVomsValidator shared = s_validators.get(key);
+        if (shared == null) {
+            shared = new SharedVomsValidator(key, dlgeeOpt);
+            s_validators.put(key, shared);
+            LOGGER.debug("Created VOMS validator for " + key);
+        }
+        shared.m_references++;
+        return shared;
+    }
+
+    /**
+     * Gives up the use of the validator, the validator is shut down when the last user gives it up.
+     */
+    public void release() {
+        synchronized (SharedVomsValidator.class) {
+            if (m_references <= 0) {
+                return;
+            }
+            if (--m_references > 0) {
+                return;
+            }
+            s_validators.remove(m_key);
+        }
+        LOGGER.debug("Shutting down VOMS validator for " + m_key);
+        m_listeners.clear();
+        if (m_reloader != null) {
+            m_reloader.shutdownNow();
+        }
+        m_snapshot.get().release();
+    }
+
+    /**
+     * Builds a new trust snapshot and publishes it in place of the current one. The validations keep using the
+     * current snapshot while the new one is built. If the build fails the current snapshot stays in use.
+     */
+    public void reload() {
+        Snapshot snapshot;
+        try {
+            snapshot = buildSnapshot();
+        } catch (RuntimeException e) {
+            m_reloadFailures.incrementAndGet();
+            LOGGER.error("Failed to reload the trust stores for " + m_key + ", keeping the old ones: "
+                    + e.getMessage(), e);
+            return;
+        }
+        Snapshot old = m_snapshot.getAndSet(snapshot);
+        m_reloads.incrementAndGet();
+        LOGGER.info("Reloaded the trust stores in " + snapshot.m_loadMillis + " ms: " + snapshot.m_trustAnchors
+                + " trust anchors, " + snapshot.m_crls + " CRLs, " + snapshot.m_errors + " errors.");
+        // the new snapshot is in use, tell the users so that they drop the results validated with the old one
+        for (StoreUpdateListener listener : m_listeners) {
+            listener.loadingNotification(m_trustStoreLocation, StoreUpdateListener.CA_CERT, Severity.NOTIFICATION,
+                    null);
+        }
+        old.release();
+    }
+
+    /**
+     * Gets the current snapshot for a validation, the snapshot must be released with {@link Snapshot#release()}
+     * after the validation.
+     *
+     * @return The current snapshot.
+     */
+    private Snapshot retainSnapshot() {
+        while (true) {
+            Snapshot snapshot = m_snapshot.get();
+            if (snapshot.retain()) {
+                return snapshot;
+            }
+            // replaced and disposed of in between, the newer one is already published
+        }
+    }
+
+    /**
+     * Checks the CA directory for new CRLs and rebuilds the snapshot if they changed, or if the grace period of an
+     * expired CRL started or ended. Schedules the next check.
+     */
+    private void refreshCrls() {
+        try {
+            boolean changed = m_crlManager.scan();
+            if (changed || isCrlGracePeriod() != m_snapshot.get().m_crlGrace) {
+                reload();
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to refresh the CRLs of " + m_trustStoreLocation + ": " + e.getMessage(), e);
+        } finally {
+            scheduleCrlRefresh();
+        }
+    }
+
+    /**
+     * Schedules the next check of the CRLs, when the earliest CRL enters its refresh window or the grace period
+     * changes, but at the latest after the trust store update interval.
+     */
+    private void scheduleCrlRefresh() {
+        long now = System.currentTimeMillis();
+        long next = m_crlManager.getNextCheckTime(now);
+        long delay = (next == 0) ? Long.MAX_VALUE : Math.max(next - now, 0);
+        if (m_updateInterval > 0) {
+            delay = Math.min(delay, m_updateInterval);
+        } else if (delay == Long.MAX_VALUE) {
+            delay = DEFAULT_UPDATE_INTERVAL;
+        }
+        LOGGER.debug("Checking the CRLs of " + m_trustStoreLocation + " in " + delay + " ms.");
+        try {
+            m_reloader.schedule(new Runnable() {
+                public void run() {
+                    refreshCrls();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Not scheduling the CRL refresh, the validator is shut down.");
+        }
+    }
+
+    /**
+     * Tells whether the expired CRLs should be used because a CRL is in its grace period. Only the required revocation
+     * checking uses the grace period.
+     *
+     * @return true if a CRL is in the grace period.
+     */
+    private boolean isCrlGracePeriod() {
+        return m_crlManager != null && m_revocationParameters.getCrlCheckingMode() == CrlCheckingMode.REQUIRE
+                && m_crlManager.isInGracePeriod(System.currentTimeMillis());
+    }
+
+    /**
+     * Builds a new trust snapshot, loading the trust anchors, CRLs and VOMS LSC files. The stores of the snapshot
+     * don't reload themselves, the reloads are done by building a new snapshot.
+     *
+     * @return The new snapshot.
+     */
+    private Snapshot buildSnapshot() {
+        long start = System.currentTimeMillis();
+        // the CRLs may be reported more than once, so count the locations
+        final Set<String> crls = Collections.synchronizedSet(new HashSet<String>());
+        final AtomicInteger errors = new AtomicInteger();
+        StoreUpdateListener listener = new StoreUpdateListener() {
+            public void loadingNotification(String location, String type, Severity level, Exception cause) {
+                if (level != Severity.NOTIFICATION) {
+                    errors.incrementAndGet();
+                    LOGGER.error("Error when creating or using SSL socket. Type " + type + " level: " + level
+                            + ((cause == null) ? "" : (" cause: " + cause.getClass() + ":" + cause.getMessage())));
+                } else if (StoreUpdateListener.CRL.equals(type)) {
+                    crls.add(location);
+                }
+                for (StoreUpdateListener userListener : m_listeners) {
+                    userListener.loadingNotification(location, type, level, cause);
+                }
+            }
+        };
+
+        VOMSTrustStore vomsTrustStore;
+        if (m_vomsDirs != null) {
+            vomsTrustStore = new DefaultVOMSTrustStore(m_vomsDirs);
+        } else {
+            vomsTrustStore = new DefaultVOMSTrustStore();
+        }
+
+        ArrayList<StoreUpdateListener> listenerList = new ArrayList<StoreUpdateListener>();
+        listenerList.add(listener);
+
+        RevocationParameters revocationParameters = m_revocationParameters;
+        boolean crlGrace = isCrlGracePeriod();
+        if (crlGrace) {
+            LOGGER.warn("A CRL in " + m_trustStoreLocation + " has expired and no newer one is available, using the "
+                    + "last loaded CRL of the CA during the grace period.");
+            // canl only checks the valid CRLs, the CRLs in the grace period and the CAs without a CRL are checked by
+            // the grace validator
+            revocationParameters = new RevocationParameters(CrlCheckingMode.IF_VALID, new OCSPParametes(), false,
+                    RevocationCheckingOrder.CRL_OCSP);
+        }
+
+        ValidatorParams validatorParams = new ValidatorParams(revocationParameters, ProxySupport.ALLOW, listenerList);
+
+        // no update interval, the snapshot is replaced instead of updated
+        OpensslCertChainValidator chainValidator = new OpensslCertChainValidator(m_trustStoreLocation,
+                m_namespaceMode, -1, validatorParams);
+
+        ValidationErrorListener validationListener = new ValidationErrorListener() {
+            @Override
+            public boolean onValidationError(ValidationError error) {
+                LOGGER.info("Error when validating incoming certificate: " + error.getMessage() + " position: "
+                        + error.getPosition() + " " + error.getParameters());
+                X509Certificate chain[] = error.getChain();
+                for (X509Certificate cert : chain) {
+                    LOGGER.info(cert.toString());
+                }
+                return false;
+            }
+
+        };
+
+        X509CertChainValidatorExt vomsChainValidator = chainValidator;
+        if (crlGrace) {
+            vomsChainValidator = new CrlGraceChainValidator(chainValidator, m_crlManager.getCrls(), m_crlManager
+                    .getGracePeriod());
+        }
+        vomsChainValidator.addValidationListener(validationListener);
+
+        VOMSACValidator validator = VOMSValidators.newValidator(vomsTrustStore, vomsChainValidator);
+        if (m_resultListener != null) {
+            validator.setValidationResultListener(m_resultListener);
+        }
+        X509Certificate trustedIssuers[] = chainValidator.getTrustedIssuers();
+        Set<X500Principal> trustedSubjects = new HashSet<X500Principal>();
+        for (X509Certificate issuer : trustedIssuers) {
+            trustedSubjects.add(issuer.getSubjectX500Principal());
+        }
+        return new Snapshot(chainValidator, validator, trustedSubjects, trustedIssuers.length, crls.size(), errors
+                .get(), crlGrace, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Returns the time the last load of the trust stores took.
+     *
+     * @return the load time in milliseconds.
+     */
+    public long getLastReloadDuration() {
+        return m_snapshot.get().m_loadMillis;
+    }
+
+    /**
+     * Returns the time of the last load of the trust stores.
+     *
+     * @return the time in milliseconds since the epoch.
+     */
+    public long getLastReloadTime() {
+        return m_snapshot.get().m_loadTime;
+    }
+
+    /**
+     * Tells whether the subject is a CA of the current trust snapshot. The lookup is a hash lookup without any
+     * cryptographic work, meant for the pre-screening of the chains.
+     *
+     * @param subject The subject DN.
+     * @return true if the CA directory has a CA certificate with the subject.
+     */
+    public boolean isTrustedSubject(X500Principal subject) {
+        return m_snapshot.get().m_trustedSubjects.contains(subject);
+    }
+
+    /**
+     * Returns the number of trust anchors in the current trust snapshot.
+     *
+     * @return the number of trust anchors.
+     */
+    public int getTrustAnchorCount() {
+        return m_snapshot.get().m_trustAnchors;
+    }
+
+    /**
+     * Returns the number of CRLs loaded in the current trust snapshot.
+     *
+     * @return the number of CRLs.
+     */
+    public int getCrlCount() {
+        return m_snapshot.get().m_crls;
+    }
+
+    /**
+     * Returns the number of loading errors of the current trust snapshot.
+     *
+     * @return the number of errors.
+     */
+    public int getLoadErrorCount() {
+        return m_snapshot.get().m_errors;
+    }
+
+    /**
+     * Tells whether the current snapshot uses the last loaded CRL of a CA because the CRL has expired and is in its
+     * grace period.
+     *
+     * @return true if in the grace period.
+     */
+    public boolean isInCrlGracePeriod() {
+        return m_snapshot.get().m_crlGrace;
+    }
+
+    /**
+     * Returns the time the last read and parse of the CRLs of each CA by the CRL refresh took, if the CRL refresh is
+     * enabled. The time the chain validator takes to load the CRLs is not included, it is part of the reload duration.
+     *
+     * @return the times in milliseconds by the issuer DN of the CRLs, empty if the CRL refresh is disabled.
+     */
+    public Map<String, Long> getCrlRefreshLatencies() {
+        if (m_crlManager == null) {
+            return new HashMap<String, Long>();
+        }
+        return m_crlManager.getRefreshLatencies();
+    }
+
+    /**
+     * Returns the number of successful reloads, not counting the initial load.
+     *
+     * @return the number of reloads.
+     */
+    public long getReloadCount() {
+        return m_reloads.get();
+    }
+
+    /**
+     * Returns the number of failed reloads.
+     *
+     * @return the number of failures.
+     */
+    public long getReloadFailureCount() {
+        return m_reloadFailures.get();
+    }
+
+    /**
+     * Returns the VOMS validator.
+     *
+     * @return the validator.
+     */
+    public VOMSACValidator getValidator() {
+        return m_validator;
+    }
+
+    /**
+     * Registers a listener to be told about the loading of the trust anchors and CRLs, including the failures, and
+     * when a reloaded snapshot is taken into use.
+     *
+     * @param listener The listener.
+     */
+    public void addUpdateListener(StoreUpdateListener listener) {
+        m_listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener registered with {@link #addUpdateListener(StoreUpdateListener)}.
+     *
+     * @param listener The listener.
+     */
+    public void removeUpdateListener(StoreUpdateListener listener) {
+        m_listeners.remove(listener);
+    }
+
+    /**
+     * Builds the registry key from the trust settings of the options.
+     *
+     * @param dlgeeOpt The options.
+     * @return The key.
+     */
+    private static String getKey(GrDProxyDlgeeOptions dlgeeOpt) {
+        return "vomsdir=" + dlgeeOpt.getVomsDir() + ", cadir=" + getTrustStoreLocation(dlgeeOpt) + ", namespace="
+                + getNamespaceMode(dlgeeOpt) + ", revocation="
+                + getRevocationParameters(dlgeeOpt).getCrlCheckingMode() + ", interval="
+                + getUpdateInterval(dlgeeOpt) + ", crlRefreshAhead=" + dlgeeOpt.getCrlRefreshAhead()
+                + ", crlGracePeriod=" + dlgeeOpt.getCrlGracePeriod();
+    }
+
+    /**
+     * Gets the CA directory of the options.
+     *
+     * @param dlgeeOpt The options.
+     * @return The CA directory.
+     */
+    private static String getTrustStoreLocation(GrDProxyDlgeeOptions dlgeeOpt) {
+        String trustStoreLocation = dlgeeOpt.getVomsCAs();
+        if (trustStoreLocation == null) {
+            trustStoreLocation = DEFAULT_CA_DIR;
+        }
+        return trustStoreLocation;
+    }
+
+    /**
+     * Gets the revocation checking parameters of the options.
+     *
+     * @param dlgeeOpt The options.
+     * @return The revocation parameters.
+     */
+    private static RevocationParameters getRevocationParameters(GrDProxyDlgeeOptions dlgeeOpt) {
+        RevocationParameters revParam = new RevocationParameters(CrlCheckingMode.REQUIRE, new OCSPParametes(), false,
+                RevocationCheckingOrder.CRL_OCSP);
+        String crlCheckingMode = dlgeeOpt.getRevocationChecking();
+        if (crlCheckingMode != null) {
+            if (crlCheckingMode.equalsIgnoreCase("ifvalid")) {
+                revParam = new RevocationParameters(CrlCheckingMode.IF_VALID, new OCSPParametes(), false,
+                        RevocationCheckingOrder.CRL_OCSP);
+            }
+            if (crlCheckingMode.equalsIgnoreCase("ignore")) {
+                revParam = new RevocationParameters(CrlCheckingMode.IGNORE, new OCSPParametes(), false,
+                        RevocationCheckingOrder.CRL_OCSP);
+            }
+        }
+        return revParam;
+    }
+
+    /**
+     * Gets the namespace checking mode of the options.
+     *
+     * @param dlgeeOpt The options.
+     * @return The namespace checking mode.
+     */
+    private static NamespaceCheckingMode getNamespaceMode(GrDProxyDlgeeOptions dlgeeOpt) {
+        String namespaceModeString = dlgeeOpt.getNamespace();
+        NamespaceCheckingMode namespaceMode = NamespaceCheckingMode.EUGRIDPMA_AND_GLOBUS;
+        if (namespaceModeString != null) {
+            if (namespaceModeString.equalsIgnoreCase("no") || namespaceModeString.equalsIgnoreCase("false")
+                    || namespaceModeString.equalsIgnoreCase("off")) {
+                namespaceMode = NamespaceCheckingMode.IGNORE;
+            } else {
+                if (namespaceModeString.equalsIgnoreCase("require")) {
+                    namespaceMode = NamespaceCheckingMode.EUGRIDPMA_AND_GLOBUS_REQUIRE;
+                }
+            }
+
+        }
+        return namespaceMode;
+    }
+
+    /**
+     * Gets the trust store update interval of the options.
+     *
+     * @param dlgeeOpt The options.
+     * @return The update interval in milliseconds.
+     */
+    private static long getUpdateInterval(GrDProxyDlgeeOptions dlgeeOpt) {
+        String intervalString = dlgeeOpt.getUpdateInterval();
+        long intervalMS = DEFAULT_UPDATE_INTERVAL; // update every hour
+        if (intervalString != null) {
+            intervalMS = Long.parseLong(intervalString);
+        }
+        return intervalMS;
+    }
+
+    /**
+     * An immutable set of loaded trust stores with the VOMS validator using them.
+     */
+    private static final class Snapshot {
+        /** The certificate chain validator with the trust anchors and CRLs. */
+        private final OpensslCertChainValidator m_chainValidator;
+
+        /** The VOMS validator using the chain validator and the LSC files. */
+        private final VOMSACValidator m_validator;
+
+        /** The subjects of the trust anchors. */
+        private final Set<X500Principal> m_trustedSubjects;
+
+        /** The number of trust anchors. */
+        private final int m_trustAnchors;
+
+        /** The number of CRLs. */
+        private final int m_crls;
+
+        /** The number of loading errors. */
+        private final int m_errors;
+
+        /** Whether an expired CRL is used because it is in its grace period. */
+        private final boolean m_crlGrace;
+
+        /** The time the loading took in milliseconds. */
+        private final long m_loadMillis;
+
+        /** The time the snapshot was loaded. */
+        private final long m_loadTime = System.currentTimeMillis();
+
+        /** The number of users, the current snapshot reference and the running validations, 0 once disposed of. */
+        private final AtomicInteger m_users = new AtomicInteger(1);
+
+        /**
+         * Creates the snapshot.
+         *
+         * @param chainValidator The certificate chain validator with the trust anchors and CRLs.
+         * @param validator The VOMS validator using the chain validator and the LSC files.
+         * @param trustedSubjects The subjects of the trust anchors.
+         * @param trustAnchors The number of trust anchors.
+         * @param crls The number of CRLs.
+         * @param errors The number of loading errors.
+         * @param crlGrace Whether an expired CRL is used because it is in its grace period.
+         * @param loadMillis The time the loading took in milliseconds.
+         */
+        private Snapshot(OpensslCertChainValidator chainValidator, VOMSACValidator validator,
+                Set<X500Principal> trustedSubjects, int trustAnchors, int crls, int errors, boolean crlGrace,
+                long loadMillis) {
+            m_chainValidator = chainValidator;
+            m_validator = validator;
+            m_trustedSubjects = trustedSubjects;
+            m_trustAnchors = trustAnchors;
+            m_crls = crls;
+            m_errors = errors;
+            m_crlGrace = crlGrace;
+            m_loadMillis = loadMillis;
+        }
+
+        /**
+         * Takes the snapshot into use, unless it is already disposed of.
+         *
+         * @return true if taken into use, false if disposed of.
+         */
+        private boolean retain() {
+            while (true) {
+                int users = m_users.get();
+                if (users <= 0) {
+                    return false;
+                }
+                if (m_users.compareAndSet(users, users + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Gives up the use of the snapshot, the snapshot is disposed of when the last user gives it up.
+         */
+        private void release() {
+            if (m_users.decrementAndGet() == 0) {
+                m_validator.shutdown();
+                m_chainValidator.dispose();
+            }
+        }
+    }
+
+    /**
+     * The VOMS validator handed to the users, delegating to the validator of the current snapshot.
+     */
+    private final class SnapshotValidator implements VOMSACValidator {
+        /*
+         * (non-Javadoc)
+         *
+         * @see org.italiangrid.voms.ac.VOMSACValidator#validate(java.security.cert.X509Certificate[])
+         */
+        public List<VOMSAttribute> validate(X509Certificate[] certChain) {
+            Snapshot snapshot = retainSnapshot();
+            try {
+                return snapshot.m_validator.validate(certChain);
+            } finally {
+                snapshot.release();
+            }
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see org.italiangrid.voms.ac.VOMSACValidator#validateWithResult(java.security.cert.X509Certificate[])
+         */
+        public List<VOMSValidationResult> validateWithResult(X509Certificate[] certChain) {
+            Snapshot snapshot = retainSnapshot();
+            try {
+                return snapshot.m_validator.validateWithResult(certChain);
+            } finally {
+                snapshot.release();
+            }
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see org.italiangrid.voms.ac.VOMSACValidator#validateACs(java.util.List)
+         */
+        public List<AttributeCertificate> validateACs(List<AttributeCertificate> acs) {
+            Snapshot snapshot = retainSnapshot();
+            try {
+                return snapshot.m_validator.validateACs(acs);
+            } finally {
+                snapshot.release();
+            }
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see org.italiangrid.voms.ac.VOMSACParser#parse(java.security.cert.X509Certificate[])
+         */
+        public List<VOMSAttribute> parse(X509Certificate[] certChain) {
+            Snapshot snapshot = retainSnapshot();
+            try {
+                return snapshot.m_validator.parse(certChain);
+            } finally {
+                snapshot.release();
+            }
+        }
+
+        /*
+         * (non-Javadoc)
+         *
+         * @see org.italiangrid.voms.ac.VOMSACValidator#setValidationResultListener(org.italiangrid.voms.ac.
+         * ValidationResultListener)
+         */
+        public void setValidationResultListener(ValidationResultListener listener) {
+            m_resultListener = listener;
+            m_snapshot.get().m_validator.setValidationResultListener(listener);
+        }
+
+        /**
+         * Does nothing, the shared validator is shut down when the last user releases it.
+         */
+        public void shutdown() {
+            // released through SharedVomsValidator.release()
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004. See
+ * http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.glite.security.delegation.impl;
+
+/**
+ * Declares when a delegation operation needs the VOMS attributes of the client. The attributes are always validated
+ * when they are required by the configuration, as then they are part of the authorization of the client.
+ */
+public enum VomsValidationPolicy {
+    /** The attributes are always needed, for example because they are stored with the delegation. */
+    ALWAYS,
+
+    /** The attributes are only needed for generating the delegation id when the client did not give one. */
+    WHEN_GENERATING_ID;
+
+    /**
+     * Tells whether the VOMS attributes need to be validated for the operation.
+     *
+     * @param delegationID The delegation id given by the client, null or empty if the id is generated.
+     * @param requireVomsAttrs Whether the configuration requires the clients to have VOMS attributes.
+     * @return true if the attributes need to be validated.
+     */
+    public boolean needsVomsAttributes(String delegationID, boolean requireVomsAttrs) {
+        if (requireVomsAttrs || this == ALWAYS) {
+            return true;
+        }
+        return delegationID == null || delegationID.length() == 0;
+    }
+}
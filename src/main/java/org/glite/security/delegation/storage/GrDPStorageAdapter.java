@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004. See
+ * http://www.eu-egee.org/partners/ for details on the copyright holders.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.glite.security.delegation.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Base class of the storage implementations, adds the operations used by the delegation service on top of the ones of
+ * the {@link GrDPStorage} interface. <br/>
+ * 
+ * <p>
+ * The added operations have default implementations built from the operations of the interface, so a storage
+ * implementing only the interface keeps working: {@link #adapt(GrDPStorage)} wraps it into an adapter. The storages
+ * able to do better override them, like the database storage doing the operations of a session in one transaction.
+ * </p>
+ * 
+ * <p>
+ * The default implementations have the following limitations:
+ * <ul>
+ * <li>the pending delegation requests of a delegation cannot be listed, so they are never reused</li>
+ * <li>storing the delegated proxy and deleting the delegation request are done one after the other, not as one
+ * operation</li>
+ * <li>the sessions do each operation right away</li>
+ * </ul>
+ * </p>
+ */
+public abstract class GrDPStorageAdapter implements GrDPStorage {
+
+    // Class logger
+    private static Logger logger = Logger.getLogger(GrDPStorageAdapter.class);
+
+    /**
+     * Returns the storage as an adapter, wrapping it if it only implements the {@link GrDPStorage} interface.
+     * 
+     * @param storage The storage.
+     * @return The storage itself if it is an adapter already, otherwise an adapter passing the operations to it.
+     */
+    public static GrDPStorageAdapter adapt(GrDPStorage storage) {
+        if (storage instanceof GrDPStorageAdapter) {
+            return (GrDPStorageAdapter) storage;
+        }
+        return new WrappingAdapter(storage);
+    }
+
+    /**
+     * Tells whether {@link #findGrDPStorageCacheElements(String, String)} lists the pending delegation requests. The
+     * default implementation does not, so it returns false.
+     * 
+     * @return True if the pending delegation requests can be listed.
+     */
+    public boolean isPendingRequestLookupSupported() {
+        return false;
+    }
+
+    /**
+     * Insert several new delegation requests into storage cache area in one batch. The default implementation inserts
+     * them one by one.
+     * 
+     * @param elems Objects containing the information about the delegation requests.
+     * @throws GrDPStorageException Failed to store the new delegation requests in storage cache area.
+     */
+    public void insertGrDPStorageCacheElements(List<GrDPStorageCacheElement> elems) throws GrDPStorageException {
+        for (GrDPStorageCacheElement elem : elems) {
+            insertGrDPStorageCacheElement(elem);
+        }
+    }
+
+    /**
+     * Retrieves the pending delegation requests of a delegation from the storage cache area. The delegation requests
+     * are stored with the delegation ID followed by '+' and the session ID, this returns all the requests whose id
+     * starts with the given delegation ID and '+'. The default implementation cannot list them and returns an empty
+     * list.
+     * 
+     * @param delegationID The id of the delegation, without the session ID part.
+     * @param DN The dn of the user owning the delegation requests.
+     * @return The pending delegation requests, empty list if none were found.
+     * @throws GrDPStorageException Could not retrieve the delegation requests because an error occurred while tried to
+     *             access them.
+     */
+    public List<GrDPStorageCacheElement> findGrDPStorageCacheElements(String delegationID, String DN)
+            throws GrDPStorageException {
+        return new ArrayList<GrDPStorageCacheElement>();
+    }
+
+    /**
+     * Stores the delegated proxy and deletes the delegation request it was created from, as one operation: either
+     * both are done or neither. If the delegated proxy exists already, its proxy and termination time are replaced
+     * and its VOMS attributes are kept.
+     * 
+     * <p>
+     * The default implementation stores the delegated proxy first and then deletes the delegation request, a failure
+     * to delete the request is only logged as the request cannot be used after its proxy is stored.
+     * </p>
+     * 
+     * @param elem Object containing the information about the delegated proxy.
+     * @param cacheID The id of the delegation request in the storage cache area.
+     * @throws GrDPStorageException Failed to store the delegated proxy.
+     */
+    public void commitDelegation(GrDPStorageElement elem, String cacheID) throws GrDPStorageException {
+        GrDPStorageElement existing = findGrDPStorageElement(elem.getDelegationID(), elem.getDN());
+        if (existing != null) {
+            if (elem.getCertificateChainBytes() != null) {
+                existing.setCertificateBytes(elem.getCertificateChainBytes(), elem.getPrivateKeyBytes());
+            } else {
+                existing.setCertificate(elem.getCertificate());
+            }
+            existing.setTerminationTime(elem.getTerminationTime());
+            updateGrDPStorageElement(existing);
+        } else {
+            insertGrDPStorageElement(elem);
+        }
+
+        try {
+            deleteGrDPStorageCacheElement(cacheID, elem.getDN());
+        } catch (GrDPStorageException e) {
+            logger.warn("Failed to remove credential from storage cache.", e);
+        }
+    }
+
+    /**
+     * Opens a session for doing several operations as one unit of work, on one connection and in one transaction if
+     * the storage supports them. The session must be closed after use. The default implementation returns a session
+     * doing each operation right away.
+     * 
+     * @return The new session.
+     * @throws GrDPStorageException Failed to open the session.
+     */
+    public GrDPStorageSession openSession() throws GrDPStorageException {
+        return new GrDPStorageDirectSession(this);
+    }
+
+    /**
+     * Adapter of a storage implementing only the {@link GrDPStorage} interface.
+     */
+    private static class WrappingAdapter extends GrDPStorageAdapter {
+
+        // The storage doing the operations
+        private final GrDPStorage m_storage;
+
+        /**
+         * Class constructor.
+         * 
+         * @param storage The storage doing the operations.
+         */
+        WrappingAdapter(GrDPStorage storage) {
+            m_storage = storage;
+        }
+
+        public void insertGrDPStorageCacheElement(GrDPStorageCacheElement elem) throws GrDPStorageException {
+            m_storage.insertGrDPStorageCacheElement(elem);
+        }
+
+        public void updateGrDPStorageCacheElement(GrDPStorageCacheElement elem) throws GrDPStorageException {
+            m_storage.updateGrDPStorageCacheElement(elem);
+        }
+
+        public GrDPStorageCacheElement findGrDPStorageCacheElement(String delegationID, String DN)
+                throws GrDPStorageException {
+            return m_storage.findGrDPStorageCacheElement(delegationID, DN);
+        }
+
+        public void deleteGrDPStorageCacheElement(String delegationID, String DN) throws GrDPStorageException {
+            m_storage.deleteGrDPStorageCacheElement(delegationID, DN);
+        }
+
+        public void insertGrDPStorageElement(GrDPStorageElement elem) throws GrDPStorageException {
+            m_storage.insertGrDPStorageElement(elem);
+        }
+
+        public void updateGrDPStorageElement(GrDPStorageElement elem) throws GrDPStorageException {
+            m_storage.updateGrDPStorageElement(elem);
+        }
+
+        public GrDPStorageElement findGrDPStorageElement(String delegationID, String DN) throws GrDPStorageException {
+            return m_storage.findGrDPStorageElement(delegationID, DN);
+        }
+
+        public void deleteGrDPStorageElement(String delegationID, String DN) throws GrDPStorageException {
+            m_storage.deleteGrDPStorageElement(delegationID, DN);
+        }
+    }
+
+}
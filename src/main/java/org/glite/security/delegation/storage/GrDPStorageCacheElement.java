@@ -17,6 +17,16 @@
 
 package org.glite.security.delegation.storage;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.security.GeneralSecurityException;
+import java.util.Date;
+
+import org.apache.log4j.Logger;
+import org.bouncycastle.jce.PKCS10CertificationRequest;
+import org.bouncycastle.openssl.PEMReader;
+import org.glite.security.delegation.GrDPX509Util;
+
 import eu.emi.security.authn.x509.impl.OpensslNameUtils;
 
 /**
@@ -30,11 +40,18 @@ import eu.emi.security.authn.x509.impl.OpensslNameUtils;
  * <li><i>dn</i>: The DN associated with the delegation request</li>
  * <li><i>vomsAttributes</i>: The list of voms attributes to be contained inside the delegated proxy</li>
  * <li><i>certificateRequest</i>: The actual delegated proxy request</li>
- * <li><i>privateKey</i>: The private key associated with the delegation request</li>
+ * <li><i>privateKey</i>: The private key associated with the delegation request, in PEM or in binary as DER encoded
+ * PKCS#8. The PEM form of a binary key is produced when first asked for.</li>
+ * <li><i>creationTime</i>: The time the delegation request was stored, if known by the storage</li>
+ * <li><i>publicKeyFingerprint</i>: The fingerprint of the public key of the request, computed when the request is
+ * generated and stored with it</li>
  * </ul>
  */
 public class GrDPStorageCacheElement {
 
+    // Class logger
+    private static Logger logger = Logger.getLogger(GrDPStorageCacheElement.class);
+
     private String delegationID = null;
 
     private String DN = null;
@@ -45,6 +62,12 @@ public class GrDPStorageCacheElement {
 
     private String privateKey = null;
 
+    private byte[] privateKeyBytes = null;
+
+    private Date creationTime = null;
+
+    private byte[] publicKeyFingerprint = null;
+
     /**
      * Retrieves the delegation id of the delegation request.
      * 
@@ -97,9 +120,60 @@ public class GrDPStorageCacheElement {
      * @return The private key associated with the delegation request.
      */
     public String getPrivateKey() {
+        if (this.privateKey == null && this.privateKeyBytes != null) {
+            try {
+                this.privateKey = GrDPX509Util.toPEMPrivateKey(this.privateKeyBytes);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to convert the private key to PEM: " + e.getMessage(), e);
+            }
+        }
         return this.privateKey;
     }
 
+    /**
+     * Retrieves the private key associated with the delegation request in binary.
+     * 
+     * @return The DER encoded PKCS#8 private key, null if the key is only in PEM.
+     */
+    public byte[] getPrivateKeyBytes() {
+        return this.privateKeyBytes;
+    }
+
+    /**
+     * Retrieves the time the delegation request was stored.
+     * 
+     * @return The creation time of the delegation request, null if the storage doesn't record it.
+     */
+    public Date getCreationTime() {
+        return this.creationTime;
+    }
+
+    /**
+     * Retrieves the fingerprint of the public key of the delegation request, see
+     * {@link org.glite.security.delegation.GrDPX509Util#getPublicKeyFingerprint(java.security.PublicKey)}. If not set,
+     * for the requests stored without it, the fingerprint is computed from the certificate request.
+     * 
+     * @return The fingerprint of the public key, null if not set and the certificate request cannot be read.
+     */
+    public byte[] getPublicKeyFingerprint() {
+        if (this.publicKeyFingerprint == null && this.certificateRequest != null) {
+            try {
+                PEMReader pemReader = new PEMReader(new StringReader(this.certificateRequest));
+                Object request = pemReader.readObject();
+                pemReader.close();
+                if (request instanceof PKCS10CertificationRequest) {
+                    this.publicKeyFingerprint = GrDPX509Util
+                            .getPublicKeyFingerprint(((PKCS10CertificationRequest) request).getPublicKey());
+                }
+            } catch (IOException e) {
+                logger.debug("Could not read the certificate request: " + e.getMessage());
+            } catch (GeneralSecurityException e) {
+                logger.debug("Could not read the public key of the certificate request: " + e.getMessage());
+            }
+        }
+        return this.publicKeyFingerprint;
+    }
+
     /**
      * Sets the delegation id of the delegation request.
      * 
@@ -143,5 +217,34 @@ public class GrDPStorageCacheElement {
      */
     public void setPrivateKey(String privateKey) {
         this.privateKey = privateKey;
+        this.privateKeyBytes = null;
+    }
+
+    /**
+     * Sets the private key associated with the delegation request in binary.
+     * 
+     * @param privateKeyBytes The DER encoded PKCS#8 private key.
+     */
+    public void setPrivateKeyBytes(byte[] privateKeyBytes) {
+        this.privateKeyBytes = privateKeyBytes;
+        this.privateKey = null;
+    }
+
+    /**
+     * Sets the time the delegation request was stored.
+     * 
+     * @param creationTime The creation time of the delegation request.
+     */
+    public void setCreationTime(Date creationTime) {
+        this.creationTime = creationTime;
+    }
+
+    /**
+     * Sets the fingerprint of the public key of the delegation request.
+     * 
+     * @param publicKeyFingerprint The fingerprint of the public key.
+     */
+    public void setPublicKeyFingerprint(byte[] publicKeyFingerprint) {
+        this.publicKeyFingerprint = publicKeyFingerprint;
     }
 }
@@ -21,6 +21,9 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
@@ -28,6 +31,7 @@ import javax.naming.NamingException;
 import javax.sql.DataSource;
 
 import org.apache.log4j.Logger;
+import org.bouncycastle.util.encoders.Hex;
 import org.glite.security.delegation.GrDPX509Util;
 import org.glite.security.delegation.GrDProxyDlgeeOptions;
 
@@ -50,15 +54,45 @@ import org.glite.security.delegation.GrDProxyDlgeeOptions;
  * details.
  * </p>
  * 
+ * <p>
+ * With the binaryStorage option the private keys and proxy certificate chains are stored in binary, DER encoded, in
+ * the BLOB columns t_credential_cache.priv_key_der, t_credential.priv_key_der and t_credential.proxy_der. The columns
+ * are not part of the base schema and have to be added to the tables before enabling the option. The PEM columns
+ * priv_key and proxy of the binary rows are set to NULL, so they have to allow NULL values too. A row is read from its
+ * PEM column if that is set and from the binary columns otherwise, whether the option is enabled or not. So the rows
+ * stored in PEM before enabling the option are still read, and the option can be turned off again as long as the
+ * binary columns are kept.
+ * </p>
+ * 
+ * <p>
+ * The pending delegation requests are only reused when their age is known, the storage records it in the
+ * t_credential_cache.creation_time column. The column is not part of the base schema either, it is used when found at
+ * startup and can be added with:
+ * </p>
+ * 
+ * <pre>
+ * ALTER TABLE t_credential_cache ADD creation_time TIMESTAMP NULL;
+ * </pre>
+ * 
+ * <p>
+ * The public key fingerprint of a delegation request is stored in hex in the optional t_credential_cache.pub_key_fpr
+ * column, so the request is not parsed to match the delegated proxy to it. Without the column, and for the requests
+ * stored before it was added, the request is parsed instead. The column can be added with:
+ * </p>
+ * 
+ * <pre>
+ * ALTER TABLE t_credential_cache ADD pub_key_fpr VARCHAR(40) NULL;
+ * </pre>
+ * 
  * Authors: Ricardo Rocha <ricardo.rocha@cern.ch>
  */
-public class GrDPStorageDatabase implements GrDPStorage {
+public class GrDPStorageDatabase extends GrDPStorageAdapter {
 
     // Class logger
     private static Logger logger = Logger.getLogger(GrDPStorageDatabase.class);
 
     // Name of JNDI property holding the DB pool
-    private final String m_default_db_pool = "jdbc/dlg";
+    private static final String m_default_db_pool = "jdbc/dlg";
 
     // Data source object holding the db connection pool
     private final DataSource m_dataSource;
@@ -66,13 +100,58 @@ public class GrDPStorageDatabase implements GrDPStorage {
     // Object containing DLGEE configuration parameters
     // private GrDProxyDlgeeOptions dlgeeOpt = null;
 
+    // Whether the keys and proxies are stored in the binary columns
+    private final boolean m_binaryStorage;
+
+    // Whether the tables have the binary columns
+    private final boolean m_binaryColumns;
+
+    // Whether the storage cache table has the creation time column
+    private final boolean m_creationTimeColumn;
+
+    // Whether the storage cache table has the public key fingerprint column
+    private final boolean m_fingerprintColumn;
+
     /**
      * Class constructor.
      */
     public GrDPStorageDatabase(GrDProxyDlgeeOptions dlgeeOpt) throws GrDPStorageException {
+        this(dlgeeOpt, lookupDataSource(dlgeeOpt));
+    }
+
+    /**
+     * Creates the storage on the given data source instead of the one of the JNDI environment.
+     * 
+     * @param dlgeeOpt The options.
+     * @param dataSource The data source holding the db connection pool.
+     */
+    GrDPStorageDatabase(GrDProxyDlgeeOptions dlgeeOpt, DataSource dataSource) throws GrDPStorageException {
 
         // Save the DLGEE properties in a local variable
         // this.dlgeeOpt = dlgeeOpt;
+        m_binaryStorage = dlgeeOpt.isBinaryStorage();
+        m_dataSource = dataSource;
+
+        checkSchemaVersion(1, 2, 0);
+        m_binaryColumns = hasColumn("t_credential_cache", "priv_key_der") && hasColumn("t_credential", "proxy_der");
+        if (m_binaryStorage && !m_binaryColumns) {
+            throw new GrDPStorageException("The binary storage needs the priv_key_der and proxy_der columns.");
+        }
+        m_creationTimeColumn = hasColumn("t_credential_cache", "creation_time");
+        if (!m_creationTimeColumn) {
+            logger.info("No creation_time column in t_credential_cache, the pending requests are not reused.");
+        }
+        m_fingerprintColumn = hasColumn("t_credential_cache", "pub_key_fpr");
+    }
+
+    /**
+     * Looks up the data source of the db pool of the options from the JNDI environment.
+     * 
+     * @param dlgeeOpt The options.
+     * @return The data source.
+     * @throws GrDPStorageException Failed to find the data source.
+     */
+    private static DataSource lookupDataSource(GrDProxyDlgeeOptions dlgeeOpt) throws GrDPStorageException {
 
         // Set db pool
         String dbPoolName = dlgeeOpt.getDlgeeStorageDbPool();
@@ -89,13 +168,11 @@ public class GrDPStorageDatabase implements GrDPStorage {
             logger.debug("Fetched environment context");
 
             logger.debug("Looking up JNDI datasource: " + dbPoolName);
-            m_dataSource = (DataSource) envCtx.lookup(dbPoolName);
+            return (DataSource) envCtx.lookup(dbPoolName);
         } catch (NamingException ne) {
             logger.debug("Failed to load DB data source.", ne);
             throw new GrDPStorageException("Failed to load DB data source.");
         }
-
-        checkSchemaVersion(1, 2, 0);
     }
 
     protected void checkSchemaVersion(int major, int minor, int patch) throws GrDPStorageException {
@@ -133,43 +210,78 @@ public class GrDPStorageDatabase implements GrDPStorage {
     }
 
     /**
-     * Insert new delegation request into storage cache area.
+     * Checks whether a table has the given column.
      * 
-     * @param elem Object containing the information about the delegation request.
-     * @throws GrDPStorageException Failed to store new delegation request in storage cache area.
+     * @param table The name of the table.
+     * @param column The name of the column.
+     * @return true if the column can be queried.
+     * @throws GrDPStorageException Failed to get a connection.
      */
-    public void insertGrDPStorageCacheElement(GrDPStorageCacheElement elem) throws GrDPStorageException {
-        logger.debug("Entered GrDPStorageDatabase insertGrDPStorageCacheElement.");
+    private boolean hasColumn(String table, String column) throws GrDPStorageException {
 
-        String sql = "INSERT INTO t_credential_cache (dlg_id, dn, cert_request, priv_key, voms_attrs) "
-                + "VALUES (?, ?, ?, ?, ?)";
+        String sql = "SELECT " + column + " FROM " + table + " WHERE 1 = 0";
 
         Connection conn = null;
         PreparedStatement p_stat = null;
+        ResultSet rs = null;
 
         try {
             conn = getConnection();
-
-            p_stat = conn.prepareStatement(sql);
-            p_stat.setString(1, elem.getDelegationID());
-            p_stat.setString(2, elem.getDNasX500());
-            p_stat.setString(3, elem.getCertificateRequest());
-            p_stat.setString(4, elem.getPrivateKey());
-            p_stat.setString(5, GrDPX509Util.toStringVOMSAttrs(elem.getVomsAttributes()));
-
-            p_stat.executeUpdate();
-
-            // Commit
-            this.commit(conn);
         } catch (SQLException e) {
             logger.error("Failure on db interaction.", e);
-            this.rollback(conn);
             throw new GrDPStorageException("Internal failure: " + e.getMessage());
+        }
+        try {
+            p_stat = conn.prepareStatement(sql);
+            rs = p_stat.executeQuery();
+            return true;
+        } catch (SQLException e) {
+            logger.debug("Column " + table + "." + column + " not found: " + e.getMessage());
+            return false;
         } finally {
-            this.cleanup(conn);
+            this.cleanup(rs);
             this.cleanup(p_stat);
+            // nothing was changed, the rollback ends the failed transaction
+            this.rollback(conn);
+            this.cleanup(conn);
+        }
+    }
+
+    /**
+     * Insert new delegation request into storage cache area.
+     * 
+     * @param elem Object containing the information about the delegation request.
+     * @throws GrDPStorageException Failed to store new delegation request in storage cache area.
+     */
+    public void insertGrDPStorageCacheElement(GrDPStorageCacheElement elem) throws GrDPStorageException {
+        logger.debug("Entered GrDPStorageDatabase insertGrDPStorageCacheElement.");
+
+        GrDPStorageSession session = openSession();
+        try {
+            session.insertGrDPStorageCacheElement(elem);
+            session.commit();
+        } finally {
+            session.close();
         }
+    }
+
+    /**
+     * Insert several new delegation requests into storage cache area. The requests are inserted as one batch in a
+     * single transaction, either all or none of them are stored.
+     * 
+     * @param elems Objects containing the information about the delegation requests.
+     * @throws GrDPStorageException Failed to store the new delegation requests in storage cache area.
+     */
+    public void insertGrDPStorageCacheElements(List<GrDPStorageCacheElement> elems) throws GrDPStorageException {
+        logger.debug("Entered GrDPStorageDatabase insertGrDPStorageCacheElements.");
 
+        GrDPStorageSession session = openSession();
+        try {
+            session.insertGrDPStorageCacheElements(elems);
+            session.commit();
+        } finally {
+            session.close();
+        }
     }
 
     /**
@@ -181,35 +293,13 @@ public class GrDPStorageDatabase implements GrDPStorage {
     public void updateGrDPStorageCacheElement(GrDPStorageCacheElement elem) throws GrDPStorageException {
         logger.debug("Entered GrDPStorageDatabase updateGrDPStorageCacheElement.");
 
-        String sql = "UPDATE t_credential_cache C SET " + "cert_request = ?, priv_key = ?, voms_attrs = ? "
-                + "WHERE dlg_id = ? AND dn = ?";
-
-        Connection conn = null;
-        PreparedStatement p_stat = null;
-
+        GrDPStorageSession session = openSession();
         try {
-            conn = getConnection();
-
-            p_stat = conn.prepareStatement(sql);
-            p_stat.setString(1, elem.getCertificateRequest());
-            p_stat.setString(2, elem.getPrivateKey());
-            p_stat.setString(3, GrDPX509Util.toStringVOMSAttrs(elem.getVomsAttributes()));
-            p_stat.setString(4, elem.getDelegationID());
-            p_stat.setString(5, elem.getDNasX500());
-
-            p_stat.executeUpdate();
-
-            // Commit
-            this.commit(conn);
-        } catch (SQLException e) {
-            logger.error("Failure on db interaction.", e);
-            this.rollback(conn);
-            throw new GrDPStorageException("Internal failure: " + e.getMessage());
+            session.updateGrDPStorageCacheElement(elem);
+            session.commit();
         } finally {
-            this.cleanup(conn);
-            this.cleanup(p_stat);
+            session.close();
         }
-
     }
 
     /**
@@ -225,44 +315,42 @@ public class GrDPStorageDatabase implements GrDPStorage {
             throws GrDPStorageException {
         logger.debug("Entered GrDPStorageDatabase findGrDPStorageCacheElement.");
 
-        logger.debug("Looking for dlg id '" + delegationID + "' and dn '" + dn + "' in cache");
-
-        GrDPStorageCacheElement elem = null;
-
-        String sql = "SELECT dlg_id, dn, voms_attrs, cert_request, priv_key " + "FROM t_credential_cache "
-                + "WHERE dlg_id = ? AND dn = ?";
-
-        Connection conn = null;
-        PreparedStatement p_stat = null;
-        ResultSet rs = null;
-
+        GrDPStorageSession session = openSession();
         try {
-            conn = getConnection();
+            return session.findGrDPStorageCacheElement(delegationID, dn);
+        } finally {
+            session.close();
+        }
+    }
 
-            p_stat = conn.prepareStatement(sql);
-            p_stat.setString(1, delegationID);
-            p_stat.setString(2, dn);
+    /**
+     * Retrieves the pending delegation requests of a delegation.
+     * 
+     * @param delegationID The id of the delegation, without the session ID part.
+     * @param dn The dn of the owner of the delegation requests.
+     * @return The pending delegation requests, empty list if none were found.
+     * @throws GrDPStorageException Failed to retrieve the delegation requests.
+     */
+    public List<GrDPStorageCacheElement> findGrDPStorageCacheElements(String delegationID, String dn)
+            throws GrDPStorageException {
+        logger.debug("Entered GrDPStorageDatabase findGrDPStorageCacheElements.");
 
-            rs = p_stat.executeQuery();
-            if (rs.next()) {
-                elem = new GrDPStorageCacheElement();
-                elem.setDelegationID(rs.getString("dlg_id"));
-                elem.setDN(rs.getString("dn"));
-                elem.setCertificateRequest(rs.getString("cert_request"));
-                elem.setVomsAttributes(GrDPX509Util.fromStringVOMSAttrs(rs.getString("voms_attrs")));
-                elem.setPrivateKey(rs.getString("priv_key"));
-            }
-        } catch (SQLException e) {
-            logger.error("Failure on db interaction.", e);
-            this.rollback(conn);
-            throw new GrDPStorageException("Internal failure: " + e.getMessage());
+        GrDPStorageSession session = openSession();
+        try {
+            return session.findGrDPStorageCacheElements(delegationID, dn);
         } finally {
-            this.cleanup(conn);
-            this.cleanup(p_stat);
-            this.cleanup(rs);
+            session.close();
         }
+    }
 
-        return elem;
+    /**
+     * Escapes the LIKE wildcards in the given string, '!' is used as the escape character.
+     * 
+     * @param value The string to escape.
+     * @return The string with the wildcards escaped.
+     */
+    private static String escapeLike(String value) {
+        return value.replace("!", "!!").replace("%", "!%").replace("_", "!_");
     }
 
     /**
@@ -276,31 +364,13 @@ public class GrDPStorageDatabase implements GrDPStorage {
     public void deleteGrDPStorageCacheElement(String delegationID, String dn) throws GrDPStorageException {
         logger.debug("Entered GrDPStorageDatabase deleteGrDPStorageCacheElement.");
 
-        String sql = "DELETE FROM t_credential_cache " + "WHERE dlg_id = ? AND dn = ?";
-
-        Connection conn = null;
-        PreparedStatement p_stat = null;
-
+        GrDPStorageSession session = openSession();
         try {
-            conn = getConnection();
-
-            p_stat = conn.prepareStatement(sql);
-            p_stat.setString(1, delegationID);
-            p_stat.setString(2, dn);
-
-            p_stat.executeUpdate();
-
-            // Commit
-            this.commit(conn);
-        } catch (SQLException e) {
-            logger.error("Failure on db interaction.", e);
-            this.rollback(conn);
-            throw new GrDPStorageException("Internal failure: " + e.getMessage());
+            session.deleteGrDPStorageCacheElement(delegationID, dn);
+            session.commit();
         } finally {
-            this.cleanup(conn);
-            this.cleanup(p_stat);
+            session.close();
         }
-
     }
 
     /**
@@ -312,35 +382,71 @@ public class GrDPStorageDatabase implements GrDPStorage {
     public void insertGrDPStorageElement(GrDPStorageElement elem) throws GrDPStorageException {
         logger.debug("Entered GrDPStorageDatabase insertGrDPStorageElement.");
 
-        String sql = "INSERT INTO t_credential (dlg_id, dn, proxy, voms_attrs, termination_time) "
-                + "VALUES (?, ?, ?, ?, ?)";
+        GrDPStorageSession session = openSession();
+        try {
+            session.insertGrDPStorageElement(elem);
+            session.commit();
+        } finally {
+            session.close();
+        }
+    }
 
-        Connection conn = null;
-        PreparedStatement p_stat = null;
+    /**
+     * Stores the delegated proxy and deletes the delegation request it was created from in a single transaction. The
+     * proxy and termination time of an existing delegated proxy are updated, keeping its VOMS attributes, otherwise
+     * the delegated proxy is inserted. If a concurrent commit inserts the same delegated proxy first, it is updated.
+     * 
+     * @param elem Object containing the information about the delegated proxy.
+     * @param cacheID The id of the delegation request in the storage cache area.
+     * @throws GrDPStorageException Failed to store the delegated proxy or to delete the delegation request.
+     */
+    public void commitDelegation(GrDPStorageElement elem, String cacheID) throws GrDPStorageException {
+        logger.debug("Entered GrDPStorageDatabase commitDelegation.");
 
+        GrDPStorageSession session = openSession();
         try {
-            conn = getConnection();
+            session.commitDelegation(elem, cacheID);
+            session.commit();
+        } finally {
+            session.close();
+        }
+    }
 
+    /**
+     * Inserts the delegated proxy using the given connection, without committing.
+     * 
+     * @param conn The connection.
+     * @param elem Object containing the information about the delegated proxy.
+     * @throws SQLException Failed to insert the delegated proxy.
+     */
+    private void insertElement(Connection conn, GrDPStorageElement elem) throws SQLException {
+        String sql = "INSERT INTO t_credential (dlg_id, dn, voms_attrs, termination_time, " + proxyColumns()
+                + ") VALUES (?, ?, ?, ?, " + proxyParameters() + ")";
+
+        PreparedStatement p_stat = null;
+
+        try {
             p_stat = conn.prepareStatement(sql);
             p_stat.setString(1, elem.getDelegationID());
             p_stat.setString(2, elem.getDNasX500());
-            p_stat.setString(3, elem.getCertificate());
-            p_stat.setString(4, GrDPX509Util.toStringVOMSAttrs(elem.getVomsAttributes()));
-            p_stat.setTimestamp(5, new java.sql.Timestamp(elem.getTerminationTime().getTime()));
+            p_stat.setString(3, GrDPX509Util.toStringVOMSAttrs(elem.getVomsAttributes()));
+            p_stat.setTimestamp(4, new java.sql.Timestamp(elem.getTerminationTime().getTime()));
+            setProxy(p_stat, 5, elem);
 
             p_stat.executeUpdate();
-
-            // Commit
-            this.commit(conn);
-        } catch (SQLException e) {
-            logger.error("Failure on db interaction.", e);
-            this.rollback(conn);
-            throw new GrDPStorageException("Internal failure: " + e.getMessage());
         } finally {
-            this.cleanup(conn);
             this.cleanup(p_stat);
         }
+    }
 
+    /**
+     * Checks whether a failure is an integrity constraint violation, like a duplicate key.
+     * 
+     * @param e The failure.
+     * @return true if the SQL state of the failure is of the integrity constraint violation class.
+     */
+    private static boolean isConstraintViolation(SQLException e) {
+        return e.getSQLState() != null && e.getSQLState().startsWith("23");
     }
 
     /**
@@ -352,35 +458,13 @@ public class GrDPStorageDatabase implements GrDPStorage {
     public void updateGrDPStorageElement(GrDPStorageElement elem) throws GrDPStorageException {
         logger.debug("Entered GrDPStorageDatabase updateGrDPStorageElement.");
 
-        String sql = "UPDATE t_credential C SET " + "proxy = ?, voms_attrs = ?, termination_time = ? "
-                + "WHERE dlg_id = ? AND dn = ?";
-
-        Connection conn = null;
-        PreparedStatement p_stat = null;
-
+        GrDPStorageSession session = openSession();
         try {
-            conn = getConnection();
-
-            p_stat = conn.prepareStatement(sql);
-            p_stat.setString(1, elem.getCertificate());
-            p_stat.setString(2, GrDPX509Util.toStringVOMSAttrs(elem.getVomsAttributes()));
-            p_stat.setTimestamp(3, new java.sql.Timestamp(elem.getTerminationTime().getTime()));
-            p_stat.setString(4, elem.getDelegationID());
-            p_stat.setString(5, elem.getDNasX500());
-
-            p_stat.executeUpdate();
-
-            // Commit
-            this.commit(conn);
-        } catch (SQLException e) {
-            logger.error("Failure on db interaction.", e);
-            this.rollback(conn);
-            throw new GrDPStorageException("Internal failure: " + e.getMessage());
+            session.updateGrDPStorageElement(elem);
+            session.commit();
         } finally {
-            this.cleanup(conn);
-            this.cleanup(p_stat);
+            session.close();
         }
-
     }
 
     /**
@@ -395,44 +479,12 @@ public class GrDPStorageDatabase implements GrDPStorage {
     public GrDPStorageElement findGrDPStorageElement(String delegationID, String dn) throws GrDPStorageException {
         logger.debug("Entered GrDPStorageDatabase findGrDPStorageElement.");
 
-        logger.debug("Looking for dlg id '" + delegationID + "' and dn '" + dn + "' in storage");
-
-        GrDPStorageElement elem = null;
-
-        String sql = "SELECT dlg_id, dn, voms_attrs, proxy, termination_time " + "FROM t_credential "
-                + "WHERE dlg_id = ? AND dn = ?";
-
-        Connection conn = null;
-        PreparedStatement p_stat = null;
-        ResultSet rs = null;
-
+        GrDPStorageSession session = openSession();
         try {
-            conn = getConnection();
-
-            p_stat = conn.prepareStatement(sql);
-            p_stat.setString(1, delegationID);
-            p_stat.setString(2, dn);
-
-            rs = p_stat.executeQuery();
-            if (rs.next()) {
-                elem = new GrDPStorageElement();
-                elem.setDelegationID(rs.getString("dlg_id"));
-                elem.setDN(rs.getString("dn"));
-                elem.setCertificate(rs.getString("proxy"));
-                elem.setVomsAttributes(GrDPX509Util.fromStringVOMSAttrs(rs.getString("voms_attrs")));
-                elem.setTerminationTime(rs.getTimestamp("termination_time"));
-            }
-        } catch (SQLException e) {
-            logger.error("Failure on db interaction.", e);
-            this.rollback(conn);
-            throw new GrDPStorageException("Internal failure: " + e.getMessage());
+            return session.findGrDPStorageElement(delegationID, dn);
         } finally {
-            this.cleanup(conn);
-            this.cleanup(p_stat);
-            this.cleanup(rs);
+            session.close();
         }
-
-        return elem;
     }
 
     /**
@@ -446,31 +498,192 @@ public class GrDPStorageDatabase implements GrDPStorage {
     public void deleteGrDPStorageElement(String delegationID, String dn) throws GrDPStorageException {
         logger.debug("Entered GrDPStorageDatabase deleteGrDPStorageElement.");
 
-        String sql = "DELETE FROM t_credential " + "WHERE dlg_id = ? AND dn = ?";
+        GrDPStorageSession session = openSession();
+        try {
+            session.deleteGrDPStorageElement(delegationID, dn);
+            session.commit();
+        } finally {
+            session.close();
+        }
+    }
 
-        Connection conn = null;
-        PreparedStatement p_stat = null;
+    /**
+     * Returns the private key columns of the storage cache table.
+     * 
+     * @return The column names separated by commas.
+     */
+    private String cacheKeyColumns() {
+        return m_binaryColumns ? "priv_key, priv_key_der" : "priv_key";
+    }
 
-        try {
-            conn = getConnection();
+    /**
+     * Returns the parameter placeholders for the private key columns of the storage cache table.
+     * 
+     * @return The placeholders separated by commas.
+     */
+    private String cacheKeyParameters() {
+        return m_binaryColumns ? "?, ?" : "?";
+    }
 
-            p_stat = conn.prepareStatement(sql);
-            p_stat.setString(1, delegationID);
-            p_stat.setString(2, dn);
+    /**
+     * Returns the proxy columns of the storage table.
+     * 
+     * @return The column names separated by commas.
+     */
+    private String proxyColumns() {
+        return m_binaryColumns ? "proxy, proxy_der, priv_key_der" : "proxy";
+    }
 
-            p_stat.executeUpdate();
+    /**
+     * Returns the parameter placeholders for the proxy columns of the storage table.
+     * 
+     * @return The placeholders separated by commas.
+     */
+    private String proxyParameters() {
+        return m_binaryColumns ? "?, ?, ?" : "?";
+    }
 
-            // Commit
-            this.commit(conn);
-        } catch (SQLException e) {
-            logger.error("Failure on db interaction.", e);
-            this.rollback(conn);
-            throw new GrDPStorageException("Internal failure: " + e.getMessage());
-        } finally {
-            this.cleanup(conn);
-            this.cleanup(p_stat);
+    /**
+     * Sets the private key parameters of a storage cache statement, in the order of {@link #cacheKeyColumns()}. Only
+     * one of the PEM and the binary column is set, the other one is set to NULL.
+     * 
+     * @param p_stat The statement.
+     * @param index The index of the first private key parameter.
+     * @param elem The delegation request.
+     * @return The index of the parameter following the private key parameters.
+     * @throws SQLException Failed to set the parameters.
+     */
+    private int setCacheKey(PreparedStatement p_stat, int index, GrDPStorageCacheElement elem) throws SQLException {
+        byte keyBytes[] = m_binaryStorage ? elem.getPrivateKeyBytes() : null;
+        p_stat.setString(index, keyBytes == null ? elem.getPrivateKey() : null);
+        if (!m_binaryColumns) {
+            return index + 1;
+        }
+        p_stat.setBytes(index + 1, keyBytes);
+        return index + 2;
+    }
+
+    /**
+     * Reads the private key of a delegation request from the current row of a storage cache query, from the binary
+     * column if the PEM column is NULL.
+     * 
+     * @param rs The result set of a query of the {@link #cacheKeyColumns()}.
+     * @param elem The delegation request to set the private key to.
+     * @throws SQLException Failed to read the columns.
+     */
+    private void readCacheKey(ResultSet rs, GrDPStorageCacheElement elem) throws SQLException {
+        String key = rs.getString("priv_key");
+        if (key == null && m_binaryColumns) {
+            elem.setPrivateKeyBytes(rs.getBytes("priv_key_der"));
+        } else {
+            elem.setPrivateKey(key);
+        }
+    }
+
+    /**
+     * Returns the optional columns of the storage cache table that it has, to be appended to a list of columns.
+     * 
+     * @return The column names each preceded by a comma, empty if the table has none of them.
+     */
+    private String optionalCacheColumns() {
+        return (m_creationTimeColumn ? ", creation_time" : "") + (m_fingerprintColumn ? ", pub_key_fpr" : "");
+    }
+
+    /**
+     * Returns the parameter placeholders for the {@link #optionalCacheColumns()}.
+     * 
+     * @return The placeholders each preceded by a comma.
+     */
+    private String optionalCacheParameters() {
+        return (m_creationTimeColumn ? ", ?" : "") + (m_fingerprintColumn ? ", ?" : "");
+    }
+
+    /**
+     * Returns the assignments of the {@link #optionalCacheColumns()} for an update statement.
+     * 
+     * @return The assignments each preceded by a comma.
+     */
+    private String optionalCacheAssignments() {
+        return (m_creationTimeColumn ? ", creation_time = ?" : "") + (m_fingerprintColumn ? ", pub_key_fpr = ?" : "");
+    }
+
+    /**
+     * Sets the parameters of the {@link #optionalCacheColumns()} of a storage cache statement, the creation time to the
+     * current time.
+     * 
+     * @param p_stat The statement.
+     * @param index The index of the first optional parameter.
+     * @param elem The delegation request.
+     * @return The index of the parameter following the optional parameters.
+     * @throws SQLException Failed to set the parameters.
+     */
+    private int setOptionalCacheColumns(PreparedStatement p_stat, int index, GrDPStorageCacheElement elem)
+            throws SQLException {
+        if (m_creationTimeColumn) {
+            p_stat.setTimestamp(index++, new java.sql.Timestamp(System.currentTimeMillis()));
+        }
+        if (m_fingerprintColumn) {
+            byte fingerprint[] = elem.getPublicKeyFingerprint();
+            p_stat.setString(index++, fingerprint == null ? null : new String(Hex.encode(fingerprint)));
         }
+        return index;
+    }
 
+    /**
+     * Reads the {@link #optionalCacheColumns()} of a delegation request from the current row of a storage cache query.
+     * 
+     * @param rs The result set of a query of the optional columns.
+     * @param elem The delegation request to set the values to.
+     * @throws SQLException Failed to read the columns.
+     */
+    private void readOptionalCacheColumns(ResultSet rs, GrDPStorageCacheElement elem) throws SQLException {
+        if (m_creationTimeColumn) {
+            elem.setCreationTime(rs.getTimestamp("creation_time"));
+        }
+        if (m_fingerprintColumn) {
+            String fingerprint = rs.getString("pub_key_fpr");
+            if (fingerprint != null) {
+                elem.setPublicKeyFingerprint(Hex.decode(fingerprint));
+            }
+        }
+    }
+
+    /**
+     * Sets the proxy parameters of a storage statement, in the order of {@link #proxyColumns()}. Only one of the PEM
+     * and the binary columns are set, the others are set to NULL.
+     * 
+     * @param p_stat The statement.
+     * @param index The index of the first proxy parameter.
+     * @param elem The delegated proxy.
+     * @return The index of the parameter following the proxy parameters.
+     * @throws SQLException Failed to set the parameters.
+     */
+    private int setProxy(PreparedStatement p_stat, int index, GrDPStorageElement elem) throws SQLException {
+        byte chainBytes[] = m_binaryStorage ? elem.getCertificateChainBytes() : null;
+        p_stat.setString(index, chainBytes == null ? elem.getCertificate() : null);
+        if (!m_binaryColumns) {
+            return index + 1;
+        }
+        p_stat.setBytes(index + 1, chainBytes);
+        p_stat.setBytes(index + 2, chainBytes == null ? null : elem.getPrivateKeyBytes());
+        return index + 3;
+    }
+
+    /**
+     * Reads the proxy of a delegation from the current row of a storage query, from the binary columns if the PEM
+     * column is NULL.
+     * 
+     * @param rs The result set of a query of the {@link #proxyColumns()}.
+     * @param elem The delegated proxy to set the proxy to.
+     * @throws SQLException Failed to read the columns.
+     */
+    private void readProxy(ResultSet rs, GrDPStorageElement elem) throws SQLException {
+        String proxy = rs.getString("proxy");
+        if (proxy == null && m_binaryColumns) {
+            elem.setCertificateBytes(rs.getBytes("proxy_der"), rs.getBytes("priv_key_der"));
+        } else {
+            elem.setCertificate(proxy);
+        }
     }
 
     /**
@@ -551,4 +764,387 @@ public class GrDPStorageDatabase implements GrDPStorage {
         }
     }
 
+    /**
+     * The database storage lists the pending delegation requests, their creation times are recorded if the storage
+     * cache table has the creation_time column.
+     * 
+     * @return true if the storage cache table has the creation time column.
+     */
+    public boolean isPendingRequestLookupSupported() {
+        return m_creationTimeColumn;
+    }
+
+    /**
+     * Opens a session on the storage. The operations of the session share one connection, taken from the pool on the
+     * first operation, and one transaction.
+     * 
+     * @return The new session.
+     */
+    public GrDPStorageSession openSession() {
+        return new DatabaseSession();
+    }
+
+    /**
+     * The session of the database storage, all the operations are done on the same connection in one transaction.
+     */
+    private class DatabaseSession implements GrDPStorageSession {
+
+        // The connection of the session, null until the first operation
+        private Connection m_conn = null;
+
+        // Whether operations were done after the last commit
+        private boolean m_uncommitted = false;
+
+        public void insertGrDPStorageCacheElement(GrDPStorageCacheElement elem) throws GrDPStorageException {
+            String sql = "INSERT INTO t_credential_cache (dlg_id, dn, cert_request, voms_attrs, " + cacheKeyColumns()
+                    + optionalCacheColumns() + ") VALUES (?, ?, ?, ?, " + cacheKeyParameters()
+                    + optionalCacheParameters() + ")";
+
+            PreparedStatement p_stat = null;
+
+            try {
+                p_stat = connection().prepareStatement(sql);
+                p_stat.setString(1, elem.getDelegationID());
+                p_stat.setString(2, elem.getDNasX500());
+                p_stat.setString(3, elem.getCertificateRequest());
+                p_stat.setString(4, GrDPX509Util.toStringVOMSAttrs(elem.getVomsAttributes()));
+                setOptionalCacheColumns(p_stat, setCacheKey(p_stat, 5, elem), elem);
+
+                p_stat.executeUpdate();
+            } catch (SQLException e) {
+                throw failure(e);
+            } finally {
+                cleanup(p_stat);
+            }
+        }
+
+        public void insertGrDPStorageCacheElements(List<GrDPStorageCacheElement> elems) throws GrDPStorageException {
+            if (elems.isEmpty()) {
+                return;
+            }
+
+            String sql = "INSERT INTO t_credential_cache (dlg_id, dn, cert_request, voms_attrs, " + cacheKeyColumns()
+                    + optionalCacheColumns() + ") VALUES (?, ?, ?, ?, " + cacheKeyParameters()
+                    + optionalCacheParameters() + ")";
+
+            PreparedStatement p_stat = null;
+
+            try {
+                p_stat = connection().prepareStatement(sql);
+                for (GrDPStorageCacheElement elem : elems) {
+                    p_stat.setString(1, elem.getDelegationID());
+                    p_stat.setString(2, elem.getDNasX500());
+                    p_stat.setString(3, elem.getCertificateRequest());
+                    p_stat.setString(4, GrDPX509Util.toStringVOMSAttrs(elem.getVomsAttributes()));
+                    setOptionalCacheColumns(p_stat, setCacheKey(p_stat, 5, elem), elem);
+                    p_stat.addBatch();
+                }
+
+                p_stat.executeBatch();
+            } catch (SQLException e) {
+                throw failure(e);
+            } finally {
+                cleanup(p_stat);
+            }
+        }
+
+        public void updateGrDPStorageCacheElement(GrDPStorageCacheElement elem) throws GrDPStorageException {
+            String sql = "UPDATE t_credential_cache C SET " + "cert_request = ?, voms_attrs = ?, priv_key = ?"
+                    + (m_binaryColumns ? ", priv_key_der = ?" : "")
+                    + optionalCacheAssignments() + " WHERE dlg_id = ? AND dn = ?";
+
+            PreparedStatement p_stat = null;
+
+            try {
+                p_stat = connection().prepareStatement(sql);
+                p_stat.setString(1, elem.getCertificateRequest());
+                p_stat.setString(2, GrDPX509Util.toStringVOMSAttrs(elem.getVomsAttributes()));
+                int index = setOptionalCacheColumns(p_stat, setCacheKey(p_stat, 3, elem), elem);
+                p_stat.setString(index, elem.getDelegationID());
+                p_stat.setString(index + 1, elem.getDNasX500());
+
+                p_stat.executeUpdate();
+            } catch (SQLException e) {
+                throw failure(e);
+            } finally {
+                cleanup(p_stat);
+            }
+        }
+
+        public GrDPStorageCacheElement findGrDPStorageCacheElement(String delegationID, String dn)
+                throws GrDPStorageException {
+            logger.debug("Looking for dlg id '" + delegationID + "' and dn '" + dn + "' in cache");
+
+            GrDPStorageCacheElement elem = null;
+
+            String sql = "SELECT dlg_id, dn, voms_attrs, cert_request, " + cacheKeyColumns() + optionalCacheColumns()
+                    + " FROM t_credential_cache "
+                    + "WHERE dlg_id = ? AND dn = ?";
+
+            PreparedStatement p_stat = null;
+            ResultSet rs = null;
+
+            try {
+                p_stat = connection().prepareStatement(sql);
+                p_stat.setString(1, delegationID);
+                p_stat.setString(2, dn);
+
+                rs = p_stat.executeQuery();
+                if (rs.next()) {
+                    elem = new GrDPStorageCacheElement();
+                    elem.setDelegationID(rs.getString("dlg_id"));
+                    elem.setDN(rs.getString("dn"));
+                    elem.setCertificateRequest(rs.getString("cert_request"));
+                    elem.setVomsAttributes(GrDPX509Util.fromStringVOMSAttrs(rs.getString("voms_attrs")));
+                    readCacheKey(rs, elem);
+                    readOptionalCacheColumns(rs, elem);
+                }
+            } catch (SQLException e) {
+                throw failure(e);
+            } finally {
+                cleanup(p_stat);
+                cleanup(rs);
+            }
+
+            return elem;
+        }
+
+        public List<GrDPStorageCacheElement> findGrDPStorageCacheElements(String delegationID, String dn)
+                throws GrDPStorageException {
+            logger.debug("Looking for dlg id prefix '" + delegationID + "+' and dn '" + dn + "' in cache");
+
+            List<GrDPStorageCacheElement> elems = new ArrayList<GrDPStorageCacheElement>();
+
+            String sql = "SELECT dlg_id, dn, voms_attrs, cert_request, " + cacheKeyColumns() + optionalCacheColumns()
+                    + " FROM t_credential_cache "
+                    + "WHERE dlg_id LIKE ? ESCAPE '!' AND dn = ?";
+
+            PreparedStatement p_stat = null;
+            ResultSet rs = null;
+
+            try {
+                p_stat = connection().prepareStatement(sql);
+                p_stat.setString(1, escapeLike(delegationID) + "+%");
+                p_stat.setString(2, dn);
+
+                rs = p_stat.executeQuery();
+                while (rs.next()) {
+                    GrDPStorageCacheElement elem = new GrDPStorageCacheElement();
+                    elem.setDelegationID(rs.getString("dlg_id"));
+                    elem.setDN(rs.getString("dn"));
+                    elem.setCertificateRequest(rs.getString("cert_request"));
+                    elem.setVomsAttributes(GrDPX509Util.fromStringVOMSAttrs(rs.getString("voms_attrs")));
+                    readCacheKey(rs, elem);
+                    readOptionalCacheColumns(rs, elem);
+                    elems.add(elem);
+                }
+            } catch (SQLException e) {
+                throw failure(e);
+            } finally {
+                cleanup(p_stat);
+                cleanup(rs);
+            }
+
+            return elems;
+        }
+
+        public void deleteGrDPStorageCacheElement(String delegationID, String dn) throws GrDPStorageException {
+            String sql = "DELETE FROM t_credential_cache " + "WHERE dlg_id = ? AND dn = ?";
+
+            PreparedStatement p_stat = null;
+
+            try {
+                p_stat = connection().prepareStatement(sql);
+                p_stat.setString(1, delegationID);
+                p_stat.setString(2, dn);
+
+                p_stat.executeUpdate();
+            } catch (SQLException e) {
+                throw failure(e);
+            } finally {
+                cleanup(p_stat);
+            }
+        }
+
+        public void insertGrDPStorageElement(GrDPStorageElement elem) throws GrDPStorageException {
+
+            try {
+                insertElement(connection(), elem);
+            } catch (SQLException e) {
+                throw failure(e);
+            }
+        }
+
+        public void commitDelegation(GrDPStorageElement elem, String cacheID) throws GrDPStorageException {
+            String sql = "UPDATE t_credential C SET " + "termination_time = ?, proxy = ?"
+                    + (m_binaryColumns ? ", proxy_der = ?, priv_key_der = ? " : " ") + "WHERE dlg_id = ? AND dn = ?";
+
+            PreparedStatement p_stat = null;
+
+            try {
+                p_stat = connection().prepareStatement(sql);
+                p_stat.setTimestamp(1, new java.sql.Timestamp(elem.getTerminationTime().getTime()));
+                int index = setProxy(p_stat, 2, elem);
+                p_stat.setString(index, elem.getDelegationID());
+                p_stat.setString(index + 1, elem.getDNasX500());
+
+                if (p_stat.executeUpdate() == 0) {
+                    // a concurrent commit of the same delegation can insert it first, the update is then retried
+                    Savepoint savepoint = connection().setSavepoint();
+                    try {
+                        insertElement(connection(), elem);
+                    } catch (SQLException e) {
+                        if (!isConstraintViolation(e)) {
+                            throw e;
+                        }
+                        logger.debug("Delegation '" + elem.getDelegationID() + "' inserted concurrently, updating.");
+                        connection().rollback(savepoint);
+                        if (p_stat.executeUpdate() == 0) {
+                            throw e;
+                        }
+                    }
+                }
+
+                cleanup(p_stat);
+                p_stat = connection().prepareStatement(
+                        "DELETE FROM t_credential_cache " + "WHERE dlg_id = ? AND dn = ?");
+                p_stat.setString(1, cacheID);
+                p_stat.setString(2, elem.getDNasX500());
+
+                p_stat.executeUpdate();
+            } catch (SQLException e) {
+                throw failure(e);
+            } finally {
+                cleanup(p_stat);
+            }
+        }
+
+        public void updateGrDPStorageElement(GrDPStorageElement elem) throws GrDPStorageException {
+            String sql = "UPDATE t_credential C SET " + "voms_attrs = ?, termination_time = ?, proxy = ?"
+                    + (m_binaryColumns ? ", proxy_der = ?, priv_key_der = ? " : " ") + "WHERE dlg_id = ? AND dn = ?";
+
+            PreparedStatement p_stat = null;
+
+            try {
+                p_stat = connection().prepareStatement(sql);
+                p_stat.setString(1, GrDPX509Util.toStringVOMSAttrs(elem.getVomsAttributes()));
+                p_stat.setTimestamp(2, new java.sql.Timestamp(elem.getTerminationTime().getTime()));
+                int index = setProxy(p_stat, 3, elem);
+                p_stat.setString(index, elem.getDelegationID());
+                p_stat.setString(index + 1, elem.getDNasX500());
+
+                p_stat.executeUpdate();
+            } catch (SQLException e) {
+                throw failure(e);
+            } finally {
+                cleanup(p_stat);
+            }
+        }
+
+        public GrDPStorageElement findGrDPStorageElement(String delegationID, String dn) throws GrDPStorageException {
+            logger.debug("Looking for dlg id '" + delegationID + "' and dn '" + dn + "' in storage");
+
+            GrDPStorageElement elem = null;
+
+            String sql = "SELECT dlg_id, dn, voms_attrs, termination_time, " + proxyColumns() + " FROM t_credential "
+                    + "WHERE dlg_id = ? AND dn = ?";
+
+            PreparedStatement p_stat = null;
+            ResultSet rs = null;
+
+            try {
+                p_stat = connection().prepareStatement(sql);
+                p_stat.setString(1, delegationID);
+                p_stat.setString(2, dn);
+
+                rs = p_stat.executeQuery();
+                if (rs.next()) {
+                    elem = new GrDPStorageElement();
+                    elem.setDelegationID(rs.getString("dlg_id"));
+                    elem.setDN(rs.getString("dn"));
+                    readProxy(rs, elem);
+                    elem.setVomsAttributes(GrDPX509Util.fromStringVOMSAttrs(rs.getString("voms_attrs")));
+                    elem.setTerminationTime(rs.getTimestamp("termination_time"));
+                }
+            } catch (SQLException e) {
+                throw failure(e);
+            } finally {
+                cleanup(p_stat);
+                cleanup(rs);
+            }
+
+            return elem;
+        }
+
+        public void deleteGrDPStorageElement(String delegationID, String dn) throws GrDPStorageException {
+            String sql = "DELETE FROM t_credential " + "WHERE dlg_id = ? AND dn = ?";
+
+            PreparedStatement p_stat = null;
+
+            try {
+                p_stat = connection().prepareStatement(sql);
+                p_stat.setString(1, delegationID);
+                p_stat.setString(2, dn);
+
+                p_stat.executeUpdate();
+            } catch (SQLException e) {
+                throw failure(e);
+            } finally {
+                cleanup(p_stat);
+            }
+        }
+
+        public void commit() throws GrDPStorageException {
+            if (m_conn == null || !m_uncommitted) {
+                return;
+            }
+            try {
+                GrDPStorageDatabase.this.commit(m_conn);
+                m_uncommitted = false;
+            } catch (SQLException e) {
+                throw failure(e);
+            }
+        }
+
+        public void close() {
+            if (m_conn == null) {
+                return;
+            }
+            if (m_uncommitted) {
+                rollback(m_conn);
+            }
+            cleanup(m_conn);
+            m_conn = null;
+        }
+
+        /**
+         * Returns the connection of the session, taking one from the pool if the session does not have one yet.
+         * 
+         * @return The connection.
+         * @throws SQLException Failed to get a connection.
+         */
+        private Connection connection() throws SQLException {
+            if (m_conn == null) {
+                m_conn = getConnection();
+            }
+            m_uncommitted = true;
+            return m_conn;
+        }
+
+        /**
+         * Logs the failure of an operation and rolls the transaction back.
+         * 
+         * @param e The failure.
+         * @return The exception to throw.
+         */
+        private GrDPStorageException failure(SQLException e) {
+            logger.error("Failure on db interaction.", e);
+            if (m_conn != null) {
+                rollback(m_conn);
+                m_uncommitted = false;
+            }
+            return new GrDPStorageException("Internal failure: " + e.getMessage());
+        }
+    }
+
 }
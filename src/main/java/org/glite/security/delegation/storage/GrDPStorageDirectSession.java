@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004. See
+ * http://www.eu-egee.org/partners/ for details on the copyright holders.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.glite.security.delegation.storage;
+
+import java.util.List;
+
+/**
+ * Session of a storage without transactions. The operations are passed to the storage and take effect right away, so
+ * commit and close do nothing.
+ */
+class GrDPStorageDirectSession implements GrDPStorageSession {
+
+    // The storage doing the operations
+    private final GrDPStorageAdapter m_storage;
+
+    /**
+     * Class constructor.
+     * 
+     * @param storage The storage doing the operations.
+     */
+    GrDPStorageDirectSession(GrDPStorageAdapter storage) {
+        m_storage = storage;
+    }
+
+    public void insertGrDPStorageCacheElement(GrDPStorageCacheElement elem) throws GrDPStorageException {
+        m_storage.insertGrDPStorageCacheElement(elem);
+    }
+
+    public void insertGrDPStorageCacheElements(List<GrDPStorageCacheElement> elems) throws GrDPStorageException {
+        m_storage.insertGrDPStorageCacheElements(elems);
+    }
+
+    public void updateGrDPStorageCacheElement(GrDPStorageCacheElement elem) throws GrDPStorageException {
+        m_storage.updateGrDPStorageCacheElement(elem);
+    }
+
+    public GrDPStorageCacheElement findGrDPStorageCacheElement(String delegationID, String DN)
+            throws GrDPStorageException {
+        return m_storage.findGrDPStorageCacheElement(delegationID, DN);
+    }
+
+    public List<GrDPStorageCacheElement> findGrDPStorageCacheElements(String delegationID, String DN)
+            throws GrDPStorageException {
+        return m_storage.findGrDPStorageCacheElements(delegationID, DN);
+    }
+
+    public void deleteGrDPStorageCacheElement(String delegationID, String DN) throws GrDPStorageException {
+        m_storage.deleteGrDPStorageCacheElement(delegationID, DN);
+    }
+
+    public void insertGrDPStorageElement(GrDPStorageElement elem) throws GrDPStorageException {
+        m_storage.insertGrDPStorageElement(elem);
+    }
+
+    public void updateGrDPStorageElement(GrDPStorageElement elem) throws GrDPStorageException {
+        m_storage.updateGrDPStorageElement(elem);
+    }
+
+    public GrDPStorageElement findGrDPStorageElement(String delegationID, String DN) throws GrDPStorageException {
+        return m_storage.findGrDPStorageElement(delegationID, DN);
+    }
+
+    public void deleteGrDPStorageElement(String delegationID, String DN) throws GrDPStorageException {
+        m_storage.deleteGrDPStorageElement(delegationID, DN);
+    }
+
+    public void commitDelegation(GrDPStorageElement elem, String cacheID) throws GrDPStorageException {
+        m_storage.commitDelegation(elem, cacheID);
+    }
+
+    public void commit() {
+        // the operations are done right away
+    }
+
+    public void close() {
+        // nothing to release
+    }
+
+}
@@ -17,8 +17,11 @@
 
 package org.glite.security.delegation.storage;
 
+import java.io.IOException;
 import java.util.Date;
 
+import org.glite.security.delegation.GrDPX509Util;
+
 import eu.emi.security.authn.x509.impl.OpensslNameUtils;
 
 /**
@@ -31,7 +34,9 @@ import eu.emi.security.authn.x509.impl.OpensslNameUtils;
  * <li><i>delegationID</i>: The delegation ID assigned to the delegated proxy</li>
  * <li><i>dn</i>: The DN associated with the delegated proxy</li>
  * <li><i>vomsAttributes</i>: The list of voms attributes contained inside the delegated proxy</li>
- * <li><i>certificate</i>: The actual delegated proxy, including its private key.</li>
+ * <li><i>certificate</i>: The actual delegated proxy, including its private key. Either in PEM, or in binary as the DER
+ * encoded certificate chain and the DER encoded PKCS#8 private key. The PEM form of a binary proxy is produced when
+ * first asked for.</li>
  * <li><i>terminationTime</i>: The termination time of the delegated proxy</li>
  * </ul>
  */
@@ -45,6 +50,10 @@ public class GrDPStorageElement {
 
     private String certificate = null;
 
+    private byte[] certificateChainBytes = null;
+
+    private byte[] privateKeyBytes = null;
+
     private Date terminationTime = null;
 
     /**
@@ -90,9 +99,34 @@ public class GrDPStorageElement {
      * @return The delegated proxy.
      */
     public String getCertificate() {
+        if (this.certificate == null && this.certificateChainBytes != null && this.privateKeyBytes != null) {
+            try {
+                this.certificate = GrDPX509Util.toPEMCredential(this.privateKeyBytes, this.certificateChainBytes);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to convert the proxy to PEM: " + e.getMessage(), e);
+            }
+        }
         return this.certificate;
     }
 
+    /**
+     * Retrieves the certificate chain of the delegated proxy in binary.
+     * 
+     * @return The DER encoded certificates one after the other, null if the proxy is only in PEM.
+     */
+    public byte[] getCertificateChainBytes() {
+        return this.certificateChainBytes;
+    }
+
+    /**
+     * Retrieves the private key of the delegated proxy in binary.
+     * 
+     * @return The DER encoded PKCS#8 private key, null if the proxy is only in PEM.
+     */
+    public byte[] getPrivateKeyBytes() {
+        return this.privateKeyBytes;
+    }
+
     /**
      * Retrieves the termination time of the delegated proxy.
      * 
@@ -136,6 +170,21 @@ public class GrDPStorageElement {
      */
     public void setCertificate(String certificate) {
         this.certificate = certificate;
+        this.certificateChainBytes = null;
+        this.privateKeyBytes = null;
+    }
+
+    /**
+     * Sets the delegated proxy in binary.
+     * 
+     * @param certificateChainBytes The DER encoded certificates of the proxy chain one after the other, see
+     *            {@link GrDPX509Util#encodeCertificateChain(java.security.cert.X509Certificate[])}.
+     * @param privateKeyBytes The DER encoded PKCS#8 private key of the proxy.
+     */
+    public void setCertificateBytes(byte[] certificateChainBytes, byte[] privateKeyBytes) {
+        this.certificateChainBytes = certificateChainBytes;
+        this.privateKeyBytes = privateKeyBytes;
+        this.certificate = null;
     }
 
     /**
@@ -18,17 +18,28 @@
 package org.glite.security.delegation.storage;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.StringReader;
+import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.security.cert.X509Certificate;
 import java.text.DateFormat;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import org.apache.log4j.Logger;
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.openssl.PEMReader;
+import org.bouncycastle.util.encoders.Hex;
 import org.glite.security.delegation.GrDPConstants;
 import org.glite.security.delegation.GrDPX509Util;
 import org.glite.security.delegation.GrDProxyDlgeeOptions;
@@ -65,8 +76,28 @@ import org.glite.security.delegation.GrDProxyDlgeeOptions;
  * 	&lt;storage-base-path&gt;/cache/&lt;user-dn&gt;/&lt;dlg-id&gt;/userreq.pem
  * &lt;storage-base-path&gt;/cache/&lt;user-dn&gt;/&lt;dlg-id&gt;/userkey.pem
  * &lt;storage-base-path&gt;/cache/&lt;user-dn&gt;/&lt;dlg-id&gt;/voms.attributes
+ * &lt;storage-base-path&gt;/cache/&lt;user-dn&gt;/&lt;dlg-id&gt;/userreq.fingerprint
  * </pre>
  * 
+ * The userreq.fingerprint file holds the public key fingerprint of the request in hex, so the request is not parsed
+ * to match the delegated proxy to it.
+ * 
+ * </p>
+ * 
+ * <p>
+ * The elements given in binary are stored in binary files instead of the PEM ones: the delegated proxy in
+ * usercred.der as the DER encoded PKCS#8 private key followed by the DER encoded certificates of the chain, and the
+ * private key of a delegation request in usercred.der as DER encoded PKCS#8 alone. The PEM file of the same content
+ * is removed when a binary file is written and the other way round.
+ * </p>
+ * 
+ * <p>
+ * The files of a delegated proxy are replaced one by one, each written to a temporary file in the same directory and
+ * renamed over the old one, the credential file last. So the delegated proxy is never missing and its private key and
+ * certificates always match, but storing a delegated proxy is not atomic: a reader can see the new termination time
+ * with the old credential, and the delegation request is removed only after the proxy is stored. What an interrupted
+ * commit leaves behind, the delegation requests of the stored proxies and the temporary files, is removed at
+ * startup.
  * </p>
  * 
  * <p>
@@ -75,7 +106,7 @@ import org.glite.security.delegation.GrDProxyDlgeeOptions;
  * 
  * Authors: Ricardo Rocha <ricardo.rocha@cern.ch>
  */
-public class GrDPStorageFilesystem implements GrDPStorage {
+public class GrDPStorageFilesystem extends GrDPStorageAdapter {
 
     // Class logger
     private static Logger logger = Logger.getLogger(GrDPStorageFilesystem.class);
@@ -83,6 +114,15 @@ public class GrDPStorageFilesystem implements GrDPStorage {
     // Object containing DLGEE configuration parameters
     // private GrDProxyDlgeeOptions dlgeeOpt = null;
 
+    // File of the binary credential, the private key followed by the certificate chain of a delegated proxy
+    private static final String CRED_DER = "usercred.der";
+
+    // File of the public key fingerprint of a delegation request, in hex
+    private static final String REQ_FINGERPRINT = "userreq.fingerprint";
+
+    // Age in milliseconds after which a temporary file is not in use any more and removed at startup
+    private static final long STALE_TEMP_FILE_AGE = 600000L;
+
     // Directory path for storage area
     private String storagePath = null;
 
@@ -128,6 +168,95 @@ public class GrDPStorageFilesystem implements GrDPStorage {
             throw new GrDPStorageException("Storage area or cache is not writable for me.");
         }
 
+        recover();
+    }
+
+    /**
+     * Removes what the interrupted commits of delegations left behind: the delegation requests whose delegated proxy
+     * was stored, found by the public key of the proxy matching the one in the delegation request id, and the old
+     * temporary files of the delegated proxies. Failures are only logged.
+     */
+    private void recover() {
+        File storageArea = new File(storagePath);
+        File storageCacheArea = new File(storageCachePath);
+        long staleTime = System.currentTimeMillis() - STALE_TEMP_FILE_AGE;
+
+        File cacheDnDirs[] = storageCacheArea.listFiles();
+        for (int i = 0; cacheDnDirs != null && i < cacheDnDirs.length; i++) {
+            String cacheIDs[] = cacheDnDirs[i].list();
+            for (int j = 0; cacheIDs != null && j < cacheIDs.length; j++) {
+                int separator = cacheIDs[j].lastIndexOf('+');
+                if (separator <= 0) {
+                    continue;
+                }
+                String dlgID = cacheIDs[j].substring(0, separator);
+                String keyID = cacheIDs[j].substring(separator + 1);
+                if (!new File(new File(storageArea, cacheDnDirs[i].getName()), dlgID).isDirectory()) {
+                    continue;
+                }
+                try {
+                    String dn = URLDecoder.decode(cacheDnDirs[i].getName(), "UTF-8");
+                    byte fingerprint[] = getProxyKeyFingerprint(dn, dlgID);
+                    if (fingerprint != null && new String(Hex.encode(fingerprint)).equalsIgnoreCase(keyID)) {
+                        logger.info("Removing the delegation request '" + cacheIDs[j] + "' of the stored proxy.");
+                        removeFile(dn, cacheIDs[j], null, true);
+                    }
+                } catch (IOException e) {
+                    logger.warn("Failed to check the delegation request '" + cacheIDs[j] + "': " + e.getMessage());
+                } catch (GrDPStorageException e) {
+                    logger.warn("Failed to check the delegation request '" + cacheIDs[j] + "': " + e.getMessage());
+                }
+            }
+        }
+
+        File dnDirs[] = storageArea.listFiles();
+        for (int i = 0; dnDirs != null && i < dnDirs.length; i++) {
+            File dlgDirs[] = dnDirs[i].equals(storageCacheArea) ? null : dnDirs[i].listFiles();
+            for (int j = 0; dlgDirs != null && j < dlgDirs.length; j++) {
+                File files[] = dlgDirs[j].listFiles();
+                for (int k = 0; files != null && k < files.length; k++) {
+                    String name = files[k].getName();
+                    if (name.startsWith(".") && name.endsWith(".tmp") && files[k].lastModified() < staleTime) {
+                        logger.info("Removing the temporary file '" + files[k] + "'.");
+                        if (!files[k].delete()) {
+                            logger.warn("Failed to remove the temporary file '" + files[k] + "'.");
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the public key fingerprint of a stored delegated proxy.
+     * 
+     * @param dn The dn of the owner of the delegated proxy.
+     * @param dlgID The delegation ID of the delegated proxy.
+     * @return The fingerprint of the public key of the proxy certificate, null if the proxy was not found.
+     * @throws IOException Failed to read the proxy.
+     * @throws GrDPStorageException Failed to read the proxy.
+     */
+    private byte[] getProxyKeyFingerprint(String dn, String dlgID) throws IOException, GrDPStorageException {
+        GrDPStorageElement elem = findGrDPStorageElement(dlgID, dn);
+        if (elem == null) {
+            return null;
+        }
+        if (elem.getCertificateChainBytes() != null) {
+            X509Certificate chain[] = GrDPX509Util.decodeCertificateChain(elem.getCertificateChainBytes());
+            return chain.length == 0 ? null : GrDPX509Util.getPublicKeyFingerprint(chain[0].getPublicKey());
+        }
+        PEMReader pemReader = new PEMReader(new StringReader(elem.getCertificate()));
+        try {
+            Object object;
+            while ((object = pemReader.readObject()) != null) {
+                if (object instanceof X509Certificate) {
+                    return GrDPX509Util.getPublicKeyFingerprint(((X509Certificate) object).getPublicKey());
+                }
+            }
+            return null;
+        } finally {
+            pemReader.close();
+        }
     }
 
     /**
@@ -144,19 +273,50 @@ public class GrDPStorageFilesystem implements GrDPStorage {
             writeToFile(elem.getDN(), elem.getDelegationID(), "userreq.pem", elem.getCertificateRequest().getBytes(),
                     true);
 
-            // Store private key
-            writeToFile(elem.getDN(), elem.getDelegationID(), "userkey.pem", elem.getPrivateKey().getBytes(), true);
+            // Store private key, in binary if given so
+            if (elem.getPrivateKeyBytes() != null) {
+                writeToFile(elem.getDN(), elem.getDelegationID(), CRED_DER, elem.getPrivateKeyBytes(), true);
+                removeStaleFile(elem.getDN(), elem.getDelegationID(), "userkey.pem", true);
+            } else {
+                writeToFile(elem.getDN(), elem.getDelegationID(), "userkey.pem", elem.getPrivateKey().getBytes(), true);
+                removeStaleFile(elem.getDN(), elem.getDelegationID(), CRED_DER, true);
+            }
 
             // Store list of VOMS attributes into file
             writeToFile(elem.getDN(), elem.getDelegationID(), "voms.attributes",
                     GrDPX509Util.toStringVOMSAttrs(elem.getVomsAttributes()).getBytes(), true);
 
+            // Store the public key fingerprint of the request
+            byte fingerprint[] = elem.getPublicKeyFingerprint();
+            if (fingerprint != null) {
+                writeToFile(elem.getDN(), elem.getDelegationID(), REQ_FINGERPRINT, Hex.encode(fingerprint), true);
+            } else {
+                removeStaleFile(elem.getDN(), elem.getDelegationID(), REQ_FINGERPRINT, true);
+            }
+
         } catch (IOException e) {
             logger.error("Failure while writing to filesystem.", e);
             throw new GrDPStorageException("Internal failure.");
         }
     }
 
+    /**
+     * Insert several new delegation requests into storage cache area.
+     * 
+     * The filesystem has no transactions, the requests are written one after the other. If writing one fails, the
+     * requests already written are left in place.
+     * 
+     * @param elems Objects containing the information about the delegation requests.
+     * @throws GrDPStorageException Failed to store the new delegation requests in storage cache area.
+     */
+    public void insertGrDPStorageCacheElements(List<GrDPStorageCacheElement> elems) throws GrDPStorageException {
+        logger.debug("Entered GrDPStorageFilesystem insertGrDPStorageCacheElements.");
+
+        for (GrDPStorageCacheElement elem : elems) {
+            insertGrDPStorageCacheElement(elem);
+        }
+    }
+
     /**
      * Updates existing delegation request in storage cache area.
      * 
@@ -194,9 +354,21 @@ public class GrDPStorageFilesystem implements GrDPStorage {
 
         try {
             elem.setCertificateRequest(readFromFile(dn, delegationID, "userreq.pem", true));
-            elem.setPrivateKey(readFromFile(dn, delegationID, "userkey.pem", true));
-            elem.setVomsAttributes(GrDPX509Util.fromStringVOMSAttrs(readFromFile(dn, delegationID, "voms.attributes",
-                    true)));
+            if (new File(getDlgDirPath(dn, delegationID, true), CRED_DER).exists()) {
+                elem.setPrivateKeyBytes(readBytesFromFile(dn, delegationID, CRED_DER, true));
+            } else {
+                elem.setPrivateKey(readFromFile(dn, delegationID, "userkey.pem", true));
+            }
+            // read as is, readFromFile would add a line feed to the encoded attributes
+            elem.setVomsAttributes(GrDPX509Util.fromStringVOMSAttrs(new String(readBytesFromFile(dn, delegationID,
+                    "voms.attributes", true))));
+            if (new File(getDlgDirPath(dn, delegationID, true), REQ_FINGERPRINT).exists()) {
+                elem.setPublicKeyFingerprint(Hex.decode(readBytesFromFile(dn, delegationID, REQ_FINGERPRINT, true)));
+            }
+            long modified = new File(getDlgDirPath(dn, delegationID, true), "userreq.pem").lastModified();
+            if (modified != 0) {
+                elem.setCreationTime(new Date(modified));
+            }
         } catch (FileNotFoundException fnfe) {
             logger.debug("Could not find entry in cache. DN '" + dn + "'; DLG ID '" + delegationID + "'.");
             return null;
@@ -209,6 +381,50 @@ public class GrDPStorageFilesystem implements GrDPStorage {
 
     }
 
+    /**
+     * Retrieves the pending delegation requests of a delegation from the storage cache area.
+     * 
+     * The delegation request directories of the user are listed and the ones starting with the delegation ID and '+'
+     * are read.
+     * 
+     * @param delegationID The id of the delegation, without the session ID part.
+     * @param dn The dn of the user owning the delegation requests.
+     * @return The pending delegation requests, empty list if none were found.
+     * @throws GrDPStorageException Could not retrieve the delegation requests because an error occurred while tried to
+     *             access them.
+     */
+    public List<GrDPStorageCacheElement> findGrDPStorageCacheElements(String delegationID, String dn)
+            throws GrDPStorageException {
+        logger.debug("Entered GrDPStorageFilesystem findGrDPStorageCacheElements.");
+
+        logger.debug("Looking for dlg id prefix '" + delegationID + "+' and dn '" + dn + "' in cache.");
+
+        List<GrDPStorageCacheElement> elems = new ArrayList<GrDPStorageCacheElement>();
+
+        String[] dlgDirs;
+        try {
+            dlgDirs = new File(storageCachePath, URLEncoder.encode(dn, "UTF-8")).list();
+        } catch (IOException e) {
+            logger.error("Failure accessing filesystem.");
+            throw new GrDPStorageException("Internal failure.");
+        }
+        if (dlgDirs == null) {
+            return elems;
+        }
+
+        String prefix = delegationID + "+";
+        for (int i = 0; i < dlgDirs.length; i++) {
+            if (dlgDirs[i].startsWith(prefix)) {
+                GrDPStorageCacheElement elem = findGrDPStorageCacheElement(dlgDirs[i], dn);
+                if (elem != null) {
+                    elems.add(elem);
+                }
+            }
+        }
+
+        return elems;
+    }
+
     /**
      * Deletes an existing delegation request.
      * 
@@ -241,22 +457,144 @@ public class GrDPStorageFilesystem implements GrDPStorage {
         logger.debug("Entered GrDPStorageFilesystem insertGrDPStorageElement.");
 
         try {
-            // Store certificate
-            writeToFile(elem.getDN(), elem.getDelegationID(), "userproxy.pem", elem.getCertificate().getBytes(), false);
-
-            // Store list of VOMS attributes into file
-            writeToFile(elem.getDN(), elem.getDelegationID(), "voms.attributes",
-                    GrDPX509Util.toStringVOMSAttrs(elem.getVomsAttributes()).getBytes(), false);
+            writeStorageElement(elem, false);
+        } catch (IOException e) {
+            logger.error("Failure while writing to filesystem.", e);
+            throw new GrDPStorageException("Internal failure.");
+        }
+    }
 
-            // Store the proxy termination time into file
-            writeToFile(elem.getDN(), elem.getDelegationID(), "termination.time",
-                    DateFormat.getDateTimeInstance(DateFormat.LONG, DateFormat.LONG).format(elem.getTerminationTime())
-                            .getBytes(), false);
+    /**
+     * Stores the delegated proxy and removes the delegation request it was created from.
+     * 
+     * The files of the delegated proxy are replaced one by one with a rename, so the delegated proxy exists all the
+     * time and the readers see either the old or the new credential. If the delegated proxy exists already, its VOMS
+     * attributes are kept. The delegation request is removed after the delegated proxy is stored, this is not atomic.
+     * A failure to remove it is only logged, the request is removed at the next startup.
+     * 
+     * @param elem Object containing the information about the delegated proxy.
+     * @param cacheID The id of the delegation request in the storage cache area.
+     * @throws GrDPStorageException Failed to find the delegation request or to store the delegated proxy.
+     */
+    public void commitDelegation(GrDPStorageElement elem, String cacheID) throws GrDPStorageException {
+        logger.debug("Entered GrDPStorageFilesystem commitDelegation.");
 
+        String dn = elem.getDN();
+        try {
+            if (!new File(getDlgDirPath(dn, cacheID, true)).isDirectory()) {
+                logger.debug("Could not find entry in storage cache. DN '" + dn + "'; DLG ID '" + cacheID + "'.");
+                throw new GrDPStorageException("Failed to find credential in storage cache.");
+            }
+            writeStorageElement(elem, true);
         } catch (IOException e) {
             logger.error("Failure while writing to filesystem.", e);
             throw new GrDPStorageException("Internal failure.");
         }
+
+        try {
+            removeFile(dn, cacheID, null, true);
+        } catch (IOException e) {
+            logger.warn("Failed to remove credential from storage cache.", e);
+        }
+    }
+
+    /**
+     * The filesystem storage lists the pending delegation requests.
+     * 
+     * @return True.
+     */
+    public boolean isPendingRequestLookupSupported() {
+        return true;
+    }
+
+    /**
+     * Writes the files of the delegated proxy to the storage area, each to a temporary file renamed over the old file.
+     * The VOMS attributes and termination time are replaced first and the credential last, so a new delegated proxy
+     * is found only once all its files are in place.
+     * 
+     * @param elem Object containing the information about the delegated proxy.
+     * @param keepVomsAttributes True to keep the VOMS attributes of an existing delegated proxy.
+     * @throws IOException An error occurred while writing the files.
+     * @throws GrDPStorageException Failed to set the access mode of the files.
+     */
+    private void writeStorageElement(GrDPStorageElement elem, boolean keepVomsAttributes) throws IOException,
+            GrDPStorageException {
+        String dn = elem.getDN();
+        String dlgID = elem.getDelegationID();
+        File dlgDir = new File(getDlgDirPath(dn, dlgID, false));
+        createDirectory(dlgDir.getParentFile());
+        createDirectory(dlgDir);
+
+        // Store list of VOMS attributes into file
+        if (!keepVomsAttributes || !new File(dlgDir, "voms.attributes").exists()) {
+            replaceFile(dlgDir, "voms.attributes", GrDPX509Util.toStringVOMSAttrs(elem.getVomsAttributes())
+                    .getBytes());
+        }
+
+        // Store the proxy termination time into file
+        replaceFile(dlgDir, "termination.time", DateFormat.getDateTimeInstance(DateFormat.LONG, DateFormat.LONG)
+                .format(elem.getTerminationTime()).getBytes());
+
+        // Store certificate, in binary if given so
+        if (elem.getCertificateChainBytes() != null) {
+            byte key[] = elem.getPrivateKeyBytes();
+            byte chain[] = elem.getCertificateChainBytes();
+            byte credential[] = new byte[key.length + chain.length];
+            System.arraycopy(key, 0, credential, 0, key.length);
+            System.arraycopy(chain, 0, credential, key.length, chain.length);
+            replaceFile(dlgDir, CRED_DER, credential);
+            removeStaleFile(dn, dlgID, "userproxy.pem", false);
+        } else {
+            replaceFile(dlgDir, "userproxy.pem", elem.getCertificate().getBytes());
+            removeStaleFile(dn, dlgID, CRED_DER, false);
+        }
+    }
+
+    /**
+     * Creates the directory with read/write for the owner only, if it does not exist.
+     * 
+     * @param dir The directory.
+     * @throws GrDPStorageException Failed to set the access mode of the directory.
+     */
+    private void createDirectory(File dir) throws GrDPStorageException {
+        if (dir.mkdirs() && !GrDPX509Util.changeFileMode(dir.getPath(), 700)) {
+            throw new GrDPStorageException("Failed to set read/write for owner only on directory '" + dir + "'");
+        }
+    }
+
+    /**
+     * Replaces the contents of a file with one rename. The contents are written to a temporary file in the same
+     * directory, readable and writable by the owner only, which is then renamed over the file. The name of the
+     * temporary file starts with a dot, like no file of the storage.
+     * 
+     * @param dir The directory of the file.
+     * @param fileName The name of the file.
+     * @param content The new contents of the file.
+     * @throws IOException An error occurred while writing or renaming the file.
+     * @throws GrDPStorageException Failed to set the access mode of the temporary file.
+     */
+    private void replaceFile(File dir, String fileName, byte[] content) throws IOException, GrDPStorageException {
+        File tmp = File.createTempFile("." + fileName, ".tmp", dir);
+        try {
+            if (!GrDPX509Util.changeFileMode(tmp.getPath(), 600)) {
+                throw new GrDPStorageException("Failed to set read/write for owner only on file '" + tmp + "'");
+            }
+            logger.debug("Writing contents to file: " + tmp);
+            FileOutputStream file = new FileOutputStream(tmp);
+            try {
+                file.write(content);
+            } finally {
+                file.close();
+            }
+            if (!tmp.renameTo(new File(dir, fileName))) {
+                throw new IOException("Failed to rename '" + tmp + "' to '" + fileName + "'.");
+            }
+            tmp = null;
+        } finally {
+            if (tmp != null && !tmp.delete()) {
+                logger.warn("Failed to remove the temporary file '" + tmp + "'.");
+            }
+        }
     }
 
     /**
@@ -295,9 +633,20 @@ public class GrDPStorageFilesystem implements GrDPStorage {
         elem.setDN(dn);
 
         try {
-            elem.setCertificate(readFromFile(dn, delegationID, "userproxy.pem", false));
-            elem.setVomsAttributes(GrDPX509Util.fromStringVOMSAttrs(readFromFile(dn, delegationID, "voms.attributes",
-                    false)));
+            if (new File(getDlgDirPath(dn, delegationID, false), CRED_DER).exists()) {
+                byte credential[] = readBytesFromFile(dn, delegationID, CRED_DER, false);
+                int keyLength = getFirstObjectLength(credential);
+                byte key[] = new byte[keyLength];
+                byte chain[] = new byte[credential.length - keyLength];
+                System.arraycopy(credential, 0, key, 0, keyLength);
+                System.arraycopy(credential, keyLength, chain, 0, chain.length);
+                elem.setCertificateBytes(chain, key);
+            } else {
+                elem.setCertificate(readFromFile(dn, delegationID, "userproxy.pem", false));
+            }
+            // read as is, readFromFile would add a line feed to the encoded attributes
+            elem.setVomsAttributes(GrDPX509Util.fromStringVOMSAttrs(new String(readBytesFromFile(dn, delegationID,
+                    "voms.attributes", false))));
             Date terminationTime = null;
             try {
                 terminationTime = DateFormat.getDateTimeInstance(DateFormat.LONG, DateFormat.LONG).parse(
@@ -376,6 +725,76 @@ public class GrDPStorageFilesystem implements GrDPStorage {
         return contents;
     }
 
+    /**
+     * Retrieves the binary contents of a given file from the storage/storage cache area.
+     * 
+     * @param dn The dn of the owner of the wanted delegation request/proxy information.
+     * @param dlgID The delegation ID of the wanted delegation request/proxy information.
+     * @param fileName The actual file to be accessed (usercred.der, voms.attributes).
+     * @param cache True if storage cache area should be accessed. False if storage area should be accessed.
+     * @return The contents of the requested file.
+     * @throws IOException An error occurred while reading the contents of the file.
+     */
+    private byte[] readBytesFromFile(String dn, String dlgID, String fileName, boolean cache) throws IOException {
+        File file = new File(getDlgDirPath(dn, dlgID, cache), fileName);
+        logger.debug("Reading contents from file: " + file);
+        byte contents[] = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(contents);
+        } finally {
+            in.close();
+        }
+        return contents;
+    }
+
+    /**
+     * Returns the length of the first DER encoded object in the data.
+     * 
+     * @param data The DER encoded objects one after the other.
+     * @return The length of the first object, including its tag and length.
+     * @throws IOException The data does not start with a DER encoded object.
+     */
+    private static int getFirstObjectLength(byte[] data) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(data);
+        if (new ASN1InputStream(in).readObject() == null) {
+            throw new IOException("No private key in the credential file.");
+        }
+        return data.length - in.available();
+    }
+
+    /**
+     * Removes the file of the other format of the stored content, if there is one.
+     * 
+     * @param dn The dn of the owner of the delegation request/proxy information.
+     * @param dlgID The delegation ID of the delegation request/proxy information.
+     * @param fileName The file to remove.
+     * @param cache True if storage cache area should be accessed. False if storage area should be accessed.
+     * @throws IOException The file exists but could not be removed.
+     */
+    private void removeStaleFile(String dn, String dlgID, String fileName, boolean cache) throws IOException {
+        File file = new File(getDlgDirPath(dn, dlgID, cache), fileName);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Failed to remove file '" + file.getAbsolutePath() + "'.");
+        }
+    }
+
+    /**
+     * Returns the path of the directory holding the files of a delegation request/proxy.
+     * 
+     * @param dn The dn of the owner of the delegation request/proxy information.
+     * @param dlgID The delegation ID of the delegation request/proxy information.
+     * @param cache True if storage cache area should be accessed. False if storage area should be accessed.
+     * @return The path of the delegation directory.
+     * @throws IOException The dn could not be encoded.
+     */
+    private String getDlgDirPath(String dn, String dlgID, boolean cache) throws IOException {
+        String storageArea = storagePath;
+        if (cache)
+            storageArea = storageCachePath;
+        return storageArea + "/" + URLEncoder.encode(dn, "UTF-8") + "/" + dlgID;
+    }
+
     /**
      * Writes the given contents to the storage/storage cache area.
      * 
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) Members of the EGEE Collaboration. 2004. See
+ * http://www.eu-egee.org/partners/ for details on the copyright holders.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.glite.security.delegation.storage;
+
+import java.util.List;
+
+/**
+ * A unit of work on the delegation storage, obtained with {@link GrDPStorageAdapter#openSession()}. <br/>
+ * 
+ * <p>
+ * The operations done through a session share the resources of the storage, like a database connection, and on the
+ * storages supporting transactions they are done in one transaction that is made permanent by {@link #commit()}. The
+ * storages without transactions do each operation right away. A session is used by one thread and must always be
+ * closed; the changes not committed when the session is closed are discarded.
+ * </p>
+ * 
+ * <p>
+ * The operations of {@link GrDPStorage} and the ones added here work like the ones of {@link GrDPStorageAdapter}
+ * with the same name.
+ * </p>
+ */
+public interface GrDPStorageSession extends GrDPStorage {
+
+    /**
+     * Insert several new delegation requests into storage cache area in one batch.
+     * 
+     * @param elems Objects containing the information about the delegation requests.
+     * @throws GrDPStorageException Failed to store the new delegation requests in storage cache area.
+     * @see GrDPStorageAdapter#insertGrDPStorageCacheElements(List)
+     */
+    public void insertGrDPStorageCacheElements(List<GrDPStorageCacheElement> elems) throws GrDPStorageException;
+
+    /**
+     * Retrieves the pending delegation requests of a delegation from the storage cache area.
+     * 
+     * @param delegationID The id of the delegation, without the session ID part.
+     * @param DN The dn of the user owning the delegation requests.
+     * @return The pending delegation requests, empty list if none were found.
+     * @throws GrDPStorageException Could not retrieve the delegation requests because an error occurred while tried to
+     *             access them.
+     * @see GrDPStorageAdapter#findGrDPStorageCacheElements(String, String)
+     */
+    public List<GrDPStorageCacheElement> findGrDPStorageCacheElements(String delegationID, String DN)
+            throws GrDPStorageException;
+
+    /**
+     * Stores the delegated proxy and deletes the delegation request it was created from.
+     * 
+     * @param elem Object containing the information about the delegated proxy.
+     * @param cacheID The id of the delegation request in the storage cache area.
+     * @throws GrDPStorageException Failed to store the delegated proxy or to delete the delegation request.
+     * @see GrDPStorageAdapter#commitDelegation(GrDPStorageElement, String)
+     */
+    public void commitDelegation(GrDPStorageElement elem, String cacheID) throws GrDPStorageException;
+
+    /**
+     * Makes the changes done in the session permanent. The session can be used further after this.
+     * 
+     * @throws GrDPStorageException Failed to commit the changes.
+     */
+    public void commit() throws GrDPStorageException;
+
+    /**
+     * Closes the session and releases its resources. The changes not committed are discarded.
+     */
+    public void close();
+
+}
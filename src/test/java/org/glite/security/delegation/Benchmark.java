@@ -0,0 +1,166 @@
+package org.glite.security.delegation;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the timed benchmarks of the tests. The benchmarks run only a few rounds by default, so that they stay fast as
+ * part of the unit tests. For meaningful numbers the rounds are multiplied with the delegation.benchmark.scale system
+ * property, for example mvn test -Dtest=KeyGenerationEngineBenchmarkTest -Ddelegation.benchmark.scale=100.
+ */
+public final class Benchmark {
+    /** The system property multiplying the rounds of the benchmarks. */
+    public static final String SCALE_PROPERTY = "delegation.benchmark.scale";
+
+    /**
+     * An operation to benchmark.
+     */
+    public interface Operation {
+        /**
+         * Runs the operation once.
+         *
+         * @throws Exception The operation failed, failing the benchmark.
+         */
+        void run() throws Exception;
+    }
+
+    private Benchmark() {
+        // only static methods
+    }
+
+    /**
+     * Returns the number of rounds to run.
+     *
+     * @param rounds The number of rounds with the default scale.
+     * @return The rounds multiplied with the scale.
+     */
+    public static int rounds(int rounds) {
+        return rounds * Math.max(1, Integer.getInteger(SCALE_PROPERTY, 1).intValue());
+    }
+
+    /**
+     * Tells the thread counts to run the multi-threaded benchmarks with, from one up to twice the number of
+     * processors.
+     *
+     * @return The thread counts.
+     */
+    public static List<Integer> threadCounts() {
+        List<Integer> counts = new ArrayList<Integer>();
+        for (int threads = 1; threads <= 2 * Runtime.getRuntime().availableProcessors(); threads *= 2) {
+            counts.add(Integer.valueOf(threads));
+        }
+        return counts;
+    }
+
+    /**
+     * Runs the operation in the threads at the same time and reports the throughput.
+     *
+     * @param name The name of the benchmark in the report.
+     * @param threads The number of threads.
+     * @param rounds The number of times each thread runs the operation.
+     * @param operation The operation.
+     * @return The operations per second of all the threads together.
+     * @throws Exception The operation failed.
+     */
+    public static double throughput(String name, int threads, final int rounds, final Operation operation)
+            throws Exception {
+        warmUp(rounds, operation);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        List<Thread> running = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(name + "-" + i) {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int round = 0; round < rounds; round++) {
+                            operation.run();
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            thread.start();
+            running.add(thread);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : running) {
+            thread.join();
+        }
+        long nanos = Math.max(1, System.nanoTime() - begin);
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        double perSecond = threads * (double) rounds * 1e9 / nanos;
+        System.out.println(String.format("%s: %d threads, %d rounds each, %.1f ops/s", name, threads, rounds,
+                perSecond));
+        return perSecond;
+    }
+
+    /**
+     * Runs the operation a tenth of the rounds before the timing, so that the code is compiled.
+     *
+     * @param rounds The number of rounds to be timed.
+     * @param operation The operation.
+     * @throws Exception The operation failed.
+     */
+    private static void warmUp(int rounds, Operation operation) throws Exception {
+        for (int round = 0; round < Math.max(1, rounds / 10); round++) {
+            operation.run();
+        }
+    }
+
+    /**
+     * Runs the operation in the calling thread and reports the time per operation.
+     *
+     * @param name The name of the benchmark in the report.
+     * @param rounds The number of times to run the operation.
+     * @param operation The operation.
+     * @return The average time of an operation in nanoseconds.
+     * @throws Exception The operation failed.
+     */
+    public static double time(String name, int rounds, Operation operation) throws Exception {
+        warmUp(rounds, operation);
+        long begin = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            operation.run();
+        }
+        double nanos = (System.nanoTime() - begin) / (double) rounds;
+        System.out.println(String.format("%s: %d rounds, %.0f ns/op", name, rounds, nanos));
+        return nanos;
+    }
+
+    /**
+     * Runs the operation in the calling thread and reports the bytes allocated per operation. The allocations are
+     * measured only on the JVMs telling the allocated bytes of a thread, like HotSpot.
+     *
+     * @param name The name of the benchmark in the report.
+     * @param rounds The number of times to run the operation.
+     * @param operation The operation.
+     * @return The average allocated bytes of an operation, -1 if the JVM doesn't tell.
+     * @throws Exception The operation failed.
+     */
+    public static double allocation(String name, int rounds, Operation operation) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println(name + ": allocations not measured on this JVM");
+            return -1;
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        long thread = Thread.currentThread().getId();
+        warmUp(rounds, operation);
+        long before = allocations.getThreadAllocatedBytes(thread);
+        for (int round = 0; round < rounds; round++) {
+            operation.run();
+        }
+        double bytes = (allocations.getThreadAllocatedBytes(thread) - before) / (double) rounds;
+        System.out.println(String.format("%s: %d rounds, %.0f bytes/op", name, rounds, bytes));
+        return bytes;
+    }
+}
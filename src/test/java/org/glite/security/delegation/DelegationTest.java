@@ -1291,4 +1291,68 @@ public class DelegationTest extends TestCase {
 
     }
 
+    public void testDelegationWithoutVomsRfcProxyEC() throws Exception {
+
+        String proxyfile = "src/test/certs/trusted_client.proxy_rfc.grid_proxy";
+        String delegationId = "testIDEC";
+
+        // server side request generation with elliptic curve keys
+        GrDProxyDlgeeOptions opts = new GrDProxyDlgeeOptions();
+        opts.setDlgeeKeyAlgorithm("EC");
+        opts.setDlgeeKeySize(256);
+        opts.setDlgeeStorage("target");
+        opts.setDlgeeStorageFactory("org.glite.security.delegation.storage.GrDPStorageFilesystemFactory");
+        // for testing purposes
+        opts.setRequireVomsAttributes(false);
+
+        GliteDelegation delegation = new GliteDelegation(opts);
+        X509Credential credential = new PEMCredential(proxyfile, (char[]) null);
+
+        X509Certificate[] certChain = credential.getCertificateChain();
+
+        // first try to remove old delegation in case one exists.
+        try {
+            delegation.destroy(delegationId, certChain);
+        } catch (Exception e) {
+            // ignore
+        }
+
+        String req = delegation.getProxyReq(delegationId, certChain);
+
+        // client side new proxy signing
+        GrDProxyDlgorOptions dopts = new GrDProxyDlgorOptions();
+        dopts.setDlgorCertFile(proxyfile);
+
+        DelegationHandler handler = new DelegationHandler(req, delegationId, dopts);
+        String certString = handler.getPEMProxyCertificate();
+
+        // server side new proxy storage
+        delegation.putProxy(delegationId, certString, certChain);
+
+        // get the delegated credentials from the storage
+        GrDPStorageFactory stgFactory = GrDPX509Util.getGrDPStorageFactory(opts.getDlgeeStorageFactory());
+        GrDPStorage storage = stgFactory.createGrDPStorage(opts);
+        CertInfoTriple info = new CertInfoTriple(certChain, null, false);
+
+        GrDPStorageElement element = storage.findGrDPStorageElement(delegationId, info.dn);
+
+        PEMCredential newCredential = new PEMCredential(new ByteArrayInputStream(element.getCertificate().getBytes()),
+                (char[]) null);
+
+        assertEquals("Delegated key is not an EC key.", "EC", newCredential.getKey().getAlgorithm());
+        assertEquals("Delegated proxy public key is not an EC key.", "EC", newCredential.getCertificateChain()[0]
+                .getPublicKey().getAlgorithm());
+
+        OpensslCertChainValidator validator = getValidator();
+        ValidationResult result = validator.validate(newCredential.getCertificateChain());
+        assertTrue(result.isValid());
+
+        // remove delegation in the end
+        delegation.destroy(delegationId, certChain);
+
+        // verify the delegation is gone
+        element = storage.findGrDPStorageElement(delegationId, info.dn);
+        assertNull("Finding deleted proxy form storage didn't fail like it should", element);
+
+    }
 }
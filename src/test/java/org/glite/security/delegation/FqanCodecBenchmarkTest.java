@@ -0,0 +1,86 @@
+package org.glite.security.delegation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the time and the allocations of the FQAN codec with the earlier tab-separated encoding, built with
+ * repeated string concatenation, for a typical and a long FQAN list.
+ */
+public class FqanCodecBenchmarkTest extends TestCase {
+
+    public void testTypicalList() throws Exception {
+        compare("3 FQANs", fqans(3));
+    }
+
+    public void testLongList() throws Exception {
+        double allocations[] = compare("200 FQANs", fqans(200));
+        if (allocations[0] >= 0) {
+            // the concatenation copies the whole string for every FQAN
+            assertTrue(allocations[0] < allocations[1]);
+        }
+    }
+
+    /**
+     * Runs the benchmarks.
+     *
+     * @return The bytes allocated per operation by the codec and by the concatenation, -1 if not measured.
+     */
+    private static double[] compare(String name, final String fqans[]) throws Exception {
+        final String encoded = FqanCodec.encode(fqans);
+        final String legacy = legacyEncode(fqans);
+        assertTrue(Arrays.equals(fqans, FqanCodec.decode(encoded)));
+        assertTrue(Arrays.equals(fqans, legacyDecode(legacy)));
+
+        int rounds = Benchmark.rounds(20000 / fqans.length + 100);
+        Benchmark.Operation codec = new Benchmark.Operation() {
+            public void run() {
+                FqanCodec.decode(FqanCodec.encode(fqans));
+            }
+        };
+        Benchmark.Operation concatenation = new Benchmark.Operation() {
+            public void run() {
+                legacyDecode(legacyEncode(fqans));
+            }
+        };
+        Benchmark.time(name + " codec", rounds, codec);
+        Benchmark.time(name + " concatenation", rounds, concatenation);
+        return new double[] { Benchmark.allocation(name + " codec", rounds, codec),
+                Benchmark.allocation(name + " concatenation", rounds, concatenation) };
+    }
+
+    private static String[] fqans(int count) {
+        String fqans[] = new String[count];
+        for (int i = 0; i < count; i++) {
+            fqans[i] = "/vo" + (i % 5) + "/group" + i + "/Role=NULL/Capability=NULL";
+        }
+        return fqans;
+    }
+
+    /**
+     * The encoding before the codec.
+     */
+    private static String legacyEncode(String fqans[]) {
+        String encoded = "";
+        for (int i = 0; i < fqans.length; i++) {
+            encoded += "\t" + fqans[i];
+        }
+        return encoded;
+    }
+
+    /**
+     * The decoding before the codec, tokenizing the input as intended.
+     */
+    private static String[] legacyDecode(String encoded) {
+        List<String> fqans = new ArrayList<String>();
+        StringTokenizer tokenizer = new StringTokenizer(encoded, "\t");
+        while (tokenizer.hasMoreTokens()) {
+            fqans.add(tokenizer.nextToken());
+        }
+        return fqans.toArray(new String[fqans.size()]);
+    }
+}
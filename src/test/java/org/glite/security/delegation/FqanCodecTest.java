@@ -0,0 +1,47 @@
+package org.glite.security.delegation;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class FqanCodecTest extends TestCase {
+
+    public void testRoundTrip() {
+        String fqans[] = { "/dteam/Role=NULL/Capability=NULL", "/dteam/cern/Role=lcgadmin", "/atlas", "" };
+        String encoded = GrDPX509Util.toStringVOMSAttrs(fqans);
+        assertTrue(Arrays.equals(fqans, GrDPX509Util.fromStringVOMSAttrs(encoded)));
+    }
+
+    public void testSeparatorsInFqans() {
+        String fqans[] = { "12:/odd\t", "/with:colon", "/with\ttab" };
+        assertTrue(Arrays.equals(fqans, FqanCodec.decode(FqanCodec.encode(fqans))));
+    }
+
+    public void testEmpty() {
+        assertEquals("", FqanCodec.encode(null));
+        assertEquals("", FqanCodec.encode(new String[0]));
+        assertEquals(0, FqanCodec.decode(null).length);
+        assertEquals(0, FqanCodec.decode("").length);
+    }
+
+    public void testNullFqansSkipped() {
+        String fqans[] = { null, "/dteam", null, "/atlas" };
+        assertTrue(Arrays.equals(new String[] { "/dteam", "/atlas" }, FqanCodec.decode(FqanCodec.encode(fqans))));
+        assertEquals("", FqanCodec.encode(new String[] { null }));
+    }
+
+    public void testLegacyFormat() {
+        String fqans[] = { "/dteam/Role=NULL/Capability=NULL", "/atlas" };
+        String legacy = "\t/dteam/Role=NULL/Capability=NULL\t/atlas";
+        assertTrue(Arrays.equals(fqans, FqanCodec.decode(legacy)));
+        assertTrue(Arrays.equals(new String[] { "/atlas" }, FqanCodec.decode("/atlas")));
+        assertTrue(Arrays.equals(new String[] { "99:/short" }, FqanCodec.decode("99:/short")));
+    }
+
+    public void testInterned() {
+        String encoded = FqanCodec.encode(new String[] { "/dteam/Role=NULL/Capability=NULL" });
+        String first[] = FqanCodec.decode(encoded);
+        String second[] = FqanCodec.decode(new String(encoded));
+        assertSame(first[0], second[0]);
+    }
+}
@@ -0,0 +1,69 @@
+package org.glite.security.delegation;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the digests per second of the per-thread digesters with one shared synchronized digester, the way the
+ * digests were done before, with one thread up to twice the processors. The per-thread digesters should scale with
+ * the processors.
+ */
+public class GrDPX509UtilDigestBenchmarkTest extends TestCase {
+    private static final byte INPUT[] = "/C=CH/O=CERN/OU=GD/CN=Test user 1/CN=proxy/CN=proxy".getBytes();
+
+    private static final String DN = "/C=CH/O=CERN/OU=GD/CN=Test user 1";
+
+    private static final String FQANS[] = new String[] { "/dteam/Role=NULL/Capability=NULL",
+            "/dteam/test/Role=NULL/Capability=NULL" };
+
+    private MessageDigest m_shared;
+
+    protected void setUp() throws Exception {
+        m_shared = MessageDigest.getInstance("SHA-1");
+    }
+
+    public void testDigestsPerSecond() throws Exception {
+        assertTrue(Arrays.equals(sharedDigest(INPUT), GrDPX509Util.digest(INPUT)));
+
+        int rounds = Benchmark.rounds(20000);
+        for (Integer threads : Benchmark.threadCounts()) {
+            Benchmark.throughput("per-thread digest", threads.intValue(), rounds, new Benchmark.Operation() {
+                public void run() {
+                    GrDPX509Util.digest(INPUT);
+                }
+            });
+            Benchmark.throughput("shared synchronized digest", threads.intValue(), rounds, new Benchmark.Operation() {
+                public void run() {
+                    sharedDigest(INPUT);
+                }
+            });
+        }
+    }
+
+    public void testDelegationIdsPerSecond() throws Exception {
+        int rounds = Benchmark.rounds(5000);
+        for (Integer threads : Benchmark.threadCounts()) {
+            Benchmark.throughput("genDlgID", threads.intValue(), rounds, new Benchmark.Operation() {
+                public void run() {
+                    GrDPX509Util.genDlgID(DN, FQANS);
+                }
+            });
+            Benchmark.throughput("concatenated shared digest", threads.intValue(), rounds,
+                    new Benchmark.Operation() {
+                        public void run() {
+                            String original = DN;
+                            for (String fqan : FQANS) {
+                                original += fqan;
+                            }
+                            sharedDigest(original.getBytes());
+                        }
+                    });
+        }
+    }
+
+    private synchronized byte[] sharedDigest(byte input[]) {
+        return m_shared.digest(input);
+    }
+}
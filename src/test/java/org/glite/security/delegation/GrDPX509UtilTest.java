@@ -0,0 +1,99 @@
+package org.glite.security.delegation;
+
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.ASN1Set;
+import org.bouncycastle.asn1.DERObjectIdentifier;
+import org.bouncycastle.asn1.DERUTF8String;
+import org.bouncycastle.asn1.pkcs.Attribute;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x500.RDN;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.jce.PKCS10CertificationRequest;
+import org.bouncycastle.util.encoders.Hex;
+
+import eu.emi.security.authn.x509.helpers.proxy.ProxyAddressRestrictionData;
+import eu.emi.security.authn.x509.helpers.proxy.ProxyCertInfoExtension;
+import eu.emi.security.authn.x509.helpers.proxy.ProxySAMLExtension;
+import eu.emi.security.authn.x509.helpers.proxy.ProxyTracingExtension;
+import eu.emi.security.authn.x509.proxy.CertificateExtension;
+import eu.emi.security.authn.x509.proxy.ProxyCertificateOptions;
+import eu.emi.security.authn.x509.proxy.ProxyType;
+
+public class GrDPX509UtilTest extends TestCase {
+
+    public void testProxyRequestHasRandomSerial() throws Exception {
+        X509Certificate chain[] = TestCertificates.createProxy(ProxyType.RFC3820).getCertificateChain();
+        ProxyCertificateOptions options = new ProxyCertificateOptions(chain);
+        KeyPair keyPair = TestCertificates.generateKeyPair();
+
+        PKCS10CertificationRequest first = GrDPX509Util.createProxyCertificateRequest(options, keyPair);
+        PKCS10CertificationRequest second = GrDPX509Util.createProxyCertificateRequest(options, keyPair);
+
+        assertTrue(first.verify());
+        RDN firstRDNs[] = subject(first).getRDNs();
+        RDN secondRDNs[] = subject(second).getRDNs();
+        assertEquals(firstRDNs.length, secondRDNs.length);
+        for (int i = 0; i < firstRDNs.length - 1; i++) {
+            assertEquals(firstRDNs[i], secondRDNs[i]);
+        }
+        String serial = firstRDNs[firstRDNs.length - 1].getFirst().getValue().toString();
+        assertFalse(serial.equals(chain[0].getSerialNumber().toString()));
+        assertFalse(serial.equals(secondRDNs[secondRDNs.length - 1].getFirst().getValue().toString()));
+    }
+
+    public void testEcProxyRequestHasRequestedExtensions() throws Exception {
+        X509Certificate chain[] = TestCertificates.createProxy(ProxyType.RFC3820).getCertificateChain();
+        ProxyCertificateOptions options = new ProxyCertificateOptions(chain);
+        options.setProxyPathLimit(2);
+        options.addExtension(new CertificateExtension("1.2.3.4", new DERUTF8String("test"), false));
+        options.setProxyTracingIssuer("https://tracing.example.org/issuer");
+        options.setProxyTracingSubject("https://tracing.example.org/subject");
+        options.setSAMLAssertion("<saml:Assertion/>");
+        options.setSourceRestrictionPermittedAddresses(new String[] { "192.168.0.0/16" });
+        options.setTargetRestrictionExcludedAddresses(new String[] { "10.0.0.0/8" });
+        KeyPair keyPair = GrDPX509Util.generateKeyPair(GrDPConstants.KEY_ALGORITHM_EC, 256);
+
+        byte encoded[] = GrDPX509Util.createProxyCertificateRequest(options, keyPair).getEncoded();
+        PKCS10CertificationRequest request = new PKCS10CertificationRequest(encoded);
+
+        assertTrue(request.verify());
+        Set<String> oids = new HashSet<String>();
+        ASN1Set attributes = request.getCertificationRequestInfo().getAttributes();
+        for (int i = 0; i < attributes.size(); i++) {
+            Attribute attribute = Attribute.getInstance(attributes.getObjectAt(i));
+            assertEquals(PKCSObjectIdentifiers.pkcs_9_at_extensionRequest, attribute.getAttrType());
+            ASN1Sequence extension = ASN1Sequence.getInstance(attribute.getAttrValues().getObjectAt(0));
+            oids.add(DERObjectIdentifier.getInstance(extension.getObjectAt(0)).getId());
+        }
+        // the attributes are a DER set, sorted by their encoding
+        assertEquals(7, attributes.size());
+        assertEquals(new HashSet<String>(Arrays.asList("1.2.3.4", ProxyCertInfoExtension.RFC_EXTENSION_OID,
+                ProxyTracingExtension.PROXY_TRACING_ISSUER_EXTENSION_OID,
+                ProxyTracingExtension.PROXY_TRACING_SUBJECT_EXTENSION_OID, ProxySAMLExtension.SAML_OID,
+                ProxyAddressRestrictionData.SOURCE_RESTRICTION_OID,
+                ProxyAddressRestrictionData.TARGET_RESTRICTION_OID)), oids);
+    }
+
+    public void testDelegationIdDigestsConcatenation() throws Exception {
+        String dn = "/C=CH/O=CERN/CN=Test user";
+        String fqans[] = new String[] { "/dteam/Role=NULL/Capability=NULL", "/dteam/test/Role=NULL/Capability=NULL" };
+
+        byte digest[] = MessageDigest.getInstance("SHA-1").digest((dn + fqans[0] + fqans[1]).getBytes());
+
+        assertEquals(new String(Hex.encode(digest)), GrDPX509Util.genDlgID(dn, fqans));
+        assertEquals(GrDPX509Util.genDlgID(dn, null), GrDPX509Util.genDlgID(dn, new String[0]));
+    }
+
+    private static X500Name subject(PKCS10CertificationRequest request) {
+        return X500Name.getInstance(request.getCertificationRequestInfo().getSubject().getDERObject());
+    }
+}
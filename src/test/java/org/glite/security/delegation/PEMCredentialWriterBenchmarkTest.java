@@ -0,0 +1,58 @@
+package org.glite.security.delegation;
+
+import java.io.ByteArrayOutputStream;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+
+import junit.framework.TestCase;
+
+import eu.emi.security.authn.x509.X509Credential;
+import eu.emi.security.authn.x509.impl.CertificateUtils;
+import eu.emi.security.authn.x509.impl.KeyAndCertCredential;
+import eu.emi.security.authn.x509.impl.PEMCredential;
+
+/**
+ * Compares the time and the allocations of writing the stored proxy with the PEM writer, from the encoded key and
+ * certificates, with the earlier way through a KeyStore.
+ */
+public class PEMCredentialWriterBenchmarkTest extends TestCase {
+
+    public void testWriteProxy() throws Exception {
+        X509Credential credential = new PEMCredential("src/test/certs/trusted_client.proxy.grid_proxy", (char[]) null);
+        final PrivateKey key = credential.getKey();
+        final X509Certificate chain[] = credential.getCertificateChain();
+        final byte keyBytes[] = key.getEncoded();
+        final byte certificates[][] = PEMCredentialWriter.splitChain(GrDPX509Util.encodeCertificateChain(chain));
+        assertEquals(keyStorePEM(key, chain), PEMCredentialWriter.write(keyBytes, certificates));
+
+        int rounds = Benchmark.rounds(500);
+        Benchmark.Operation writer = new Benchmark.Operation() {
+            public void run() throws Exception {
+                PEMCredentialWriter.write(keyBytes, certificates);
+            }
+        };
+        Benchmark.Operation keyStore = new Benchmark.Operation() {
+            public void run() throws Exception {
+                keyStorePEM(key, chain);
+            }
+        };
+        Benchmark.time("PEM writer", rounds, writer);
+        Benchmark.time("KeyStore", rounds, keyStore);
+        double writerBytes = Benchmark.allocation("PEM writer", rounds, writer);
+        double keyStoreBytes = Benchmark.allocation("KeyStore", rounds, keyStore);
+        if (writerBytes >= 0) {
+            assertTrue(writerBytes < keyStoreBytes);
+        }
+    }
+
+    /**
+     * The earlier way of writing the proxy.
+     */
+    private static String keyStorePEM(PrivateKey key, X509Certificate chain[]) throws Exception {
+        KeyAndCertCredential credential = new KeyAndCertCredential(key, chain);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        CertificateUtils.savePEMKeystore(stream, credential.getKeyStore(), credential.getKeyAlias(), null,
+                credential.getKeyPassword(), null, true);
+        return stream.toString();
+    }
+}
@@ -0,0 +1,61 @@
+package org.glite.security.delegation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import eu.emi.security.authn.x509.X509Credential;
+import eu.emi.security.authn.x509.impl.CertificateUtils;
+import eu.emi.security.authn.x509.impl.CertificateUtils.Encoding;
+import eu.emi.security.authn.x509.impl.KeyAndCertCredential;
+import eu.emi.security.authn.x509.impl.PEMCredential;
+
+public class PEMCredentialWriterTest extends TestCase {
+
+    private X509Credential m_credential;
+
+    protected void setUp() throws Exception {
+        m_credential = new PEMCredential("src/test/certs/trusted_client.proxy.grid_proxy", (char[]) null);
+    }
+
+    public void testSameAsKeyStoreRSA() throws Exception {
+        PrivateKey key = m_credential.getKey();
+        assertEquals(keyStorePEM(key, true), PEMCredentialWriter.write(key, m_credential.getCertificateChain()));
+    }
+
+    public void testSameAsKeyStoreEC() throws Exception {
+        PrivateKey key = GrDPX509Util.generateKeyPair(GrDPConstants.KEY_ALGORITHM_EC, 256).getPrivate();
+        // the key store takes only keys matching the certificate, so the parts are written separately
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        CertificateUtils.savePrivateKey(stream, key, Encoding.PEM, null, null, false);
+        CertificateUtils.saveCertificateChain(stream, m_credential.getCertificateChain(), Encoding.PEM);
+        assertEquals(stream.toString(), PEMCredentialWriter.write(key, m_credential.getCertificateChain()));
+    }
+
+    public void testSplitChain() throws Exception {
+        X509Certificate chain[] = m_credential.getCertificateChain();
+        byte certificates[][] = PEMCredentialWriter.splitChain(GrDPX509Util.encodeCertificateChain(chain));
+        assertEquals(chain.length, certificates.length);
+        for (int i = 0; i < chain.length; i++) {
+            assertTrue(Arrays.equals(chain[i].getEncoded(), certificates[i]));
+        }
+        try {
+            PEMCredentialWriter.splitChain(new byte[] { 0x30, 0x05, 0x01 });
+            fail("Truncated chain accepted.");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private String keyStorePEM(PrivateKey key, boolean legacy) throws Exception {
+        KeyAndCertCredential credential = new KeyAndCertCredential(key, m_credential.getCertificateChain());
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        CertificateUtils.savePEMKeystore(stream, credential.getKeyStore(), credential.getKeyAlias(), null,
+                credential.getKeyPassword(), null, legacy);
+        return stream.toString();
+    }
+}
@@ -0,0 +1,100 @@
+package org.glite.security.delegation;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.X509Extension;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CRLConverter;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v2CRLBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import eu.emi.security.authn.x509.impl.CertificateUtils;
+import eu.emi.security.authn.x509.proxy.ProxyCertificate;
+import eu.emi.security.authn.x509.proxy.ProxyCertificateOptions;
+import eu.emi.security.authn.x509.proxy.ProxyGenerator;
+import eu.emi.security.authn.x509.proxy.ProxyType;
+
+/**
+ * Generates the CA, user and proxy certificates and the CRLs for the tests, so that the tests don't depend on the
+ * validity of the certificates under src/test.
+ */
+public final class TestCertificates {
+    /** An hour in milliseconds. */
+    public static final long HOUR = 3600000L;
+
+    static {
+        CertificateUtils.configureSecProvider();
+    }
+
+    private TestCertificates() {
+        // only static methods
+    }
+
+    public static KeyPair generateKeyPair() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        return generator.generateKeyPair();
+    }
+
+    public static X509Certificate createCA(String dn, KeyPair keyPair) throws Exception {
+        X500Principal subject = new X500Principal(dn);
+        long now = System.currentTimeMillis();
+        X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(subject, BigInteger.ONE, new Date(now
+                - HOUR), new Date(now + 24 * HOUR), subject, keyPair.getPublic());
+        builder.addExtension(X509Extension.basicConstraints, true, new BasicConstraints(true));
+        return sign(builder, keyPair.getPrivate());
+    }
+
+    public static X509Certificate createCertificate(X509Certificate ca, PrivateKey caKey, String dn,
+            PublicKey publicKey, BigInteger serial) throws Exception {
+        long now = System.currentTimeMillis();
+        X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(ca, serial, new Date(now - HOUR),
+                new Date(now + 24 * HOUR), new X500Principal(dn), publicKey);
+        return sign(builder, caKey);
+    }
+
+    public static X509CRL createCRL(X509Certificate ca, PrivateKey caKey, Date thisUpdate, Date nextUpdate,
+            BigInteger... revoked) throws Exception {
+        X509v2CRLBuilder builder = new JcaX509v2CRLBuilder(ca.getSubjectX500Principal(), thisUpdate);
+        builder.setNextUpdate(nextUpdate);
+        for (BigInteger serial : revoked) {
+            builder.addCRLEntry(serial, thisUpdate, CRLReason.keyCompromise);
+        }
+        return new JcaX509CRLConverter().setProvider("BC").getCRL(
+                builder.build(new JcaContentSignerBuilder("SHA1withRSA").setProvider("BC").build(caKey)));
+    }
+
+    /**
+     * Creates a user certificate signed by a new CA and a proxy of the given type on top of it.
+     */
+    public static ProxyCertificate createProxy(ProxyType type) throws Exception {
+        KeyPair caKeys = generateKeyPair();
+        X509Certificate ca = createCA("CN=Test CA,O=Test", caKeys);
+        KeyPair userKeys = generateKeyPair();
+        X509Certificate user = createCertificate(ca, caKeys.getPrivate(), "CN=Test User,O=Test", userKeys
+                .getPublic(), BigInteger.valueOf(2));
+        ProxyCertificateOptions options = new ProxyCertificateOptions(new X509Certificate[] { user });
+        options.setType(type);
+        options.setKeyLength(1024);
+        return ProxyGenerator.generate(options, userKeys.getPrivate());
+    }
+
+    private static X509Certificate sign(X509v3CertificateBuilder builder, PrivateKey key) throws Exception {
+        return new JcaX509CertificateConverter().setProvider("BC").getCertificate(
+                builder.build(new JcaContentSignerBuilder("SHA1withRSA").setProvider("BC").build(key)));
+    }
+}
@@ -0,0 +1,178 @@
+package org.glite.security.delegation.impl;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.asn1.x509.AttributeCertificate;
+import org.glite.security.delegation.TestCertificates;
+import org.italiangrid.voms.VOMSAttribute;
+import org.italiangrid.voms.VOMSGenericAttribute;
+import org.italiangrid.voms.ac.VOMSACValidator;
+import org.italiangrid.voms.ac.VOMSValidationResult;
+import org.italiangrid.voms.ac.ValidationResultListener;
+import org.italiangrid.voms.asn1.VOMSACGenerator;
+import org.italiangrid.voms.asn1.VOMSACUtils;
+
+import eu.emi.security.authn.x509.impl.KeyAndCertCredential;
+import eu.emi.security.authn.x509.proxy.ProxyCertificateOptions;
+import eu.emi.security.authn.x509.proxy.ProxyGenerator;
+
+public class CachingVOMSACValidatorTest extends TestCase {
+    private KeyPair m_caKeys;
+    private X509Certificate m_ca;
+    private KeyPair m_userKeys;
+    private X509Certificate m_user;
+    private AttributeCertificate m_ac;
+    private CountingValidator m_validator;
+    private CachingVOMSACValidator m_cache;
+
+    protected void setUp() throws Exception {
+        m_caKeys = TestCertificates.generateKeyPair();
+        m_ca = TestCertificates.createCA("CN=VOMS CA,O=Test", m_caKeys);
+        m_userKeys = TestCertificates.generateKeyPair();
+        m_user = TestCertificates.createCertificate(m_ca, m_caKeys.getPrivate(), "CN=User,O=Test", m_userKeys
+                .getPublic(), BigInteger.valueOf(2));
+        m_ac = createAC(m_user);
+        m_validator = new CountingValidator();
+        m_cache = new CachingVOMSACValidator(m_validator, 10, TestCertificates.HOUR);
+    }
+
+    public void testValidResultCached() throws Exception {
+        m_validator.m_valid = true;
+        X509Certificate chain[] = proxy(m_user, m_ac);
+
+        List<VOMSAttribute> first = m_cache.validate(chain);
+        List<VOMSAttribute> second = m_cache.validate(chain);
+
+        assertEquals(1, m_validator.m_calls);
+        assertEquals(Arrays.asList("/vo"), second.get(0).getFQANs());
+        assertEquals(first.get(0).getFQANs(), second.get(0).getFQANs());
+    }
+
+    public void testChainWithoutACsNotCached() throws Exception {
+        X509Certificate chain[] = new X509Certificate[] { m_user, m_ca };
+
+        m_cache.validateWithResult(chain);
+        m_cache.validateWithResult(chain);
+
+        assertEquals(2, m_validator.m_calls);
+        assertEquals(0, m_cache.size());
+    }
+
+    public void testACOfOtherHolderNotShared() throws Exception {
+        m_validator.m_valid = true;
+        X509Certificate other = TestCertificates.createCertificate(m_ca, m_caKeys.getPrivate(), "CN=Other,O=Test",
+                m_userKeys.getPublic(), BigInteger.valueOf(3));
+
+        m_cache.validateWithResult(proxy(m_user, m_ac));
+        // the same attribute certificate copied to the chain of another user
+        m_cache.validateWithResult(proxy(other, m_ac));
+
+        assertEquals(2, m_validator.m_calls);
+    }
+
+    public void testFailureKeptShortly() throws Exception {
+        VOMSAttribute attributes = VOMSACUtils.deserializeVOMSAttributes(m_ac);
+        long now = System.currentTimeMillis();
+
+        long valid = m_cache.getExpiration(Collections.singletonList(new VOMSValidationResult(attributes, true)),
+                now);
+        long failed = m_cache.getExpiration(Collections.singletonList(new VOMSValidationResult(attributes, false)),
+                now);
+
+        assertEquals(Math.min(now + TestCertificates.HOUR, attributes.getNotAfter().getTime()), valid);
+        assertEquals(now + CachingVOMSACValidator.FAILURE_TTL, failed);
+    }
+
+    public void testListenerToldAboutCachedResults() throws Exception {
+        m_validator.m_valid = true;
+        final List<VOMSValidationResult> notified = new ArrayList<VOMSValidationResult>();
+        m_cache.setValidationResultListener(new ValidationResultListener() {
+            public void notifyValidationResult(VOMSValidationResult result) {
+                notified.add(result);
+            }
+        });
+        X509Certificate chain[] = proxy(m_user, m_ac);
+
+        m_cache.validateWithResult(chain);
+        List<VOMSValidationResult> cached = m_cache.validateWithResult(chain);
+
+        // the wrapped validator tells about the first one itself
+        assertEquals(cached, notified);
+    }
+
+    public void testClearDropsResults() throws Exception {
+        m_validator.m_valid = true;
+        X509Certificate chain[] = proxy(m_user, m_ac);
+
+        m_cache.validateWithResult(chain);
+        m_cache.clear();
+        m_cache.validateWithResult(chain);
+
+        assertEquals(2, m_validator.m_calls);
+    }
+
+    private AttributeCertificate createAC(X509Certificate holder) throws Exception {
+        VOMSACGenerator generator = new VOMSACGenerator(new KeyAndCertCredential(m_caKeys.getPrivate(),
+                new X509Certificate[] { m_ca }), "vo", "voms.example.org", 15000);
+        long now = System.currentTimeMillis();
+        return generator.generateVOMSAttributeCertificate(Arrays.asList("/vo"),
+                Collections.<VOMSGenericAttribute> emptyList(), Collections.<String> emptyList(), holder,
+                BigInteger.ONE, new Date(now - TestCertificates.HOUR), new Date(now + 2 * TestCertificates.HOUR))
+                .toASN1Structure();
+    }
+
+    private X509Certificate[] proxy(X509Certificate user, AttributeCertificate ac) throws Exception {
+        ProxyCertificateOptions options = new ProxyCertificateOptions(new X509Certificate[] { user, m_ca });
+        options.setKeyLength(1024);
+        options.setAttributeCertificates(new AttributeCertificate[] { ac });
+        return ProxyGenerator.generate(options, m_userKeys.getPrivate()).getCertificateChain();
+    }
+
+    /**
+     * Stands for the VOMS validator, counts the validations and deserializes the attributes without checking them.
+     */
+    private static class CountingValidator implements VOMSACValidator {
+        private int m_calls = 0;
+        private boolean m_valid = false;
+
+        public List<VOMSValidationResult> validateWithResult(X509Certificate[] certChain) {
+            m_calls++;
+            List<VOMSValidationResult> results = new ArrayList<VOMSValidationResult>();
+            for (VOMSAttribute attributes : parse(certChain)) {
+                results.add(new VOMSValidationResult(attributes, m_valid));
+            }
+            return results;
+        }
+
+        public List<VOMSAttribute> validate(X509Certificate[] certChain) {
+            throw new UnsupportedOperationException();
+        }
+
+        public List<AttributeCertificate> validateACs(List<AttributeCertificate> acs) {
+            throw new UnsupportedOperationException();
+        }
+
+        public List<VOMSAttribute> parse(X509Certificate[] certChain) {
+            try {
+                return VOMSACUtils.deserializeVOMSAttributes(VOMSACUtils.getACsFromCertificate(certChain[0]));
+            } catch (Exception e) {
+                return new ArrayList<VOMSAttribute>();
+            }
+        }
+
+        public void setValidationResultListener(ValidationResultListener listener) {
+        }
+
+        public void shutdown() {
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.glite.security.delegation.impl;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import junit.framework.TestCase;
+
+import org.glite.security.delegation.DelegationException;
+import org.glite.security.delegation.GrDProxyDlgeeOptions;
+import org.glite.security.delegation.TestCertificates;
+
+import eu.emi.security.authn.x509.proxy.ProxyType;
+
+public class ChainPreScreenerTest extends TestCase {
+    /** The CA of the test CA directory, expired. */
+    private static final String TRUSTED_CA = "src/test/grid-security/certificates/5a762d74.0";
+
+    private X509Certificate m_chain[];
+    private SharedVomsValidator m_trust;
+
+    protected void setUp() throws Exception {
+        m_chain = TestCertificates.createProxy(ProxyType.RFC3820).getCertificateChain();
+    }
+
+    protected void tearDown() {
+        if (m_trust != null) {
+            m_trust.release();
+        }
+    }
+
+    public void testLengthLimited() throws Exception {
+        new ChainPreScreener(m_chain.length, false, null).screen(m_chain);
+
+        assertRejected(new ChainPreScreener(m_chain.length - 1, false, null), m_chain);
+    }
+
+    public void testEmptyChainRejected() {
+        ChainPreScreener screener = new ChainPreScreener(0, false, null);
+
+        assertRejected(screener, null);
+        assertRejected(screener, new X509Certificate[0]);
+    }
+
+    public void testLinkedChainAccepted() throws Exception {
+        new ChainPreScreener(0, true, null).screen(m_chain);
+    }
+
+    public void testBrokenChainRejected() throws Exception {
+        KeyPair keys = TestCertificates.generateKeyPair();
+        X509Certificate other = TestCertificates.createCA("CN=Other CA,O=Test", keys);
+
+        assertRejected(new ChainPreScreener(0, true, null), new X509Certificate[] { m_chain[0], other });
+        assertRejected(new ChainPreScreener(0, true, null), new X509Certificate[] { m_chain[0], null });
+    }
+
+    public void testExpiredCertificateRejected() throws Exception {
+        assertRejected(new ChainPreScreener(0, true, null), new X509Certificate[] { load(TRUSTED_CA) });
+    }
+
+    public void testUnknownIssuerRejected() throws Exception {
+        assertRejected(new ChainPreScreener(0, true, trust()), m_chain);
+    }
+
+    public void testKnownIssuerAccepted() throws Exception {
+        // only the subject of the issuer is looked up, the signature is left to the full validation
+        KeyPair caKeys = TestCertificates.generateKeyPair();
+        X509Certificate ca = TestCertificates.createCA(load(TRUSTED_CA).getSubjectX500Principal().getName(),
+                caKeys);
+        X509Certificate user = TestCertificates.createCertificate(ca, caKeys.getPrivate(), "CN=User,O=Utopia",
+                caKeys.getPublic(), BigInteger.valueOf(2));
+
+        new ChainPreScreener(0, true, trust()).screen(new X509Certificate[] { user });
+    }
+
+    private SharedVomsValidator trust() {
+        GrDProxyDlgeeOptions options = new GrDProxyDlgeeOptions();
+        options.setVomsCAs("src/test/grid-security/certificates");
+        options.setVomsDir("src/test/grid-security/vomsdir");
+        options.setUpdateInterval("0");
+        m_trust = SharedVomsValidator.acquire(options);
+        return m_trust;
+    }
+
+    private static X509Certificate load(String path) throws Exception {
+        InputStream in = new FileInputStream(path);
+        try {
+            return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void assertRejected(ChainPreScreener screener, X509Certificate chain[]) {
+        try {
+            screener.screen(chain);
+            fail("chain accepted");
+        } catch (DelegationException e) {
+            // expected
+        }
+    }
+}
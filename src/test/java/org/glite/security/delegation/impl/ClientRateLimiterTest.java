@@ -0,0 +1,76 @@
+package org.glite.security.delegation.impl;
+
+import junit.framework.TestCase;
+
+public class ClientRateLimiterTest extends TestCase {
+    private static final String DN = "/O=Test/CN=Test User";
+
+    public void testBurstThenRefused() {
+        ClientRateLimiter limiter = new ClientRateLimiter(60, 3, 100);
+
+        assertEquals(0, limiter.tryAcquire(DN, 1));
+        assertEquals(0, limiter.tryAcquire(DN, 1));
+        assertEquals(0, limiter.tryAcquire(DN, 1));
+
+        long wait = limiter.tryAcquire(DN, 1);
+        // one token per second
+        assertTrue(String.valueOf(wait), wait > 0 && wait <= 1000);
+    }
+
+    public void testClientsLimitedSeparately() {
+        ClientRateLimiter limiter = new ClientRateLimiter(60, 1, 100);
+
+        assertEquals(0, limiter.tryAcquire(DN, 1));
+        assertTrue(limiter.tryAcquire(DN, 1) > 0);
+        assertEquals(0, limiter.tryAcquire("/O=Test/CN=Other User", 1));
+    }
+
+    public void testBatchCountsEachDelegation() {
+        ClientRateLimiter limiter = new ClientRateLimiter(60, 3, 100);
+
+        assertEquals(0, limiter.tryAcquire(DN, 2));
+        assertTrue(limiter.tryAcquire(DN, 2) > 0);
+        assertEquals(0, limiter.tryAcquire(DN, 1));
+    }
+
+    public void testLargeBatchLeavesDebt() {
+        ClientRateLimiter limiter = new ClientRateLimiter(60, 3, 100);
+
+        // larger than the burst, passes with a full bucket
+        assertEquals(0, limiter.tryAcquire(DN, 5));
+
+        long wait = limiter.tryAcquire(DN, 1);
+        // two tokens of debt and the one requested
+        assertTrue(String.valueOf(wait), wait > 2000 && wait <= 3000);
+    }
+
+    public void testRefilledOverTime() throws Exception {
+        ClientRateLimiter limiter = new ClientRateLimiter(6000, 1, 100);
+
+        assertEquals(0, limiter.tryAcquire(DN, 1));
+        long wait = limiter.tryAcquire(DN, 1);
+        assertTrue(String.valueOf(wait), wait > 0 && wait <= 10);
+
+        Thread.sleep(wait + 5);
+        assertEquals(0, limiter.tryAcquire(DN, 1));
+    }
+
+    public void testTrackedClientsCapped() {
+        ClientRateLimiter limiter = new ClientRateLimiter(1, 1, 128);
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, limiter.tryAcquire("/O=Test/CN=User " + i, 1));
+        }
+
+        assertTrue(String.valueOf(limiter.size()), limiter.size() <= 128);
+    }
+
+    public void testRateRequired() {
+        try {
+            new ClientRateLimiter(0, 1, 100);
+            fail("accepted a zero rate");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
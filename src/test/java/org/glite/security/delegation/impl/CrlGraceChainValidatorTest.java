@@ -0,0 +1,149 @@
+package org.glite.security.delegation.impl;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.cert.CertPath;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.glite.security.delegation.TestCertificates;
+
+import eu.emi.security.authn.x509.ProxySupport;
+import eu.emi.security.authn.x509.RevocationParameters;
+import eu.emi.security.authn.x509.StoreUpdateListener;
+import eu.emi.security.authn.x509.ValidationError;
+import eu.emi.security.authn.x509.ValidationErrorCode;
+import eu.emi.security.authn.x509.ValidationErrorListener;
+import eu.emi.security.authn.x509.ValidationResult;
+import eu.emi.security.authn.x509.X509CertChainValidatorExt;
+
+public class CrlGraceChainValidatorTest extends TestCase {
+    private static final long GRACE = 2 * TestCertificates.HOUR;
+
+    private KeyPair m_caKeys;
+    private X509Certificate m_ca;
+    private X509Certificate m_user;
+    private X509Certificate m_revokedUser;
+    private long m_now;
+
+    protected void setUp() throws Exception {
+        m_caKeys = TestCertificates.generateKeyPair();
+        m_ca = TestCertificates.createCA("CN=Grace CA,O=Test", m_caKeys);
+        KeyPair userKeys = TestCertificates.generateKeyPair();
+        m_user = TestCertificates.createCertificate(m_ca, m_caKeys.getPrivate(), "CN=User,O=Test", userKeys
+                .getPublic(), BigInteger.valueOf(10));
+        m_revokedUser = TestCertificates.createCertificate(m_ca, m_caKeys.getPrivate(), "CN=Revoked,O=Test",
+                userKeys.getPublic(), BigInteger.valueOf(11));
+        m_now = System.currentTimeMillis();
+    }
+
+    public void testExpiredCrlStillEnforcedDuringGrace() throws Exception {
+        // expired an hour ago, the grace period lasts two hours
+        X509CRL crl = crl(m_now - 3 * TestCertificates.HOUR, m_now - TestCertificates.HOUR);
+        CrlGraceChainValidator validator = validator(Collections.singletonList(crl));
+
+        assertTrue(validator.checkRevocation(chain(m_user), m_now).isEmpty());
+        assertError(validator.checkRevocation(chain(m_revokedUser), m_now), ValidationErrorCode.certRevoked);
+        assertFalse(validator.validate(chain(m_revokedUser)).isValid());
+    }
+
+    public void testCrlPastGraceRejected() throws Exception {
+        X509CRL crl = crl(m_now - 5 * TestCertificates.HOUR, m_now - 3 * TestCertificates.HOUR);
+        CrlGraceChainValidator validator = validator(Collections.singletonList(crl));
+
+        assertError(validator.checkRevocation(chain(m_user), m_now), ValidationErrorCode.noValidCrlFound);
+    }
+
+    public void testCaWithoutCrlRejected() throws Exception {
+        CrlGraceChainValidator validator = validator(Collections.<X509CRL> emptyList());
+
+        assertError(validator.checkRevocation(chain(m_user), m_now), ValidationErrorCode.noValidCrlFound);
+    }
+
+    public void testCrlOfOtherKeyIgnored() throws Exception {
+        KeyPair otherKeys = TestCertificates.generateKeyPair();
+        X509CRL forged = TestCertificates.createCRL(m_ca, otherKeys.getPrivate(), new Date(m_now
+                - TestCertificates.HOUR), new Date(m_now + TestCertificates.HOUR));
+        CrlGraceChainValidator validator = validator(Collections.singletonList(forged));
+
+        assertError(validator.checkRevocation(chain(m_user), m_now), ValidationErrorCode.noValidCrlFound);
+    }
+
+    public void testValidCrlUsed() throws Exception {
+        X509CRL crl = crl(m_now - TestCertificates.HOUR, m_now + TestCertificates.HOUR);
+        CrlGraceChainValidator validator = validator(Arrays.asList(crl));
+
+        assertTrue(validator.validate(chain(m_user)).isValid());
+        assertError(validator.checkRevocation(chain(m_revokedUser), m_now), ValidationErrorCode.certRevoked);
+    }
+
+    private X509CRL crl(long thisUpdate, long nextUpdate) throws Exception {
+        return TestCertificates.createCRL(m_ca, m_caKeys.getPrivate(), new Date(thisUpdate), new Date(nextUpdate),
+                m_revokedUser.getSerialNumber());
+    }
+
+    private X509Certificate[] chain(X509Certificate user) {
+        return new X509Certificate[] { user, m_ca };
+    }
+
+    private CrlGraceChainValidator validator(List<X509CRL> crls) {
+        return new CrlGraceChainValidator(new AcceptingValidator(m_ca), crls, GRACE);
+    }
+
+    private static void assertError(List<ValidationError> errors, ValidationErrorCode code) {
+        assertEquals(1, errors.size());
+        assertEquals(code, errors.get(0).getErrorCode());
+    }
+
+    /**
+     * Stands for the canl validator with the IF_VALID checking, accepts every chain.
+     */
+    private static class AcceptingValidator implements X509CertChainValidatorExt {
+        private final X509Certificate m_ca;
+
+        AcceptingValidator(X509Certificate ca) {
+            m_ca = ca;
+        }
+
+        public ValidationResult validate(CertPath certPath) {
+            return new ValidationResult(true);
+        }
+
+        public ValidationResult validate(X509Certificate[] certChain) {
+            return new ValidationResult(true);
+        }
+
+        public X509Certificate[] getTrustedIssuers() {
+            return new X509Certificate[] { m_ca };
+        }
+
+        public void addValidationListener(ValidationErrorListener listener) {
+        }
+
+        public void removeValidationListener(ValidationErrorListener listener) {
+        }
+
+        public void addUpdateListener(StoreUpdateListener listener) {
+        }
+
+        public void removeUpdateListener(StoreUpdateListener listener) {
+        }
+
+        public ProxySupport getProxySupport() {
+            return ProxySupport.ALLOW;
+        }
+
+        public RevocationParameters getRevocationCheckingMode() {
+            return null;
+        }
+
+        public void dispose() {
+        }
+    }
+}
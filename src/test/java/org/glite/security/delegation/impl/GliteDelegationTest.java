@@ -0,0 +1,317 @@
+package org.glite.security.delegation.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.jce.PKCS10CertificationRequest;
+import org.bouncycastle.openssl.PEMReader;
+import org.glite.security.delegation.DelegationBusyException;
+import org.glite.security.delegation.DelegationException;
+import org.glite.security.delegation.GrDPX509Util;
+import org.glite.security.delegation.GrDProxyDlgeeOptions;
+import org.glite.security.delegation.TestCertificates;
+
+import eu.emi.security.authn.x509.impl.CertificateUtils;
+import eu.emi.security.authn.x509.impl.CertificateUtils.Encoding;
+import eu.emi.security.authn.x509.proxy.ProxyCertificate;
+import eu.emi.security.authn.x509.proxy.ProxyCertificateOptions;
+import eu.emi.security.authn.x509.proxy.ProxyGenerator;
+import eu.emi.security.authn.x509.proxy.ProxyRequestOptions;
+import eu.emi.security.authn.x509.proxy.ProxyType;
+
+public class GliteDelegationTest extends TestCase {
+    private File m_storageDir;
+    private ProxyCertificate m_credential;
+    private X509Certificate[] m_chain;
+    private List<GliteDelegation> m_delegations = new ArrayList<GliteDelegation>();
+
+    protected void setUp() throws Exception {
+        m_storageDir = File.createTempFile("delegation", "");
+        m_storageDir.delete();
+        m_storageDir.mkdirs();
+        m_credential = TestCertificates.createProxy(ProxyType.RFC3820);
+        m_chain = m_credential.getCertificateChain();
+    }
+
+    protected void tearDown() {
+        for (GliteDelegation delegation : m_delegations) {
+            delegation.shutdown();
+        }
+        delete(m_storageDir);
+    }
+
+    public void testBatchRejectsEmptyId() throws Exception {
+        GliteDelegation delegation = createDelegation(options());
+        try {
+            delegation.getProxyReqs(Arrays.asList("a", ""), m_chain);
+            fail("empty id accepted");
+        } catch (DelegationException e) {
+            // expected
+        }
+        try {
+            delegation.getProxyReqs(Arrays.asList("a", null), m_chain);
+            fail("null id accepted");
+        } catch (DelegationException e) {
+            // expected
+        }
+    }
+
+    public void testBatchGivesOneRequestPerId() throws Exception {
+        GliteDelegation delegation = createDelegation(options());
+
+        Map<String, String> requests = delegation.getProxyReqs(Arrays.asList("b", "a", "b"), m_chain);
+
+        assertEquals(Arrays.asList("b", "a"), new ArrayList<String>(requests.keySet()));
+        assertFalse(requests.get("a").equals(requests.get("b")));
+    }
+
+    public void testBatchRateChargedPerDistinctId() throws Exception {
+        GrDProxyDlgeeOptions options = options();
+        options.setClientRequestRate(1);
+        options.setClientRequestBurst(2);
+        GliteDelegation delegation = createDelegation(options);
+
+        delegation.getProxyReqs(Arrays.asList("a", "a", "a"), m_chain);
+        delegation.getProxyReq("b", m_chain);
+        try {
+            delegation.getProxyReq("c", m_chain);
+            fail("request rate not limited");
+        } catch (DelegationBusyException e) {
+            // expected
+        }
+    }
+
+    public void testBatchTakesOnePermitPerKey() throws Exception {
+        GrDProxyDlgeeOptions options = options();
+        options.setMaxConcurrentOperations(1);
+        options.setAdmissionTimeout(60000);
+        GliteDelegation delegation = createDelegation(options);
+
+        // with one permit the keys are generated one after the other, but all of them are generated
+        Map<String, String> requests = delegation.getProxyReqs(Arrays.asList("a", "b", "c"), m_chain);
+
+        assertEquals(3, requests.size());
+    }
+
+    public void testReusesPendingLegacyRequest() throws Exception {
+        assertReused(ProxyType.LEGACY);
+    }
+
+    public void testReusesPendingDraftRequest() throws Exception {
+        assertReused(ProxyType.DRAFT_RFC);
+    }
+
+    public void testReusesPendingRfcRequest() throws Exception {
+        assertReused(ProxyType.RFC3820);
+    }
+
+    public void testPendingRequestOfOtherCertificateNotReused() throws Exception {
+        GrDProxyDlgeeOptions options = options();
+        options.setReusePendingRequests(true);
+        GliteDelegation delegation = createDelegation(options);
+
+        String request = delegation.getProxyReq("dlg", m_chain);
+
+        X509Certificate other[] = TestCertificates.createProxy(ProxyType.RFC3820).getCertificateChain();
+        assertFalse(request.equals(delegation.getProxyReq("dlg", other)));
+    }
+
+    private void assertReused(ProxyType type) throws Exception {
+        GrDProxyDlgeeOptions options = options();
+        options.setReusePendingRequests(true);
+        GliteDelegation delegation = createDelegation(options);
+        X509Certificate chain[] = TestCertificates.createProxy(type).getCertificateChain();
+
+        String request = delegation.getProxyReq("dlg", chain);
+
+        assertEquals(request, delegation.getProxyReq("dlg", chain));
+    }
+
+    public void testPutProxyMatchesRequestKey() throws Exception {
+        GliteDelegation delegation = createDelegation(options());
+        String request = delegation.getProxyReq("dlg", m_chain);
+
+        delegation.putProxy("dlg", sign(request), m_chain);
+
+        assertNotNull(delegation.getTerminationTime("dlg", m_chain));
+    }
+
+    public void testPutProxyOfOtherKeyRejected() throws Exception {
+        GliteDelegation delegation = createDelegation(options());
+        delegation.getProxyReq("dlg", m_chain);
+        // a request of the client made with a key the service does not hold
+        KeyPair other = TestCertificates.generateKeyPair();
+        PKCS10CertificationRequest request = GrDPX509Util.createProxyCertificateRequest(new ProxyCertificateOptions(
+                m_chain), other);
+
+        try {
+            delegation.putProxy("dlg", sign(request), m_chain);
+            fail("proxy of another key accepted");
+        } catch (DelegationException e) {
+            assertEquals("Could not find a proper delegation request", e.getMessage());
+        }
+    }
+
+    public void testPutProxyComparesStoredFingerprint() throws Exception {
+        GliteDelegation delegation = createDelegation(options());
+        String request = delegation.getProxyReq("dlg", m_chain);
+        File fingerprint = find(m_storageDir, "userreq.fingerprint");
+        FileOutputStream out = new FileOutputStream(fingerprint);
+        try {
+            out.write(GrDPX509Util.generateSessionID(TestCertificates.generateKeyPair().getPublic()).getBytes());
+        } finally {
+            out.close();
+        }
+
+        try {
+            delegation.putProxy("dlg", sign(request), m_chain);
+            fail("proxy accepted for a request of another key");
+        } catch (DelegationException e) {
+            assertEquals("The proxy and the original request's public key do not match.", e.getMessage());
+        }
+    }
+
+    public void testPutProxyForRequestStoredWithoutFingerprint() throws Exception {
+        GliteDelegation delegation = createDelegation(options());
+        String request = delegation.getProxyReq("dlg", m_chain);
+        assertTrue(find(m_storageDir, "userreq.fingerprint").delete());
+
+        delegation.putProxy("dlg", sign(request), m_chain);
+
+        assertNotNull(delegation.getTerminationTime("dlg", m_chain));
+    }
+
+    public void testSessionKeyedOperations() throws Exception {
+        GrDProxyDlgeeOptions options = options();
+        options.setSessionCacheSize(10);
+        GliteDelegation delegation = createDelegation(options);
+
+        String request = delegation.getProxyReq("dlg", m_chain, "session");
+        delegation.putProxy("dlg", sign(request), m_chain, "session");
+
+        assertNotNull(delegation.getTerminationTime("dlg", m_chain, "session"));
+    }
+
+    public void testSessionOfOtherChainNotReused() throws Exception {
+        GrDProxyDlgeeOptions options = options();
+        options.setSessionCacheSize(10);
+        GliteDelegation delegation = createDelegation(options);
+        String request = delegation.getProxyReq("dlg", m_chain, "session");
+        delegation.putProxy("dlg", sign(request), m_chain, "session");
+
+        // the session renegotiated with the credentials of another user
+        KeyPair caKeys = TestCertificates.generateKeyPair();
+        X509Certificate ca = TestCertificates.createCA("CN=Other CA,O=Test", caKeys);
+        X509Certificate other = TestCertificates.createCertificate(ca, caKeys.getPrivate(), "CN=Other User,O=Test",
+                caKeys.getPublic(), BigInteger.valueOf(2));
+        try {
+            delegation.getTerminationTime("dlg", new X509Certificate[] { other }, "session");
+            fail("found the delegation of the earlier user of the session");
+        } catch (DelegationException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Failed to find delegation ID"));
+        }
+    }
+
+    public void testBadKeyPoolFileStartsNoThreads() throws Exception {
+        GrDProxyDlgeeOptions options = options();
+        options.setKeyPoolHighWatermark(4);
+        options.setKeyPoolFile(new File(m_storageDir, "keypool").getPath());
+        try {
+            createDelegation(options);
+            fail("key pool file without a secret accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertNoThreads("delegation-keypool-");
+    }
+
+    public void testFailedValidatorStopsThreads() throws Exception {
+        GrDProxyDlgeeOptions options = options();
+        options.setKeyPoolHighWatermark(4);
+        options.setRequireVomsAttributes(true);
+        options.setVomsCAs(new File(m_storageDir, "missing").getPath());
+        try {
+            createDelegation(options);
+            fail("missing trust store accepted");
+        } catch (Exception e) {
+            // expected
+        }
+        assertNoThreads("delegation-keypool-");
+    }
+
+    private static void assertNoThreads(String prefix) throws InterruptedException {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(prefix)) {
+                thread.join(5000);
+                assertFalse("thread " + thread.getName() + " still running", thread.isAlive());
+            }
+        }
+    }
+
+    private String sign(String request) throws Exception {
+        PEMReader reader = new PEMReader(new StringReader(request));
+        try {
+            return sign((PKCS10CertificationRequest) reader.readObject());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private String sign(PKCS10CertificationRequest request) throws Exception {
+        X509Certificate proxy[] = ProxyGenerator.generate(new ProxyRequestOptions(m_chain, request), m_credential
+                .getPrivateKey());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CertificateUtils.saveCertificateChain(out, proxy, Encoding.PEM);
+        return out.toString("ASCII");
+    }
+
+    GrDProxyDlgeeOptions options() {
+        GrDProxyDlgeeOptions options = new GrDProxyDlgeeOptions();
+        options.setDlgeeStorage(m_storageDir.getPath());
+        options.setDlgeeStorageFactory("org.glite.security.delegation.storage.GrDPStorageFilesystemFactory");
+        options.setRequireVomsAttributes(false);
+        options.setVomsCAs("src/test/grid-security/certificates");
+        options.setKeyGenerationThreads(2);
+        return options;
+    }
+
+    GliteDelegation createDelegation(GrDProxyDlgeeOptions options) throws Exception {
+        GliteDelegation delegation = new GliteDelegation(options);
+        m_delegations.add(delegation);
+        return delegation;
+    }
+
+    private static File find(File dir, String name) {
+        File children[] = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                File found = child.getName().equals(name) ? child : find(child, name);
+                if (found != null) {
+                    return found;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static void delete(File file) {
+        File children[] = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,87 @@
+package org.glite.security.delegation.impl;
+
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+import org.glite.security.delegation.CertInfoTriple;
+import org.glite.security.delegation.TestCertificates;
+
+import eu.emi.security.authn.x509.proxy.ProxyType;
+
+public class IdentityCacheTest extends TestCase {
+    private X509Certificate m_chain[];
+    private X509Certificate m_otherChain[];
+    private CertInfoTriple m_info;
+
+    protected void setUp() throws Exception {
+        m_chain = TestCertificates.createProxy(ProxyType.RFC3820).getCertificateChain();
+        m_otherChain = TestCertificates.createProxy(ProxyType.RFC3820).getCertificateChain();
+        m_info = new CertInfoTriple(m_chain);
+    }
+
+    public void testCachedByFingerprint() throws Exception {
+        IdentityCache cache = new IdentityCache(10, TestCertificates.HOUR);
+        String fingerprint = IdentityCache.fingerprint(m_chain);
+
+        cache.put(fingerprint, m_chain, m_info);
+
+        assertSame(m_info, cache.get(fingerprint));
+        assertEquals(fingerprint, IdentityCache.fingerprint(m_chain.clone()));
+        assertFalse(fingerprint.equals(IdentityCache.fingerprint(m_otherChain)));
+        assertNull(cache.get(IdentityCache.fingerprint(m_otherChain)));
+    }
+
+    public void testSessionKeyComparesChain() {
+        IdentityCache cache = new IdentityCache(10, TestCertificates.HOUR);
+
+        cache.put("session", m_chain, m_info);
+
+        assertSame(m_info, cache.get("session", m_chain));
+        assertNull(cache.get("session", m_otherChain));
+    }
+
+    public void testExpiresAfterTtl() throws Exception {
+        IdentityCache cache = new IdentityCache(10, 20);
+
+        cache.put("session", m_chain, m_info);
+        assertSame(m_info, cache.get("session"));
+
+        Thread.sleep(40);
+        assertNull(cache.get("session"));
+        assertEquals(0, cache.size());
+    }
+
+    public void testExpiredAttributesNotCached() {
+        IdentityCache cache = new IdentityCache(10, TestCertificates.HOUR);
+        m_info.vomsNotAfter = new Date(System.currentTimeMillis() - 1000);
+
+        cache.put("session", m_chain, m_info);
+
+        assertEquals(0, cache.size());
+    }
+
+    public void testLeastRecentlyUsedDropped() {
+        IdentityCache cache = new IdentityCache(2, TestCertificates.HOUR);
+
+        cache.put("first", m_chain, m_info);
+        cache.put("second", m_chain, m_info);
+        cache.get("first");
+        cache.put("third", m_chain, m_info);
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("first"));
+        assertNull(cache.get("second"));
+        assertNotNull(cache.get("third"));
+    }
+
+    public void testClearDropsEntries() {
+        IdentityCache cache = new IdentityCache(10, TestCertificates.HOUR);
+        cache.put("session", m_chain, m_info);
+
+        cache.clear();
+
+        assertNull(cache.get("session"));
+    }
+}
@@ -0,0 +1,98 @@
+package org.glite.security.delegation.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.glite.security.delegation.DelegationBusyException;
+import org.glite.security.delegation.DelegationException;
+
+public class KeyAllocationSchedulerTest extends TestCase {
+
+    public void testRenewalWaitIsBounded() throws Exception {
+        KeyAllocationScheduler scheduler = new KeyAllocationScheduler(1, 50, 100, 10, 1);
+        scheduler.acquire(null);
+
+        long start = System.currentTimeMillis();
+        try {
+            scheduler.acquire(new Date());
+            fail("renewal got a slot that was taken");
+        } catch (DelegationBusyException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        assertEquals(0, scheduler.getWaiting());
+    }
+
+    public void testNewRequestQueueLimited() throws Exception {
+        final KeyAllocationScheduler scheduler = new KeyAllocationScheduler(1, 5000, 5000, 1, 1);
+        scheduler.acquire(null);
+        Thread waiting = startWaiter(scheduler, null, new ArrayList<String>(), "new");
+        waitForWaiters(scheduler, 1);
+
+        try {
+            scheduler.acquire(null);
+            fail("queue length not limited");
+        } catch (DelegationBusyException e) {
+            // expected
+        }
+        scheduler.release();
+        waiting.join(5000);
+    }
+
+    public void testRenewalsClosestToExpiryFirst() throws Exception {
+        KeyAllocationScheduler scheduler = new KeyAllocationScheduler(1, 5000, 5000, 10, 1);
+        scheduler.acquire(null);
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        long now = System.currentTimeMillis();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        threads.add(startWaiter(scheduler, null, order, "new"));
+        waitForWaiters(scheduler, 1);
+        threads.add(startWaiter(scheduler, new Date(now + 7200000), order, "late renewal"));
+        waitForWaiters(scheduler, 2);
+        threads.add(startWaiter(scheduler, new Date(now + 3600000), order, "early renewal"));
+        waitForWaiters(scheduler, 3);
+
+        scheduler.release();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        assertEquals(3, order.size());
+        assertEquals("early renewal", order.get(0));
+        assertEquals("late renewal", order.get(1));
+        assertEquals("new", order.get(2));
+    }
+
+    /**
+     * Starts a thread that takes a slot, records its name and gives the slot back.
+     */
+    private static Thread startWaiter(final KeyAllocationScheduler scheduler, final Date terminationTime,
+            final List<String> order, final String name) {
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    scheduler.acquire(terminationTime);
+                } catch (DelegationException e) {
+                    order.add(name + " failed");
+                    return;
+                }
+                order.add(name);
+                scheduler.release();
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private static void waitForWaiters(KeyAllocationScheduler scheduler, int waiters) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (scheduler.getWaiting() < waiters && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        assertEquals(waiters, scheduler.getWaiting());
+    }
+}
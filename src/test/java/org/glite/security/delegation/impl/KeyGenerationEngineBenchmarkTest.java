@@ -0,0 +1,39 @@
+package org.glite.security.delegation.impl;
+
+import junit.framework.TestCase;
+
+import org.glite.security.delegation.Benchmark;
+import org.glite.security.delegation.GrDPX509Util;
+
+/**
+ * Compares the key pairs per second of the key generation engine with the generation using a new SecureRandom per key
+ * pair, with one thread up to twice the processors. The engine should scale with the processors, as its threads don't
+ * share a source of randomness.
+ */
+public class KeyGenerationEngineBenchmarkTest extends TestCase {
+    private static final int KEY_SIZE = 1024;
+
+    public void testKeyPairsPerSecond() throws Exception {
+        final KeyGenerationEngine engine = new KeyGenerationEngine(0);
+        try {
+            int rounds = Benchmark.rounds(2);
+            for (Integer threads : Benchmark.threadCounts()) {
+                double engineRate = Benchmark.throughput("engine key pairs", threads.intValue(), rounds,
+                        new Benchmark.Operation() {
+                            public void run() throws Exception {
+                                assertNotNull(engine.generateKeyPair("RSA", KEY_SIZE));
+                            }
+                        });
+                double defaultRate = Benchmark.throughput("new SecureRandom key pairs", threads.intValue(), rounds,
+                        new Benchmark.Operation() {
+                            public void run() throws Exception {
+                                assertNotNull(GrDPX509Util.getKeyPair(KEY_SIZE));
+                            }
+                        });
+                assertTrue(engineRate > 0 && defaultRate > 0);
+            }
+        } finally {
+            engine.shutdown();
+        }
+    }
+}
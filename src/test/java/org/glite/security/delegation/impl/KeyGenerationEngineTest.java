@@ -0,0 +1,73 @@
+package org.glite.security.delegation.impl;
+
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+import org.glite.security.delegation.GrDPConstants;
+
+import eu.emi.security.authn.x509.impl.CertificateUtils;
+
+public class KeyGenerationEngineTest extends TestCase {
+    private KeyGenerationEngine m_engine;
+
+    protected void setUp() {
+        CertificateUtils.configureSecProvider();
+        m_engine = new KeyGenerationEngine(2);
+    }
+
+    protected void tearDown() {
+        m_engine.shutdown();
+    }
+
+    public void testRandomConfinedToThread() throws Exception {
+        SecureRandom own = m_engine.getRandom();
+        assertSame(own, m_engine.getRandom());
+
+        SecureRandom other = m_engine.submit(new Callable<SecureRandom>() {
+            public SecureRandom call() {
+                return m_engine.getRandom();
+            }
+        }).get();
+        assertNotSame(own, other);
+    }
+
+    public void testSubmittedTasksRunInEngineThreads() throws Exception {
+        Future<String> name = m_engine.submit(new Callable<String>() {
+            public String call() {
+                return Thread.currentThread().getName();
+            }
+        });
+        assertTrue(name.get(), name.get().startsWith("delegation-keygen-"));
+        assertEquals(2, m_engine.getThreads());
+    }
+
+    public void testGeneratesKeysOfAlgorithm() throws Exception {
+        KeyPair rsa = m_engine.generateKeyPair("RSA", 1024);
+        assertEquals("RSA", rsa.getPublic().getAlgorithm());
+
+        KeyPair ec = m_engine.generateKeyPair(GrDPConstants.KEY_ALGORITHM_EC, 256);
+        assertTrue(ec.getPublic().getAlgorithm(), ec.getPublic().getAlgorithm().startsWith("EC"));
+    }
+
+    public void testRandomsReseededAndIndependent() throws Exception {
+        // well past the reseed interval, the random keeps working
+        byte bytes[] = new byte[16];
+        for (int i = 0; i < 2 * KeyGenerationEngine.RESEED_INTERVAL; i++) {
+            m_engine.getRandom().nextBytes(bytes);
+        }
+        KeyGenerationEngine other = new KeyGenerationEngine(1);
+        try {
+            byte otherBytes[] = new byte[16];
+            other.getRandom().nextBytes(otherBytes);
+            m_engine.getRandom().nextBytes(bytes);
+            assertFalse(Arrays.equals(bytes, otherBytes));
+        } finally {
+            other.shutdown();
+        }
+    }
+}
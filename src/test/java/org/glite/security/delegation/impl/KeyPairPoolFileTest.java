@@ -0,0 +1,95 @@
+package org.glite.security.delegation.impl;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.glite.security.delegation.TestCertificates;
+
+public class KeyPairPoolFileTest extends TestCase {
+    private File m_file;
+    private KeyPair m_first;
+    private KeyPair m_second;
+
+    protected void setUp() throws Exception {
+        m_file = File.createTempFile("keypool", ".bin");
+        m_file.delete();
+        m_first = TestCertificates.generateKeyPair();
+        m_second = TestCertificates.generateKeyPair();
+    }
+
+    protected void tearDown() {
+        m_file.delete();
+        new File(m_file.getPath() + ".tmp").delete();
+    }
+
+    public void testRoundTripDeletesFile() throws Exception {
+        KeyPairPoolFile file = new KeyPairPoolFile(m_file.getPath(), "secret");
+        file.save(Arrays.asList(m_first, m_second), "RSA", 1024);
+        assertTrue(m_file.exists());
+
+        List<KeyPair> loaded = file.load("RSA", 1024);
+
+        assertFalse(m_file.exists());
+        assertEquals(2, loaded.size());
+        assertEquals(m_first.getPublic(), loaded.get(0).getPublic());
+        assertTrue(Arrays.equals(m_first.getPrivate().getEncoded(), loaded.get(0).getPrivate().getEncoded()));
+        assertEquals(m_second.getPublic(), loaded.get(1).getPublic());
+        // the keys are single use
+        assertTrue(file.load("RSA", 1024).isEmpty());
+    }
+
+    public void testKeysNotStoredInClear() throws Exception {
+        new KeyPairPoolFile(m_file.getPath(), "secret").save(Arrays.asList(m_first), "RSA", 1024);
+
+        byte content[] = new byte[(int) m_file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(m_file));
+        try {
+            in.readFully(content);
+        } finally {
+            in.close();
+        }
+        byte privateKey[] = m_first.getPrivate().getEncoded();
+        String stored = new String(content, "ISO-8859-1");
+        assertEquals(-1, stored.indexOf(new String(privateKey, 40, 32, "ISO-8859-1")));
+    }
+
+    public void testWrongSecretFailsAndDiscardsFile() throws Exception {
+        new KeyPairPoolFile(m_file.getPath(), "secret").save(Arrays.asList(m_first), "RSA", 1024);
+
+        try {
+            new KeyPairPoolFile(m_file.getPath(), "other").load("RSA", 1024);
+            fail("decrypted with a wrong secret");
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+        assertFalse(m_file.exists());
+    }
+
+    public void testOtherKeySizeDropped() throws Exception {
+        KeyPairPoolFile file = new KeyPairPoolFile(m_file.getPath(), "secret");
+        file.save(Arrays.asList(m_first), "RSA", 1024);
+
+        assertTrue(file.load("RSA", 2048).isEmpty());
+        assertFalse(m_file.exists());
+    }
+
+    public void testMissingFileLoadsNothing() throws Exception {
+        assertTrue(new KeyPairPoolFile(m_file.getPath(), "secret").load("RSA", 1024).isEmpty());
+    }
+
+    public void testSecretRequired() {
+        try {
+            new KeyPairPoolFile(m_file.getPath(), "");
+            fail("accepted an empty secret");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
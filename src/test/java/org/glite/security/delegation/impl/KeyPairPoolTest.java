@@ -0,0 +1,175 @@
+package org.glite.security.delegation.impl;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.glite.security.delegation.TestCertificates;
+
+public class KeyPairPoolTest extends TestCase {
+    /** The longest time to wait for the fill threads, in milliseconds. */
+    private static final long WAIT = 10000;
+
+    private KeyPair m_keyPair;
+    private StubEngine m_engine;
+    private List<KeyPairPool> m_pools = new ArrayList<KeyPairPool>();
+
+    protected void setUp() throws Exception {
+        m_keyPair = TestCertificates.generateKeyPair();
+        m_engine = new StubEngine(m_keyPair);
+    }
+
+    protected void tearDown() {
+        for (KeyPairPool pool : m_pools) {
+            pool.shutdown();
+        }
+        m_engine.shutdown();
+    }
+
+    public void testFillsToHighWatermark() throws Exception {
+        KeyPairPool pool = pool(2, 4, 2, 0);
+
+        waitForSize(pool, 4);
+        Thread.sleep(100);
+
+        assertEquals(4, pool.size());
+        assertEquals(4, pool.getTargetDepth());
+        assertEquals("RSA", pool.getKeyAlgorithm());
+        assertEquals(1024, pool.getKeySize());
+    }
+
+    public void testRefillsBelowLowWatermark() throws Exception {
+        KeyPairPool pool = pool(2, 4, 1, 0);
+        waitForSize(pool, 4);
+
+        // still above the low watermark, the pool is not refilled
+        assertSame(m_keyPair, pool.poll());
+        assertSame(m_keyPair, pool.poll());
+        Thread.sleep(100);
+        assertEquals(2, pool.size());
+
+        assertSame(m_keyPair, pool.poll());
+        waitForSize(pool, 4);
+    }
+
+    public void testCountsHitsAndMisses() throws Exception {
+        m_engine.m_failing = true;
+        KeyPairPool pool = pool(1, 2, 1, 0);
+
+        assertNull(pool.poll());
+        assertEquals(1, pool.preload(Arrays.asList(m_keyPair)));
+        assertSame(m_keyPair, pool.poll());
+        assertNull(pool.poll());
+
+        assertEquals(1, pool.getHits());
+        assertEquals(2, pool.getMisses());
+        assertEquals(1.0 / 3, pool.getHitRate(), 1e-9);
+        assertEquals(2.0 / 3, pool.getMissRate(), 1e-9);
+    }
+
+    public void testFillingResumesAfterFailure() throws Exception {
+        m_engine.m_failing = true;
+        KeyPairPool pool = pool(1, 2, 1, 0);
+        waitForCalls(1);
+
+        m_engine.m_failing = false;
+        assertNull(pool.poll());
+
+        waitForSize(pool, 2);
+    }
+
+    public void testPreloadDropsOverflowAndDrainEmpties() throws Exception {
+        m_engine.m_failing = true;
+        KeyPairPool pool = pool(1, 2, 1, 0);
+        waitForCalls(1);
+
+        assertEquals(2, pool.preload(Arrays.asList(m_keyPair, m_keyPair, m_keyPair)));
+        assertEquals(2, pool.size());
+
+        assertEquals(2, pool.drain().size());
+        assertEquals(0, pool.size());
+    }
+
+    public void testAdaptivePoolStartsSmall() throws Exception {
+        KeyPairPool pool = pool(2, 8, 1, 60);
+
+        waitForSize(pool, 1);
+        Thread.sleep(100);
+
+        assertEquals(1, pool.getTargetDepth());
+        assertEquals(1, pool.size());
+    }
+
+    public void testShutdownStopsFillThreads() throws Exception {
+        KeyPairPool pool = pool(1, 2, 2, 0);
+        waitForSize(pool, 2);
+
+        pool.shutdown();
+
+        assertEquals(0, pool.size());
+        long deadline = System.currentTimeMillis() + WAIT;
+        while (fillThreadsAlive()) {
+            assertTrue("fill threads still running", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private KeyPairPool pool(int low, int high, int threads, int coverage) {
+        KeyPairPool pool = new KeyPairPool(m_engine, "RSA", 1024, low, high, threads, coverage, 0);
+        m_pools.add(pool);
+        return pool;
+    }
+
+    private void waitForSize(KeyPairPool pool, int size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT;
+        while (pool.size() < size) {
+            assertTrue("pool not filled to " + size, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private void waitForCalls(int calls) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT;
+        while (m_engine.m_calls < calls) {
+            assertTrue("no key generation", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        // lets the failed generation pause the filling
+        Thread.sleep(100);
+    }
+
+    private static boolean fillThreadsAlive() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("delegation-keypool-") && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hands out the same key pair instead of generating one, or fails.
+     */
+    private static class StubEngine extends KeyGenerationEngine {
+        private final KeyPair m_keyPair;
+        private volatile boolean m_failing = false;
+        private volatile int m_calls = 0;
+
+        StubEngine(KeyPair keyPair) {
+            super(1);
+            m_keyPair = keyPair;
+        }
+
+        public KeyPair generateKeyPair(String algorithm, int size) throws GeneralSecurityException {
+            m_calls++;
+            if (m_failing) {
+                throw new GeneralSecurityException("failing on purpose");
+            }
+            return m_keyPair;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.glite.security.delegation.impl;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.glite.security.delegation.GrDProxyDlgeeOptions;
+import org.glite.security.delegation.TestCertificates;
+
+import eu.emi.security.authn.x509.StoreUpdateListener;
+import eu.emi.security.authn.x509.proxy.ProxyType;
+
+public class SharedVomsValidatorTest extends TestCase {
+    private List<SharedVomsValidator> m_validators = new ArrayList<SharedVomsValidator>();
+
+    protected void tearDown() {
+        for (SharedVomsValidator validator : m_validators) {
+            validator.release();
+        }
+    }
+
+    public void testSameSettingsShareValidator() throws Exception {
+        SharedVomsValidator first = SharedVomsValidator.acquire(options());
+        SharedVomsValidator second = SharedVomsValidator.acquire(options());
+        assertSame(first, second);
+
+        first.release();
+        second.release();
+        SharedVomsValidator third = acquire();
+        assertNotSame(first, third);
+    }
+
+    public void testReloadForwardsLoadingNotifications() throws Exception {
+        SharedVomsValidator validator = acquire();
+        final List<String> types = Collections.synchronizedList(new ArrayList<String>());
+        validator.addUpdateListener(new StoreUpdateListener() {
+            public void loadingNotification(String location, String type, Severity level, Exception cause) {
+                if (level == Severity.NOTIFICATION) {
+                    types.add(type);
+                }
+            }
+        });
+
+        validator.reload();
+
+        assertEquals(1, validator.getReloadCount());
+        // the CRL loaded while building the snapshot and the swap of the snapshot
+        assertTrue(types.toString(), types.contains(StoreUpdateListener.CRL));
+        assertEquals(StoreUpdateListener.CA_CERT, types.get(types.size() - 1));
+    }
+
+    public void testValidationsRunDuringReloads() throws Exception {
+        final SharedVomsValidator validator = acquire();
+        final X509Certificate chain[] = TestCertificates.createProxy(ProxyType.RFC3820).getCertificateChain();
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread validating = new Thread() {
+            public void run() {
+                try {
+                    while (!done.get()) {
+                        assertTrue(validator.getValidator().validate(chain).isEmpty());
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        validating.start();
+        for (int i = 0; i < 5; i++) {
+            validator.reload();
+        }
+        done.set(true);
+        validating.join();
+
+        assertNull(String.valueOf(failure.get()), failure.get());
+        assertEquals(5, validator.getReloadCount());
+    }
+
+    private SharedVomsValidator acquire() {
+        SharedVomsValidator validator = SharedVomsValidator.acquire(options());
+        m_validators.add(validator);
+        return validator;
+    }
+
+    private static GrDProxyDlgeeOptions options() {
+        GrDProxyDlgeeOptions options = new GrDProxyDlgeeOptions();
+        options.setVomsCAs("src/test/grid-security/certificates");
+        options.setVomsDir("src/test/grid-security/vomsdir");
+        options.setUpdateInterval("0");
+        return options;
+    }
+}
@@ -0,0 +1,21 @@
+package org.glite.security.delegation.impl;
+
+import junit.framework.TestCase;
+
+public class VomsValidationPolicyTest extends TestCase {
+
+    public void testAlwaysNeedsAttributes() {
+        assertTrue(VomsValidationPolicy.ALWAYS.needsVomsAttributes("dlg", false));
+        assertTrue(VomsValidationPolicy.ALWAYS.needsVomsAttributes(null, false));
+    }
+
+    public void testAttributesNeededForGeneratedId() {
+        assertFalse(VomsValidationPolicy.WHEN_GENERATING_ID.needsVomsAttributes("dlg", false));
+        assertTrue(VomsValidationPolicy.WHEN_GENERATING_ID.needsVomsAttributes(null, false));
+        assertTrue(VomsValidationPolicy.WHEN_GENERATING_ID.needsVomsAttributes("", false));
+    }
+
+    public void testRequiredAttributesAlwaysNeeded() {
+        assertTrue(VomsValidationPolicy.WHEN_GENERATING_ID.needsVomsAttributes("dlg", true));
+    }
+}
@@ -0,0 +1,117 @@
+package org.glite.security.delegation.storage;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class GrDPStorageAdapterTest extends TestCase {
+    private static final String DN = "CN=Test User,O=Test";
+
+    private MapStorage m_plain;
+    private GrDPStorageAdapter m_adapter;
+
+    protected void setUp() {
+        m_plain = new MapStorage();
+        m_adapter = GrDPStorageAdapter.adapt(m_plain);
+    }
+
+    public void testAdaptKeepsAdapters() {
+        assertSame(m_adapter, GrDPStorageAdapter.adapt(m_adapter));
+        assertFalse(m_adapter.isPendingRequestLookupSupported());
+    }
+
+    public void testCommitDelegationInsertsAndRemovesRequest() throws Exception {
+        m_plain.insertGrDPStorageCacheElement(cacheElement("dlg+1"));
+
+        m_adapter.commitDelegation(element("dlg", "proxy", null), "dlg+1");
+
+        assertEquals("proxy", m_plain.m_elements.get("dlg").getCertificate());
+        assertTrue(m_plain.m_cache.isEmpty());
+    }
+
+    public void testCommitDelegationKeepsVomsAttributes() throws Exception {
+        m_plain.insertGrDPStorageElement(element("dlg", "old proxy", new String[] { "/vo" }));
+        m_plain.insertGrDPStorageCacheElement(cacheElement("dlg+1"));
+
+        m_adapter.commitDelegation(element("dlg", "new proxy", null), "dlg+1");
+
+        GrDPStorageElement stored = m_plain.m_elements.get("dlg");
+        assertEquals("new proxy", stored.getCertificate());
+        assertTrue(Arrays.equals(new String[] { "/vo" }, stored.getVomsAttributes()));
+    }
+
+    public void testSessionPassesOperations() throws Exception {
+        GrDPStorageSession session = m_adapter.openSession();
+        try {
+            session.insertGrDPStorageCacheElements(Arrays.asList(cacheElement("a+1"), cacheElement("a+2")));
+            assertTrue(session.findGrDPStorageCacheElements("a", DN).isEmpty());
+            session.commit();
+        } finally {
+            session.close();
+        }
+        assertEquals(2, m_plain.m_cache.size());
+    }
+
+    private static GrDPStorageCacheElement cacheElement(String id) {
+        GrDPStorageCacheElement elem = new GrDPStorageCacheElement();
+        elem.setDelegationID(id);
+        elem.setDN(DN);
+        elem.setCertificateRequest("request");
+        return elem;
+    }
+
+    private static GrDPStorageElement element(String id, String proxy, String[] voms) {
+        GrDPStorageElement elem = new GrDPStorageElement();
+        elem.setDelegationID(id);
+        elem.setDN(DN);
+        elem.setCertificate(proxy);
+        elem.setVomsAttributes(voms);
+        elem.setTerminationTime(new Date());
+        return elem;
+    }
+
+    /**
+     * A third party storage implementing only the interface.
+     */
+    private static class MapStorage implements GrDPStorage {
+        final Map<String, GrDPStorageCacheElement> m_cache = new HashMap<String, GrDPStorageCacheElement>();
+        final Map<String, GrDPStorageElement> m_elements = new HashMap<String, GrDPStorageElement>();
+
+        public void insertGrDPStorageCacheElement(GrDPStorageCacheElement elem) {
+            m_cache.put(elem.getDelegationID(), elem);
+        }
+
+        public void updateGrDPStorageCacheElement(GrDPStorageCacheElement elem) {
+            m_cache.put(elem.getDelegationID(), elem);
+        }
+
+        public GrDPStorageCacheElement findGrDPStorageCacheElement(String delegationID, String dn) {
+            return m_cache.get(delegationID);
+        }
+
+        public void deleteGrDPStorageCacheElement(String delegationID, String dn) throws GrDPStorageException {
+            if (m_cache.remove(delegationID) == null) {
+                throw new GrDPStorageException("Not found.");
+            }
+        }
+
+        public void insertGrDPStorageElement(GrDPStorageElement elem) {
+            m_elements.put(elem.getDelegationID(), elem);
+        }
+
+        public void updateGrDPStorageElement(GrDPStorageElement elem) {
+            m_elements.put(elem.getDelegationID(), elem);
+        }
+
+        public GrDPStorageElement findGrDPStorageElement(String delegationID, String dn) {
+            return m_elements.get(delegationID);
+        }
+
+        public void deleteGrDPStorageElement(String delegationID, String dn) {
+            m_elements.remove(delegationID);
+        }
+    }
+}
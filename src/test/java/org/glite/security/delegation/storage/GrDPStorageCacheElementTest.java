@@ -0,0 +1,56 @@
+package org.glite.security.delegation.storage;
+
+import java.io.StringWriter;
+import java.security.KeyPair;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.openssl.PEMWriter;
+import org.glite.security.delegation.GrDPX509Util;
+import org.glite.security.delegation.TestCertificates;
+
+import eu.emi.security.authn.x509.proxy.ProxyCertificateOptions;
+import eu.emi.security.authn.x509.proxy.ProxyType;
+
+public class GrDPStorageCacheElementTest extends TestCase {
+
+    public void testFingerprintComputedFromRequest() throws Exception {
+        KeyPair keyPair = TestCertificates.generateKeyPair();
+        GrDPStorageCacheElement elem = new GrDPStorageCacheElement();
+
+        elem.setCertificateRequest(request(keyPair));
+
+        assertTrue(Arrays.equals(GrDPX509Util.getPublicKeyFingerprint(keyPair.getPublic()), elem
+                .getPublicKeyFingerprint()));
+    }
+
+    public void testFingerprintSetOverridesRequest() throws Exception {
+        byte fingerprint[] = GrDPX509Util.getPublicKeyFingerprint(TestCertificates.generateKeyPair().getPublic());
+        GrDPStorageCacheElement elem = new GrDPStorageCacheElement();
+        elem.setCertificateRequest(request(TestCertificates.generateKeyPair()));
+
+        elem.setPublicKeyFingerprint(fingerprint);
+
+        assertSame(fingerprint, elem.getPublicKeyFingerprint());
+    }
+
+    public void testFingerprintNotTakenFromDelegationId() throws Exception {
+        GrDPStorageCacheElement elem = new GrDPStorageCacheElement();
+        elem.setDelegationID("dlg+" + GrDPX509Util.generateSessionID(TestCertificates.generateKeyPair().getPublic()));
+        assertNull(elem.getPublicKeyFingerprint());
+
+        elem.setCertificateRequest("not a request");
+        assertNull(elem.getPublicKeyFingerprint());
+    }
+
+    private static String request(KeyPair keyPair) throws Exception {
+        ProxyCertificateOptions options = new ProxyCertificateOptions(TestCertificates.createProxy(ProxyType.RFC3820)
+                .getCertificateChain());
+        StringWriter pem = new StringWriter();
+        PEMWriter writer = new PEMWriter(pem);
+        writer.writeObject(GrDPX509Util.createProxyCertificateRequest(options, keyPair));
+        writer.close();
+        return pem.toString();
+    }
+}
@@ -0,0 +1,287 @@
+package org.glite.security.delegation.storage;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.glite.security.delegation.GrDPX509Util;
+import org.glite.security.delegation.GrDProxyDlgeeOptions;
+import org.glite.security.delegation.TestCertificates;
+import org.h2.jdbcx.JdbcDataSource;
+
+import eu.emi.security.authn.x509.proxy.ProxyCertificate;
+import eu.emi.security.authn.x509.proxy.ProxyType;
+
+public class GrDPStorageDatabaseTest extends TestCase {
+    private static final String DN = "CN=Test User,O=Test";
+    /** The DN in the form used by the lookups. */
+    private static final String X500_DN = "/O=Test/CN=Test User";
+
+    private static int s_databases = 0;
+
+    private JdbcDataSource m_dataSource;
+    private Connection m_connection;
+    private byte m_key[];
+    private byte m_chain[];
+
+    protected void setUp() throws Exception {
+        m_dataSource = new JdbcDataSource();
+        // row locks, so that a concurrent insert does not wait for the table lock of a session
+        m_dataSource.setURL("jdbc:h2:mem:dlg" + (s_databases++) + ";MVCC=TRUE");
+        // keeps the in-memory database open during the test
+        m_connection = m_dataSource.getConnection();
+        Statement stat = m_connection.createStatement();
+        stat.execute("CREATE TABLE t_credential_vers (major INT, minor INT, patch INT)");
+        stat.execute("INSERT INTO t_credential_vers VALUES (1, 2, 0)");
+        stat.execute("CREATE TABLE t_credential_cache (dlg_id VARCHAR(100), dn VARCHAR(255), cert_request CLOB, "
+                + "priv_key CLOB, voms_attrs CLOB, priv_key_der BLOB, creation_time TIMESTAMP, "
+                + "pub_key_fpr VARCHAR(40), PRIMARY KEY (dlg_id, dn))");
+        stat.execute("CREATE TABLE t_credential (dlg_id VARCHAR(100), dn VARCHAR(255), proxy CLOB, voms_attrs CLOB, "
+                + "termination_time TIMESTAMP, proxy_der BLOB, priv_key_der BLOB, PRIMARY KEY (dlg_id, dn))");
+        stat.close();
+
+        ProxyCertificate proxy = TestCertificates.createProxy(ProxyType.RFC3820);
+        m_key = proxy.getPrivateKey().getEncoded();
+        m_chain = GrDPX509Util.encodeCertificateChain(proxy.getCertificateChain());
+    }
+
+    protected void tearDown() throws Exception {
+        m_connection.close();
+    }
+
+    public void testBinaryRoundTrip() throws Exception {
+        GrDPStorageDatabase storage = storage(true);
+        storage.insertGrDPStorageCacheElement(cacheElement());
+        storage.commitDelegation(element(), "dlg+1");
+
+        GrDPStorageElement stored = storage.findGrDPStorageElement("dlg", X500_DN);
+        assertTrue(Arrays.equals(m_chain, stored.getCertificateChainBytes()));
+        assertTrue(Arrays.equals(m_key, stored.getPrivateKeyBytes()));
+        assertNull(storage.findGrDPStorageCacheElement("dlg+1", X500_DN));
+    }
+
+    public void testBinaryRowsReadWithoutOption() throws Exception {
+        GrDPStorageDatabase binary = storage(true);
+        binary.insertGrDPStorageCacheElement(cacheElement());
+        binary.insertGrDPStorageElement(element());
+
+        GrDPStorageDatabase pem = storage(false);
+        assertEquals(GrDPX509Util.toPEMPrivateKey(m_key), pem.findGrDPStorageCacheElement("dlg+1", X500_DN)
+                .getPrivateKey());
+        assertEquals(GrDPX509Util.toPEMCredential(m_key, m_chain), pem.findGrDPStorageElement("dlg", X500_DN)
+                .getCertificate());
+    }
+
+    public void testBinaryRowsHaveNoPem() throws Exception {
+        GrDPStorageDatabase binary = storage(true);
+        binary.insertGrDPStorageCacheElement(cacheElement());
+        binary.insertGrDPStorageElement(element());
+
+        Statement stat = m_connection.createStatement();
+        ResultSet rs = stat.executeQuery("SELECT C.priv_key, P.proxy FROM t_credential_cache C, t_credential P");
+        assertTrue(rs.next());
+        assertNull(rs.getString(1));
+        assertNull(rs.getString(2));
+        stat.close();
+    }
+
+    public void testPemUpdateOverridesBinaryRow() throws Exception {
+        storage(true).insertGrDPStorageElement(element());
+        GrDPStorageElement elem = element();
+        elem.setCertificate("pem proxy");
+        storage(false).updateGrDPStorageElement(elem);
+
+        GrDPStorageElement stored = storage(true).findGrDPStorageElement("dlg", X500_DN);
+        assertNull(stored.getCertificateChainBytes());
+        assertEquals("pem proxy", stored.getCertificate());
+    }
+
+    public void testBinaryStorageNeedsBinaryColumns() throws Exception {
+        Statement stat = m_connection.createStatement();
+        stat.execute("ALTER TABLE t_credential DROP COLUMN proxy_der");
+        stat.close();
+
+        try {
+            storage(true);
+            fail("binary storage without the binary columns");
+        } catch (GrDPStorageException e) {
+            // expected
+        }
+        assertNotNull(storage(false));
+    }
+
+    public void testPemRowsReadWithOption() throws Exception {
+        GrDPStorageDatabase pem = storage(false);
+        GrDPStorageElement elem = element();
+        // only the PEM form
+        elem.setCertificate(GrDPX509Util.toPEMCredential(m_key, m_chain));
+        pem.insertGrDPStorageElement(elem);
+
+        GrDPStorageElement stored = storage(true).findGrDPStorageElement("dlg", X500_DN);
+        assertNull(stored.getCertificateChainBytes());
+        assertEquals(GrDPX509Util.toPEMCredential(m_key, m_chain), stored.getCertificate());
+    }
+
+    public void testCreationTimeRecorded() throws Exception {
+        GrDPStorageDatabase storage = storage(false);
+        long before = System.currentTimeMillis() - 1000;
+        storage.insertGrDPStorageCacheElement(cacheElement());
+
+        assertTrue(storage.isPendingRequestLookupSupported());
+        Date created = storage.findGrDPStorageCacheElement("dlg+1", X500_DN).getCreationTime();
+        assertNotNull(created);
+        assertTrue(created.getTime() >= before && created.getTime() <= System.currentTimeMillis());
+        assertEquals(created, storage.findGrDPStorageCacheElements("dlg", X500_DN).get(0).getCreationTime());
+    }
+
+    public void testFingerprintStoredWithRequest() throws Exception {
+        GrDPStorageDatabase storage = storage(false);
+        GrDPStorageCacheElement elem = cacheElement();
+        elem.setPublicKeyFingerprint(new byte[] { 1, 2, 3 });
+        storage.insertGrDPStorageCacheElement(elem);
+
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, storage.findGrDPStorageCacheElement("dlg+1", X500_DN)
+                .getPublicKeyFingerprint()));
+    }
+
+    public void testWithoutOptionalColumns() throws Exception {
+        Statement stat = m_connection.createStatement();
+        stat.execute("ALTER TABLE t_credential_cache DROP COLUMN creation_time");
+        stat.execute("ALTER TABLE t_credential_cache DROP COLUMN pub_key_fpr");
+        stat.close();
+        GrDPStorageDatabase storage = storage(false);
+
+        assertFalse(storage.isPendingRequestLookupSupported());
+        GrDPStorageCacheElement elem = cacheElement();
+        elem.setPublicKeyFingerprint(new byte[] { 1, 2, 3 });
+        storage.insertGrDPStorageCacheElement(elem);
+        GrDPStorageCacheElement stored = storage.findGrDPStorageCacheElement("dlg+1", X500_DN);
+        assertNull(stored.getCreationTime());
+        // taken from the request, which is not a real one here
+        assertNull(stored.getPublicKeyFingerprint());
+    }
+
+    public void testConcurrentInsertOfCommitUpdated() throws Exception {
+        final GrDPStorageDatabase other = storage(false);
+        JdbcDataSource racing = new JdbcDataSource() {
+            private static final long serialVersionUID = 1L;
+
+            public Connection getConnection() throws SQLException {
+                final Connection conn = super.getConnection();
+                return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                        new Class<?>[] { Connection.class }, new InvocationHandler() {
+                            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                                if (method.getName().equals("prepareStatement")
+                                        && ((String) args[0]).startsWith("INSERT INTO t_credential (")) {
+                                    // the other commit inserts the delegation between the update and the insert
+                                    GrDPStorageElement elem = element();
+                                    elem.setCertificate("other proxy");
+                                    other.insertGrDPStorageElement(elem);
+                                }
+                                try {
+                                    return method.invoke(conn, args);
+                                } catch (InvocationTargetException e) {
+                                    throw e.getCause();
+                                }
+                            }
+                        });
+            }
+        };
+        racing.setURL(m_dataSource.getURL());
+        GrDPStorageDatabase storage = new GrDPStorageDatabase(new GrDProxyDlgeeOptions(), racing);
+        storage.insertGrDPStorageCacheElement(cacheElement());
+        GrDPStorageElement elem = element();
+        elem.setCertificate("pem proxy");
+
+        storage.commitDelegation(elem, "dlg+1");
+
+        assertEquals("pem proxy", storage(false).findGrDPStorageElement("dlg", X500_DN).getCertificate());
+        assertNull(storage(false).findGrDPStorageCacheElement("dlg+1", X500_DN));
+    }
+
+    public void testSessionCommitMakesChangesVisible() throws Exception {
+        GrDPStorageDatabase storage = storage(false);
+        GrDPStorageSession session = storage.openSession();
+        try {
+            session.insertGrDPStorageCacheElement(cacheElement());
+            // the session sees its own changes before the commit
+            assertNotNull(session.findGrDPStorageCacheElement("dlg+1", X500_DN));
+            session.commit();
+        } finally {
+            session.close();
+        }
+
+        assertNotNull(storage.findGrDPStorageCacheElement("dlg+1", X500_DN));
+    }
+
+    public void testSessionClosedWithoutCommitRollsBack() throws Exception {
+        GrDPStorageDatabase storage = storage(false);
+        storage.insertGrDPStorageCacheElement(cacheElement());
+        GrDPStorageSession session = storage.openSession();
+        try {
+            session.commitDelegation(element(), "dlg+1");
+        } finally {
+            session.close();
+        }
+
+        assertNull(storage.findGrDPStorageElement("dlg", X500_DN));
+        assertNotNull(storage.findGrDPStorageCacheElement("dlg+1", X500_DN));
+    }
+
+    public void testUnusedSessionTakesNoConnection() throws Exception {
+        final AtomicInteger connections = new AtomicInteger();
+        JdbcDataSource counting = new JdbcDataSource() {
+            private static final long serialVersionUID = 1L;
+
+            public Connection getConnection() throws SQLException {
+                connections.incrementAndGet();
+                return super.getConnection();
+            }
+        };
+        counting.setURL(m_dataSource.getURL());
+        GrDPStorageDatabase storage = new GrDPStorageDatabase(new GrDProxyDlgeeOptions(), counting);
+        int taken = connections.get();
+
+        GrDPStorageSession session = storage.openSession();
+        session.commit();
+        session.close();
+
+        assertEquals(taken, connections.get());
+    }
+
+    private GrDPStorageDatabase storage(boolean binary) throws Exception {
+        GrDProxyDlgeeOptions options = new GrDProxyDlgeeOptions();
+        options.setBinaryStorage(binary);
+        return new GrDPStorageDatabase(options, m_dataSource);
+    }
+
+    private GrDPStorageCacheElement cacheElement() {
+        GrDPStorageCacheElement elem = new GrDPStorageCacheElement();
+        elem.setDelegationID("dlg+1");
+        elem.setDN(DN);
+        elem.setCertificateRequest("request");
+        elem.setVomsAttributes(new String[] { "/vo" });
+        elem.setPrivateKeyBytes(m_key);
+        return elem;
+    }
+
+    private GrDPStorageElement element() {
+        GrDPStorageElement elem = new GrDPStorageElement();
+        elem.setDelegationID("dlg");
+        elem.setDN(DN);
+        elem.setVomsAttributes(new String[] { "/vo" });
+        elem.setTerminationTime(new Date(System.currentTimeMillis() + TestCertificates.HOUR));
+        elem.setCertificateBytes(m_chain, m_key);
+        return elem;
+    }
+}
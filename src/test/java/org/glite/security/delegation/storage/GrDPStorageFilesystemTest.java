@@ -0,0 +1,212 @@
+package org.glite.security.delegation.storage;
+
+import java.io.File;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.asn1.ASN1Object;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.DEROctetString;
+import org.glite.security.delegation.GrDPX509Util;
+import org.glite.security.delegation.GrDProxyDlgeeOptions;
+import org.glite.security.delegation.TestCertificates;
+
+import eu.emi.security.authn.x509.proxy.ProxyCertificate;
+import eu.emi.security.authn.x509.proxy.ProxyType;
+
+public class GrDPStorageFilesystemTest extends TestCase {
+    private static final String DN = "CN=Test User,O=Test";
+
+    private File m_dir;
+    private GrDPStorageFilesystem m_storage;
+
+    protected void setUp() throws Exception {
+        m_dir = File.createTempFile("storage", "");
+        m_dir.delete();
+        GrDProxyDlgeeOptions options = new GrDProxyDlgeeOptions();
+        options.setDlgeeStorage(m_dir.getPath());
+        m_storage = new GrDPStorageFilesystem(options);
+    }
+
+    protected void tearDown() {
+        delete(m_dir);
+    }
+
+    public void testCommitDelegationReplacesProxyAndKeepsVoms() throws Exception {
+        m_storage.insertGrDPStorageElement(element("dlg", 1, new String[] { "/vo" }));
+        m_storage.insertGrDPStorageCacheElement(cacheElement("dlg+1"));
+
+        m_storage.commitDelegation(element("dlg", 2, null), "dlg+1");
+
+        GrDPStorageElement stored = m_storage.findGrDPStorageElement("dlg", DN);
+        assertEquals(2, credentialNumber(stored));
+        assertTrue(Arrays.equals(new String[] { "/vo" }, stored.getVomsAttributes()));
+        assertNull(m_storage.findGrDPStorageCacheElement("dlg+1", DN));
+        // only the delegation directory, no temporary files or directories left behind
+        File dnDir = new File(m_dir, URLEncoder.encode(DN, "UTF-8"));
+        assertEquals(Arrays.asList("dlg"), Arrays.asList(dnDir.list()));
+        for (String name : new File(dnDir, "dlg").list()) {
+            assertFalse(name, name.startsWith("."));
+        }
+    }
+
+    public void testCommitDelegationWithoutRequestFails() throws Exception {
+        try {
+            m_storage.commitDelegation(element("dlg", 1, null), "dlg+1");
+            fail("stored without a delegation request");
+        } catch (GrDPStorageException e) {
+            // expected
+        }
+        assertNull(m_storage.findGrDPStorageElement("dlg", DN));
+    }
+
+    public void testFingerprintStoredWithRequest() throws Exception {
+        GrDPStorageCacheElement elem = cacheElement("dlg+1");
+        elem.setPublicKeyFingerprint(new byte[] { 1, 2, 3 });
+        m_storage.insertGrDPStorageCacheElement(elem);
+
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, m_storage.findGrDPStorageCacheElement("dlg+1", DN)
+                .getPublicKeyFingerprint()));
+        // a request without a fingerprint replaces the stored one
+        m_storage.updateGrDPStorageCacheElement(cacheElement("dlg+1"));
+        assertNull(m_storage.findGrDPStorageCacheElement("dlg+1", DN).getPublicKeyFingerprint());
+    }
+
+    public void testBinaryRequestKeyInCredentialFile() throws Exception {
+        GrDPStorageCacheElement elem = cacheElement("dlg+1");
+        byte key[] = new DEROctetString("key".getBytes()).getEncoded();
+        elem.setPrivateKeyBytes(key);
+        m_storage.insertGrDPStorageCacheElement(elem);
+
+        assertTrue(Arrays.equals(key, m_storage.findGrDPStorageCacheElement("dlg+1", DN).getPrivateKeyBytes()));
+        File dlgDir = new File(new File(new File(m_dir, "cache"), URLEncoder.encode(DN, "UTF-8")), "dlg+1");
+        assertTrue(new File(dlgDir, "usercred.der").exists());
+        assertFalse(new File(dlgDir, "userkey.pem").exists());
+    }
+
+    public void testStartupRemovesLeftoversOfCommits() throws Exception {
+        ProxyCertificate proxy = TestCertificates.createProxy(ProxyType.RFC3820);
+        byte key[] = proxy.getPrivateKey().getEncoded();
+        byte chain[] = GrDPX509Util.encodeCertificateChain(proxy.getCertificateChain());
+        String keyID = GrDPX509Util.generateSessionID(proxy.getCertificateChain()[0].getPublicKey());
+        String otherKeyID = GrDPX509Util.generateSessionID(TestCertificates.generateKeyPair().getPublic());
+        GrDPStorageElement binary = element("dlg", 1, null);
+        binary.setCertificateBytes(chain, key);
+        m_storage.insertGrDPStorageElement(binary);
+        GrDPStorageElement pem = element("pem", 1, null);
+        pem.setCertificate(GrDPX509Util.toPEMCredential(key, chain));
+        m_storage.insertGrDPStorageElement(pem);
+        m_storage.insertGrDPStorageCacheElement(cacheElement("dlg+" + keyID));
+        m_storage.insertGrDPStorageCacheElement(cacheElement("pem+" + keyID));
+        m_storage.insertGrDPStorageCacheElement(cacheElement("dlg+" + otherKeyID));
+        File dlgDir = new File(new File(m_dir, URLEncoder.encode(DN, "UTF-8")), "dlg");
+        File oldTemp = new File(dlgDir, ".usercred.der1.tmp");
+        File newTemp = new File(dlgDir, ".usercred.der2.tmp");
+        assertTrue(oldTemp.createNewFile());
+        assertTrue(oldTemp.setLastModified(System.currentTimeMillis() - TestCertificates.HOUR));
+        assertTrue(newTemp.createNewFile());
+
+        GrDProxyDlgeeOptions options = new GrDProxyDlgeeOptions();
+        options.setDlgeeStorage(m_dir.getPath());
+        new GrDPStorageFilesystem(options);
+
+        assertNull(m_storage.findGrDPStorageCacheElement("dlg+" + keyID, DN));
+        assertNull(m_storage.findGrDPStorageCacheElement("pem+" + keyID, DN));
+        // the request of another key is still pending
+        assertNotNull(m_storage.findGrDPStorageCacheElement("dlg+" + otherKeyID, DN));
+        assertFalse(oldTemp.exists());
+        // may be in use by another process
+        assertTrue(newTemp.exists());
+        assertNotNull(m_storage.findGrDPStorageElement("dlg", DN));
+    }
+
+    public void testPemReplacesBinary() throws Exception {
+        m_storage.insertGrDPStorageElement(element("dlg", 1, null));
+        GrDPStorageElement pem = element("dlg", 2, null);
+        pem.setCertificate("pem proxy");
+        m_storage.insertGrDPStorageCacheElement(cacheElement("dlg+1"));
+
+        m_storage.commitDelegation(pem, "dlg+1");
+
+        GrDPStorageElement stored = m_storage.findGrDPStorageElement("dlg", DN);
+        assertNull(stored.getCertificateChainBytes());
+        assertEquals("pem proxy", stored.getCertificate().trim());
+    }
+
+    public void testReadersAlwaysSeeMatchingCredential() throws Exception {
+        m_storage.insertGrDPStorageElement(element("dlg", 0, null));
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final int rounds = 50;
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    int last = 0;
+                    while (last < rounds - 1) {
+                        GrDPStorageElement elem = m_storage.findGrDPStorageElement("dlg", DN);
+                        if (elem == null) {
+                            failure.set("delegation missing");
+                            return;
+                        }
+                        last = credentialNumber(elem);
+                    }
+                } catch (Exception e) {
+                    failure.set(e.toString());
+                }
+            }
+        };
+        reader.start();
+        for (int i = 1; i < rounds && failure.get() == null; i++) {
+            m_storage.insertGrDPStorageCacheElement(cacheElement("dlg+" + i));
+            m_storage.commitDelegation(element("dlg", i, null), "dlg+" + i);
+        }
+        reader.join(10000);
+        assertNull(failure.get(), failure.get());
+    }
+
+    /**
+     * Returns the number of the credential, checking that the private key and the chain are of the same credential.
+     */
+    private static int credentialNumber(GrDPStorageElement elem) throws Exception {
+        String key = new String(((ASN1OctetString) ASN1Object.fromByteArray(elem.getPrivateKeyBytes()))
+                .getOctets());
+        String chain = new String(elem.getCertificateChainBytes());
+        if (!key.substring(4).equals(chain.substring(6))) {
+            throw new IllegalStateException("key " + key + " with chain " + chain);
+        }
+        return Integer.parseInt(chain.substring(6));
+    }
+
+    private static GrDPStorageElement element(String id, int number, String[] voms) throws Exception {
+        GrDPStorageElement elem = new GrDPStorageElement();
+        elem.setDelegationID(id);
+        elem.setDN(DN);
+        elem.setCertificateBytes(("chain-" + number).getBytes(), new DEROctetString(("key-" + number).getBytes())
+                .getEncoded());
+        elem.setVomsAttributes(voms);
+        elem.setTerminationTime(new Date());
+        return elem;
+    }
+
+    private static GrDPStorageCacheElement cacheElement(String id) {
+        GrDPStorageCacheElement elem = new GrDPStorageCacheElement();
+        elem.setDelegationID(id);
+        elem.setDN(DN);
+        elem.setCertificateRequest("request");
+        elem.setPrivateKey("key");
+        return elem;
+    }
+
+    private static void delete(File file) {
+        File children[] = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}